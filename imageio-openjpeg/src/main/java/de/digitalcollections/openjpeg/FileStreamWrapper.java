@@ -0,0 +1,37 @@
+package de.digitalcollections.openjpeg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import jnr.ffi.Pointer;
+
+/**
+ * Reads a JPEG2000 file with OpenJPEG's own file stream.
+ *
+ * <p>All reads, skips and seeks happen in native code, without calling back into Java and without
+ * copying the data through the Java heap.
+ */
+public class FileStreamWrapper extends InStreamWrapper {
+  private final String path;
+
+  /**
+   * Create a wrapper for a file.
+   *
+   * @param lib the library to read the file with
+   * @param filePath Path to the JPEG2000 image file.
+   * @throws IOException if the file does not exist or is not readable
+   */
+  public FileStreamWrapper(OpenJpeg lib, Path filePath) throws IOException {
+    super(lib.lib);
+    OpenJpeg.checkReadable(filePath);
+    this.path = filePath.toAbsolutePath().toString();
+  }
+
+  @Override
+  protected Pointer createNativeStream() {
+    return lib.opj_stream_create_default_file_stream(path, true);
+  }
+
+  /** A new native file stream starts at the beginning of the file anyway. */
+  @Override
+  protected void rewind() {}
+}
@@ -1,13 +1,23 @@
 package de.digitalcollections.openjpeg;
 
 import de.digitalcollections.openjpeg.lib.callbacks.opj_stream_read_fn;
+import de.digitalcollections.openjpeg.lib.callbacks.opj_stream_seek_fn;
 import de.digitalcollections.openjpeg.lib.callbacks.opj_stream_skip_fn;
 import de.digitalcollections.openjpeg.lib.libopenjp2;
+import java.io.IOException;
 import jnr.ffi.Pointer;
 
+/**
+ * Source of the JPEG2000 data for OpenJPEG.
+ *
+ * <p>By default, the native stream reads the data through the {@link #read(Pointer, long,
+ * Pointer)}, {@link #skip(long, Pointer)} and {@link #seek(long, Pointer)} callbacks. Subclasses
+ * that can hand the data to OpenJPEG directly override {@link #createNativeStream()} instead.
+ */
 public abstract class InStreamWrapper {
   private Pointer stream;
-  private final libopenjp2 lib;
+  private boolean closed;
+  protected final libopenjp2 lib;
 
   // NOTE: We cannot use method references, since their evaluation creates a temporary instance of
   // the functional interface. That is, if we set the callbacks in the constructor as we should,
@@ -15,30 +25,156 @@ public abstract class InStreamWrapper {
   // things.
   private final opj_stream_read_fn readCallback;
   private final opj_stream_skip_fn skipCallback;
+  private final opj_stream_seek_fn seekCallback;
+  private long dataLength = -1;
+  private long numCallbacks;
+  private long bytesRead;
 
   protected InStreamWrapper(libopenjp2 lib) {
     this.lib = lib;
-    this.stream = lib.opj_stream_create(libopenjp2.OPJ_J2K_STREAM_CHUNK_SIZE, true);
-    this.skipCallback = this::skip;
-    this.readCallback = this::read;
+    this.skipCallback =
+        (numBytes, userData) -> {
+          numCallbacks++;
+          return skip(numBytes, userData);
+        };
+    this.readCallback =
+        (outBuffer, numBytes, userData) -> {
+          numCallbacks++;
+          long read = read(outBuffer, numBytes, userData);
+          if (read > 0) {
+            bytesRead += read;
+          }
+          return read;
+        };
+    this.seekCallback =
+        (position, userData) -> {
+          numCallbacks++;
+          return seek(position, userData);
+        };
+  }
+
+  /**
+   * Create the native stream, called when the stream is first needed and after a {@link #reset()}.
+   */
+  protected Pointer createNativeStream() {
+    Pointer stream = lib.opj_stream_create(libopenjp2.OPJ_J2K_STREAM_CHUNK_SIZE, true);
     lib.opj_stream_set_read_function(stream, readCallback);
     lib.opj_stream_set_skip_function(stream, skipCallback);
-    // NOTE: This should not be 0 and >= the size of the actual file. However, if we set it to the
-    // maximum value,
-    //       it works with streams of any length without any drawbacks (as far as I could tell...)
-    lib.opj_stream_set_user_data_length(stream, (long) Math.pow(2, 32));
+    // OpenJPEG prefers seeking over reading as soon as a seek function is set
+    if (canSeek()) {
+      lib.opj_stream_set_seek_function(stream, seekCallback);
+    }
+    // NOTE: This should not be 0 and >= the size of the actual file. If the size is unknown, we
+    // set it to the maximum value, it works with streams of any length without any drawbacks
+    // (as far as I could tell...)
+    lib.opj_stream_set_user_data_length(
+        stream, dataLength >= 0 ? dataLength : (long) Math.pow(2, 32));
+    return stream;
   }
 
+  /**
+   * Set the length of the image data, if it is known.
+   *
+   * <p>OpenJPEG checks skips and seeks against the length, with the real length it can tell a
+   * truncated codestream from one that ends where expected.
+   *
+   * @param length number of bytes from the start of the image to the end of the input
+   */
+  protected void setDataLength(long length) {
+    this.dataLength = length;
+    if (this.stream != null) {
+      lib.opj_stream_set_user_data_length(this.stream, length);
+    }
+  }
+
+  /** Get the native stream, or null if the wrapper has been closed. */
   public Pointer getNativeStream() {
+    if (stream == null && !closed) {
+      stream = createNativeStream();
+    }
     return stream;
   }
 
-  protected abstract long read(Pointer outBuffer, long numBytes, Pointer userData);
+  public boolean isClosed() {
+    return closed;
+  }
 
-  protected abstract long skip(long numBytes, Pointer userData);
+  /** Number of times OpenJPEG called back into Java to read, skip or seek. */
+  public long getNumCallbacks() {
+    return numCallbacks;
+  }
+
+  /** Number of bytes handed to OpenJPEG by the read callback. */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Read data into a native buffer.
+   *
+   * @return number of bytes read, -1 at the end of the data
+   */
+  protected long read(Pointer outBuffer, long numBytes, Pointer userData) {
+    return -1;
+  }
+
+  /**
+   * Skip forward in the data.
+   *
+   * @return number of bytes skipped, -1 on failure
+   */
+  protected long skip(long numBytes, Pointer userData) {
+    return -1;
+  }
+
+  /**
+   * Whether {@link #seek(long, Pointer)} is implemented. Only then the seek callback is registered,
+   * otherwise OpenJPEG reads the image sequentially.
+   */
+  protected boolean canSeek() {
+    return false;
+  }
+
+  /**
+   * Move to an absolute position in the image data, only called if {@link #canSeek()}.
+   *
+   * <p>With a seek function, OpenJPEG can jump over tile-parts it does not need (e.g. with the help
+   * of TLM markers) and go back to tiles it has already passed.
+   *
+   * @param position number of bytes from the start of the image
+   * @return whether the position could be reached
+   */
+  protected boolean seek(long position, Pointer userData) {
+    return false;
+  }
+
+  /**
+   * Move the underlying input back to the start of the image.
+   *
+   * @throws IOException if the input cannot be rewound
+   */
+  protected void rewind() throws IOException {
+    throw new IOException("Input stream cannot be rewound");
+  }
+
+  /**
+   * Start reading the image from the beginning again with a new native stream.
+   *
+   * @throws IOException if the input cannot be rewound
+   */
+  public void reset() throws IOException {
+    rewind();
+    if (this.stream != null) {
+      lib.opj_stream_destroy(this.stream);
+      this.stream = null;
+    }
+  }
 
   public void close() {
-    lib.opj_stream_destroy(this.stream);
-    this.stream = null;
+    if (this.stream != null) {
+      lib.opj_stream_destroy(this.stream);
+      this.stream = null;
+    }
+    this.closed = true;
   }
 }
@@ -12,6 +12,7 @@ import java.util.stream.IntStream;
 public class Info {
   private int numComponents;
   private int numResolutions;
+  private int numLayers;
   private int tileWidth;
   private int tileHeight;
   private int tileOriginX;
@@ -31,6 +32,10 @@ public class Info {
     this.numResolutions = numResolutions;
   }
 
+  void setNumLayers(int numLayers) {
+    this.numLayers = numLayers;
+  }
+
   void setTileWidth(int tileWidth) {
     this.tileWidth = tileWidth;
   }
@@ -79,6 +84,11 @@ public class Info {
     return numResolutions;
   }
 
+  /** Number of quality layers in the codestream, as given by the default coding style. */
+  public int getNumLayers() {
+    return numLayers;
+  }
+
   public Dimension getNativeSize() {
     return new Dimension(this.width, this.height);
   }
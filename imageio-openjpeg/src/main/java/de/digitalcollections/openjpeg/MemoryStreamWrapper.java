@@ -0,0 +1,71 @@
+package de.digitalcollections.openjpeg;
+
+import java.nio.ByteBuffer;
+import jnr.ffi.Pointer;
+
+/**
+ * Reads a JPEG2000 image from a buffer, e.g. a memory-mapped file.
+ *
+ * <p>With a direct buffer, the data requested by OpenJPEG is copied from the buffer into the
+ * stream's native buffer without any intermediate copy on the Java heap. Skips and seeks only move
+ * the position.
+ */
+public class MemoryStreamWrapper extends InStreamWrapper {
+  // Keep a reference to the buffer, the pointer alone does not prevent it from being unmapped
+  private final ByteBuffer buffer;
+  private final Pointer data;
+  private final long length;
+  private long position;
+
+  /**
+   * Create a wrapper for the image data in a buffer.
+   *
+   * @param lib the library to read the image with
+   * @param buffer JPEG2000 data from the buffer's position up to its limit
+   */
+  public MemoryStreamWrapper(OpenJpeg lib, ByteBuffer buffer) {
+    super(lib.lib);
+    this.buffer = buffer.slice();
+    this.data = Pointer.wrap(lib.runtime, this.buffer);
+    this.length = this.buffer.remaining();
+    setDataLength(length);
+  }
+
+  @Override
+  protected long read(Pointer outBuffer, long numBytes, Pointer userData) {
+    if (position >= length) {
+      return -1;
+    }
+    long n = Math.min(numBytes, length - position);
+    outBuffer.transferFrom(0, data, position, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  protected long skip(long numBytes, Pointer userData) {
+    long target = Math.max(0, Math.min(position + numBytes, length));
+    long skipped = target - position;
+    position = target;
+    return skipped;
+  }
+
+  @Override
+  protected boolean canSeek() {
+    return true;
+  }
+
+  @Override
+  protected boolean seek(long position, Pointer userData) {
+    if (position < 0 || position > length) {
+      return false;
+    }
+    this.position = position;
+    return true;
+  }
+
+  @Override
+  protected void rewind() {
+    position = 0;
+  }
+}
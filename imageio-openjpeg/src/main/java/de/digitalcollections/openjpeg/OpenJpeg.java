@@ -10,6 +10,7 @@ import de.digitalcollections.openjpeg.lib.structs.opj_dparameters;
 import de.digitalcollections.openjpeg.lib.structs.opj_image;
 import de.digitalcollections.openjpeg.lib.structs.opj_image_comp;
 import de.digitalcollections.openjpeg.lib.structs.opj_image_comptparm;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
@@ -20,12 +21,15 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.Pointer;
 import jnr.ffi.Runtime;
@@ -54,8 +58,19 @@ public class OpenJpeg {
       new ComponentColorModel(
           new CMYKColorSpace(), true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
 
+  /** Minimum number of pixels for the decoded samples to be interleaved by multiple threads. */
+  private static final int PARALLEL_MIN_PIXELS = 1024 * 1024;
+
+  /** Number of rows a thread interleaves at once when interleaving in parallel. */
+  private static final int PARALLEL_CHUNK_ROWS = 64;
+
+  private static volatile int defaultNumThreads = 0;
+
   public libopenjp2 lib;
   public Runtime runtime;
+  private final boolean threadSupport;
+  private final boolean repeatedDecodeSupport;
+  private final boolean encoderThreadSupport;
 
   /** Load the library. */
   public OpenJpeg() {
@@ -68,6 +83,87 @@ public class OpenJpeg {
           String.format("OpenJPEG version must be at least 2.0.0 (found: %s)", lib.opj_version()));
     }
     this.runtime = Runtime.getRuntime(lib);
+    this.threadSupport = detectThreadSupport();
+    this.repeatedDecodeSupport = compareVersion(lib.opj_version(), 2, 3) >= 0;
+    this.encoderThreadSupport = threadSupport && compareVersion(lib.opj_version(), 2, 4) >= 0;
+  }
+
+  /** Compare a version string like "2.5.0" to a major and minor version. */
+  private static int compareVersion(String version, int major, int minor) {
+    String[] parts = version.split("\\.");
+    try {
+      int cmp = Integer.compare(Integer.parseInt(parts[0]), major);
+      if (cmp != 0 || parts.length < 2) {
+        return cmp;
+      }
+      return Integer.compare(Integer.parseInt(parts[1].replaceAll("\\D.*", "")), minor);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Whether a codec can decode single-tiled images repeatedly, with different areas and
+   * resolutions, which requires OpenJPEG &gt;= 2.3.
+   */
+  boolean hasRepeatedDecodeSupport() {
+    return repeatedDecodeSupport;
+  }
+
+  private boolean detectThreadSupport() {
+    try {
+      return lib.opj_has_thread_support();
+    } catch (UnsatisfiedLinkError e) {
+      // OpenJPEG < 2.2 has no thread pool
+      return false;
+    }
+  }
+
+  /** Whether the loaded libopenjp2 can decode with multiple threads. */
+  public boolean hasThreadSupport() {
+    return threadSupport;
+  }
+
+  /**
+   * Whether the loaded libopenjp2 can encode with multiple threads, which requires OpenJPEG &gt;=
+   * 2.4. Older versions encode tiled images with a thread per tile instead.
+   */
+  public boolean hasEncoderThreadSupport() {
+    return encoderThreadSupport;
+  }
+
+  /** Number of CPUs as seen by libopenjp2, or by the JVM if the library cannot tell. */
+  public int getNumCpus() {
+    return threadSupport
+        ? lib.opj_get_num_cpus()
+        : java.lang.Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Number of threads used for decoding and encoding when none is passed explicitly.
+   *
+   * @return the thread count, 0 if the library default is used (a single thread, unless the {@code
+   *     OPJ_NUM_THREADS} environment variable says otherwise)
+   */
+  public static int getDefaultNumThreads() {
+    return defaultNumThreads;
+  }
+
+  /**
+   * Set the number of threads used for decoding and encoding when none is passed explicitly, for
+   * all instances in this process.
+   *
+   * <p>OpenJPEG decodes code-blocks in parallel with its own thread pool. Each decode creates its
+   * own pool, so when decoding many images concurrently the total number of threads is the product
+   * of the number of concurrent decodes and this setting.
+   *
+   * @param numThreads number of threads, 0 to use the library default
+   */
+  public static void setDefaultNumThreads(int numThreads) {
+    if (numThreads < 0) {
+      throw new IllegalArgumentException("Number of threads must not be negative");
+    }
+    defaultNumThreads = numThreads;
   }
 
   private void setupLogger(Pointer codec) {
@@ -111,7 +207,7 @@ public class OpenJpeg {
     Pointer codec = null;
     opj_image img = null;
     try {
-      codec = getCodec(0);
+      codec = getCodec(0, 0, 0);
       img = getImage(stream, codec);
       return getInfo(codec, img);
     } finally {
@@ -124,7 +220,7 @@ public class OpenJpeg {
     }
   }
 
-  private Info getInfo(Pointer codecPointer, opj_image img) {
+  Info getInfo(Pointer codecPointer, opj_image img) {
     opj_codestream_info_v2 csInfo = null;
     try {
       csInfo = lib.opj_get_cstr_info(codecPointer);
@@ -139,6 +235,7 @@ public class OpenJpeg {
       info.setTileOriginX(csInfo.tx0.intValue());
       info.setTileOriginY(csInfo.ty0.intValue());
       info.setNumResolutions(csInfo.m_default_tile_info.tccp_info.get().numresolutions.intValue());
+      info.setNumLayers(csInfo.m_default_tile_info.numlayers.intValue());
       info.setBitsPerPixel(img.comps.get().bpp.intValue());
       info.setColorSpace(img.color_space.get());
 
@@ -150,19 +247,27 @@ public class OpenJpeg {
     }
   }
 
-  private Pointer getCodec(int reduceFactor) throws IOException {
+  Pointer getCodec(int reduceFactor, int numLayers, int numThreads) throws IOException {
     Pointer codec = lib.opj_create_decompress(CODEC_FORMAT.OPJ_CODEC_JP2);
     setupLogger(codec);
     opj_dparameters params = new opj_dparameters(Runtime.getRuntime(lib));
     lib.opj_set_default_decoder_parameters(params);
     params.cp_reduce.set(reduceFactor);
+    params.cp_layer.set(numLayers);
     if (!lib.opj_setup_decoder(codec, params)) {
       throw new IOException("Error setting up decoder!");
     }
+    if (numThreads == 0) {
+      numThreads = defaultNumThreads;
+    }
+    // Has to happen between setting up the decoder and reading the header
+    if (numThreads > 0 && threadSupport && !lib.opj_codec_set_threads(codec, numThreads)) {
+      LOGGER.warn("Could not set number of decoding threads to {}", numThreads);
+    }
     return codec;
   }
 
-  private opj_image getImage(Pointer stream, Pointer codec) throws IOException {
+  opj_image getImage(Pointer stream, Pointer codec) throws IOException {
     opj_image img = new opj_image(Runtime.getRuntime(lib));
     PointerByReference imgPtr = new PointerByReference();
     if (!lib.opj_read_header(stream, codec, imgPtr)) {
@@ -183,8 +288,107 @@ public class OpenJpeg {
    */
   public BufferedImage decode(InStreamWrapper wrapper, Rectangle area, int reduceFactor)
       throws IOException {
+    return decode(wrapper, area, reduceFactor, null, null);
+  }
+
+  /**
+   * Decode the JPEG2000 image in the input stream into an existing BufferedImage.
+   *
+   * <p>If the destination's raster is interleaved with a byte (or, for 16 bit grayscale images,
+   * ushort) data buffer that has one band per output channel, the samples are written straight into
+   * its data buffer, honoring its scanline stride. Other destinations are filled by decoding into a
+   * temporary image first and copying its raster.
+   *
+   * @param wrapper Wrapper around the input stream pointing to the image
+   * @param area Region of the image to decode
+   * @param reduceFactor Scale down the image by a factor of 2^reduceFactor
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if there's a problem decoding the image
+   */
+  public BufferedImage decode(
+      InStreamWrapper wrapper,
+      Rectangle area,
+      int reduceFactor,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
+    return decode(wrapper, area, reduceFactor, 0, destination, destinationOffset);
+  }
+
+  /**
+   * Decode the JPEG2000 image in the input stream into an existing BufferedImage with multiple
+   * threads.
+   *
+   * @param wrapper Wrapper around the input stream pointing to the image
+   * @param area Region of the image to decode
+   * @param reduceFactor Scale down the image by a factor of 2^reduceFactor
+   * @param numThreads Number of threads to decode with, 0 for the {@link #getDefaultNumThreads()
+   *     default}. Ignored if the library has no thread support.
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if there's a problem decoding the image
+   * @see #decode(InStreamWrapper, Rectangle, int, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      InStreamWrapper wrapper,
+      Rectangle area,
+      int reduceFactor,
+      int numThreads,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
+    return decode(wrapper, area, reduceFactor, 0, numThreads, destination, destinationOffset);
+  }
+
+  /**
+   * Decode the JPEG2000 image in the input stream into an existing BufferedImage, using only the
+   * first quality layers.
+   *
+   * <p>Every quality layer refines the code-blocks of the previous ones, so limiting the number of
+   * layers skips the entropy decoding of the remaining ones. For images encoded with several layers
+   * this makes for considerably faster, but blurrier and blockier decodes, e.g. for progressive
+   * previews. The gain is roughly proportional to the share of the codestream in the skipped
+   * layers. It makes no difference for images with a single layer, see {@link Info#getNumLayers()}.
+   *
+   * @param wrapper Wrapper around the input stream pointing to the image
+   * @param area Region of the image to decode
+   * @param reduceFactor Scale down the image by a factor of 2^reduceFactor
+   * @param numLayers Maximum number of quality layers to decode, 0 for all of them
+   * @param numThreads Number of threads to decode with, 0 for the {@link #getDefaultNumThreads()
+   *     default}. Ignored if the library has no thread support.
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if there's a problem decoding the image
+   * @see #decode(InStreamWrapper, Rectangle, int, int, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      InStreamWrapper wrapper,
+      Rectangle area,
+      int reduceFactor,
+      int numLayers,
+      int numThreads,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
+    if (numLayers < 0) {
+      throw new IllegalArgumentException("Number of layers must not be negative");
+    }
     try {
-      return decode(wrapper.getNativeStream(), area, reduceFactor);
+      return decode(
+          wrapper.getNativeStream(),
+          area,
+          reduceFactor,
+          numLayers,
+          numThreads,
+          destination,
+          destinationOffset);
     } finally {
       wrapper.close();
     }
@@ -200,223 +404,491 @@ public class OpenJpeg {
    * @throws IOException if there's a problem decoding the image or reading the file
    */
   public BufferedImage decode(Path filePath, Rectangle area, int reduceFactor) throws IOException {
+    return decode(filePath, area, reduceFactor, null, null);
+  }
+
+  /**
+   * Decode the JPEG2000 image located at the given path into an existing BufferedImage.
+   *
+   * @param filePath Path to the JPEG2000 image file.
+   * @param area Region of the image to decode
+   * @param reduceFactor Scale down the image by a factor of 2^reduceFactor
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if there's a problem decoding the image or reading the file
+   * @see #decode(InStreamWrapper, Rectangle, int, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      Path filePath,
+      Rectangle area,
+      int reduceFactor,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
     Pointer ptr = createOpjFileStream(filePath);
     try {
-      return decode(ptr, area, reduceFactor);
+      return decode(ptr, area, reduceFactor, 0, 0, destination, destinationOffset);
     } finally {
       lib.opj_stream_destroy(ptr);
     }
   }
 
+  /**
+   * Open the JPEG2000 image in the input stream for repeated decoding.
+   *
+   * <p>The header is parsed when opening, the returned image then decodes regions at different
+   * resolutions without parsing it again where the library allows. It has to be closed, which also
+   * closes the wrapper.
+   *
+   * @param wrapper Wrapper around the input stream pointing to the image, has to support {@link
+   *     InStreamWrapper#reset()}
+   * @return the opened image
+   * @throws IOException if the header cannot be read
+   */
+  public OpenedImage open(InStreamWrapper wrapper) throws IOException {
+    return new OpenedImage(this, wrapper);
+  }
+
+  /**
+   * Open the JPEG2000 image in the input stream for decoding single tiles.
+   *
+   * <p>The header is parsed once, the returned decoder then decodes tiles without parsing it again.
+   * The decoder has to be closed, which also closes the wrapper.
+   *
+   * @param wrapper Wrapper around the input stream pointing to the image
+   * @param reduceFactor Scale down the tiles by a factor of 2^reduceFactor
+   * @param numThreads Number of threads to decode with, 0 for the {@link #getDefaultNumThreads()
+   *     default}
+   * @return the tile decoder
+   * @throws IOException if the header cannot be read
+   */
+  public TileDecoder openTiles(InStreamWrapper wrapper, int reduceFactor, int numThreads)
+      throws IOException {
+    return new TileDecoder(
+        this, wrapper.getNativeStream(), wrapper::close, reduceFactor, numThreads);
+  }
+
+  /**
+   * Open the JPEG2000 image located at the given path for decoding single tiles.
+   *
+   * @param filePath Path to the JPEG2000 image file.
+   * @param reduceFactor Scale down the tiles by a factor of 2^reduceFactor
+   * @param numThreads Number of threads to decode with, 0 for the {@link #getDefaultNumThreads()
+   *     default}
+   * @return the tile decoder, has to be closed
+   * @throws IOException if the file cannot be read or the header cannot be parsed
+   * @see #openTiles(InStreamWrapper, int, int)
+   */
+  public TileDecoder openTiles(Path filePath, int reduceFactor, int numThreads) throws IOException {
+    Pointer ptr = createOpjFileStream(filePath);
+    return new TileDecoder(this, ptr, () -> lib.opj_stream_destroy(ptr), reduceFactor, numThreads);
+  }
+
   private Pointer createOpjFileStream(Path filePath) throws IOException {
+    checkReadable(filePath);
+    return lib.opj_stream_create_default_file_stream(filePath.toAbsolutePath().toString(), true);
+  }
+
+  static void checkReadable(Path filePath) throws IOException {
     if (!Files.exists(filePath)) {
       throw new FileNotFoundException(String.format("File not found at %s", filePath));
     } else if (!Files.isReadable(filePath)) {
       throw new IOException(String.format("File not readable at %s", filePath));
     }
-    return lib.opj_stream_create_default_file_stream(filePath.toAbsolutePath().toString(), true);
   }
 
-  private BufferedImage decode(Pointer stream, Rectangle area, int reduceFactor)
+  private BufferedImage decode(
+      Pointer stream,
+      Rectangle area,
+      int reduceFactor,
+      int numLayers,
+      int numThreads,
+      BufferedImage destination,
+      Point destinationOffset)
       throws IOException {
     Pointer codec = null;
     opj_image img = null;
     try {
-      codec = getCodec(reduceFactor);
+      codec = getCodec(reduceFactor, numLayers, numThreads);
       img = getImage(stream, codec);
 
-      // Configure decoding area
-      int targetWidth;
-      int targetHeight;
-      if (area == null) {
-        if (!lib.opj_set_decode_area(
-            codec,
-            Struct.getMemory(img),
-            img.x0.intValue(),
-            img.y0.intValue(),
-            img.x1.intValue(),
-            img.y1.intValue())) {
-          throw new IOException("Could not set decoding area!");
-        }
-      } else {
-        lib.opj_set_decode_area(
-            codec,
-            Struct.getMemory(img),
-            area.x,
-            area.y,
-            area.x + area.width,
-            area.y + area.height);
+      decodeArea(
+          codec,
+          stream,
+          img,
+          new Rectangle(
+              img.x0.intValue(),
+              img.y0.intValue(),
+              img.x1.intValue() - img.x0.intValue(),
+              img.y1.intValue() - img.y0.intValue()),
+          area);
+
+      return toImage(img, numThreads, destination, destinationOffset);
+    } finally {
+      if (img != null) {
+        img.free(lib);
       }
+      if (codec != null) {
+        lib.opj_destroy_codec(codec);
+      }
+    }
+  }
 
-      if (!lib.opj_decode(codec, stream, Struct.getMemory(img))) {
-        throw new IOException("Could not decode image!");
+  /**
+   * Decode an area of the image whose header was read with the codec.
+   *
+   * @param bounds bounds of the image on the reference grid, decoded if no area is given
+   * @param area area to decode, or null to decode the full image
+   */
+  void decodeArea(Pointer codec, Pointer stream, opj_image img, Rectangle bounds, Rectangle area)
+      throws IOException {
+    if (area == null) {
+      if (!lib.opj_set_decode_area(
+          codec,
+          Struct.getMemory(img),
+          bounds.x,
+          bounds.y,
+          bounds.x + bounds.width,
+          bounds.y + bounds.height)) {
+        throw new IOException("Could not set decoding area!");
       }
+    } else {
+      lib.opj_set_decode_area(
+          codec, Struct.getMemory(img), area.x, area.y, area.x + area.width, area.y + area.height);
+    }
 
-      BufferedImage bufImg;
-      int numcomps = img.numcomps.intValue();
-      opj_image_comp[] comps = img.comps.get(numcomps);
-      targetWidth = comps[0].w.intValue();
-      targetHeight = comps[0].h.intValue();
-      COLOR_SPACE colorSpace = img.color_space.get();
+    if (!lib.opj_decode(codec, stream, Struct.getMemory(img))) {
+      throw new IOException("Could not decode image!");
+    }
+  }
 
-      if (colorSpace == COLOR_SPACE.OPJ_CLRSPC_SYCC) {
-        // prevent a JVM crash because the 3 color components has a different size
-        throw new IOException("Images with YUV color space are currently not supported.");
-      }
+  /** Copy the decoded components of an image into a BufferedImage. */
+  BufferedImage toImage(
+      opj_image img, int numThreads, BufferedImage destination, Point destinationOffset)
+      throws IOException {
+    int numcomps = img.numcomps.intValue();
+    opj_image_comp[] comps = img.comps.get(numcomps);
+    int width = comps[0].w.intValue();
+    Pointer[] data = new Pointer[numcomps];
+    for (int i = 0; i < numcomps; i++) {
+      data[i] = comps[i].data.get();
+    }
+    return writeImage(
+        (component, y, row) -> data[component].get((long) y * width * 4, row, 0, width),
+        numcomps,
+        width,
+        comps[0].h.intValue(),
+        comps[0].bpp.intValue(),
+        img.color_space.get(),
+        numThreads,
+        destination,
+        destinationOffset);
+  }
 
-      // 8bit color depth is assumed as default color depth here -> 2 ^ 8 = 256 colors are available
-      // For 16bit color depth -> 2 ^ 16 = 65536 color are available.
-      // To "scale down" images with 16bit color depth to 8 bit, just a color depth factor needs to
-      // be
-      // calculated (65536 / 256 = 256) to correctly assign pixel in the underlying image buffer.
-      int colorDepthFactor = ((int) Math.pow(2, comps[0].bpp.intValue())) / 256;
-      colorDepthFactor = colorDepthFactor > 0 ? colorDepthFactor : 1;
-
-      switch (numcomps) {
-        case 3:
-          {
-            bufImg = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_3BYTE_BGR);
-
-            // NOTE: We don't use bufImg.getRaster().setPixel, since directly accessing the
-            // underlying buffer is ~400% faster
-            Pointer red = comps[0].data.get();
-            Pointer green = comps[1].data.get();
-            Pointer blue = comps[2].data.get();
-            byte[] bgrData = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
-            for (int i = 0; i < targetWidth * targetHeight; i++) {
-              bgrData[i * 3] = (byte) (blue.getInt(i * 4) / colorDepthFactor);
-              bgrData[i * 3 + 1] = (byte) (green.getInt(i * 4) / colorDepthFactor);
-              bgrData[i * 3 + 2] = (byte) (red.getInt(i * 4) / colorDepthFactor);
-            }
-          }
-          break;
-        case 1:
-          {
-            Pointer ptr = comps[0].data.get();
-            int bitPerPixel = comps[0].bpp.intValue();
-            if (bitPerPixel == 1) {
-              // 1Bit binary image
-              bufImg = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_BYTE_BINARY);
-              byte[] data = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
-              // TYPE_BYTE_BINARY bit-packs 8 pixels into a single byte, zero-padding scanlines at
-              // the end
-              int stride = (int) Math.ceil((double) targetWidth / 8);
-              for (int scanline = 0; scanline < targetHeight; scanline++) {
-                for (int linePos = 0; linePos < stride; linePos++) {
-                  int srcIdx = (scanline * targetWidth) + (linePos * 8);
-                  int pixToPack = linePos * 8 > targetWidth ? 8 - (linePos * 8 - targetWidth) : 8;
-                  for (int packedIdx = 0; packedIdx < pixToPack; packedIdx++) {
-                    byte px = (byte) ptr.getInt((srcIdx + packedIdx) * 4);
-                    data[scanline * stride + linePos] |= px << (7 - packedIdx);
-                  }
-                }
-              }
-            } else if (bitPerPixel <= 8) {
-              // 8Bit grayscale image
-              bufImg = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_BYTE_GRAY);
-              byte[] data = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
-              for (int i = 0; i < targetWidth * targetHeight; i++) {
-                data[i] = (byte) (ptr.getInt(i * 4) / colorDepthFactor);
-              }
-            } else if (bitPerPixel <= 16) {
-              // 16Bit grayscale image
-              bufImg = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_USHORT_GRAY);
-              short[] data = ((DataBufferUShort) bufImg.getRaster().getDataBuffer()).getData();
-              for (int i = 0; i < targetWidth * targetHeight; i++) {
-                data[i] = (short) (ptr.getInt(i * 4));
+  /**
+   * Write decoded samples into a BufferedImage.
+   *
+   * @param rows source of the decoded samples
+   * @param numcomps number of decoded components
+   * @param targetWidth width of the decoded components
+   * @param targetHeight height of the decoded components
+   * @param bitPerPixel precision of the decoded samples
+   * @param colorSpace color space of the decoded image
+   * @param numThreads number of decoding threads, rows are interleaved in parallel if more than one
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if the samples cannot be represented as a BufferedImage
+   */
+  BufferedImage writeImage(
+      SampleRows rows,
+      int numcomps,
+      int targetWidth,
+      int targetHeight,
+      int bitPerPixel,
+      COLOR_SPACE colorSpace,
+      int numThreads,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
+    if (colorSpace == COLOR_SPACE.OPJ_CLRSPC_SYCC) {
+      // prevent a JVM crash because the 3 color components has a different size
+      throw new IOException("Images with YUV color space are currently not supported.");
+    }
+
+    Point dstOffset = destinationOffset != null ? destinationOffset : new Point(0, 0);
+    Point offset = dstOffset;
+    if (destination != null
+        && (offset.x < 0
+            || offset.y < 0
+            || offset.x + targetWidth > destination.getWidth()
+            || offset.y + targetHeight > destination.getHeight())) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Decoded image (%dx%d) does not fit into destination (%dx%d) at offset (%d,%d)",
+              targetWidth,
+              targetHeight,
+              destination.getWidth(),
+              destination.getHeight(),
+              offset.x,
+              offset.y));
+    }
+
+    // Maps the bands of the output raster to the decoded components
+    int[] bandComponents;
+    switch (numcomps) {
+      case 1:
+        bandComponents = new int[] {0};
+        break;
+      case 2:
+        // gray with alpha
+        bandComponents = new int[] {0, 0, 0, 1};
+        break;
+      case 3:
+        bandComponents = new int[] {0, 1, 2};
+        break;
+      case 4:
+        // RGBA or CMYK
+        bandComponents = new int[] {0, 1, 2, 3};
+        break;
+      case 5:
+        // CMYK with alpha
+        bandComponents = new int[] {0, 1, 2, 3, 4};
+        break;
+      default:
+        throw new IOException(String.format("Unsupported number of components: %d", numcomps));
+    }
+    if (numcomps == 1 && bitPerPixel > 16) {
+      throw new IOException("unsupported bit depth (>16bit)");
+    }
+
+    BufferedImage bufImg = destination;
+    if (bufImg == null
+        || !canWriteDirectly(bufImg.getRaster(), bandComponents.length, bitPerPixel)) {
+      bufImg = createImage(targetWidth, targetHeight, numcomps, bitPerPixel, colorSpace);
+      offset = new Point(0, 0);
+    }
+
+    if (numThreads == 0) {
+      numThreads = defaultNumThreads;
+    }
+    boolean parallel = numThreads > 1 && (long) targetWidth * targetHeight >= PARALLEL_MIN_PIXELS;
+    if (numcomps == 1 && bitPerPixel == 1) {
+      writeBinary(rows, targetWidth, targetHeight, bufImg);
+    } else if (bufImg.getRaster().getDataBuffer() instanceof DataBufferUShort) {
+      writeUShort(rows, targetWidth, targetHeight, bufImg.getRaster(), offset, parallel);
+    } else {
+      // Components with more than 8 bits per sample are reduced to 8 bits by dropping the least
+      // significant bits
+      int shift = Math.max(bitPerPixel - 8, 0);
+      writeBytes(
+          rows,
+          bandComponents,
+          targetWidth,
+          targetHeight,
+          shift,
+          bufImg.getRaster(),
+          offset,
+          parallel);
+    }
+
+    if (destination != null && bufImg != destination) {
+      destination.getRaster().setRect(dstOffset.x, dstOffset.y, bufImg.getRaster());
+      return destination;
+    }
+    return bufImg;
+  }
+
+  /** Create a new image with the default layout for the decoded components. */
+  private BufferedImage createImage(
+      int width, int height, int numcomps, int bitPerPixel, COLOR_SPACE colorSpace) {
+    switch (numcomps) {
+      case 1:
+        if (bitPerPixel == 1) {
+          // 1Bit binary image
+          return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        } else if (bitPerPixel <= 8) {
+          // 8Bit grayscale image
+          return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        } else {
+          // 16Bit grayscale image
+          return new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        }
+      case 3:
+        return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+      case 4:
+        if (colorSpace == COLOR_SPACE.OPJ_CLRSPC_CMYK) {
+          return createCMYKImage(width, height, numcomps);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+      case 5:
+        return createCMYKImage(width, height, numcomps);
+      default:
+        // gray with alpha
+        return new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+    }
+  }
+
+  /**
+   * Check if the decoded samples can be written to the raster's data buffer without an intermediate
+   * image.
+   */
+  private static boolean canWriteDirectly(WritableRaster raster, int numBands, int bitPerPixel) {
+    if (!(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+        || raster.getNumBands() != numBands
+        || raster.getDataBuffer().getNumBanks() != 1) {
+      return false;
+    }
+    if (bitPerPixel == 1) {
+      return false;
+    } else if (raster.getDataBuffer() instanceof DataBufferUShort) {
+      return numBands == 1 && bitPerPixel > 8;
+    } else {
+      return raster.getDataBuffer() instanceof DataBufferByte;
+    }
+  }
+
+  /** Offset of the given pixel in the data buffer of the raster. */
+  private static int getPixelOffset(WritableRaster raster, Point offset) {
+    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+    return raster.getDataBuffer().getOffset()
+        + (offset.y - raster.getSampleModelTranslateY()) * sm.getScanlineStride()
+        + (offset.x - raster.getSampleModelTranslateX()) * sm.getPixelStride();
+  }
+
+  /**
+   * Run a task for all rows of the image, in chunks on the common fork/join pool if requested.
+   *
+   * <p>The task receives the first and the end row of its chunk.
+   */
+  private static void forEachRowChunk(int height, boolean parallel, RowTask task) {
+    if (!parallel) {
+      task.run(0, height);
+      return;
+    }
+    IntStream.range(0, (height + PARALLEL_CHUNK_ROWS - 1) / PARALLEL_CHUNK_ROWS)
+        .parallel()
+        .forEach(
+            chunk ->
+                task.run(
+                    chunk * PARALLEL_CHUNK_ROWS,
+                    Math.min((chunk + 1) * PARALLEL_CHUNK_ROWS, height)));
+  }
+
+  /** Source of the decoded samples of an image, a row of a component at a time. */
+  @FunctionalInterface
+  interface SampleRows {
+    void read(int component, int y, int[] row);
+  }
+
+  @FunctionalInterface
+  private interface RowTask {
+    void run(int startRow, int endRow);
+  }
+
+  /**
+   * Write 8 bit samples to an interleaved byte raster, honoring its band offsets and stride.
+   *
+   * <p>The decoded components are arrays of integers in native memory. They are copied to the Java
+   * heap a row at a time, since a JNR call per sample dominates the decoding time of large images
+   * otherwise.
+   */
+  private static void writeBytes(
+      SampleRows rows,
+      int[] bandComponents,
+      int width,
+      int height,
+      int shift,
+      WritableRaster raster,
+      Point offset,
+      boolean parallel) {
+    // NOTE: We don't use raster.setPixel, since directly accessing the underlying buffer is ~400%
+    // faster
+    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+    int pixelStride = sm.getPixelStride();
+    int scanlineStride = sm.getScanlineStride();
+    int[] bandOffsets = sm.getBandOffsets();
+    int base = getPixelOffset(raster, offset);
+    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+    forEachRowChunk(
+        height,
+        parallel,
+        (startRow, endRow) -> {
+          int[] row = new int[width];
+          for (int y = startRow; y < endRow; y++) {
+            for (int band = 0; band < bandComponents.length; band++) {
+              rows.read(bandComponents[band], y, row);
+              int dstIdx = base + y * scanlineStride + bandOffsets[band];
+              for (int x = 0; x < width; x++) {
+                data[dstIdx] = (byte) (row[x] >> shift);
+                dstIdx += pixelStride;
               }
-            } else {
-              throw new IOException("unsupported bit depth (>16bit)");
-            }
-          }
-          break;
-        case 2:
-          {
-            // gray with alpha
-            bufImg = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_4BYTE_ABGR);
-            Pointer gray = comps[0].data.get();
-            Pointer alpha = comps[1].data.get();
-            byte[] bgrData = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
-            for (int i = 0, j = 0; i < targetWidth * targetHeight; i++) {
-              bgrData[j++] = (byte) (alpha.getInt(i * 4) / colorDepthFactor);
-              byte colValue = (byte) (gray.getInt(i * 4) / colorDepthFactor);
-              bgrData[j++] = colValue;
-              bgrData[j++] = colValue;
-              bgrData[j++] = colValue;
             }
           }
-          break;
-        case 4:
-          {
-            if (colorSpace == COLOR_SPACE.OPJ_CLRSPC_CMYK) {
-              bufImg = decodeCMYK(targetWidth, targetHeight, numcomps, colorDepthFactor, comps);
-            } else {
-              bufImg = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_4BYTE_ABGR);
-              Pointer red = comps[0].data.get();
-              Pointer green = comps[1].data.get();
-              Pointer blue = comps[2].data.get();
-              Pointer alpha = comps[3].data.get();
-              byte[] bgrData = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
-              for (int i = 0, j = 0; i < targetWidth * targetHeight; i++) {
-                bgrData[j++] = (byte) (alpha.getInt(i * 4) / colorDepthFactor);
-                bgrData[j++] = (byte) (blue.getInt(i * 4) / colorDepthFactor);
-                bgrData[j++] = (byte) (green.getInt(i * 4) / colorDepthFactor);
-                bgrData[j++] = (byte) (red.getInt(i * 4) / colorDepthFactor);
-              }
+        });
+  }
+
+  /** Write 16 bit samples to a single-banded ushort raster. */
+  private static void writeUShort(
+      SampleRows rows,
+      int width,
+      int height,
+      WritableRaster raster,
+      Point offset,
+      boolean parallel) {
+    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+    int pixelStride = sm.getPixelStride();
+    int scanlineStride = sm.getScanlineStride();
+    int base = getPixelOffset(raster, offset) + sm.getBandOffsets()[0];
+    short[] data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+    forEachRowChunk(
+        height,
+        parallel,
+        (startRow, endRow) -> {
+          int[] row = new int[width];
+          for (int y = startRow; y < endRow; y++) {
+            rows.read(0, y, row);
+            int dstIdx = base + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+              data[dstIdx] = (short) row[x];
+              dstIdx += pixelStride;
             }
           }
-          break;
-        case 5:
-          {
-            bufImg = decodeCMYK(targetWidth, targetHeight, numcomps, colorDepthFactor, comps);
-          }
-          break;
-        default:
-          throw new IOException(String.format("Unsupported number of components: %d", numcomps));
-      }
-      return bufImg;
-    } finally {
-      if (img != null) {
-        img.free(lib);
-      }
-      if (codec != null) {
-        lib.opj_destroy_codec(codec);
+        });
+  }
+
+  /** Write 1 bit samples to a newly created binary image. */
+  private static void writeBinary(SampleRows rows, int width, int height, BufferedImage bufImg) {
+    byte[] data = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
+    // TYPE_BYTE_BINARY bit-packs 8 pixels into a single byte, zero-padding scanlines at
+    // the end
+    int stride = (width + 7) / 8;
+    int[] row = new int[width];
+    for (int scanline = 0; scanline < height; scanline++) {
+      rows.read(0, scanline, row);
+      int dstIdx = scanline * stride;
+      for (int x = 0; x < width; x++) {
+        data[dstIdx + (x >> 3)] |= (byte) ((row[x] & 1) << (7 - (x & 7)));
       }
     }
   }
 
   /**
-   * decode image with CMYK color space.
+   * Create an image with CMYK color space.
    *
    * @param width width in pixel
    * @param height height in pixel
    * @param numcomps number of components
-   * @param colorDepthFactor factor to reduce to a 8 bit color
-   * @param comps the components
    * @return the image
    */
-  private BufferedImage decodeCMYK(
-      int width, int height, int numcomps, int colorDepthFactor, opj_image_comp[] comps) {
+  private BufferedImage createCMYKImage(int width, int height, int numcomps) {
     boolean hasAlpha = numcomps > 4;
     ColorModel colorModel = hasAlpha ? COLOR_MODEL_CMYK_ALPHA : COLOR_MODEL_CMYK;
-    BufferedImage bufImg =
-        new BufferedImage(
-            colorModel, colorModel.createCompatibleWritableRaster(width, height), false, null);
-
-    Pointer[] data = new Pointer[numcomps];
-    for (int i = 0; i < data.length; i++) {
-      // cyan, magenta, yellow, key, (alpha)
-      data[i] = comps[i].data.get();
-    }
-
-    byte[] bgrData = ((DataBufferByte) bufImg.getRaster().getDataBuffer()).getData();
-    for (int i = 0, j = 0; i < width * height; i++) {
-      for (Pointer datum : data) {
-        bgrData[j++] = (byte) (datum.getInt(i * 4) / colorDepthFactor);
-      }
-    }
-
-    return bufImg;
+    return new BufferedImage(
+        colorModel, colorModel.createCompatibleWritableRaster(width, height), false, null);
   }
 
   /**
@@ -482,7 +954,7 @@ public class OpenJpeg {
     }
   }
 
-  private opj_image createImage(Raster img) {
+  private opj_image createImage(Raster img, Point origin) {
     int numBands = img.getSampleModel().getNumBands();
     if (numBands != 3 && numBands != 1) {
       throw new IllegalArgumentException("Image must be RGB or Greyscale");
@@ -500,6 +972,8 @@ public class OpenJpeg {
       params[i].dy.set(1);
       params[i].w.set(img.getWidth());
       params[i].h.set(img.getHeight());
+      params[i].x0.set(origin.x);
+      params[i].y0.set(origin.y);
     }
 
     COLOR_SPACE cspace = numBands == 3 ? COLOR_SPACE.OPJ_CLRSPC_SRGB : COLOR_SPACE.OPJ_CLRSPC_GRAY;
@@ -507,10 +981,10 @@ public class OpenJpeg {
     Pointer imgPtr = lib.opj_image_create(params.length, Struct.getMemory(params[0]), cspace);
     outImg.useMemory(imgPtr);
 
-    outImg.x0.set(0);
-    outImg.y0.set(0);
-    outImg.x1.set(img.getWidth());
-    outImg.y1.set(img.getHeight());
+    outImg.x0.set(origin.x);
+    outImg.y0.set(origin.y);
+    outImg.x1.set(origin.x + img.getWidth());
+    outImg.y1.set(origin.y + img.getHeight());
 
     byte[] imgData = ((DataBufferByte) img.getDataBuffer()).getData();
     int numcomps = (int) outImg.numcomps.get();
@@ -538,6 +1012,24 @@ public class OpenJpeg {
     return outImg;
   }
 
+  private void setExtraOptions(Pointer codec, String[] extraOptions) throws IOException {
+    boolean success;
+    try {
+      success = lib.opj_encoder_set_extra_options(codec, extraOptions);
+    } catch (UnsatisfiedLinkError e) {
+      throw new IOException(
+          String.format(
+              "Encoder options %s require OpenJPEG >= 2.4 (found: %s)",
+              Arrays.toString(extraOptions), lib.opj_version()));
+    }
+    if (!success) {
+      throw new IOException(
+          String.format(
+              "Encoder options %s are not supported by OpenJPEG %s",
+              Arrays.toString(extraOptions), lib.opj_version()));
+    }
+  }
+
   /**
    * Encode a raster image to a JPEG2000 image.
    *
@@ -548,10 +1040,71 @@ public class OpenJpeg {
    */
   public void encode(Raster img, OutStreamWrapper output, opj_cparameters params)
       throws IOException {
+    encode(img, output, params, 0);
+  }
+
+  /**
+   * Encode a raster image to a JPEG2000 image, with options that are not part of the encoding
+   * parameters.
+   *
+   * @param img image to encode
+   * @param output wrapped OutputStream the image should be written to
+   * @param params encoding parameters
+   * @param numThreads Number of threads to encode with, 0 for the {@link #getDefaultNumThreads()
+   *     default}
+   * @param extraOptions options in "KEY=VALUE" form like "PLT=YES" or "TLM=YES", see {@code
+   *     opj_encoder_set_extra_options}. Requires OpenJPEG &gt;= 2.4 if not empty.
+   * @throws IOException if encoding fails or the options are not supported
+   */
+  public void encode(
+      Raster img,
+      OutStreamWrapper output,
+      opj_cparameters params,
+      int numThreads,
+      String... extraOptions)
+      throws IOException {
+    if (params == null) {
+      params = new opj_cparameters(runtime);
+      lib.opj_set_default_encoder_parameters(params);
+    }
+    if (numThreads == 0) {
+      numThreads = defaultNumThreads;
+    }
+    // OpenJPEG < 2.4 only has a thread pool for decoding, tiles are independent from each other
+    // though and can be encoded on their own
+    if (numThreads > 1
+        && !encoderThreadSupport
+        && TileParallelEncoder.canEncode(img, params, extraOptions)) {
+      try {
+        new TileParallelEncoder(this, params, numThreads, extraOptions).encode(img, output);
+      } finally {
+        output.close();
+      }
+      return;
+    }
+    try {
+      encode(img, new Point(0, 0), output, params, numThreads, extraOptions);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Encode a raster image as the part of a JPEG2000 image starting at the given origin on the
+   * reference grid, without closing the output.
+   */
+  void encode(
+      Raster img,
+      Point origin,
+      OutStreamWrapper output,
+      opj_cparameters params,
+      int numThreads,
+      String[] extraOptions)
+      throws IOException {
     opj_image image = null;
     Pointer codec = null;
     try {
-      image = createImage(img);
+      image = createImage(img, origin);
 
       // Disable MCT for grayscale images
       if (image.numcomps.get() == 1) {
@@ -561,14 +1114,16 @@ public class OpenJpeg {
       codec = lib.opj_create_compress(CODEC_FORMAT.OPJ_CODEC_JP2);
       setupLogger(codec);
 
-      if (params == null) {
-        params = new opj_cparameters(runtime);
-        lib.opj_set_default_encoder_parameters(params);
-      }
-
       if (!lib.opj_setup_encoder(codec, params, image)) {
         throw new IOException("Could not setup encoder!");
       }
+      if (extraOptions.length > 0) {
+        setExtraOptions(codec, extraOptions);
+      }
+      // Has to happen between setting up the encoder and starting the compression
+      if (numThreads > 1 && encoderThreadSupport && !lib.opj_codec_set_threads(codec, numThreads)) {
+        LOGGER.warn("Could not set number of encoding threads to {}", numThreads);
+      }
 
       if (!lib.opj_start_compress(codec, image, output.getNativeStream())) {
         throw new IOException("Could not start encoding");
@@ -586,9 +1141,6 @@ public class OpenJpeg {
       if (codec != null) {
         lib.opj_destroy_codec(codec);
       }
-      if (output != null) {
-        output.close();
-      }
     }
   }
 }
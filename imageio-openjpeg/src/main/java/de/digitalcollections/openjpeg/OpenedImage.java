@@ -0,0 +1,245 @@
+package de.digitalcollections.openjpeg;
+
+import de.digitalcollections.openjpeg.lib.structs.opj_image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import jnr.ffi.Pointer;
+
+/**
+ * A JPEG2000 image whose header has been parsed, see {@link OpenJpeg#open(InStreamWrapper)}.
+ *
+ * <p>The codec, the parsed header and the native stream are kept until the image is closed, so
+ * {@link #getInfo()} and the following decodes share a single header parse. With OpenJPEG &gt;=
+ * 2.3, single-tiled images can be decoded repeatedly with the same codec, for any area and
+ * resolution. The codec of multi-tiled images is used up by a decode, the next one rewinds the
+ * stream and parses the header again. Single tiles are decoded with a {@link TileDecoder} from
+ * {@link #getTiles(int, int)}, which parses the header once for all tiles.
+ */
+public class OpenedImage implements Closeable {
+
+  private final OpenJpeg lib;
+  private final InStreamWrapper wrapper;
+  private final Info info;
+  private final Rectangle bounds;
+  private Pointer codec;
+  private opj_image img;
+  private int codecReduceFactor;
+  private int codecNumLayers;
+  private int codecNumThreads;
+  private boolean exhausted;
+  private boolean used;
+  private TileDecoder tiles;
+  private int numHeaderReads;
+
+  OpenedImage(OpenJpeg lib, InStreamWrapper wrapper) throws IOException {
+    this.lib = lib;
+    this.wrapper = wrapper;
+    try {
+      // Resolved here, so the first decode with the default can use the codec that read the header
+      openCodec(0, 0, OpenJpeg.getDefaultNumThreads());
+      this.info = lib.getInfo(codec, img);
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    this.bounds =
+        new Rectangle(
+            img.x0.intValue(),
+            img.y0.intValue(),
+            img.x1.intValue() - img.x0.intValue(),
+            img.y1.intValue() - img.y0.intValue());
+  }
+
+  private void openCodec(int reduceFactor, int numLayers, int numThreads) throws IOException {
+    codec = lib.getCodec(reduceFactor, numLayers, numThreads);
+    img = lib.getImage(wrapper.getNativeStream(), codec);
+    numHeaderReads++;
+    codecReduceFactor = reduceFactor;
+    codecNumLayers = numLayers;
+    codecNumThreads = numThreads;
+    exhausted = false;
+    used = false;
+  }
+
+  private void releaseCodec() {
+    if (tiles != null) {
+      tiles.close();
+      tiles = null;
+    }
+    if (img != null) {
+      img.free(lib.lib);
+      img = null;
+    }
+    if (codec != null) {
+      lib.lib.opj_destroy_codec(codec);
+      codec = null;
+    }
+  }
+
+  /** Information about the image from its main header. */
+  public Info getInfo() {
+    return info;
+  }
+
+  /** Number of times the main header has been parsed, including the parse when opening. */
+  public int getNumHeaderReads() {
+    return numHeaderReads;
+  }
+
+  /**
+   * Decode the image into an existing BufferedImage.
+   *
+   * @param area Region of the image to decode
+   * @param reduceFactor Scale down the image by a factor of 2^reduceFactor
+   * @param numThreads Number of threads to decode with, 0 for the {@link
+   *     OpenJpeg#getDefaultNumThreads() default}
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if there's a problem decoding the image
+   * @see OpenJpeg#decode(InStreamWrapper, Rectangle, int, int, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      Rectangle area,
+      int reduceFactor,
+      int numThreads,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
+    return decode(area, reduceFactor, 0, numThreads, destination, destinationOffset);
+  }
+
+  /**
+   * Decode the first quality layers of the image into an existing BufferedImage.
+   *
+   * <p>The layer limit is part of the decoder setup, changing it between decodes parses the header
+   * again.
+   *
+   * @param area Region of the image to decode
+   * @param reduceFactor Scale down the image by a factor of 2^reduceFactor
+   * @param numLayers Maximum number of quality layers to decode, 0 for all of them
+   * @param numThreads Number of threads to decode with, 0 for the {@link
+   *     OpenJpeg#getDefaultNumThreads() default}
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the
+   *     decoded image to, defaults to (0, 0)
+   * @return the decoded image, i.e. the destination if one was passed
+   * @throws IOException if there's a problem decoding the image
+   * @see OpenJpeg#decode(InStreamWrapper, Rectangle, int, int, int, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      Rectangle area,
+      int reduceFactor,
+      int numLayers,
+      int numThreads,
+      BufferedImage destination,
+      Point destinationOffset)
+      throws IOException {
+    if (numLayers < 0) {
+      throw new IllegalArgumentException("Number of layers must not be negative");
+    }
+    if (wrapper.isClosed()) {
+      throw new IllegalStateException("Image has been closed");
+    }
+    if (numThreads == 0) {
+      numThreads = OpenJpeg.getDefaultNumThreads();
+    }
+    // Threads and layers can only be configured before the header is read
+    if (exhausted || numThreads != codecNumThreads || numLayers != codecNumLayers) {
+      reopen(reduceFactor, numLayers, numThreads);
+    } else if (reduceFactor != codecReduceFactor && !setReduceFactor(reduceFactor)) {
+      reopen(reduceFactor, numLayers, numThreads);
+    }
+    // A failed decode leaves the codec in an unknown state
+    exhausted = true;
+    used = true;
+    lib.decodeArea(codec, wrapper.getNativeStream(), img, bounds, area);
+    exhausted = info.getNumTiles() > 1 || !lib.hasRepeatedDecodeSupport();
+    return lib.toImage(img, numThreads, destination, destinationOffset);
+  }
+
+  /**
+   * Get a decoder for single tiles of the image.
+   *
+   * <p>The decoder takes over the codec if it has not decoded anything yet, so the header parsed
+   * when opening is used for the tiles as well. It is kept for all following calls with the same
+   * parameters, until the next {@link #decode(Rectangle, int, int, int, BufferedImage, Point)
+   * decode}. The decoder belongs to the image and is closed with it, it must not be closed by the
+   * caller.
+   *
+   * @param reduceFactor Scale down the tiles by a factor of 2^reduceFactor
+   * @param numThreads Number of threads to decode with, 0 for the {@link
+   *     OpenJpeg#getDefaultNumThreads() default}
+   * @return the tile decoder
+   * @throws IOException if the header cannot be read again
+   */
+  public TileDecoder getTiles(int reduceFactor, int numThreads) throws IOException {
+    if (wrapper.isClosed()) {
+      throw new IllegalStateException("Image has been closed");
+    }
+    if (reduceFactor < 0 || reduceFactor >= info.getNumResolutions()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Reduce factor must be between 0 and %d, was %d",
+              info.getNumResolutions() - 1, reduceFactor));
+    }
+    if (numThreads == 0) {
+      numThreads = OpenJpeg.getDefaultNumThreads();
+    }
+    if (tiles != null
+        && tiles.getReduceFactor() == reduceFactor
+        && tiles.getNumThreads() == numThreads) {
+      return tiles;
+    }
+    if (codec == null || used || numThreads != codecNumThreads || codecNumLayers != 0) {
+      reopen(reduceFactor, 0, numThreads);
+    } else if (reduceFactor != codecReduceFactor && !setReduceFactor(reduceFactor)) {
+      reopen(reduceFactor, 0, numThreads);
+    }
+    // The stream stays with the image, the decoder only releases the codec and the header
+    tiles =
+        new TileDecoder(
+            lib,
+            wrapper.getNativeStream(),
+            () -> {},
+            codec,
+            img,
+            info,
+            bounds,
+            reduceFactor,
+            numThreads);
+    codec = null;
+    img = null;
+    exhausted = true;
+    return tiles;
+  }
+
+  private boolean setReduceFactor(int reduceFactor) {
+    try {
+      if (lib.lib.opj_set_decoded_resolution_factor(codec, reduceFactor)) {
+        codecReduceFactor = reduceFactor;
+        return true;
+      }
+      return false;
+    } catch (UnsatisfiedLinkError e) {
+      return false;
+    }
+  }
+
+  private void reopen(int reduceFactor, int numLayers, int numThreads) throws IOException {
+    releaseCodec();
+    wrapper.reset();
+    openCodec(reduceFactor, numLayers, numThreads);
+  }
+
+  /** Release the codec, the parsed header and the stream. */
+  @Override
+  public void close() {
+    releaseCodec();
+    wrapper.close();
+  }
+}
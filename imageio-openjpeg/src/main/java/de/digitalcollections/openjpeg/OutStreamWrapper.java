@@ -4,9 +4,14 @@ import de.digitalcollections.openjpeg.lib.callbacks.opj_stream_seek_fn;
 import de.digitalcollections.openjpeg.lib.callbacks.opj_stream_skip_fn;
 import de.digitalcollections.openjpeg.lib.callbacks.opj_stream_write_fn;
 import de.digitalcollections.openjpeg.lib.libopenjp2;
+import java.io.IOException;
+import jnr.ffi.Memory;
 import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
 
 public abstract class OutStreamWrapper {
+  private static final int WRITE_CHUNK_SIZE = 1024 * 1024;
+
   private final libopenjp2 lib;
   private Pointer stream;
 
@@ -17,13 +22,31 @@ public abstract class OutStreamWrapper {
   private final opj_stream_write_fn writeCallback;
   private final opj_stream_skip_fn skipCallback;
   private final opj_stream_seek_fn seekCallback;
+  private long numCallbacks;
+  private long bytesWritten;
 
   protected OutStreamWrapper(libopenjp2 lib) {
     this.lib = lib;
     this.stream = lib.opj_stream_create(libopenjp2.OPJ_J2K_STREAM_CHUNK_SIZE, false);
-    this.skipCallback = this::skip;
-    this.seekCallback = this::seek;
-    this.writeCallback = this::write;
+    this.skipCallback =
+        (numBytes, userData) -> {
+          numCallbacks++;
+          return skip(numBytes, userData);
+        };
+    this.seekCallback =
+        (position, userData) -> {
+          numCallbacks++;
+          return seek(position, userData);
+        };
+    this.writeCallback =
+        (inBuffer, numBytes, userData) -> {
+          numCallbacks++;
+          long written = write(inBuffer, numBytes, userData);
+          if (written > 0) {
+            bytesWritten += written;
+          }
+          return written;
+        };
     lib.opj_stream_set_write_function(stream, writeCallback);
     lib.opj_stream_set_skip_function(stream, skipCallback);
     lib.opj_stream_set_seek_function(stream, seekCallback);
@@ -37,8 +60,36 @@ public abstract class OutStreamWrapper {
     return stream;
   }
 
+  /** Number of times OpenJPEG called back into Java to write, skip or seek. */
+  public long getNumCallbacks() {
+    return numCallbacks;
+  }
+
+  /** Number of bytes written by the write callback. */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
   protected abstract long write(Pointer inBuffer, long numBytes, Pointer userData);
 
+  /**
+   * Write data that has been produced on the Java side, e.g. a codestream assembled from separately
+   * encoded tiles, through the same path as the data written by OpenJPEG.
+   */
+  void write(byte[] data, int offset, int length) throws IOException {
+    Pointer buf =
+        Memory.allocateDirect(
+            Runtime.getRuntime(lib), Math.max(Math.min(length, WRITE_CHUNK_SIZE), 1));
+    for (int pos = 0; pos < length; pos += WRITE_CHUNK_SIZE) {
+      int n = Math.min(WRITE_CHUNK_SIZE, length - pos);
+      buf.put(0, data, offset + pos, n);
+      if (write(buf, n, null) != n) {
+        throw new IOException("Could not write to output");
+      }
+      bytesWritten += n;
+    }
+  }
+
   protected abstract long skip(long numBytes, Pointer userData);
 
   protected abstract boolean seek(long numBytes, Pointer userData);
@@ -0,0 +1,308 @@
+package de.digitalcollections.openjpeg;
+
+import de.digitalcollections.openjpeg.lib.structs.opj_image;
+import de.digitalcollections.openjpeg.lib.structs.opj_image_comp;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Struct;
+import jnr.ffi.byref.IntByReference;
+
+/**
+ * Decodes single tiles of a JPEG2000 image, see {@link OpenJpeg#openTiles(InStreamWrapper, int,
+ * int)}.
+ *
+ * <p>The codec and the parsed main header are kept for the lifetime of the decoder, so decoding a
+ * tile only reads and decodes the tile-parts of that tile. Tiles can either be decoded in any order
+ * with {@link #decodeTile(int, BufferedImage, Point)}, which needs to seek in the stream for tiles
+ * before the current position, or all at once in codestream order with {@link
+ * #forEachTile(TileConsumer)}, which reads the stream from front to back.
+ *
+ * <p>Tile bounds are given relative to the upper left corner of the image, at the resolution
+ * selected by the reduce factor.
+ */
+public class TileDecoder implements Closeable {
+
+  /** Receives the tiles decoded by {@link #forEachTile(TileConsumer)}. */
+  @FunctionalInterface
+  public interface TileConsumer {
+    /**
+     * @param tileIndex index of the tile, counting from left to right and top to bottom
+     * @param bounds bounds of the tile in the image
+     * @param tile the decoded tile
+     * @throws IOException to stop decoding
+     */
+    void accept(int tileIndex, Rectangle bounds, BufferedImage tile) throws IOException;
+  }
+
+  private final OpenJpeg lib;
+  private final Pointer stream;
+  private final Runnable closeStream;
+  private final int reduceFactor;
+  private final int numThreads;
+  private final Info info;
+  private final int imageX0;
+  private final int imageY0;
+  private final int imageX1;
+  private final int imageY1;
+  private Pointer codec;
+  private opj_image img;
+  private boolean closed;
+
+  TileDecoder(OpenJpeg lib, Pointer stream, Runnable closeStream, int reduceFactor, int numThreads)
+      throws IOException {
+    this.lib = lib;
+    this.stream = stream;
+    this.closeStream = closeStream;
+    this.reduceFactor = reduceFactor;
+    this.numThreads = numThreads;
+    try {
+      this.codec = lib.getCodec(reduceFactor, 0, numThreads);
+      this.img = lib.getImage(stream, codec);
+      this.info = lib.getInfo(codec, img);
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    if (reduceFactor < 0 || reduceFactor >= info.getNumResolutions()) {
+      close();
+      throw new IllegalArgumentException(
+          String.format(
+              "Reduce factor must be between 0 and %d, was %d",
+              info.getNumResolutions() - 1, reduceFactor));
+    }
+    // Decoding tiles modifies the image bounds, so keep the ones from the header
+    this.imageX0 = img.x0.intValue();
+    this.imageY0 = img.y0.intValue();
+    this.imageX1 = img.x1.intValue();
+    this.imageY1 = img.y1.intValue();
+  }
+
+  /**
+   * Take over a codec that has read the main header but not decoded anything yet, see {@link
+   * OpenedImage#getTiles(int, int)}.
+   *
+   * @param imageBounds bounds of the image on the reference grid, from the header
+   */
+  TileDecoder(
+      OpenJpeg lib,
+      Pointer stream,
+      Runnable closeStream,
+      Pointer codec,
+      opj_image img,
+      Info info,
+      Rectangle imageBounds,
+      int reduceFactor,
+      int numThreads) {
+    this.lib = lib;
+    this.stream = stream;
+    this.closeStream = closeStream;
+    this.reduceFactor = reduceFactor;
+    this.numThreads = numThreads;
+    this.codec = codec;
+    this.img = img;
+    this.info = info;
+    this.imageX0 = imageBounds.x;
+    this.imageY0 = imageBounds.y;
+    this.imageX1 = imageBounds.x + imageBounds.width;
+    this.imageY1 = imageBounds.y + imageBounds.height;
+  }
+
+  /** Information about the image from its main header. */
+  public Info getInfo() {
+    return info;
+  }
+
+  public int getReduceFactor() {
+    return reduceFactor;
+  }
+
+  int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Get the bounds of a tile.
+   *
+   * @param tileIndex index of the tile, counting from left to right and top to bottom
+   * @return the bounds of the tile in the image at the reduced resolution
+   */
+  public Rectangle getTileBounds(int tileIndex) {
+    if (tileIndex < 0 || tileIndex >= info.getNumTiles()) {
+      throw new IndexOutOfBoundsException(
+          String.format("Tile index %d out of bounds (%d tiles)", tileIndex, info.getNumTiles()));
+    }
+    int tileX = tileIndex % info.getNumTilesX();
+    int tileY = tileIndex / info.getNumTilesX();
+    int x0 = info.getTileOrigin().x + tileX * info.getTileSize().width;
+    int y0 = info.getTileOrigin().y + tileY * info.getTileSize().height;
+    return getBounds(
+        Math.max(x0, imageX0),
+        Math.max(y0, imageY0),
+        Math.min(x0 + info.getTileSize().width, imageX1),
+        Math.min(y0 + info.getTileSize().height, imageY1));
+  }
+
+  /** Map bounds on the reference grid to the image at the reduced resolution. */
+  private Rectangle getBounds(int x0, int y0, int x1, int y1) {
+    int originX = ceilDivPow2(imageX0, reduceFactor);
+    int originY = ceilDivPow2(imageY0, reduceFactor);
+    int left = ceilDivPow2(x0, reduceFactor);
+    int top = ceilDivPow2(y0, reduceFactor);
+    return new Rectangle(
+        left - originX,
+        top - originY,
+        ceilDivPow2(x1, reduceFactor) - left,
+        ceilDivPow2(y1, reduceFactor) - top);
+  }
+
+  private static int ceilDivPow2(int value, int power) {
+    return (int) (((long) value + (1L << power) - 1) >> power);
+  }
+
+  /**
+   * Decode a single tile into a new image.
+   *
+   * @param tileIndex index of the tile, counting from left to right and top to bottom
+   * @return the decoded tile
+   * @throws IOException if the tile cannot be decoded
+   */
+  public BufferedImage decodeTile(int tileIndex) throws IOException {
+    return decodeTile(tileIndex, null, null);
+  }
+
+  /**
+   * Decode a single tile into an existing image.
+   *
+   * @param tileIndex index of the tile, counting from left to right and top to bottom
+   * @param destination Image to decode into, a new image is created if null
+   * @param destinationOffset Position in the destination to write the upper left corner of the tile
+   *     to, defaults to (0, 0)
+   * @return the decoded tile, i.e. the destination if one was passed
+   * @throws IOException if the tile cannot be decoded
+   * @see OpenJpeg#decode(InStreamWrapper, Rectangle, int, BufferedImage, Point)
+   */
+  public BufferedImage decodeTile(int tileIndex, BufferedImage destination, Point destinationOffset)
+      throws IOException {
+    checkOpen();
+    getTileBounds(tileIndex);
+    if (!lib.lib.opj_get_decoded_tile(codec, stream, Struct.getMemory(img), tileIndex)) {
+      throw new IOException(String.format("Could not decode tile %d!", tileIndex));
+    }
+    return lib.toImage(img, numThreads, destination, destinationOffset);
+  }
+
+  /**
+   * Decode all remaining tiles in the order they appear in the codestream.
+   *
+   * <p>Every tile is decoded into a new image that is passed to the consumer. Since the tiles are
+   * read in codestream order, no seeking is needed.
+   *
+   * @param consumer receives the decoded tiles
+   * @throws IOException if a tile cannot be decoded or the consumer fails
+   */
+  public void forEachTile(TileConsumer consumer) throws IOException {
+    checkOpen();
+    opj_image_comp[] comps = img.comps.get(img.numcomps.intValue());
+    IntByReference tileIndex = new IntByReference();
+    IntByReference dataSize = new IntByReference();
+    IntByReference x0 = new IntByReference();
+    IntByReference y0 = new IntByReference();
+    IntByReference x1 = new IntByReference();
+    IntByReference y1 = new IntByReference();
+    IntByReference numComps = new IntByReference();
+    IntByReference shouldGoOn = new IntByReference();
+    while (true) {
+      if (!lib.lib.opj_read_tile_header(
+          codec, stream, tileIndex, dataSize, x0, y0, x1, y1, numComps, shouldGoOn)) {
+        throw new IOException("Could not read tile header!");
+      }
+      if (shouldGoOn.intValue() == 0) {
+        return;
+      }
+      Rectangle bounds = getBounds(x0.intValue(), y0.intValue(), x1.intValue(), y1.intValue());
+      int sampleSize = getSampleSize(comps[0].prec.intValue());
+      if ((long) bounds.width * bounds.height * sampleSize * comps.length
+          != (dataSize.intValue() & 0xFFFFFFFFL)) {
+        // Components with different sizes, e.g. subsampled chroma
+        throw new IOException("Tiles with subsampled components are currently not supported.");
+      }
+      Pointer data = Memory.allocateDirect(lib.runtime, dataSize.intValue());
+      if (!lib.lib.opj_decode_tile_data(
+          codec, tileIndex.intValue(), data, dataSize.intValue(), stream)) {
+        throw new IOException(String.format("Could not decode tile %d!", tileIndex.intValue()));
+      }
+      BufferedImage tile =
+          lib.writeImage(
+              getSampleRows(
+                  data, bounds.width, bounds.height, sampleSize, comps[0].sgnd.intValue() != 0),
+              comps.length,
+              bounds.width,
+              bounds.height,
+              comps[0].bpp.intValue(),
+              img.color_space.get(),
+              numThreads,
+              null,
+              null);
+      consumer.accept(tileIndex.intValue(), bounds, tile);
+    }
+  }
+
+  /** Bytes per sample in the data written by opj_decode_tile_data. */
+  private static int getSampleSize(int precision) {
+    int size = (precision + 7) / 8;
+    return size == 3 ? 4 : size;
+  }
+
+  /** Read the component planes written by opj_decode_tile_data. */
+  private static OpenJpeg.SampleRows getSampleRows(
+      Pointer data, int width, int height, int sampleSize, boolean signed) {
+    long planeSize = (long) width * height * sampleSize;
+    return (component, y, row) -> {
+      long offset = component * planeSize + (long) y * width * sampleSize;
+      if (sampleSize == 4) {
+        data.get(offset, row, 0, width);
+      } else if (sampleSize == 2) {
+        short[] samples = new short[width];
+        data.get(offset, samples, 0, width);
+        for (int x = 0; x < width; x++) {
+          row[x] = signed ? samples[x] : samples[x] & 0xFFFF;
+        }
+      } else {
+        byte[] samples = new byte[width];
+        data.get(offset, samples, 0, width);
+        for (int x = 0; x < width; x++) {
+          row[x] = signed ? samples[x] : samples[x] & 0xFF;
+        }
+      }
+    };
+  }
+
+  private void checkOpen() {
+    if (codec == null) {
+      throw new IllegalStateException("Tile decoder has been closed");
+    }
+  }
+
+  /** Release the codec, the parsed header and the stream. */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (img != null) {
+      img.free(lib.lib);
+      img = null;
+    }
+    if (codec != null) {
+      lib.lib.opj_destroy_codec(codec);
+      codec = null;
+    }
+    closeStream.run();
+  }
+}
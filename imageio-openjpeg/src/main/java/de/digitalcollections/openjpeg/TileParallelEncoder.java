@@ -0,0 +1,330 @@
+package de.digitalcollections.openjpeg;
+
+import de.digitalcollections.openjpeg.lib.structs.opj_cparameters;
+import java.awt.Point;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Struct;
+
+/**
+ * Encodes the tiles of an image concurrently and stitches them into a single JPEG2000 file, for
+ * libraries without a thread pool for encoding (OpenJPEG &lt; 2.4).
+ *
+ * <p>Tiles are coded independently of each other. Every tile is encoded as an image of its own that
+ * covers exactly the area of the tile on the reference grid and has a tile grid starting at the
+ * tile, so the wavelet transform, the code-blocks and the packets are the same as for the tile in
+ * the whole image. The main header of the first tile's codestream is patched with the size and tile
+ * grid of the whole image and the tile-parts of all tiles are appended with their tile indexes
+ * rewritten. Rate allocation is done per tile by OpenJPEG anyway.
+ *
+ * <p>TLM markers index the tile-parts of the whole codestream and cannot be stitched, images that
+ * need them are encoded on a single thread. So are grids of more than {@value #MAX_TILES} tiles,
+ * whose indexes do not fit into the tile-part headers.
+ */
+class TileParallelEncoder {
+
+  private static final int M_SIZ = 0xFF51;
+  private static final int M_SOT = 0xFF90;
+  private static final int M_EOC = 0xFFD9;
+  private static final int BOX_JP2H = 0x6a703268;
+  private static final int BOX_IHDR = 0x69686472;
+  private static final int BOX_JP2C = 0x6a703263;
+
+  /** The tile index in SOT markers is 16 bits wide, larger grids have to be encoded as a whole. */
+  static final int MAX_TILES = 65535;
+
+  private final OpenJpeg lib;
+  private final opj_cparameters params;
+  private final int numThreads;
+  private final String[] extraOptions;
+
+  TileParallelEncoder(OpenJpeg lib, opj_cparameters params, int numThreads, String[] extraOptions) {
+    this.lib = lib;
+    this.params = params;
+    this.numThreads = numThreads;
+    this.extraOptions = extraOptions;
+  }
+
+  /** Whether the image is split into several tiles and the parameters allow encoding them apart. */
+  static boolean canEncode(Raster img, opj_cparameters params, String[] extraOptions) {
+    if (!params.tile_size_on.get()
+        || Arrays.stream(extraOptions).anyMatch(o -> o.startsWith("TLM="))) {
+      return false;
+    }
+    int tx0 = params.cp_tx0.intValue();
+    int ty0 = params.cp_ty0.intValue();
+    int tdx = params.cp_tdx.intValue();
+    int tdy = params.cp_tdy.intValue();
+    // Invalid tile grids are left to OpenJPEG to report
+    if (tdx <= 0 || tdy <= 0 || tx0 > 0 || ty0 > 0 || tx0 + tdx <= 0 || ty0 + tdy <= 0) {
+      return false;
+    }
+    long numTiles = (long) ceilDiv(img.getWidth() - tx0, tdx) * ceilDiv(img.getHeight() - ty0, tdy);
+    return numTiles > 1 && numTiles <= MAX_TILES;
+  }
+
+  void encode(Raster img, OutStreamWrapper output) throws IOException {
+    int tx0 = params.cp_tx0.intValue();
+    int ty0 = params.cp_ty0.intValue();
+    int tdx = params.cp_tdx.intValue();
+    int tdy = params.cp_tdy.intValue();
+    int numTilesX = ceilDiv(img.getWidth() - tx0, tdx);
+    int numTilesY = ceilDiv(img.getHeight() - ty0, tdy);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<byte[]>> tiles = new ArrayList<>();
+      for (int ty = 0; ty < numTilesY; ty++) {
+        for (int tx = 0; tx < numTilesX; tx++) {
+          int x0 = Math.max(tx0 + tx * tdx, 0);
+          int y0 = Math.max(ty0 + ty * tdy, 0);
+          int x1 = Math.min(tx0 + (tx + 1) * tdx, img.getWidth());
+          int y1 = Math.min(ty0 + (ty + 1) * tdy, img.getHeight());
+          tiles.add(executor.submit(() -> encodeTile(img, x0, y0, x1 - x0, y1 - y0)));
+        }
+      }
+
+      byte[] first = getTile(tiles.get(0));
+      int[] codestream = findCodestream(first);
+      int mainHeaderEnd = findFirstTilePart(first, codestream[0]);
+      byte[] header = Arrays.copyOfRange(first, 0, mainHeaderEnd);
+      patchImageHeader(header, img.getWidth(), img.getHeight());
+      patchSiz(header, codestream[0], img.getWidth(), img.getHeight(), tx0, ty0, tdx, tdy);
+      // The codestream box has to be the last one, it then extends to the end of the file
+      writeInt(header, codestream[0] - 8, 0);
+      output.write(header, 0, header.length);
+
+      for (int i = 0; i < tiles.size(); i++) {
+        byte[] tile = i == 0 ? first : getTile(tiles.get(i));
+        int start = i == 0 ? mainHeaderEnd : findFirstTilePart(tile, findCodestream(tile)[0]);
+        int end = renumberTileParts(tile, start, i);
+        output.write(tile, start, end - start);
+        tiles.set(i, null);
+      }
+      byte[] eoc = {(byte) (M_EOC >> 8), (byte) M_EOC};
+      output.write(eoc, 0, eoc.length);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private byte[] encodeTile(Raster img, int x, int y, int width, int height) throws IOException {
+    // The encoder expects a raster whose data buffer holds exactly its samples
+    Raster child = img.createChild(img.getMinX() + x, img.getMinY() + y, width, height, 0, 0, null);
+    WritableRaster tile = child.createCompatibleWritableRaster(width, height);
+    tile.setRect(child);
+
+    opj_cparameters tileParams = copyParams();
+    tileParams.cp_tx0.set(x);
+    tileParams.cp_ty0.set(y);
+    ByteArrayOutStreamWrapper out = new ByteArrayOutStreamWrapper(lib);
+    try {
+      lib.encode(tile, new Point(x, y), out, tileParams, 1, extraOptions);
+    } finally {
+      out.close();
+    }
+    return out.toByteArray();
+  }
+
+  /** OpenJPEG may adjust the parameters while setting up the encoder, every tile needs a copy. */
+  private opj_cparameters copyParams() {
+    opj_cparameters copy = new opj_cparameters(lib.runtime);
+    int size = Struct.size(copy);
+    Pointer memory = Memory.allocateDirect(lib.runtime, size);
+    memory.transferFrom(0, Struct.getMemory(params), 0, size);
+    copy.useMemory(memory);
+    return copy;
+  }
+
+  private static byte[] getTile(Future<byte[]> tile) throws IOException {
+    try {
+      return tile.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while encoding tiles", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not encode tile", e.getCause());
+    }
+  }
+
+  /** Find the offset of the codestream in the JP2 data, returned as {start, end}. */
+  private static int[] findCodestream(byte[] jp2) throws IOException {
+    int pos = 0;
+    while (pos + 8 <= jp2.length) {
+      long length = readInt(jp2, pos) & 0xFFFFFFFFL;
+      int type = readInt(jp2, pos + 4);
+      int headerLength = 8;
+      if (length == 1) {
+        length = ((long) readInt(jp2, pos + 8) << 32) | (readInt(jp2, pos + 12) & 0xFFFFFFFFL);
+        headerLength = 16;
+      } else if (length == 0) {
+        length = jp2.length - pos;
+      }
+      if (type == BOX_JP2C) {
+        if (headerLength != 8) {
+          throw new IOException("Unexpected codestream box in encoded tile");
+        }
+        return new int[] {pos + headerLength, (int) (pos + length)};
+      }
+      if (length < headerLength) {
+        break;
+      }
+      pos += length;
+    }
+    throw new IOException("No codestream found in encoded tile");
+  }
+
+  private static int findFirstTilePart(byte[] data, int codestreamStart) throws IOException {
+    int pos = codestreamStart + 2;
+    while (pos + 4 <= data.length) {
+      int marker = readShort(data, pos);
+      if (marker == M_SOT) {
+        return pos;
+      }
+      pos += 2 + readShort(data, pos + 2);
+    }
+    throw new IOException("No tile-part found in encoded tile");
+  }
+
+  /** Rewrite the tile index of all tile-parts, returns the end of the last one. */
+  private static int renumberTileParts(byte[] data, int pos, int tileIndex) throws IOException {
+    while (pos + 12 <= data.length && readShort(data, pos) == M_SOT) {
+      data[pos + 4] = (byte) (tileIndex >> 8);
+      data[pos + 5] = (byte) tileIndex;
+      long length = readInt(data, pos + 6) & 0xFFFFFFFFL;
+      if (length == 0) {
+        // The last tile-part extends to the end of codestream marker
+        return data.length - 2;
+      }
+      pos += length;
+    }
+    if (pos + 2 > data.length || readShort(data, pos) != M_EOC) {
+      throw new IOException("Unexpected data after the tile-parts of an encoded tile");
+    }
+    return pos;
+  }
+
+  private static void patchSiz(
+      byte[] header, int codestreamStart, int width, int height, int tx0, int ty0, int tdx, int tdy)
+      throws IOException {
+    int pos = codestreamStart + 2;
+    if (readShort(header, pos) != M_SIZ) {
+      throw new IOException("No SIZ marker found in encoded tile");
+    }
+    writeInt(header, pos + 6, width);
+    writeInt(header, pos + 10, height);
+    writeInt(header, pos + 14, 0);
+    writeInt(header, pos + 18, 0);
+    writeInt(header, pos + 22, tdx);
+    writeInt(header, pos + 26, tdy);
+    writeInt(header, pos + 30, tx0);
+    writeInt(header, pos + 34, ty0);
+  }
+
+  private static void patchImageHeader(byte[] jp2, int width, int height) throws IOException {
+    int pos = 0;
+    while (pos + 8 <= jp2.length) {
+      int length = readInt(jp2, pos);
+      int type = readInt(jp2, pos + 4);
+      if (type == BOX_JP2H) {
+        // Descend into the superbox
+        pos += 8;
+        continue;
+      }
+      if (type == BOX_IHDR) {
+        writeInt(jp2, pos + 8, height);
+        writeInt(jp2, pos + 12, width);
+        return;
+      }
+      if (length < 8) {
+        break;
+      }
+      pos += length;
+    }
+    throw new IOException("No image header box found in encoded tile");
+  }
+
+  private static int ceilDiv(int a, int b) {
+    return (a + b - 1) / b;
+  }
+
+  private static int readShort(byte[] data, int pos) {
+    return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] data, int pos) {
+    return ((data[pos] & 0xFF) << 24)
+        | ((data[pos + 1] & 0xFF) << 16)
+        | ((data[pos + 2] & 0xFF) << 8)
+        | (data[pos + 3] & 0xFF);
+  }
+
+  private static void writeInt(byte[] data, int pos, int value) {
+    data[pos] = (byte) (value >> 24);
+    data[pos + 1] = (byte) (value >> 16);
+    data[pos + 2] = (byte) (value >> 8);
+    data[pos + 3] = (byte) value;
+  }
+
+  /** Collects the output of OpenJPEG in a growable array, supporting the seeks of the encoder. */
+  static class ByteArrayOutStreamWrapper extends OutStreamWrapper {
+    private byte[] data = new byte[64 * 1024];
+    private int position;
+    private int size;
+
+    ByteArrayOutStreamWrapper(OpenJpeg lib) {
+      super(lib.lib);
+    }
+
+    private void ensureCapacity(long capacity) {
+      if (capacity > data.length) {
+        data = Arrays.copyOf(data, (int) Math.max(capacity, data.length * 2L));
+      }
+    }
+
+    @Override
+    protected long write(Pointer inBuffer, long numBytes, Pointer userData) {
+      if (position + numBytes > Integer.MAX_VALUE - 8) {
+        return -1;
+      }
+      ensureCapacity(position + numBytes);
+      inBuffer.get(0, data, position, (int) numBytes);
+      position += (int) numBytes;
+      size = Math.max(size, position);
+      return numBytes;
+    }
+
+    @Override
+    protected long skip(long numBytes, Pointer userData) {
+      return seek(position + numBytes, userData) ? numBytes : -1;
+    }
+
+    @Override
+    protected boolean seek(long position, Pointer userData) {
+      if (position < 0 || position > Integer.MAX_VALUE - 8) {
+        return false;
+      }
+      ensureCapacity(position);
+      this.position = (int) position;
+      size = Math.max(size, this.position);
+      return true;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(data, size);
+    }
+  }
+}
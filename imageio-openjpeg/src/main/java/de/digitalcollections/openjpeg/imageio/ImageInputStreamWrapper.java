@@ -7,33 +7,90 @@ import javax.imageio.stream.ImageInputStream;
 import jnr.ffi.Pointer;
 
 class ImageInputStreamWrapper extends InStreamWrapper {
+  /** Size of the slices the data is copied to native memory in. */
+  static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
   private final ImageInputStream is;
+  private final long start;
+  private final long end;
+  // Data is moved in slices of this buffer, instead of allocating an array per callback
+  private final byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
 
   ImageInputStreamWrapper(ImageInputStream is, OpenJpeg lib) {
     super(lib.lib);
     this.is = is;
+    long position;
+    try {
+      position = is.getStreamPosition();
+    } catch (IOException e) {
+      position = 0;
+    }
+    this.start = position;
+    long length;
+    try {
+      length = is.length();
+    } catch (IOException e) {
+      length = -1;
+    }
+    this.end = length;
+    if (length >= start) {
+      setDataLength(length - start);
+    }
+  }
+
+  @Override
+  protected void rewind() throws IOException {
+    is.seek(start);
   }
 
   protected long read(Pointer outBuffer, long numBytes, Pointer userData) {
-    byte[] buf = new byte[(int) numBytes];
+    long total = 0;
     try {
-      int read = is.read(buf, 0, (int) numBytes);
-      if (read > 0) {
-        outBuffer.put(0, buf, 0, read);
-      } else {
-        return read;
+      while (total < numBytes) {
+        int read =
+            is.read(transferBuffer, 0, (int) Math.min(transferBuffer.length, numBytes - total));
+        if (read <= 0) {
+          break;
+        }
+        outBuffer.put(total, transferBuffer, 0, read);
+        total += read;
       }
-      return read;
     } catch (IOException e) {
       return -1;
     }
+    return total > 0 ? total : -1;
   }
 
   protected long skip(long numBytes, Pointer userData) {
     try {
-      return this.is.skipBytes(numBytes);
+      if (end < 0) {
+        return this.is.skipBytes(numBytes);
+      }
+      // Seeking saves reading (and, for non-file streams, caching) the skipped bytes
+      long position = is.getStreamPosition();
+      long target = Math.max(start, Math.min(position + numBytes, end));
+      is.seek(target);
+      return target - position;
     } catch (IOException e) {
       return -1;
     }
   }
+
+  @Override
+  protected boolean canSeek() {
+    return true;
+  }
+
+  @Override
+  protected boolean seek(long position, Pointer userData) {
+    try {
+      if (position < 0 || (end >= 0 && start + position > end)) {
+        return false;
+      }
+      is.seek(start + position);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
 }
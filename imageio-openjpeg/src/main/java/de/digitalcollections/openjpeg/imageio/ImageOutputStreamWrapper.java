@@ -7,7 +7,12 @@ import javax.imageio.stream.ImageOutputStream;
 import jnr.ffi.Pointer;
 
 class ImageOutputStreamWrapper extends OutStreamWrapper {
+  /** Size of the slices the data is copied from native memory in. */
+  static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
   private final ImageOutputStream os;
+  // Data is moved in slices of this buffer, instead of allocating an array per callback
+  private final byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
 
   public ImageOutputStreamWrapper(ImageOutputStream os, OpenJpeg lib) {
     super(lib.lib);
@@ -15,10 +20,12 @@ class ImageOutputStreamWrapper extends OutStreamWrapper {
   }
 
   protected long write(Pointer inBuffer, long numBytes, Pointer userData) {
-    byte[] buf = new byte[(int) numBytes];
-    inBuffer.get(0, buf, 0, (int) numBytes);
     try {
-      os.write(buf);
+      for (long offset = 0; offset < numBytes; offset += transferBuffer.length) {
+        int n = (int) Math.min(transferBuffer.length, numBytes - offset);
+        inBuffer.get(offset, transferBuffer, 0, n);
+        os.write(transferBuffer, 0, n);
+      }
     } catch (IOException e) {
       return -1;
     }
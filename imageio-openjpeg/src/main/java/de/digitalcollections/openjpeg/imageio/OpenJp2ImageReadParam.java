@@ -0,0 +1,62 @@
+package de.digitalcollections.openjpeg.imageio;
+
+import de.digitalcollections.openjpeg.OpenJpeg;
+import javax.imageio.ImageReadParam;
+
+/**
+ * Parameters for reading JPEG2000 images.
+ *
+ * <p>Source render sizes are supported, see {@link OpenJp2ImageReader#read(int, ImageReadParam)}
+ * for how they and source subsampling are read.
+ *
+ * <p>The number of threads OpenJPEG decodes the code-blocks with can be set per read, by default
+ * the process-wide {@link OpenJpeg#getDefaultNumThreads()} is used.
+ *
+ * <p>For images with several quality layers, decoding can be limited to the first ones, which
+ * trades quality for speed, e.g. for previews.
+ */
+public class OpenJp2ImageReadParam extends ImageReadParam {
+
+  private int numThreads;
+  private int numLayers;
+
+  public OpenJp2ImageReadParam() {
+    this.canSetSourceRenderSize = true;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Set the number of threads to decode with, requires OpenJPEG &gt;= 2.2.
+   *
+   * @param numThreads number of threads, 0 to use {@link OpenJpeg#getDefaultNumThreads()}
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 0) {
+      throw new IllegalArgumentException("Number of threads must not be negative");
+    }
+    this.numThreads = numThreads;
+  }
+
+  public int getNumLayers() {
+    return numLayers;
+  }
+
+  /**
+   * Set the maximum number of quality layers to decode.
+   *
+   * <p>The entropy decoding of the remaining layers is skipped, so fewer layers decode faster at a
+   * lower quality. The number of layers of an image is available from {@link
+   * de.digitalcollections.openjpeg.Info#getNumLayers()}.
+   *
+   * @param numLayers number of layers, 0 to decode all of them
+   */
+  public void setNumLayers(int numLayers) {
+    if (numLayers < 0) {
+      throw new IllegalArgumentException("Number of layers must not be negative");
+    }
+    this.numLayers = numLayers;
+  }
+}
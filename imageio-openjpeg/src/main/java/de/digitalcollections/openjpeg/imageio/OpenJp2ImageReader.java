@@ -1,11 +1,20 @@
 package de.digitalcollections.openjpeg.imageio;
 
+import de.digitalcollections.openjpeg.FileStreamWrapper;
+import de.digitalcollections.openjpeg.InStreamWrapper;
 import de.digitalcollections.openjpeg.Info;
 import de.digitalcollections.openjpeg.OpenJpeg;
+import de.digitalcollections.openjpeg.OpenedImage;
 import de.digitalcollections.openjpeg.lib.enums.COLOR_SPACE;
+import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.stream.Stream;
 import javax.imageio.ImageReadParam;
@@ -25,8 +34,8 @@ public class OpenJp2ImageReader extends ImageReader {
   private static final Logger LOGGER = LoggerFactory.getLogger(OpenJp2ImageReader.class);
 
   private final OpenJpeg lib;
-  private ImageInputStream stream = null;
-  private ImageInputStreamWrapper streamWrapper = null;
+  private InStreamWrapper streamWrapper = null;
+  private OpenedImage image = null;
   private Info info = null;
 
   protected OpenJp2ImageReader(ImageReaderSpi originatingProvider, OpenJpeg lib) {
@@ -44,14 +53,41 @@ public class OpenJp2ImageReader extends ImageReader {
       return;
     }
     if (input instanceof ImageInputStream) {
-      stream = (ImageInputStream) input;
+      this.streamWrapper = new ImageInputStreamWrapper((ImageInputStream) input, lib);
+    } else if (input instanceof File || input instanceof Path) {
+      // Files are read by OpenJPEG itself, without going through Java for every chunk
+      try {
+        this.streamWrapper =
+            new FileStreamWrapper(
+                lib, input instanceof File ? ((File) input).toPath() : (Path) input);
+      } catch (IOException e) {
+        LOGGER.error(e.getMessage());
+        throw new IllegalArgumentException("Failed to read input.");
+      }
     } else {
       throw new IllegalArgumentException("Bad input.");
     }
-    if (this.streamWrapper != null) {
-      this.streamWrapper.close();
-    }
-    this.streamWrapper = new ImageInputStreamWrapper(stream, lib);
+  }
+
+  /**
+   * Number of times OpenJPEG called back into Java for the data of the current input, 0 for files,
+   * which it reads itself.
+   */
+  public long getNumStreamCallbacks() {
+    return streamWrapper != null ? streamWrapper.getNumCallbacks() : 0;
+  }
+
+  /**
+   * Number of bytes OpenJPEG read through Java callbacks from the current input, 0 for files, which
+   * it reads itself.
+   */
+  public long getStreamBytesRead() {
+    return streamWrapper != null ? streamWrapper.getBytesRead() : 0;
+  }
+
+  /** Number of times OpenJPEG parsed the main header of the current input. */
+  public int getNumHeaderReads() {
+    return image != null ? image.getNumHeaderReads() : 0;
   }
 
   /**
@@ -70,12 +106,21 @@ public class OpenJp2ImageReader extends ImageReader {
     }
   }
 
+  /**
+   * The image is opened once per input, the parsed header is kept for all following reads until the
+   * input changes or the reader is disposed.
+   */
+  private OpenedImage getImage() throws IOException {
+    if (this.image == null) {
+      this.image = lib.open(this.streamWrapper);
+    }
+    return this.image;
+  }
+
   private Info getInfo() {
     if (this.info == null) {
       try {
-        this.info = lib.getInfo(this.streamWrapper);
-        this.stream.seek(0);
-        this.streamWrapper = new ImageInputStreamWrapper(this.stream, lib);
+        this.info = getImage().getInfo();
       } catch (IOException e) {
         LOGGER.error("Error obtaining info", e);
         this.info = null;
@@ -84,6 +129,11 @@ public class OpenJp2ImageReader extends ImageReader {
     return this.info;
   }
 
+  @Override
+  public ImageReadParam getDefaultReadParam() {
+    return new OpenJp2ImageReadParam();
+  }
+
   private int adjustSize(int size, int imageIndex) {
     return (int) (size / Math.pow(2, imageIndex));
   }
@@ -162,21 +212,192 @@ public class OpenJp2ImageReader extends ImageReader {
         Math.min((int) Math.ceil(scaleFactor * sourceRegion.height), maxHeight));
   }
 
-  /** Read the image in the given resolution. */
+  /**
+   * Read the image in the given resolution.
+   *
+   * <p>If the parameters specify a destination image, the image is decoded into it at the
+   * destination offset instead of allocating a new image. The reader can read any number of times
+   * from the same input.
+   *
+   * <p>If the parameters specify a source render size or a source subsampling, the smallest
+   * resolution that is at least as large as the requested output is decoded, discarding the
+   * resolution levels below it skips their inverse wavelet transform. The remaining factor is made
+   * up by resampling the raster samples. It is below two unless the output is smaller than the
+   * lowest resolution, larger factors are first reduced by averaging blocks of samples, the rest by
+   * bilinear interpolation. Unlike ImageIO's own readers, source subsampling therefore averages
+   * pixels instead of picking every n-th one.
+   */
   @Override
   public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
     checkIndex(imageIndex);
-    try {
-      Rectangle sourceRegion = null;
-      if (param != null) {
-        sourceRegion = adjustRegion(imageIndex, param.getSourceRegion());
+    if (param != null
+        && (param.getSourceRenderSize() != null
+            || param.getSourceXSubsampling() > 1
+            || param.getSourceYSubsampling() > 1)) {
+      return readScaled(imageIndex, param);
+    }
+    Rectangle sourceRegion = null;
+    BufferedImage destination = null;
+    Point destinationOffset = null;
+    int numLayers = 0;
+    int numThreads = 0;
+    if (param != null) {
+      sourceRegion = adjustRegion(imageIndex, param.getSourceRegion());
+      destination = param.getDestination();
+      destinationOffset = param.getDestinationOffset();
+    }
+    if (param instanceof OpenJp2ImageReadParam) {
+      numLayers = ((OpenJp2ImageReadParam) param).getNumLayers();
+      numThreads = ((OpenJp2ImageReadParam) param).getNumThreads();
+    }
+    return getImage()
+        .decode(sourceRegion, imageIndex, numLayers, numThreads, destination, destinationOffset);
+  }
+
+  /** Read with a source render size or subsampling, see {@link #read(int, ImageReadParam)}. */
+  private BufferedImage readScaled(int imageIndex, ImageReadParam param) throws IOException {
+    Dimension renderSize = param.getSourceRenderSize();
+    if (renderSize == null) {
+      renderSize = new Dimension(getWidth(imageIndex), getHeight(imageIndex));
+    }
+    Rectangle region = new Rectangle(renderSize);
+    if (param.getSourceRegion() != null) {
+      region = region.intersection(param.getSourceRegion());
+    }
+    region.x += param.getSubsamplingXOffset();
+    region.width -= param.getSubsamplingXOffset();
+    region.y += param.getSubsamplingYOffset();
+    region.height -= param.getSubsamplingYOffset();
+    if (region.isEmpty()) {
+      throw new IllegalArgumentException("Source region does not intersect the image");
+    }
+    int width = (region.width + param.getSourceXSubsampling() - 1) / param.getSourceXSubsampling();
+    int height =
+        (region.height + param.getSourceYSubsampling() - 1) / param.getSourceYSubsampling();
+
+    int reduceFactor = 0;
+    Rectangle scaledRegion = scaleRectangle(region, renderSize, 0);
+    for (int i = 1; i < getInfo().getNumResolutions(); i++) {
+      Rectangle candidate = scaleRectangle(region, renderSize, i);
+      if (candidate.width < width || candidate.height < height) {
+        break;
+      }
+      reduceFactor = i;
+      scaledRegion = candidate;
+    }
+    OpenJp2ImageReadParam scaledParam = new OpenJp2ImageReadParam();
+    scaledParam.setSourceRegion(scaledRegion);
+    if (param instanceof OpenJp2ImageReadParam) {
+      scaledParam.setNumLayers(((OpenJp2ImageReadParam) param).getNumLayers());
+      scaledParam.setNumThreads(((OpenJp2ImageReadParam) param).getNumThreads());
+    }
+    BufferedImage img = read(reduceFactor, scaledParam);
+    if (img.getWidth() != width || img.getHeight() != height) {
+      img = scale(img, width, height);
+    }
+    BufferedImage destination = param.getDestination();
+    if (destination != null) {
+      Point destinationOffset = param.getDestinationOffset();
+      Raster src = img.getRaster().createTranslatedChild(destinationOffset.x, destinationOffset.y);
+      destination.getRaster().setRect(src);
+      return destination;
+    }
+    return img;
+  }
+
+  /**
+   * Map a rectangle relative to an image of size {@code from} to the given resolution of the image.
+   */
+  private Rectangle scaleRectangle(Rectangle rectangle, Dimension from, int imageIndex) {
+    int width = getWidth(imageIndex);
+    int height = getHeight(imageIndex);
+    int x0 = (int) ((long) rectangle.x * width / from.width);
+    int y0 = (int) ((long) rectangle.y * height / from.height);
+    int x1 =
+        (int)
+            Math.min(
+                ((long) (rectangle.x + rectangle.width) * width + from.width - 1) / from.width,
+                width);
+    int y1 =
+        (int)
+            Math.min(
+                ((long) (rectangle.y + rectangle.height) * height + from.height - 1) / from.height,
+                height);
+    return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+  }
+
+  /**
+   * Scale an image without color conversion. While the factor is two or more, the raster samples
+   * are averaged in blocks of two, the remaining factor is made up by bilinear interpolation.
+   */
+  private static BufferedImage scale(BufferedImage image, int width, int height) {
+    Raster src = image.getRaster();
+    while (src.getWidth() >= 2 * width || src.getHeight() >= 2 * height) {
+      src = halve(src, src.getWidth() >= 2 * width, src.getHeight() >= 2 * height);
+    }
+    WritableRaster dst = src.createCompatibleWritableRaster(width, height);
+    int srcWidth = src.getWidth();
+    int srcHeight = src.getHeight();
+    int bands = src.getNumBands();
+    int[] left = new int[width];
+    int[] right = new int[width];
+    float[] weights = new float[width];
+    for (int x = 0; x < width; x++) {
+      float pos = Math.max(0, Math.min((x + 0.5f) * srcWidth / width - 0.5f, srcWidth - 1));
+      left[x] = (int) pos;
+      right[x] = Math.min(left[x] + 1, srcWidth - 1);
+      weights[x] = pos - left[x];
+    }
+    int[] upper = new int[srcWidth * bands];
+    int[] lower = new int[srcWidth * bands];
+    int[] row = new int[width * bands];
+    for (int y = 0; y < height; y++) {
+      float pos = Math.max(0, Math.min((y + 0.5f) * srcHeight / height - 0.5f, srcHeight - 1));
+      int top = (int) pos;
+      float weight = pos - top;
+      src.getPixels(src.getMinX(), src.getMinY() + top, srcWidth, 1, upper);
+      src.getPixels(
+          src.getMinX(), src.getMinY() + Math.min(top + 1, srcHeight - 1), srcWidth, 1, lower);
+      for (int x = 0; x < width; x++) {
+        int l = left[x] * bands;
+        int r = right[x] * bands;
+        for (int b = 0; b < bands; b++) {
+          float first = upper[l + b] + (upper[r + b] - upper[l + b]) * weights[x];
+          float second = lower[l + b] + (lower[r + b] - lower[l + b]) * weights[x];
+          row[x * bands + b] = Math.round(first + (second - first) * weight);
+        }
       }
-      return lib.decode(streamWrapper, sourceRegion, imageIndex);
-    } finally {
-      if (this.streamWrapper != null) {
-        this.streamWrapper.close();
+      dst.setPixels(0, y, width, 1, row);
+    }
+    return new BufferedImage(
+        image.getColorModel(), dst, image.getColorModel().isAlphaPremultiplied(), null);
+  }
+
+  /** Halve the width and/or the height of a raster by averaging pairs of samples. */
+  private static WritableRaster halve(Raster src, boolean halveWidth, boolean halveHeight) {
+    int xStep = halveWidth ? 2 : 1;
+    int yStep = halveHeight ? 2 : 1;
+    int width = src.getWidth() / xStep;
+    int height = src.getHeight() / yStep;
+    int bands = src.getNumBands();
+    WritableRaster dst = src.createCompatibleWritableRaster(width, height);
+    int[] upper = new int[src.getWidth() * bands];
+    int[] lower = new int[src.getWidth() * bands];
+    int[] row = new int[width * bands];
+    for (int y = 0; y < height; y++) {
+      src.getPixels(src.getMinX(), src.getMinY() + y * yStep, src.getWidth(), 1, upper);
+      src.getPixels(src.getMinX(), src.getMinY() + y * yStep + yStep - 1, src.getWidth(), 1, lower);
+      for (int x = 0; x < width; x++) {
+        // Without halving in one direction both samples of a pair are the same
+        int l = x * xStep * bands;
+        int r = (x * xStep + xStep - 1) * bands;
+        for (int b = 0; b < bands; b++) {
+          row[x * bands + b] = (upper[l + b] + upper[r + b] + lower[l + b] + lower[r + b] + 2) / 4;
+        }
       }
+      dst.setPixels(0, y, width, 1, row);
     }
+    return dst;
   }
 
   @Override
@@ -209,23 +430,25 @@ public class OpenJp2ImageReader extends ImageReader {
     return getInfo().getTileOrigin().y;
   }
 
+  /**
+   * Read a single tile in the given resolution.
+   *
+   * <p>Tiles are decoded with a {@link de.digitalcollections.openjpeg.TileDecoder} that is kept for
+   * the input, so reading any number of tiles parses the header only once and only reads the data
+   * of the requested tiles. Tiles at the right and bottom edges are cut off by the image.
+   */
   @Override
   public BufferedImage readTile(int imageIndex, int tileX, int tileY) throws IOException {
     checkIndex(imageIndex);
-    int xOffset = getTileGridXOffset(imageIndex);
-    int yOffset = getTileGridYOffset(imageIndex);
-    int tileWidth = getTileWidth(imageIndex);
-    int tileHeight = getTileHeight(imageIndex);
-    Rectangle region =
-        new Rectangle(
-            xOffset + tileX * tileWidth, yOffset + tileY * tileHeight, tileWidth, tileHeight);
-    if (region.x + region.width > getWidth(imageIndex)
-        || region.y + region.height > getHeight(imageIndex)) {
+    if (tileX < 0
+        || tileY < 0
+        || tileX >= getInfo().getNumTilesX()
+        || tileY >= getInfo().getNumTilesY()) {
       throw new IllegalArgumentException("Tile indices out of bounds.");
     }
-    ImageReadParam param = getDefaultReadParam();
-    param.setSourceRegion(region);
-    return this.read(imageIndex, param);
+    return getImage()
+        .getTiles(imageIndex, 0)
+        .decodeTile(tileY * getInfo().getNumTilesX() + tileX, null, null);
   }
 
   @Override
@@ -240,10 +463,14 @@ public class OpenJp2ImageReader extends ImageReader {
 
   @Override
   public void dispose() {
-    if (this.streamWrapper != null) {
+    if (this.image != null) {
+      // Closes the stream wrapper as well
+      this.image.close();
+      this.image = null;
+    } else if (this.streamWrapper != null) {
       this.streamWrapper.close();
-      this.streamWrapper = null;
     }
+    this.streamWrapper = null;
     this.info = null;
   }
 }
@@ -1,7 +1,9 @@
 package de.digitalcollections.openjpeg.imageio;
 
 import de.digitalcollections.openjpeg.OpenJpeg;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Locale;
 import javax.imageio.ImageIO;
@@ -28,7 +30,7 @@ public class OpenJp2ImageReaderSpi extends ImageReaderSpi {
   private static final String[] writerSpiNames = {
     "de.digitalcollections.openjpeg.imageio.OpenJp2ImageWriterSpi"
   };
-  private static final Class<?>[] inputTypes = {ImageInputStream.class};
+  private static final Class<?>[] inputTypes = {ImageInputStream.class, File.class, Path.class};
 
   private OpenJpeg lib;
 
@@ -68,19 +70,27 @@ public class OpenJp2ImageReaderSpi extends ImageReaderSpi {
 
   @Override
   public boolean canDecodeInput(Object input) throws IOException {
-    if (!(input instanceof ImageInputStream)) {
-      input = ImageIO.createImageInputStream(input);
+    if (input instanceof ImageInputStream) {
+      return canDecode((ImageInputStream) input);
     }
-    if (input == null) {
-      return false;
+    if (input instanceof Path) {
+      input = ((Path) input).toFile();
+    }
+    // A stream opened for a file keeps its descriptor until it is garbage collected if not closed
+    try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+      return stream != null && canDecode(stream);
     }
-    ImageInputStream stream = (ImageInputStream) input;
+  }
+
+  private static boolean canDecode(ImageInputStream stream) throws IOException {
     byte[] b = new byte[12];
+    stream.mark();
     try {
-      stream.mark();
       stream.readFully(b);
     } catch (IOException e) {
       return false;
+    } finally {
+      stream.reset();
     }
     return Arrays.equals(b, HEADER_MAGIC);
   }
@@ -3,11 +3,22 @@ package de.digitalcollections.openjpeg.imageio;
 import de.digitalcollections.openjpeg.OpenJpeg;
 import de.digitalcollections.openjpeg.lib.enums.PROG_ORDER;
 import de.digitalcollections.openjpeg.lib.structs.opj_cparameters;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Stream;
 import javax.imageio.ImageWriteParam;
 
-/** Parameters for encoding JPEG2000 images */
+/**
+ * Parameters for encoding JPEG2000 images
+ *
+ * <p>Images that are served for random access and progressive display benefit from several quality
+ * layers, a division of the tiles into tile-parts and TLM/PLT markers, which index the tile-parts
+ * and packets so that decoders can seek to them instead of parsing the whole codestream.
+ *
+ * <p>The number of threads to encode with can be set, by default the process-wide {@link
+ * OpenJpeg#getDefaultNumThreads()} is used.
+ */
 public class OpenJp2ImageWriteParam extends ImageWriteParam {
 
   public enum ProgressionOrder {
@@ -33,6 +44,23 @@ public class OpenJp2ImageWriteParam extends ImageWriteParam {
     }
   }
 
+  /** Criterion to split tiles into tile-parts by, a new tile-part starts whenever it changes. */
+  public enum TilePartDivision {
+    NONE(0),
+    RESOLUTION('R'),
+    LAYER('L'),
+    COMPONENT('C');
+
+    private final int flag;
+
+    TilePartDivision(int flag) {
+      this.flag = flag;
+    }
+  }
+
+  /** Maximum number of quality layers, limited by the size of the native parameter arrays */
+  public static final int MAX_LAYERS = 100;
+
   public static String COMPRESS_TYPE_LOSSY = "lossy";
   public static String COMPRESS_TYPE_LOSSLESS = "lossless";
 
@@ -51,6 +79,24 @@ public class OpenJp2ImageWriteParam extends ImageWriteParam {
   /** Progession order. Defaults to LRCP. * */
   ProgressionOrder progOrder = ProgressionOrder.LRCP;
 
+  /** Compression ratios of the quality layers * */
+  float[] layerRates;
+
+  /** PSNR targets of the quality layers * */
+  float[] layerPsnr;
+
+  /** Division of tiles into tile-parts * */
+  TilePartDivision tilePartDivision = TilePartDivision.NONE;
+
+  /** Write TLM markers with the lengths of the tile-parts * */
+  boolean writeTLMMarkers = false;
+
+  /** Write PLT markers with the lengths of the packets * */
+  boolean writePLTMarkers = false;
+
+  /** Number of threads to encode with, 0 for the default * */
+  int numThreads = 0;
+
   protected opj_cparameters toNativeParams(OpenJpeg lib) {
     opj_cparameters params = new opj_cparameters(lib.runtime);
     lib.lib.opj_set_default_encoder_parameters(params);
@@ -80,15 +126,43 @@ public class OpenJp2ImageWriteParam extends ImageWriteParam {
       params.irreversible.set(1);
     }
 
-    if (getCompressionMode() == MODE_EXPLICIT) {
+    if (layerRates != null) {
+      params.tcp_numlayers.set(layerRates.length);
+      for (int i = 0; i < layerRates.length; i++) {
+        params.tcp_rates[i].set(layerRates[i]);
+      }
+    } else if (layerPsnr != null) {
+      params.tcp_numlayers.set(layerPsnr.length);
+      params.cp_disto_alloc.set(0);
+      params.cp_fixed_quality.set(1);
+      for (int i = 0; i < layerPsnr.length; i++) {
+        params.tcp_distoratio[i].set(layerPsnr[i]);
+      }
+    } else if (getCompressionMode() == MODE_EXPLICIT) {
       params.tcp_rates[0].set(Math.max(100f - getCompressionQuality() * 100f, 0f));
     } else {
       params.tcp_rates[0].set(0);
     }
+    if (tilePartDivision != TilePartDivision.NONE) {
+      params.tp_on.set(1);
+      params.tp_flag.set(tilePartDivision.flag);
+    }
     params.tcp_mct.set(1);
     return params;
   }
 
+  /** Options for the encoder that are not part of the native parameters. */
+  protected String[] getExtraOptions() {
+    List<String> options = new ArrayList<>();
+    if (writePLTMarkers) {
+      options.add("PLT=YES");
+    }
+    if (writeTLMMarkers) {
+      options.add("TLM=YES");
+    }
+    return options.toArray(new String[0]);
+  }
+
   @Override
   public boolean canWriteTiles() {
     return true;
@@ -210,4 +284,130 @@ public class OpenJp2ImageWriteParam extends ImageWriteParam {
   public void setProgressionOrder(ProgressionOrder progOrder) {
     this.progOrder = progOrder;
   }
+
+  public float[] getLayerRates() {
+    return layerRates == null ? null : layerRates.clone();
+  }
+
+  /**
+   * Encode several quality layers with the given compression ratios.
+   *
+   * <p>Decoders can stop after any layer, which allows for progressive refinement and faster
+   * previews. The ratios replace the compression quality and a PSNR based allocation.
+   *
+   * @param rates compression ratios of the layers, in decreasing order, e.g. {@code 80, 20, 1}. A
+   *     ratio of 1 (or 0) for the last layer makes it lossless, all other layers need ratios above
+   *     1. Pass null to encode a single layer.
+   */
+  public void setLayerRates(float... rates) {
+    checkLayers(rates);
+    for (int i = 0; rates != null && i < rates.length; i++) {
+      if (rates[i] < 0) {
+        throw new IllegalArgumentException("Layer rates must not be negative");
+      }
+      // OpenJPEG encodes everything into layers with a ratio of 1 or less, none would be left for
+      // the following ones
+      boolean lossless = rates[i] <= 1 && i == rates.length - 1;
+      if (!lossless && (rates[i] <= 1 || (i > 0 && rates[i] > rates[i - 1]))) {
+        throw new IllegalArgumentException(
+            "Layer rates must be decreasing and above 1, except for a lossless last layer");
+      }
+    }
+    this.layerRates = rates == null ? null : rates.clone();
+    this.layerPsnr = null;
+  }
+
+  public float[] getLayerPsnr() {
+    return layerPsnr == null ? null : layerPsnr.clone();
+  }
+
+  /**
+   * Encode several quality layers with the given peak signal-to-noise ratios.
+   *
+   * <p>The targets replace the compression quality and a rate based allocation.
+   *
+   * @param psnr PSNR of the layers in dB, in increasing order, e.g. {@code 30, 40, 50}. A value of
+   *     0 for the last layer makes it lossless. Pass null to encode a single layer.
+   */
+  public void setLayerPsnr(float... psnr) {
+    checkLayers(psnr);
+    for (int i = 0; psnr != null && i < psnr.length; i++) {
+      boolean lossless = psnr[i] == 0 && i == psnr.length - 1 && i > 0;
+      if (!lossless && (psnr[i] <= 0 || (i > 0 && psnr[i] < psnr[i - 1]))) {
+        throw new IllegalArgumentException("Layer PSNR must be positive and increasing");
+      }
+    }
+    this.layerPsnr = psnr == null ? null : psnr.clone();
+    this.layerRates = null;
+  }
+
+  private static void checkLayers(float[] values) {
+    if (values != null && (values.length == 0 || values.length > MAX_LAYERS)) {
+      throw new IllegalArgumentException(
+          String.format("Number of layers must be between 1 and %d", MAX_LAYERS));
+    }
+  }
+
+  public TilePartDivision getTilePartDivision() {
+    return tilePartDivision;
+  }
+
+  /**
+   * Split the tiles into tile-parts, so that e.g. the lower resolutions of all tiles can be read
+   * without seeking over the higher ones.
+   *
+   * @param tilePartDivision criterion to divide by, should match the progression order
+   */
+  public void setTilePartDivision(TilePartDivision tilePartDivision) {
+    this.tilePartDivision = tilePartDivision;
+  }
+
+  public boolean shouldWriteTLMMarkers() {
+    return writeTLMMarkers;
+  }
+
+  /**
+   * Write TLM markers to the main header, which hold the lengths of all tile-parts. Requires
+   * OpenJPEG &gt;= 2.5.
+   *
+   * @param writeTLMMarkers flag if tlm markers should be written
+   */
+  public void setWriteTLMMarkers(boolean writeTLMMarkers) {
+    this.writeTLMMarkers = writeTLMMarkers;
+  }
+
+  public boolean shouldWritePLTMarkers() {
+    return writePLTMarkers;
+  }
+
+  /**
+   * Write PLT markers to the tile-part headers, which hold the lengths of all packets. Requires
+   * OpenJPEG &gt;= 2.4.
+   *
+   * @param writePLTMarkers flag if plt markers should be written
+   */
+  public void setWritePLTMarkers(boolean writePLTMarkers) {
+    this.writePLTMarkers = writePLTMarkers;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Set the number of threads to encode with.
+   *
+   * <p>OpenJPEG &gt;= 2.4 encodes the code-blocks with its own thread pool. With older versions,
+   * tiled images are encoded with a thread per tile and the tiles are joined into a single
+   * codestream afterwards, untiled images and images with TLM markers are encoded on a single
+   * thread.
+   *
+   * @param numThreads number of threads, 0 to use {@link OpenJpeg#getDefaultNumThreads()}
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 0) {
+      throw new IllegalArgumentException("Number of threads must not be negative");
+    }
+    this.numThreads = numThreads;
+  }
 }
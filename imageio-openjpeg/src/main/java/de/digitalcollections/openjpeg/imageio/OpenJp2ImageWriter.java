@@ -46,6 +46,16 @@ public class OpenJp2ImageWriter extends ImageWriter {
     this.wrapper = new ImageOutputStreamWrapper(this.stream, lib);
   }
 
+  /** Number of times OpenJPEG called back into Java to write to the current output. */
+  public long getNumStreamCallbacks() {
+    return wrapper != null ? wrapper.getNumCallbacks() : 0;
+  }
+
+  /** Number of bytes OpenJPEG wrote to the current output. */
+  public long getStreamBytesWritten() {
+    return wrapper != null ? wrapper.getBytesWritten() : 0;
+  }
+
   @Override
   public ImageWriteParam getDefaultWriteParam() {
     return new OpenJp2ImageWriteParam();
@@ -84,7 +94,8 @@ public class OpenJp2ImageWriter extends ImageWriter {
       sourceRegion = sourceRegion.intersection(param.getSourceRegion());
     }
     Raster raster = img.getData(sourceRegion);
-    opj_cparameters cparams = ((OpenJp2ImageWriteParam) param).toNativeParams(lib);
-    lib.encode(raster, this.wrapper, cparams);
+    OpenJp2ImageWriteParam jp2Param = (OpenJp2ImageWriteParam) param;
+    opj_cparameters cparams = jp2Param.toNativeParams(lib);
+    lib.encode(raster, this.wrapper, cparams, jp2Param.getNumThreads(), jp2Param.getExtraOptions());
   }
 }
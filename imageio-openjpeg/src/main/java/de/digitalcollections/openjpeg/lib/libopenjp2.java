@@ -15,6 +15,7 @@ import jnr.ffi.Pointer;
 import jnr.ffi.annotations.Direct;
 import jnr.ffi.annotations.Out;
 import jnr.ffi.byref.AddressByReference;
+import jnr.ffi.byref.IntByReference;
 import jnr.ffi.byref.PointerByReference;
 import jnr.ffi.types.size_t;
 import jnr.ffi.types.u_int32_t;
@@ -64,6 +65,37 @@ public interface libopenjp2 {
 
   boolean opj_decode(Pointer codec, Pointer stream, Pointer img);
 
+  boolean opj_set_decoded_resolution_factor(Pointer codec, @u_int32_t int resFactor);
+
+  boolean opj_read_tile_header(
+      Pointer codec,
+      Pointer stream,
+      @Out IntByReference tileIndex,
+      @Out IntByReference dataSize,
+      @Out IntByReference tileX0,
+      @Out IntByReference tileY0,
+      @Out IntByReference tileX1,
+      @Out IntByReference tileY1,
+      @Out IntByReference numComps,
+      @Out IntByReference shouldGoOn);
+
+  boolean opj_decode_tile_data(
+      Pointer codec,
+      @u_int32_t int tileIndex,
+      Pointer data,
+      @u_int32_t int dataSize,
+      Pointer stream);
+
+  boolean opj_get_decoded_tile(
+      Pointer codec, Pointer stream, Pointer image, @u_int32_t int tileIndex);
+
+  /* Threading functions, available since OpenJPEG 2.2 */
+  boolean opj_has_thread_support();
+
+  int opj_get_num_cpus();
+
+  boolean opj_codec_set_threads(Pointer codec, int numThreads);
+
   /* Encoding functions */
   Pointer opj_create_compress(CODEC_FORMAT fmt);
 
@@ -77,6 +109,9 @@ public interface libopenjp2 {
 
   boolean opj_encode(Pointer codec, Pointer stream);
 
+  /* Available since OpenJPEG 2.4, options are e.g. "PLT=YES" or, since 2.5, "TLM=YES" */
+  boolean opj_encoder_set_extra_options(Pointer codec, String[] options);
+
   /* opj_image functions */
   Pointer opj_image_create(@u_int32_t int numcmpts, Pointer cmtparms, COLOR_SPACE clrspc);
 
@@ -195,10 +195,10 @@ public class opj_cparameters extends Struct {
   Signed32 cp_rsiz = new Signed32();
 
   /** Tile part generation */
-  Unsigned8 tp_on = new Unsigned8();
+  public Unsigned8 tp_on = new Unsigned8();
 
   /** Flag for Tile part generation */
-  Unsigned8 tp_flag = new Unsigned8();
+  public Unsigned8 tp_flag = new Unsigned8();
 
   /** MCT (multiple component transform) */
   public Unsigned8 tcp_mct = new Unsigned8();
@@ -31,7 +31,7 @@ public class opj_image_comp extends Struct {
   public Unsigned32 prec = new Unsigned32();
 
   /** signed (1) / unsigned (0) */
-  Unsigned32 sgnd = new Unsigned32();
+  public Unsigned32 sgnd = new Unsigned32();
 
   /** number of decoded resolution */
   Unsigned32 resno_decoded = new Unsigned32();
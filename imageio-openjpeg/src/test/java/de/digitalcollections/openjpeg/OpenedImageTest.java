@@ -0,0 +1,60 @@
+package de.digitalcollections.openjpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+
+class OpenedImageTest {
+
+  private final OpenJpeg lib = new OpenJpeg();
+
+  private static Path getFixture(String name) {
+    return new File(ClassLoader.getSystemResource(name).getFile()).toPath();
+  }
+
+  private static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+    assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+    assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+    for (int y = 0; y < expected.getHeight(); y += 7) {
+      for (int x = 0; x < expected.getWidth(); x += 7) {
+        assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void testDecodeFromMappedFile() throws Exception {
+    Path path = getFixture("rgb.jp2");
+    Rectangle area = new Rectangle(100, 50, 200, 120);
+    BufferedImage expected = lib.decode(path, area, 1);
+    ByteBuffer data;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try (OpenedImage image = lib.open(new MemoryStreamWrapper(lib, data))) {
+      assertThat(image.getInfo().getNativeSize().width).isEqualTo(512);
+      assertSameImage(expected, image.decode(area, 1, 0, null, null));
+      // Repeated decodes with the same header
+      assertSameImage(lib.decode(path, null, 0), image.decode(null, 0, 0, null, null));
+      assertSameImage(expected, image.decode(area, 1, 0, null, null));
+    }
+  }
+
+  @Test
+  public void testDecodeFromFileStream() throws Exception {
+    Path path = getFixture("hires.jp2");
+    Rectangle area = new Rectangle(1000, 900, 300, 200);
+    try (OpenedImage image = lib.open(new FileStreamWrapper(lib, path))) {
+      for (int i = 0; i < 2; i++) {
+        assertSameImage(lib.decode(path, area, 0), image.decode(area, 0, 0, null, null));
+      }
+    }
+  }
+}
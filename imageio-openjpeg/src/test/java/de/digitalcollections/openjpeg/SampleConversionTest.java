@@ -0,0 +1,156 @@
+package de.digitalcollections.openjpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.openjpeg.lib.enums.COLOR_SPACE;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.util.Random;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/** Copying decoded samples from native memory into BufferedImages, with one or more threads. */
+class SampleConversionTest {
+
+  // Large enough to be interleaved in parallel, with a partial chunk of rows at the bottom
+  private static final int WIDTH = 1100;
+  private static final int HEIGHT = 1000;
+
+  private final OpenJpeg lib = new OpenJpeg();
+
+  /** Components of random samples with the given precision in native memory, like OpenJPEG's. */
+  private Pointer[] randomComponents(int numcomps, int width, int height, int precision) {
+    Random random = new Random(42);
+    Pointer[] components = new Pointer[numcomps];
+    int[] samples = new int[width * height];
+    for (int c = 0; c < numcomps; c++) {
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = random.nextInt(1 << precision);
+      }
+      components[c] = Memory.allocateDirect(lib.runtime, samples.length * 4);
+      components[c].put(0, samples, 0, samples.length);
+    }
+    return components;
+  }
+
+  private static OpenJpeg.SampleRows rowsOf(Pointer[] components, int width) {
+    return (component, y, row) -> components[component].get((long) y * width * 4, row, 0, width);
+  }
+
+  private BufferedImage convert(Pointer[] components, int precision, int numThreads)
+      throws Exception {
+    return lib.writeImage(
+        rowsOf(components, WIDTH),
+        components.length,
+        WIDTH,
+        HEIGHT,
+        precision,
+        COLOR_SPACE.OPJ_CLRSPC_SRGB,
+        numThreads,
+        null,
+        null);
+  }
+
+  @Test
+  public void testParallelBytesMatchSequential() throws Exception {
+    Pointer[] components = randomComponents(3, WIDTH, HEIGHT, 12);
+    BufferedImage sequential = convert(components, 12, 1);
+    BufferedImage parallel = convert(components, 12, 4);
+    byte[] expected = ((DataBufferByte) sequential.getRaster().getDataBuffer()).getData();
+    byte[] actual = ((DataBufferByte) parallel.getRaster().getDataBuffer()).getData();
+    assertThat(actual).isEqualTo(expected);
+
+    // Both have to match the samples read one at a time and reduced to 8 bits
+    for (int y = 0; y < HEIGHT; y += 13) {
+      for (int x = 0; x < WIDTH; x += 11) {
+        for (int c = 0; c < 3; c++) {
+          int sample = components[c].getInt(((long) y * WIDTH + x) * 4) >> 4;
+          assertThat(parallel.getRaster().getSample(x, y, c)).isEqualTo(sample);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testParallelUShortMatchesSequential() throws Exception {
+    Pointer[] components = randomComponents(1, WIDTH, HEIGHT, 16);
+    BufferedImage sequential = convert(components, 16, 1);
+    BufferedImage parallel = convert(components, 16, 4);
+    assertThat(parallel.getRaster().getDataBuffer()).isInstanceOf(DataBufferUShort.class);
+    short[] expected = ((DataBufferUShort) sequential.getRaster().getDataBuffer()).getData();
+    short[] actual = ((DataBufferUShort) parallel.getRaster().getDataBuffer()).getData();
+    assertThat(actual).isEqualTo(expected);
+    for (int y = 0; y < HEIGHT; y += 13) {
+      for (int x = 0; x < WIDTH; x += 11) {
+        int sample = components[0].getInt(((long) y * WIDTH + x) * 4);
+        assertThat(parallel.getRaster().getSample(x, y, 0)).isEqualTo(sample);
+      }
+    }
+  }
+
+  /**
+   * Compares reading every sample with a JNR call, like the decoder used to, with the bulk row
+   * copies, sequentially and in parallel. Run with {@code -Dbenchmark=true}.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  public void benchmarkConversion() throws Exception {
+    int width = 3000;
+    int height = 4000;
+    Pointer[] components = randomComponents(3, width, height, 12);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    int[] bandOffsets = {2, 1, 0};
+    int runs = 10;
+    long start = 0;
+    // The first three runs warm up the JIT
+    for (int i = -3; i < runs; i++) {
+      if (i == 0) {
+        start = System.nanoTime();
+      }
+      for (int c = 0; c < 3; c++) {
+        for (int y = 0; y < height; y++) {
+          int dstIdx = y * width * 3 + bandOffsets[c];
+          for (int x = 0; x < width; x++) {
+            data[dstIdx] = (byte) (components[c].getInt(((long) y * width + x) * 4) / 16);
+            dstIdx += 3;
+          }
+        }
+      }
+    }
+    System.out.printf("per sample: %.1f ms/image%n", (System.nanoTime() - start) / 1e6 / runs);
+    for (int numThreads : new int[] {1, Runtime.getRuntime().availableProcessors()}) {
+      for (int i = 0; i < 3; i++) {
+        lib.writeImage(
+            rowsOf(components, width),
+            3,
+            width,
+            height,
+            12,
+            COLOR_SPACE.OPJ_CLRSPC_SRGB,
+            numThreads,
+            image,
+            null);
+      }
+      start = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        lib.writeImage(
+            rowsOf(components, width),
+            3,
+            width,
+            height,
+            12,
+            COLOR_SPACE.OPJ_CLRSPC_SRGB,
+            numThreads,
+            image,
+            null);
+      }
+      System.out.printf(
+          "bulk rows, %d thread(s): %.1f ms/image%n",
+          numThreads, (System.nanoTime() - start) / 1e6 / runs);
+    }
+  }
+}
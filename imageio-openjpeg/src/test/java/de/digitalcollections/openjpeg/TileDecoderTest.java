@@ -0,0 +1,59 @@
+package de.digitalcollections.openjpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TileDecoderTest {
+
+  private final OpenJpeg lib = new OpenJpeg();
+
+  private static Path getFixture(String name) {
+    return new File(ClassLoader.getSystemResource(name).getFile()).toPath();
+  }
+
+  @Test
+  public void testDecodeTileMatchesRegion() throws Exception {
+    Path path = getFixture("hires.jp2");
+    try (TileDecoder decoder = lib.openTiles(path, 1, 0)) {
+      assertThat(decoder.getInfo().getNumTiles()).isGreaterThan(1);
+      Rectangle bounds = decoder.getTileBounds(1);
+      assertThat(bounds).isEqualTo(new Rectangle(512, 0, 512, 512));
+
+      // Tiles can be decoded repeatedly and out of order with the same header
+      BufferedImage second = decoder.decodeTile(1);
+      decoder.decodeTile(0);
+      assertThat(decoder.decodeTile(1).getRGB(100, 100)).isEqualTo(second.getRGB(100, 100));
+
+      BufferedImage region = lib.decode(path, new Rectangle(1024, 0, 1024, 1024), 1);
+      assertThat(second.getWidth()).isEqualTo(region.getWidth());
+      assertThat(second.getHeight()).isEqualTo(region.getHeight());
+      for (int y = 0; y < region.getHeight(); y += 13) {
+        for (int x = 0; x < region.getWidth(); x += 13) {
+          assertThat(second.getRGB(x, y)).isEqualTo(region.getRGB(x, y));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testForEachTile() throws Exception {
+    try (TileDecoder decoder = lib.openTiles(getFixture("hires.jp2"), 0, 0)) {
+      List<Integer> indices = new ArrayList<>();
+      decoder.forEachTile(
+          (tileIndex, bounds, tile) -> {
+            indices.add(tileIndex);
+            assertThat(bounds).isEqualTo(decoder.getTileBounds(tileIndex));
+            assertThat(tile.getWidth()).isEqualTo(bounds.width);
+            assertThat(tile.getHeight()).isEqualTo(bounds.height);
+          });
+      assertThat(indices).hasSize(decoder.getInfo().getNumTiles());
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package de.digitalcollections.openjpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.openjpeg.lib.structs.opj_cparameters;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class TileParallelEncoderTest {
+
+  private static final OpenJpeg lib = new OpenJpeg();
+  private static BufferedImage rgb;
+  private static BufferedImage gray;
+
+  @BeforeAll
+  static void loadImages() throws IOException {
+    rgb = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    gray = new BufferedImage(rgb.getWidth(), rgb.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    gray.getGraphics().drawImage(rgb, 0, 0, null);
+  }
+
+  /** Lossless parameters with the given tile grid. */
+  private static opj_cparameters tiledParams(int tx0, int ty0, int tdx, int tdy) {
+    opj_cparameters params = new opj_cparameters(lib.runtime);
+    lib.lib.opj_set_default_encoder_parameters(params);
+    params.tile_size_on.set(true);
+    params.cp_tx0.set(tx0);
+    params.cp_ty0.set(ty0);
+    params.cp_tdx.set(tdx);
+    params.cp_tdy.set(tdy);
+    params.numresolution.set(5);
+    params.tcp_mct.set(1);
+    params.tcp_numlayers.set(1);
+    params.cp_disto_alloc.set(1);
+    return params;
+  }
+
+  private static byte[] encodeParallel(Raster img, opj_cparameters params) throws IOException {
+    assertThat(TileParallelEncoder.canEncode(img, params, new String[0])).isTrue();
+    TileParallelEncoder.ByteArrayOutStreamWrapper out =
+        new TileParallelEncoder.ByteArrayOutStreamWrapper(lib);
+    try {
+      new TileParallelEncoder(lib, params, 4, new String[0]).encode(img, out);
+    } finally {
+      out.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] encodeSingleThreaded(Raster img, opj_cparameters params)
+      throws IOException {
+    TileParallelEncoder.ByteArrayOutStreamWrapper out =
+        new TileParallelEncoder.ByteArrayOutStreamWrapper(lib);
+    lib.encode(img, out, params, 1);
+    return out.toByteArray();
+  }
+
+  private static MemoryStreamWrapper wrap(byte[] data) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data).flip();
+    return new MemoryStreamWrapper(lib, buffer);
+  }
+
+  private static BufferedImage decode(byte[] data) throws IOException {
+    return lib.decode(wrap(data), null, 0);
+  }
+
+  private static void assertSamplesEqual(Raster expected, Raster actual) {
+    assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+    assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+    assertThat(actual.getNumBands()).isEqualTo(expected.getNumBands());
+    for (int band = 0; band < expected.getNumBands(); band++) {
+      int[] expectedSamples =
+          expected.getSamples(0, 0, expected.getWidth(), expected.getHeight(), band, (int[]) null);
+      int[] actualSamples =
+          actual.getSamples(0, 0, actual.getWidth(), actual.getHeight(), band, (int[]) null);
+      assertThat(actualSamples).as("band %d", band).isEqualTo(expectedSamples);
+    }
+  }
+
+  /** Both encodes have to decode to exactly the input, since they are lossless. */
+  private static void assertRoundTrip(BufferedImage img, int tx0, int ty0, int tdx, int tdy)
+      throws IOException {
+    BufferedImage parallel =
+        decode(encodeParallel(img.getRaster(), tiledParams(tx0, ty0, tdx, tdy)));
+    BufferedImage sequential =
+        decode(encodeSingleThreaded(img.getRaster(), tiledParams(tx0, ty0, tdx, tdy)));
+    assertSamplesEqual(sequential.getRaster(), parallel.getRaster());
+    assertSamplesEqual(img.getRaster(), parallel.getRaster());
+  }
+
+  @Test
+  public void testEdgeTiles() throws Exception {
+    // 512 = 2 * 200 + 112, the last row and column of tiles are cut off by the image
+    assertRoundTrip(rgb, 0, 0, 200, 200);
+  }
+
+  @Test
+  public void testNegativeGridOffset() throws Exception {
+    // The first row and column of tiles start outside of the image
+    assertRoundTrip(rgb, -50, -30, 128, 128);
+  }
+
+  @Test
+  public void testGrayscale() throws Exception {
+    assertRoundTrip(gray, 0, 0, 160, 192);
+  }
+
+  @Test
+  public void testTileIndexesAreRewritten() throws Exception {
+    byte[] data = encodeParallel(rgb.getRaster(), tiledParams(0, 0, 128, 128));
+    Info info = lib.getInfo(wrap(data));
+    assertThat(info.getNumTilesX()).isEqualTo(4);
+    assertThat(info.getNumTilesY()).isEqualTo(4);
+    try (TileDecoder decoder = lib.openTiles(wrap(data), 0, 0)) {
+      BufferedImage tile = decoder.decodeTile(13);
+      assertSamplesEqual(
+          rgb.getRaster().createChild(128, 384, 128, 128, 0, 0, null), tile.getRaster());
+    }
+  }
+
+  @Test
+  public void testRejectsGridsWithTooManyTiles() {
+    Raster wide = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 65536, 1, 1, null);
+    assertThat(TileParallelEncoder.canEncode(wide, tiledParams(0, 0, 1, 1), new String[0]))
+        .isFalse();
+    Raster justFits = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 65535, 1, 1, null);
+    assertThat(TileParallelEncoder.canEncode(justFits, tiledParams(0, 0, 1, 1), new String[0]))
+        .isTrue();
+  }
+
+  @Test
+  public void testRejectsUntiledAndSingleTileImages() {
+    opj_cparameters untiled = tiledParams(0, 0, 128, 128);
+    untiled.tile_size_on.set(false);
+    assertThat(TileParallelEncoder.canEncode(rgb.getRaster(), untiled, new String[0])).isFalse();
+    assertThat(
+            TileParallelEncoder.canEncode(
+                rgb.getRaster(), tiledParams(0, 0, 512, 512), new String[0]))
+        .isFalse();
+    assertThat(
+            TileParallelEncoder.canEncode(
+                rgb.getRaster(), tiledParams(0, 0, 128, 128), new String[] {"TLM=YES"}))
+        .isFalse();
+  }
+}
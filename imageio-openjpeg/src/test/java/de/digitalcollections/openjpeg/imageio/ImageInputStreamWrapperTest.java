@@ -0,0 +1,120 @@
+package de.digitalcollections.openjpeg.imageio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.openjpeg.OpenJpeg;
+import de.digitalcollections.openjpeg.TileDecoder;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import jnr.ffi.Pointer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ImageInputStreamWrapperTest {
+
+  private static final OpenJpeg openJpeg = new OpenJpeg();
+  private static byte[] tiled;
+
+  @BeforeAll
+  static void encodeTiledImage() throws IOException {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setTiling(128, 128, 0, 0);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    tiled = os.toByteArray();
+  }
+
+  private static MemoryCacheImageInputStream openTiled() {
+    return new MemoryCacheImageInputStream(new ByteArrayInputStream(tiled));
+  }
+
+  @Test
+  public void testDecodingTilesBackwardsSeeks() throws Exception {
+    CountingWrapper wrapper = new CountingWrapper(openTiled(), true);
+    BufferedImage last;
+    BufferedImage first;
+    try (TileDecoder decoder = openJpeg.openTiles(wrapper, 0, 0)) {
+      last = decoder.decodeTile(15);
+      first = decoder.decodeTile(0);
+    }
+    assertThat(wrapper.numSeeks).isGreaterThan(0);
+
+    BufferedImage full =
+        openJpeg.decode(new ImageInputStreamWrapper(openTiled(), openJpeg), null, 0);
+    assertThat(first.getRGB(17, 42)).isEqualTo(full.getRGB(17, 42));
+    assertThat(last.getRGB(17, 42)).isEqualTo(full.getRGB(384 + 17, 384 + 42));
+  }
+
+  @Test
+  public void testNonSeekableWrapperIsReadSequentially() throws Exception {
+    CountingWrapper wrapper = new CountingWrapper(openTiled(), false);
+    BufferedImage img = openJpeg.decode(wrapper, null, 0);
+    assertThat(wrapper.numSeeks).isZero();
+    assertThat(img.getWidth()).isEqualTo(512);
+    assertThat(img.getHeight()).isEqualTo(512);
+  }
+
+  @Test
+  public void testReadsInSlicesAndCountsBytes() throws Exception {
+    assertThat(tiled.length).isGreaterThan(4 * ImageInputStreamWrapper.TRANSFER_BUFFER_SIZE);
+    CountingWrapper wrapper = new CountingWrapper(openTiled(), false);
+    BufferedImage img = openJpeg.decode(wrapper, null, 0);
+    // Read sequentially, the whole file goes through the read callback
+    assertThat(wrapper.getBytesRead()).isEqualTo(tiled.length);
+    assertThat(wrapper.getNumCallbacks()).isGreaterThan(0);
+
+    BufferedImage reference = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    for (int y = 0; y < img.getHeight(); y += 7) {
+      for (int x = 0; x < img.getWidth(); x += 7) {
+        assertThat(img.getRGB(x, y)).isEqualTo(reference.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void testReaderExposesCounters() throws Exception {
+    OpenJp2ImageReader reader =
+        (OpenJp2ImageReader) ImageIO.getImageReadersByFormatName("jpeg2000").next();
+    reader.setInput(openTiled());
+    assertThat(reader.getStreamBytesRead()).isZero();
+    reader.read(0, null);
+    assertThat(reader.getStreamBytesRead()).isGreaterThan(0);
+    assertThat(reader.getNumStreamCallbacks()).isGreaterThan(0);
+  }
+
+  /** Counts the seeks, or pretends not to support them like custom wrappers written before. */
+  private static class CountingWrapper extends ImageInputStreamWrapper {
+    private final boolean seekable;
+    int numSeeks;
+
+    CountingWrapper(MemoryCacheImageInputStream is, boolean seekable) {
+      super(is, openJpeg);
+      this.seekable = seekable;
+    }
+
+    @Override
+    protected boolean canSeek() {
+      return seekable;
+    }
+
+    @Override
+    protected boolean seek(long position, Pointer userData) {
+      numSeeks++;
+      return super.seek(position, userData);
+    }
+  }
+}
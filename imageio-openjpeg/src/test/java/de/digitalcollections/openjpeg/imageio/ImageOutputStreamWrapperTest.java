@@ -0,0 +1,56 @@
+package de.digitalcollections.openjpeg.imageio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.openjpeg.OpenJpeg;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.jupiter.api.Test;
+
+class ImageOutputStreamWrapperTest {
+
+  private final OpenJpeg lib = new OpenJpeg();
+
+  @Test
+  public void testWritesInSlicesAndCountsBytes() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ImageOutputStreamWrapper wrapper;
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      wrapper = new ImageOutputStreamWrapper(ios, lib);
+      lib.encode(in.getRaster(), wrapper, new OpenJp2ImageWriteParam().toNativeParams(lib));
+    }
+    byte[] encoded = os.toByteArray();
+    assertThat(encoded.length).isGreaterThan(4 * ImageOutputStreamWrapper.TRANSFER_BUFFER_SIZE);
+    // The encoder seeks back to fill in box lengths, which are then written twice
+    assertThat(wrapper.getBytesWritten()).isGreaterThanOrEqualTo(encoded.length);
+    assertThat(wrapper.getBytesWritten()).isLessThan(encoded.length + 1024);
+    assertThat(wrapper.getNumCallbacks()).isGreaterThan(0);
+
+    // Lossless, so every slice has to have arrived in the right place
+    BufferedImage out = ImageIO.read(new ByteArrayInputStream(encoded));
+    for (int y = 0; y < in.getHeight(); y++) {
+      for (int x = 0; x < in.getWidth(); x++) {
+        assertThat(out.getRGB(x, y)).isEqualTo(in.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void testWriterExposesCounters() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    OpenJp2ImageWriter writer =
+        (OpenJp2ImageWriter) ImageIO.getImageWritersByFormatName("jpeg2000").next();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), null);
+    }
+    assertThat(writer.getStreamBytesWritten()).isGreaterThanOrEqualTo(os.size());
+    assertThat(writer.getNumStreamCallbacks()).isGreaterThan(0);
+  }
+}
@@ -1,18 +1,35 @@
 package de.digitalcollections.openjpeg.imageio;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import de.digitalcollections.openjpeg.Info;
+import de.digitalcollections.openjpeg.OpenJpeg;
+import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 
 class OpenJp2ImageReaderTest {
 
@@ -21,6 +38,28 @@ class OpenJp2ImageReaderTest {
     assertThat(Lists.newArrayList(ImageIO.getImageReadersBySuffix("jp2"))).isNotEmpty();
   }
 
+  @Test
+  public void testProbingFilesDoesNotLeakDescriptors() throws Exception {
+    Path fds = Paths.get("/proc/self/fd");
+    assumeTrue(Files.isDirectory(fds));
+    OpenJp2ImageReaderSpi spi = new OpenJp2ImageReaderSpi();
+    File jp2 = new File(ClassLoader.getSystemResource("rgb.jp2").getFile());
+    File png = new File(ClassLoader.getSystemResource("lenna.png").getFile());
+    long before = countEntries(fds);
+    for (int i = 0; i < 100; i++) {
+      assertThat(spi.canDecodeInput(jp2)).isTrue();
+      assertThat(spi.canDecodeInput(jp2.toPath())).isTrue();
+      assertThat(spi.canDecodeInput(png)).isFalse();
+    }
+    assertThat(countEntries(fds)).isLessThan(before + 10);
+  }
+
+  private static long countEntries(Path dir) throws IOException {
+    try (Stream<Path> entries = Files.list(dir)) {
+      return entries.count();
+    }
+  }
+
   private OpenJp2ImageReader getReader(String fixtureFile) throws IOException {
     File inFile = new File(ClassLoader.getSystemResource(fixtureFile).getFile());
     ImageReader reader = ImageIO.getImageReaders(inFile).next();
@@ -39,6 +78,26 @@ class OpenJp2ImageReaderTest {
     assertThat(img.getHeight()).isEqualTo(512);
   }
 
+  @Test
+  public void testReadIntoDestination() throws Exception {
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    BufferedImage reference = reader.read(1, null);
+
+    reader = getReader("rgb.jp2");
+    BufferedImage canvas = new BufferedImage(300, 300, BufferedImage.TYPE_3BYTE_BGR);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(canvas);
+    param.setDestinationOffset(new Point(20, 30));
+    BufferedImage img = reader.read(1, param);
+    assertThat(img).isSameAs(canvas);
+    assertThat(canvas.getRGB(19, 29)).isEqualTo(0xFF000000);
+    for (int y = 0; y < 256; y += 17) {
+      for (int x = 0; x < 256; x += 17) {
+        assertThat(canvas.getRGB(x + 20, y + 30)).isEqualTo(reference.getRGB(x, y));
+      }
+    }
+  }
+
   @Test
   public void testReadRGBScaled() throws Exception {
     OpenJp2ImageReader reader = getReader("rgb.jp2");
@@ -48,6 +107,232 @@ class OpenJp2ImageReaderTest {
     assertThat(img.getHeight()).isEqualTo(256);
   }
 
+  @Test
+  public void testReadSubsampledUsesResolution() throws Exception {
+    BufferedImage expected = getReader("rgb.jp2").read(2, null);
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceSubsampling(4, 4, 0, 0);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img.getWidth()).isEqualTo(128);
+    assertThat(img.getHeight()).isEqualTo(128);
+    assertImageEquals(expected, img);
+  }
+
+  @Test
+  public void testReadSubsampledBelowLowestResolution() throws Exception {
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    BufferedImage lowest = reader.read(reader.getNumImages(false) - 1, null);
+    ImageReadParam param = reader.getDefaultReadParam();
+    // A quarter of the lowest resolution in each direction
+    int subsampling = 4 * 512 / lowest.getWidth();
+    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img.getWidth()).isEqualTo(lowest.getWidth() / 4);
+    assertThat(img.getHeight()).isEqualTo(lowest.getHeight() / 4);
+    // A single bilinear pass would only look at 2x2 of every 4x4 pixels of the lowest resolution
+    assertBlockAverages(lowest, img, 4);
+  }
+
+  /** Every sample of the scaled image has to be the average of a block of the source. */
+  private static void assertBlockAverages(BufferedImage source, BufferedImage scaled, int factor) {
+    for (int y = 0; y < scaled.getHeight(); y++) {
+      for (int x = 0; x < scaled.getWidth(); x++) {
+        for (int b = 0; b < scaled.getRaster().getNumBands(); b++) {
+          int sum = 0;
+          for (int dy = 0; dy < factor; dy++) {
+            for (int dx = 0; dx < factor; dx++) {
+              sum += source.getRaster().getSample(x * factor + dx, y * factor + dy, b);
+            }
+          }
+          assertThat(scaled.getRaster().getSample(x, y, b))
+              .as("sample %d of (%d,%d)", b, x, y)
+              .isCloseTo(Math.round((float) sum / (factor * factor)), within(1));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadRenderSize() throws Exception {
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    ImageReadParam param = reader.getDefaultReadParam();
+    assertThat(param.canSetSourceRenderSize()).isTrue();
+    param.setSourceRenderSize(new Dimension(300, 200));
+    BufferedImage img = reader.read(0, param);
+    assertThat(img.getWidth()).isEqualTo(300);
+    assertThat(img.getHeight()).isEqualTo(200);
+  }
+
+  @Test
+  public void testReadMultiThreaded() throws Exception {
+    BufferedImage expected = getReader("rgb.jp2").read(0, null);
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    OpenJp2ImageReadParam param = (OpenJp2ImageReadParam) reader.getDefaultReadParam();
+    param.setNumThreads(4);
+    assertImageEquals(expected, reader.read(0, param));
+  }
+
+  @Test
+  public void testReadLayerLimited() throws Exception {
+    byte[] layered = encodeLayered();
+    OpenJpeg lib = new OpenJpeg();
+    Info info =
+        lib.getInfo(
+            new ImageInputStreamWrapper(
+                new MemoryCacheImageInputStream(new ByteArrayInputStream(layered)), lib));
+    assertThat(info.getNumLayers()).isEqualTo(3);
+
+    OpenJp2ImageReader reader = getReader(layered);
+    BufferedImage full = reader.read(0, null);
+    OpenJp2ImageReadParam param = (OpenJp2ImageReadParam) reader.getDefaultReadParam();
+    param.setNumLayers(1);
+    BufferedImage preview = reader.read(0, param);
+    assertThat(preview.getWidth()).isEqualTo(full.getWidth());
+    assertThat(preview.getHeight()).isEqualTo(full.getHeight());
+    // Only the first, heavily compressed layer was decoded
+    assertThat(countDifferentPixels(full, preview)).isGreaterThan(full.getWidth() * 10);
+    // Going back to all layers must not reuse the layer-limited decoder
+    assertImageEquals(full, reader.read(0, null));
+  }
+
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  public void benchmarkReadLayerLimited() throws Exception {
+    byte[] layered = encodeLayered();
+    for (int numLayers : new int[] {0, 1, 2}) {
+      OpenJp2ImageReader reader = getReader(layered);
+      OpenJp2ImageReadParam param = (OpenJp2ImageReadParam) reader.getDefaultReadParam();
+      param.setNumLayers(numLayers);
+      // Warm up, the reader keeps the opened image between reads
+      for (int i = 0; i < 5; i++) {
+        reader.read(0, param);
+      }
+      int runs = 20;
+      long start = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        reader.read(0, param);
+      }
+      System.out.printf(
+          "%s layers: %.2f ms/decode%n",
+          numLayers == 0 ? "all" : numLayers, (System.nanoTime() - start) / 1e6 / runs);
+    }
+  }
+
+  /** Lenna with three quality layers, only the last one of them lossless. */
+  private static byte[] encodeLayered() throws IOException {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    param.setLayerRates(100, 20, 1);
+    param.setProgressionOrder(OpenJp2ImageWriteParam.ProgressionOrder.LRCP);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    return os.toByteArray();
+  }
+
+  private OpenJp2ImageReader getReader(byte[] data) {
+    OpenJp2ImageReader reader =
+        (OpenJp2ImageReader) ImageIO.getImageReadersByFormatName("jpeg2000").next();
+    reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+    return reader;
+  }
+
+  private static int countDifferentPixels(BufferedImage a, BufferedImage b) {
+    int numDifferent = 0;
+    for (int y = 0; y < a.getHeight(); y++) {
+      for (int x = 0; x < a.getWidth(); x++) {
+        if (a.getRGB(x, y) != b.getRGB(x, y)) {
+          numDifferent++;
+        }
+      }
+    }
+    return numDifferent;
+  }
+
+  @Test
+  public void testRepeatedReads() throws Exception {
+    BufferedImage expectedFull = getReader("rgb.jp2").read(1, null);
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(64, 32, 100, 80));
+    BufferedImage region = reader.read(0, param);
+    assertThat(region.getWidth()).isEqualTo(100);
+    assertThat(region.getHeight()).isEqualTo(80);
+    assertImageEquals(expectedFull, reader.read(1, null));
+    assertImageEquals(region, reader.read(0, param));
+  }
+
+  @Test
+  public void testRepeatedReadsTiled() throws Exception {
+    OpenJp2ImageReader reader = getReader("hires.jp2");
+    for (int i = 0; i < 3; i++) {
+      BufferedImage img = reader.readTile(1, 1, 1);
+      assertThat(img.getWidth()).isEqualTo(512);
+      assertThat(img.getHeight()).isEqualTo(512);
+    }
+  }
+
+  @Test
+  public void testReadTilesParsesHeaderOnce() throws Exception {
+    ImageReadParam param = new OpenJp2ImageReadParam();
+    param.setSourceRegion(new Rectangle(1024, 1024, 1024, 1024));
+    BufferedImage expected = getReader("hires.jp2").read(0, param);
+
+    OpenJp2ImageReader reader = getReader("hires.jp2");
+    assertThat(reader.isImageTiled(0)).isTrue();
+    BufferedImage tile = reader.readTile(0, 1, 1);
+    reader.readTile(0, 0, 0);
+    assertImageEquals(expected, reader.readTile(0, 1, 1));
+    assertImageEquals(expected, tile);
+    assertThat(reader.getNumHeaderReads()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFirstReadWithDefaultThreadsSharesHeader() throws Exception {
+    int defaultNumThreads = OpenJpeg.getDefaultNumThreads();
+    OpenJpeg.setDefaultNumThreads(2);
+    try {
+      OpenJp2ImageReader reader = getReader("hires.jp2");
+      assertThat(reader.isImageTiled(0)).isTrue();
+      reader.read(2, null);
+      assertThat(reader.getNumHeaderReads()).isEqualTo(1);
+      // The codec of a multi-tiled image is used up, the second read parses the header again
+      reader.read(2, null);
+      assertThat(reader.getNumHeaderReads()).isEqualTo(2);
+    } finally {
+      OpenJpeg.setDefaultNumThreads(defaultNumThreads);
+    }
+  }
+
+  @Test
+  public void testReadRegionFromMemoryStream() throws Exception {
+    ImageReadParam param = new OpenJp2ImageReadParam();
+    param.setSourceRegion(new Rectangle(1024, 1024, 512, 512));
+    BufferedImage expected = getReader("hires.jp2").read(0, param);
+
+    OpenJp2ImageReader reader = getReader("hires.jp2");
+    reader.setInput(
+        new MemoryCacheImageInputStream(ClassLoader.getSystemResourceAsStream("hires.jp2")));
+    // Reading the tiles backwards requires seeking in the stream, see ImageInputStreamWrapperTest
+    // for a test that counts the seeks
+    BufferedImage later = reader.readTile(0, 2, 2);
+    assertImageEquals(expected, reader.read(0, param));
+    assertThat(later.getWidth()).isEqualTo(1024);
+  }
+
+  @Test
+  public void testReadFromFile() throws Exception {
+    BufferedImage expected = getReader("rgb.jp2").read(1, null);
+    OpenJp2ImageReader reader = getReader("rgb.jp2");
+    reader.setInput(new File(ClassLoader.getSystemResource("rgb.jp2").getFile()));
+    assertThat(reader.getWidth(0)).isEqualTo(512);
+    assertImageEquals(expected, reader.read(1, null));
+  }
+
   @Test
   public void testReadRGBTile() throws Exception {
     OpenJp2ImageReader reader = getReader("hires.jp2");
@@ -1,9 +1,13 @@
 package de.digitalcollections.openjpeg.imageio;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import de.digitalcollections.openjpeg.Info;
 import de.digitalcollections.openjpeg.OpenJpeg;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -11,10 +15,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -125,6 +133,204 @@ class OpenJp2ImageWriterTest {
     compressAndCompare("lenna_tiled_lossy_r10.jp2", param);
   }
 
+  @Test
+  void writeQualityLayers() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    param.setCompressionType("lossy");
+    param.setLayerRates(80, 20, 5);
+    param.setProgressionOrder(OpenJp2ImageWriteParam.ProgressionOrder.LRCP);
+    param.setTilePartDivision(OpenJp2ImageWriteParam.TilePartDivision.LAYER);
+    param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setTiling(128, 128, 0, 0);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    OpenJpeg lib = new OpenJpeg();
+    Info info =
+        lib.getInfo(
+            new ImageInputStreamWrapper(
+                new MemoryCacheImageInputStream(new ByteArrayInputStream(os.toByteArray())), lib));
+    assertThat(info.getNumLayers()).isEqualTo(3);
+    assertThat(info.getNativeSize()).isEqualTo(new Dimension(in.getWidth(), in.getHeight()));
+  }
+
+  @Test
+  void writeTiledMultiThreaded() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setTiling(128, 128, 0, 0);
+    param.setNumThreads(4);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    // Lossless, so the decoded image has to match the input regardless of how it was encoded
+    BufferedImage out = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+    assertThat(out.getWidth()).isEqualTo(in.getWidth());
+    assertThat(out.getHeight()).isEqualTo(in.getHeight());
+    for (int y = 0; y < in.getHeight(); y++) {
+      for (int x = 0; x < in.getWidth(); x++) {
+        assertThat(out.getRGB(x, y)).isEqualTo(in.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  void rejectsIncreasingLayerRates() {
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    assertThatThrownBy(() -> param.setLayerRates(20, 80))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void rejectsLosslessMiddleLayer() {
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    assertThatThrownBy(() -> param.setLayerRates(80, 0, 0))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> param.setLayerRates(80, 1, 0))
+        .isInstanceOf(IllegalArgumentException.class);
+    param.setLayerRates(80, 20, 0);
+    assertThat(param.getLayerRates()).containsExactly(80, 20, 0);
+  }
+
+  private byte[] write(BufferedImage in, ImageWriteParam param) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    return os.toByteArray();
+  }
+
+  /**
+   * Markers of the main header and of all tile-part headers of the codestream in the JP2 data, the
+   * tile-parts themselves are skipped with the lengths in their SOT markers.
+   */
+  private static List<Integer> listMarkers(byte[] jp2) {
+    int pos = 0;
+    while (!(readShort(jp2, pos) == 0xFF4F && readShort(jp2, pos + 2) == 0xFF51)) {
+      pos++;
+    }
+    List<Integer> markers = new ArrayList<>();
+    markers.add(0xFF4F);
+    pos += 2;
+    int tilePartStart = -1;
+    while (pos + 2 <= jp2.length) {
+      int marker = readShort(jp2, pos);
+      markers.add(marker);
+      if (marker == 0xFFD9) {
+        break;
+      } else if (marker == 0xFF90) {
+        tilePartStart = pos;
+      } else if (marker == 0xFF93) {
+        int length = readInt(jp2, tilePartStart + 6);
+        pos = tilePartStart + length;
+        continue;
+      }
+      pos += 2 + readShort(jp2, pos + 2);
+    }
+    return markers;
+  }
+
+  private static int readShort(byte[] data, int pos) {
+    return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] data, int pos) {
+    return (readShort(data, pos) << 16) | readShort(data, pos + 2);
+  }
+
+  private static Info getInfo(byte[] jp2) throws IOException {
+    OpenJpeg lib = new OpenJpeg();
+    return lib.getInfo(
+        new ImageInputStreamWrapper(
+            new MemoryCacheImageInputStream(new ByteArrayInputStream(jp2)), lib));
+  }
+
+  private static BufferedImage read(byte[] jp2, int numLayers) throws IOException {
+    ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg2000").next();
+    reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(jp2)));
+    OpenJp2ImageReadParam param = (OpenJp2ImageReadParam) reader.getDefaultReadParam();
+    param.setNumLayers(numLayers);
+    return reader.read(0, param);
+  }
+
+  private static double psnr(BufferedImage expected, BufferedImage actual) {
+    Raster a = expected.getRaster();
+    Raster b = actual.getRaster();
+    double sum = 0;
+    int n = 0;
+    for (int band = 0; band < a.getNumBands(); band++) {
+      for (int y = 0; y < a.getHeight(); y++) {
+        for (int x = 0; x < a.getWidth(); x++) {
+          double diff = a.getSample(x, y, band) - b.getSample(x, y, band);
+          sum += diff * diff;
+          n++;
+        }
+      }
+    }
+    return sum == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / (sum / n));
+  }
+
+  @Test
+  void writePsnrLayers() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    param.setLayerPsnr(30, 40, 0);
+    byte[] jp2 = write(in, param);
+    assertThat(getInfo(jp2).getNumLayers()).isEqualTo(3);
+
+    double first = psnr(in, read(jp2, 1));
+    double second = psnr(in, read(jp2, 2));
+    // Rate allocation stops at the first truncation point that reaches the target
+    assertThat(first).isBetween(29.0, 40.0);
+    assertThat(second).isBetween(39.0, 50.0);
+    assertThat(second).isGreaterThan(first);
+    // The last layer is lossless
+    assertThat(psnr(in, read(jp2, 0))).isInfinite();
+  }
+
+  @Test
+  void writeTileParts() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setTiling(256, 256, 0, 0);
+    param.setNumResolutions(4);
+    param.setProgressionOrder(OpenJp2ImageWriteParam.ProgressionOrder.RLCP);
+    param.setTilePartDivision(OpenJp2ImageWriteParam.TilePartDivision.RESOLUTION);
+    byte[] jp2 = write(in, param);
+    // Every one of the 4 tiles has a tile-part per resolution
+    assertThat(listMarkers(jp2).stream().filter(m -> m == 0xFF90).count()).isEqualTo(16);
+
+    param.setTilePartDivision(OpenJp2ImageWriteParam.TilePartDivision.NONE);
+    assertThat(listMarkers(write(in, param)).stream().filter(m -> m == 0xFF90).count())
+        .isEqualTo(4);
+  }
+
+  @Test
+  void writePltMarkers() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
+    OpenJp2ImageWriteParam param = (OpenJp2ImageWriteParam) writer.getDefaultWriteParam();
+    param.setWritePLTMarkers(true);
+    String[] version = new OpenJpeg().lib.opj_version().split("\\.");
+    boolean supported =
+        Integer.parseInt(version[0]) > 2
+            || (Integer.parseInt(version[0]) == 2 && Integer.parseInt(version[1]) >= 4);
+    if (supported) {
+      assertThat(listMarkers(write(in, param))).contains(0xFF58);
+    } else {
+      assertThatThrownBy(() -> write(in, param))
+          .isInstanceOf(IOException.class)
+          .hasMessageContaining("2.4");
+    }
+  }
+
   @Test
   public void testCanReuseWriter() throws IOException {
     BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("lenna.png"));
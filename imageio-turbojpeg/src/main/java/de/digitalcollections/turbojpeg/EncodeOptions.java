@@ -0,0 +1,105 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+
+/**
+ * Settings for encoding images with {@link TurboJpeg#encode(java.awt.image.Raster, EncodeOptions)}.
+ *
+ * <p>Optimized Huffman tables, arithmetic coding and restart markers are only available with
+ * libturbojpeg &gt;= 3.0, encoding with them fails on older versions.
+ */
+public class EncodeOptions {
+
+  private int quality = 85;
+  private TJSAMP subsampling;
+  private int flags;
+  private boolean optimize;
+  private boolean arithmetic;
+  private int restartInterval;
+
+  public int getQuality() {
+    return quality;
+  }
+
+  /** Set the compression quality, from 1 (worst) to 100 (best), defaults to 85. */
+  public void setQuality(int quality) {
+    if (quality < 1 || quality > 100) {
+      throw new IllegalArgumentException("Illegal quality, must be between 1 and 100");
+    }
+    this.quality = quality;
+  }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  /**
+   * Set the chroma subsampling, defaults to 4:2:0 for lossy and 4:4:4 for lossless JPEGs.
+   *
+   * <p>Grayscale images are always encoded as grayscale JPEGs, color images are converted to
+   * grayscale if {@link TJSAMP#TJSAMP_GRAY} is set.
+   *
+   * @param subsampling the subsampling, or null for the default
+   */
+  public void setSubsampling(TJSAMP subsampling) {
+    if (subsampling == TJSAMP.TJSAMP_UNKNOWN) {
+      throw new IllegalArgumentException("Illegal subsampling: " + subsampling);
+    }
+    this.subsampling = subsampling;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  /**
+   * Set the flags passed to the library.
+   *
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT}, {@link TJFLAG#TJFLAG_ACCURATEDCT} and
+   *     {@link TJFLAG#TJFLAG_PROGRESSIVE}
+   */
+  public void setFlags(int flags) {
+    this.flags = flags;
+  }
+
+  public boolean isOptimize() {
+    return optimize;
+  }
+
+  /** Compute optimal Huffman tables for the image instead of using the default ones. */
+  public void setOptimize(boolean optimize) {
+    this.optimize = optimize;
+  }
+
+  public boolean isArithmetic() {
+    return arithmetic;
+  }
+
+  /** Use arithmetic instead of Huffman entropy coding, which many decoders do not support. */
+  public void setArithmetic(boolean arithmetic) {
+    this.arithmetic = arithmetic;
+  }
+
+  public int getRestartInterval() {
+    return restartInterval;
+  }
+
+  /**
+   * Set the number of MCU blocks between restart markers, 0 (the default) disables them.
+   *
+   * <p>Restart markers allow decoders to resynchronize after corrupt data and to decode parts of
+   * the image independently.
+   */
+  public void setRestartInterval(int restartInterval) {
+    if (restartInterval < 0 || restartInterval > 65535) {
+      throw new IllegalArgumentException("Illegal restart interval, must be between 0 and 65535");
+    }
+    this.restartInterval = restartInterval;
+  }
+
+  /** Whether any of the settings require the TurboJPEG 3 API. */
+  boolean requiresTurboJpeg3() {
+    return optimize || arithmetic || restartInterval > 0;
+  }
+}
@@ -0,0 +1,202 @@
+package de.digitalcollections.turbojpeg;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import jnr.ffi.Pointer;
+
+/**
+ * Bounded, thread-safe pool of native TurboJPEG handles.
+ *
+ * <p>Initializing a handle makes libjpeg-turbo allocate and set up a complete (de)compressor
+ * instance, which is wasteful if it is destroyed again after a single operation. Released handles
+ * are therefore kept per {@link Kind} and handed out again in LIFO order. At most {@link
+ * #getMaxIdle()} handles of each kind are retained, handles that have not been used for longer than
+ * the idle timeout are destroyed on the next pool access.
+ *
+ * <p>The pool does not limit the number of handles that are in use at the same time, it only bounds
+ * how many are kept around when they are not needed.
+ */
+public class HandlePool implements AutoCloseable {
+
+  /** Kind of a handle, handles of different kinds are not interchangeable. */
+  public enum Kind {
+    COMPRESS,
+    DECOMPRESS,
+    TRANSFORM
+  }
+
+  /** Default number of idle handles to retain per kind. */
+  public static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+  /** Default time after which an idle handle is destroyed. */
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+
+  private static class IdleHandle {
+    final Pointer handle;
+    final long releasedAt;
+
+    IdleHandle(Pointer handle, long releasedAt) {
+      this.handle = handle;
+      this.releasedAt = releasedAt;
+    }
+  }
+
+  private final Function<Kind, Pointer> initializer;
+  private final Consumer<Pointer> destroyer;
+  private final Map<Kind, ConcurrentLinkedDeque<IdleHandle>> idleHandles =
+      new EnumMap<>(Kind.class);
+  private final Map<Kind, AtomicInteger> idleCounts = new EnumMap<>(Kind.class);
+  private volatile int maxIdle;
+  private volatile long idleTimeoutMs;
+
+  /**
+   * Create a new pool.
+   *
+   * @param initializer creates a new native handle of the given kind
+   * @param destroyer destroys a native handle
+   * @param maxIdle maximum number of idle handles to keep per kind, 0 disables pooling
+   * @param idleTimeoutMs time in milliseconds after which an idle handle is destroyed
+   */
+  public HandlePool(
+      Function<Kind, Pointer> initializer,
+      Consumer<Pointer> destroyer,
+      int maxIdle,
+      long idleTimeoutMs) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("Maximum number of idle handles must not be negative");
+    }
+    this.initializer = initializer;
+    this.destroyer = destroyer;
+    this.maxIdle = maxIdle;
+    this.idleTimeoutMs = idleTimeoutMs;
+    for (Kind kind : Kind.values()) {
+      idleHandles.put(kind, new ConcurrentLinkedDeque<>());
+      idleCounts.put(kind, new AtomicInteger());
+    }
+  }
+
+  /**
+   * Obtain a handle of the given kind, either from the pool or freshly initialized.
+   *
+   * <p>The handle must be given back with {@link #release(Kind, Pointer)} once it is no longer
+   * used.
+   *
+   * @param kind kind of the handle
+   * @return a native handle
+   * @throws TurboJpegException if a new handle could not be initialized
+   */
+  public Pointer acquire(Kind kind) throws TurboJpegException {
+    evictExpired(kind);
+    IdleHandle idle = idleHandles.get(kind).pollFirst();
+    if (idle != null) {
+      idleCounts.get(kind).decrementAndGet();
+      return idle.handle;
+    }
+    Pointer handle = initializer.apply(kind);
+    if (handle == null || handle.address() == 0) {
+      throw new TurboJpegException(
+          String.format("Could not initialize %s handle", kind.name().toLowerCase()));
+    }
+    return handle;
+  }
+
+  /**
+   * Give a handle back to the pool.
+   *
+   * <p>If the pool already retains the maximum number of idle handles of this kind, the handle is
+   * destroyed.
+   *
+   * @param kind kind the handle was acquired as
+   * @param handle the handle, may be null
+   */
+  public void release(Kind kind, Pointer handle) {
+    if (handle == null || handle.address() == 0) {
+      return;
+    }
+    AtomicInteger count = idleCounts.get(kind);
+    if (count.incrementAndGet() > maxIdle) {
+      count.decrementAndGet();
+      destroyer.accept(handle);
+    } else {
+      idleHandles.get(kind).offerFirst(new IdleHandle(handle, System.currentTimeMillis()));
+    }
+    evictExpired(kind);
+  }
+
+  private void evictExpired(Kind kind) {
+    ConcurrentLinkedDeque<IdleHandle> deque = idleHandles.get(kind);
+    long now = System.currentTimeMillis();
+    IdleHandle oldest;
+    while ((oldest = deque.peekLast()) != null && now - oldest.releasedAt > idleTimeoutMs) {
+      if (deque.removeLastOccurrence(oldest)) {
+        idleCounts.get(kind).decrementAndGet();
+        destroyer.accept(oldest.handle);
+      }
+    }
+  }
+
+  private void trim(Kind kind, int limit) {
+    ConcurrentLinkedDeque<IdleHandle> deque = idleHandles.get(kind);
+    AtomicInteger count = idleCounts.get(kind);
+    IdleHandle oldest;
+    while (count.get() > limit && (oldest = deque.pollLast()) != null) {
+      count.decrementAndGet();
+      destroyer.accept(oldest.handle);
+    }
+  }
+
+  /** Get the number of currently idle handles of the given kind. */
+  public int getIdleCount(Kind kind) {
+    return idleCounts.get(kind).get();
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  /**
+   * Set the maximum number of idle handles to retain per kind.
+   *
+   * <p>Surplus idle handles are destroyed immediately, a value of 0 disables pooling.
+   *
+   * @param maxIdle maximum number of idle handles per kind
+   */
+  public void setMaxIdle(int maxIdle) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("Maximum number of idle handles must not be negative");
+    }
+    this.maxIdle = maxIdle;
+    for (Kind kind : Kind.values()) {
+      trim(kind, maxIdle);
+    }
+  }
+
+  public long getIdleTimeoutMs() {
+    return idleTimeoutMs;
+  }
+
+  /**
+   * Set the time after which idle handles are destroyed.
+   *
+   * @param idleTimeoutMs timeout in milliseconds
+   */
+  public void setIdleTimeoutMs(long idleTimeoutMs) {
+    this.idleTimeoutMs = idleTimeoutMs;
+    for (Kind kind : Kind.values()) {
+      evictExpired(kind);
+    }
+  }
+
+  /** Destroy all idle handles. Handles that are currently in use are not affected. */
+  @Override
+  public void close() {
+    for (Kind kind : Kind.values()) {
+      trim(kind, 0);
+    }
+  }
+}
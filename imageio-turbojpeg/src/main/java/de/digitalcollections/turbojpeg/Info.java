@@ -14,6 +14,8 @@ public class Info {
   private final int height;
   private final TJSAMP subsampling;
   private final TJCS colorspace;
+  private final int precision;
+  private final boolean lossless;
   final List<Dimension> availableSizes;
 
   public int getWidth() {
@@ -32,6 +34,16 @@ public class Info {
     return colorspace;
   }
 
+  /** Number of bits per sample, anything other than 8 requires libturbojpeg &gt;= 3.0. */
+  public int getPrecision() {
+    return precision;
+  }
+
+  /** Whether the image uses lossless coding, which does not support scaling or cropping. */
+  public boolean isLossless() {
+    return lossless;
+  }
+
   public List<Dimension> getAvailableSizes() {
     return availableSizes;
   }
@@ -42,13 +54,29 @@ public class Info {
 
   /** Create a new instance with the information parsed from the JPEG image. */
   public Info(int width, int height, int subsampling, int colorspace, tjscalingfactor[] factors) {
+    this(width, height, subsampling, colorspace, 8, false, factors);
+  }
+
+  /** Create a new instance with the information parsed from the JPEG image. */
+  public Info(
+      int width,
+      int height,
+      int subsampling,
+      int colorspace,
+      int precision,
+      boolean lossless,
+      tjscalingfactor[] factors) {
     this.width = width;
     this.height = height;
     this.subsampling = TJSAMP.fromInt(subsampling);
     this.colorspace = TJCS.fromInt(colorspace);
-    // The available sizes are determined from the list of scaling factors.
+    this.precision = precision;
+    this.lossless = lossless;
+    // The available sizes are determined from the list of scaling factors, lossless images can
+    // only be decoded at full size.
     this.availableSizes =
         Arrays.stream(factors)
+            .filter(f -> !lossless || f.num.get() == f.denom.get())
             .filter(f -> f.denom.get() > 0)
             .sorted(Comparator.comparing(f -> -getScaled(width, f.num.get(), f.denom.get())))
             .map(
@@ -67,6 +95,11 @@ public class Info {
    * <p>Neccessary to calculate the right cropping alignments.
    */
   public Dimension getMCUSize() {
+    return getMCUSize(subsampling);
+  }
+
+  /** Get the size of the Minimum Coding Units for a chroma subsampling. */
+  static Dimension getMCUSize(TJSAMP subsampling) {
     switch (subsampling) {
       case TJSAMP_422: // 4:2:2
         return new Dimension(16, 8);
@@ -76,6 +109,8 @@ public class Info {
         return new Dimension(8, 16);
       case TJSAMP_411:
         return new Dimension(32, 8);
+      case TJSAMP_441:
+        return new Dimension(8, 32);
       default:
         return new Dimension(8, 8);
     }
@@ -0,0 +1,379 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Basic information about a JPEG image, determined by scanning its marker segments in Java.
+ *
+ * <p>The scanner walks the segments from the SOI marker up to the first SOS marker, only the
+ * contents of the JFIF, Adobe and SOF segments are actually read, all other segments are skipped.
+ * Subsampling and colorspace are derived with the same rules libjpeg-turbo applies in {@code
+ * tjDecompressHeader3}, so the result can be used in place of a native header decode without having
+ * to read the whole image.
+ */
+public class JpegHeader {
+
+  /** Default maximum number of bytes to traverse before giving up on finding the frame header. */
+  public static final int DEFAULT_MAX_HEADER_SIZE = 1024 * 1024;
+
+  // Pixel sizes and MCU dimensions of the TJSAMP values, indexed by their integer value
+  private static final int[] PIXEL_SIZES = {3, 3, 3, 1, 3, 3};
+  private static final int[] MCU_WIDTHS = {8, 16, 16, 8, 8, 32};
+  private static final int[] MCU_HEIGHTS = {8, 8, 16, 8, 16, 8};
+  private static final int MAX_BLOCKS_IN_MCU = 10;
+
+  private static final int M_SOI = 0xD8;
+  private static final int M_EOI = 0xD9;
+  private static final int M_SOS = 0xDA;
+  private static final int M_APP0 = 0xE0;
+  private static final int M_APP14 = 0xEE;
+  private static final int M_TEM = 0x01;
+
+  private final int width;
+  private final int height;
+  private final int precision;
+  private final TJSAMP subsampling;
+  private final TJCS colorspace;
+
+  private JpegHeader(int width, int height, int precision, TJSAMP subsampling, TJCS colorspace) {
+    this.width = width;
+    this.height = height;
+    this.precision = precision;
+    this.subsampling = subsampling;
+    this.colorspace = colorspace;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  public TJCS getColorspace() {
+    return colorspace;
+  }
+
+  /**
+   * Scan the JPEG header at the current position of the input, traversing at most {@link
+   * #DEFAULT_MAX_HEADER_SIZE} bytes.
+   *
+   * @see #read(DataInput, int)
+   */
+  public static JpegHeader read(DataInput in) throws IOException {
+    return read(in, DEFAULT_MAX_HEADER_SIZE);
+  }
+
+  /**
+   * Scan the JPEG header at the current position of the input.
+   *
+   * <p>The input is left positioned somewhere inside the header, callers that need to re-read the
+   * data have to mark and reset it themselves.
+   *
+   * @param in input positioned at the SOI marker
+   * @param maxHeaderSize maximum number of bytes to traverse (including skipped segments) before
+   *     giving up
+   * @return the header information, or {@code null} if the data is not a JPEG, the frame header was
+   *     not found within the limit or the image uses a coding process or component layout that is
+   *     better left to libturbojpeg to judge (lossless or hierarchical coding, non-standard
+   *     sampling factors, unknown colorspaces).
+   * @throws IOException if reading from the input fails
+   */
+  public static JpegHeader read(DataInput in, int maxHeaderSize) throws IOException {
+    try {
+      return new Scanner(in, maxHeaderSize).scan();
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static class Scanner {
+    private final DataInput in;
+    private final int maxHeaderSize;
+    private long offset;
+
+    private boolean sawJfif;
+    private boolean sawAdobe;
+    private int adobeTransform;
+    private int precision;
+    private int width;
+    private int height;
+    private int[] componentIds;
+    private int[] hSampFactors;
+    private int[] vSampFactors;
+
+    Scanner(DataInput in, int maxHeaderSize) {
+      this.in = in;
+      this.maxHeaderSize = maxHeaderSize;
+    }
+
+    JpegHeader scan() throws IOException {
+      if (readByte() != 0xFF || readByte() != M_SOI) {
+        return null;
+      }
+      while (offset < maxHeaderSize) {
+        int marker = nextMarker();
+        if (marker == M_SOS) {
+          return componentIds == null ? null : buildHeader();
+        }
+        if (marker == M_EOI || marker == M_SOI) {
+          return null;
+        }
+        if (marker == M_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+          // Standalone markers without a segment
+          continue;
+        }
+        int length = readShort() - 2;
+        if (length < 0) {
+          return null;
+        }
+        if (isSof(marker)) {
+          if (!isSupportedSof(marker) || componentIds != null) {
+            return null;
+          }
+          readFrameHeader(length);
+        } else if (marker == M_APP0) {
+          readJfif(length);
+        } else if (marker == M_APP14) {
+          readAdobe(length);
+        } else {
+          skip(length);
+        }
+      }
+      return null;
+    }
+
+    private static boolean isSof(int marker) {
+      return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /** Baseline, extended sequential and progressive Huffman or arithmetic coding. */
+    private static boolean isSupportedSof(int marker) {
+      return marker == 0xC0 || marker == 0xC1 || marker == 0xC2 || marker == 0xC9 || marker == 0xCA;
+    }
+
+    private void readFrameHeader(int length) throws IOException {
+      precision = readByte();
+      height = readShort();
+      width = readShort();
+      int numComponents = readByte();
+      int remaining = length - 6;
+      if (remaining < numComponents * 3) {
+        throw new EOFException("Truncated SOF segment");
+      }
+      componentIds = new int[numComponents];
+      hSampFactors = new int[numComponents];
+      vSampFactors = new int[numComponents];
+      for (int i = 0; i < numComponents; i++) {
+        componentIds[i] = readByte();
+        int sampFactors = readByte();
+        hSampFactors[i] = sampFactors >> 4;
+        vSampFactors[i] = sampFactors & 0x0F;
+        readByte(); // quantization table selector
+      }
+      skip(remaining - numComponents * 3);
+    }
+
+    private void readJfif(int length) throws IOException {
+      if (length < 14) {
+        skip(length);
+        return;
+      }
+      long start = offset;
+      boolean jfif =
+          readByte() == 'J'
+              && readByte() == 'F'
+              && readByte() == 'I'
+              && readByte() == 'F'
+              && readByte() == 0;
+      sawJfif |= jfif;
+      skip(length - (int) (offset - start));
+    }
+
+    private void readAdobe(int length) throws IOException {
+      if (length < 12) {
+        skip(length);
+        return;
+      }
+      long start = offset;
+      boolean adobe =
+          readByte() == 'A'
+              && readByte() == 'd'
+              && readByte() == 'o'
+              && readByte() == 'b'
+              && readByte() == 'e';
+      if (adobe) {
+        // version (2), flags0 (2), flags1 (2), transform (1)
+        skip(6);
+        adobeTransform = readByte();
+        sawAdobe = true;
+      }
+      skip(length - (int) (offset - start));
+    }
+
+    private JpegHeader buildHeader() {
+      if (width == 0 || height == 0 || precision != 8) {
+        return null;
+      }
+      TJCS colorspace = determineColorspace();
+      if (colorspace == null) {
+        return null;
+      }
+      TJSAMP subsampling = determineSubsampling(colorspace);
+      if (subsampling == null) {
+        return null;
+      }
+      return new JpegHeader(width, height, precision, subsampling, colorspace);
+    }
+
+    /** Mirrors the colorspace guessing in libjpeg's {@code default_decompress_parms}. */
+    private TJCS determineColorspace() {
+      switch (componentIds.length) {
+        case 1:
+          return TJCS.TJCS_GRAY;
+        case 3:
+          if (sawJfif) {
+            return TJCS.TJCS_YCbCr;
+          }
+          if (sawAdobe) {
+            return adobeTransform == 0 ? TJCS.TJCS_RGB : TJCS.TJCS_YCbCr;
+          }
+          if (componentIds[0] == 'R' && componentIds[1] == 'G' && componentIds[2] == 'B') {
+            return TJCS.TJCS_RGB;
+          }
+          return TJCS.TJCS_YCbCr;
+        case 4:
+          if (sawAdobe) {
+            return adobeTransform == 0 ? TJCS.TJCS_CMYK : TJCS.TJCS_YCCK;
+          }
+          return TJCS.TJCS_CMYK;
+        default:
+          return null;
+      }
+    }
+
+    /** Mirrors {@code getSubsamp} in libjpeg-turbo's turbojpeg.c. */
+    private TJSAMP determineSubsampling(TJCS colorspace) {
+      int numComponents = componentIds.length;
+      if (numComponents == 1 && colorspace == TJCS.TJCS_GRAY) {
+        return TJSAMP.TJSAMP_GRAY;
+      }
+      boolean isCmyk = colorspace == TJCS.TJCS_CMYK || colorspace == TJCS.TJCS_YCCK;
+      boolean isYcck = colorspace == TJCS.TJCS_YCCK;
+      TJSAMP result = null;
+      for (int i = 0; i < PIXEL_SIZES.length; i++) {
+        if (numComponents != PIXEL_SIZES[i]
+            && !(isCmyk && PIXEL_SIZES[i] == 3 && numComponents == 4)) {
+          continue;
+        }
+        int mcuH = MCU_WIDTHS[i] / 8;
+        int mcuV = MCU_HEIGHTS[i] / 8;
+        if (hSampFactors[0] == mcuH && vSampFactors[0] == mcuV) {
+          int match = 0;
+          for (int k = 1; k < numComponents; k++) {
+            int href = 1;
+            int vref = 1;
+            if (isYcck && k == 3) {
+              href = mcuH;
+              vref = mcuV;
+            }
+            if (hSampFactors[k] == href && vSampFactors[k] == vref) {
+              match++;
+            }
+          }
+          if (match == numComponents - 1) {
+            result = TJSAMP.fromInt(i);
+            break;
+          }
+        }
+        // 4:2:2 and 4:4:0 images whose sampling factors are specified in non-standard ways
+        if (hSampFactors[0] == 2
+            && vSampFactors[0] == 2
+            && (i == TJSAMP.TJSAMP_422.intValue() || i == TJSAMP.TJSAMP_440.intValue())) {
+          int match = 0;
+          for (int k = 1; k < numComponents; k++) {
+            int href = isYcck && k == 3 ? 2 : mcuV;
+            int vref = isYcck && k == 3 ? 2 : mcuH;
+            if (hSampFactors[k] == href && vSampFactors[k] == vref) {
+              match++;
+            }
+          }
+          if (match == numComponents - 1) {
+            result = TJSAMP.fromInt(i);
+            break;
+          }
+        }
+        // 4:4:4 images whose sampling factors are specified in non-standard ways
+        if (i == TJSAMP.TJSAMP_444.intValue()
+            && hSampFactors[0] * vSampFactors[0] <= MAX_BLOCKS_IN_MCU / PIXEL_SIZES[i]) {
+          int match = 0;
+          for (int k = 1; k < numComponents; k++) {
+            if (hSampFactors[k] == hSampFactors[0] && vSampFactors[k] == vSampFactors[0]) {
+              match++;
+            }
+          }
+          if (match == numComponents - 1) {
+            result = TJSAMP.fromInt(i);
+            break;
+          }
+        }
+      }
+      return result;
+    }
+
+    /** Read the next marker code, skipping over any fill bytes. */
+    private int nextMarker() throws IOException {
+      int b = readByte();
+      while (b != 0xFF) {
+        // Garbage between segments, libjpeg skips it with a warning
+        if (offset >= maxHeaderSize) {
+          throw new EOFException("Header size limit exceeded");
+        }
+        b = readByte();
+      }
+      do {
+        b = readByte();
+      } while (b == 0xFF);
+      if (b == 0) {
+        return nextMarker();
+      }
+      return b;
+    }
+
+    private int readByte() throws IOException {
+      offset++;
+      return in.readUnsignedByte();
+    }
+
+    private int readShort() throws IOException {
+      // Composed manually, ImageInputStreams may be configured with little endian byte order
+      return (readByte() << 8) | readByte();
+    }
+
+    private void skip(int n) throws IOException {
+      while (n > 0) {
+        int skipped = in.skipBytes(n);
+        if (skipped <= 0) {
+          // skipBytes may give up early, make sure we are not at the end of the stream
+          in.readUnsignedByte();
+          skipped = 1;
+        }
+        offset += skipped;
+        n -= skipped;
+      }
+    }
+  }
+}
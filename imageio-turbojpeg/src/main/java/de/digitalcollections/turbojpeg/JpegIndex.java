@@ -0,0 +1,792 @@
+package de.digitalcollections.turbojpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Random access index for the entropy-coded data of a baseline JPEG.
+ *
+ * <p>JPEGs without restart markers can only be decoded from the start, since the Huffman coded data
+ * is not byte aligned and the DC coefficients are coded as differences to the previous block. The
+ * index stores checkpoints every few MCU rows with the bit position in the data and the DC
+ * predictors of all components at that point. A region can then be decoded by building a standalone
+ * JPEG starting at the checkpoint above it: the data is copied from the checkpoint on, with the DC
+ * coefficients of the first MCU re-encoded as absolute values and the bits realigned to byte
+ * boundaries.
+ *
+ * <p>Building the index requires Huffman decoding the whole image once (in Java), it can be kept in
+ * memory or stored next to the image with {@link #write(DataOutput)} and loaded with {@link
+ * #read(DataInput)}. Only single-scan baseline and extended sequential JPEGs with Huffman coding
+ * and without restart markers are supported, for the latter see {@link
+ * TurboJpeg#decodeParallel(ByteBuffer, Info, java.awt.Dimension, java.awt.image.BufferedImage, int,
+ * java.util.concurrent.ForkJoinPool)}.
+ */
+public class JpegIndex {
+
+  /** Default number of MCU rows between checkpoints. */
+  public static final int DEFAULT_INTERVAL = 8;
+
+  private static final int MAGIC = 0x4A494458; // "JIDX"
+  private static final int VERSION = 2;
+
+  /** Number of bytes at the start and at the end of the entropy-coded data in the checksum. */
+  private static final int CHECKSUM_SCAN_BYTES = 256;
+
+  // DC table with codes for all values of 8 bit images, from Annex K.3 of the JPEG standard
+  private static final int[] FULL_DC_COUNTS = {0, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+  private static final int[] FULL_DC_SYMBOLS = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+  private final long dataLength;
+  private final int scanOffset;
+  private final long checksum;
+  private final int width;
+  private final int height;
+  private final int mcuHeight;
+  private final int interval;
+  private final int[] byteOffsets;
+  private final int[] bitOffsets;
+  private final long[] bitIndices;
+  private final int[][] predictors;
+  private final long totalBits;
+
+  private JpegIndex(
+      long dataLength,
+      int scanOffset,
+      long checksum,
+      int width,
+      int height,
+      int mcuHeight,
+      int interval,
+      int[] byteOffsets,
+      int[] bitOffsets,
+      long[] bitIndices,
+      int[][] predictors,
+      long totalBits) {
+    this.dataLength = dataLength;
+    this.scanOffset = scanOffset;
+    this.checksum = checksum;
+    this.width = width;
+    this.height = height;
+    this.mcuHeight = mcuHeight;
+    this.interval = interval;
+    this.byteOffsets = byteOffsets;
+    this.bitOffsets = bitOffsets;
+    this.bitIndices = bitIndices;
+    this.predictors = predictors;
+    this.totalBits = totalBits;
+  }
+
+  /**
+   * Build the index for a JPEG with a checkpoint every {@link #DEFAULT_INTERVAL} MCU rows.
+   *
+   * @see #build(ByteBuffer, int)
+   */
+  public static JpegIndex build(ByteBuffer jpegData) {
+    return build(jpegData, DEFAULT_INTERVAL);
+  }
+
+  /**
+   * Build the index for a JPEG.
+   *
+   * @param jpegData JPEG data from the buffer's position up to its limit
+   * @param interval Number of MCU rows between checkpoints, smaller values make region decoding
+   *     faster at the expense of a larger index
+   * @return the index, or {@code null} if the JPEG is not supported or its data is corrupt
+   */
+  public static JpegIndex build(ByteBuffer jpegData, int interval) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("Interval must be positive");
+    }
+    ByteBuffer data = jpegData.slice();
+    Frame frame = Frame.parse(data);
+    if (frame == null) {
+      return null;
+    }
+    int numCheckpoints = (frame.mcuRows + interval - 1) / interval;
+    int[] byteOffsets = new int[numCheckpoints];
+    int[] bitOffsets = new int[numCheckpoints];
+    long[] bitIndices = new long[numCheckpoints];
+    int[][] predictors = new int[numCheckpoints][];
+    int[] preds = new int[frame.numComponents];
+
+    BitReader reader = new BitReader(data, frame.scanOffset, 0, 0);
+    for (int row = 0; row < frame.mcuRows; row++) {
+      if (row % interval == 0) {
+        int checkpoint = row / interval;
+        int[] position = reader.getPosition();
+        if (position == null) {
+          return null;
+        }
+        byteOffsets[checkpoint] = position[0];
+        bitOffsets[checkpoint] = position[1];
+        bitIndices[checkpoint] = reader.bitIndex;
+        predictors[checkpoint] = preds.clone();
+      }
+      for (int mcu = 0; mcu < frame.mcusPerRow; mcu++) {
+        for (int comp = 0; comp < frame.numComponents; comp++) {
+          for (int block = 0; block < frame.blocksPerMcu[comp]; block++) {
+            int diff = reader.decodeDc(frame.dcTables[comp]);
+            if (diff == Integer.MIN_VALUE || !reader.skipAc(frame.acTables[comp], null)) {
+              return null;
+            }
+            preds[comp] += diff;
+          }
+        }
+      }
+    }
+    if (reader.consumedPadding()) {
+      return null;
+    }
+    return new JpegIndex(
+        jpegData.remaining(),
+        frame.scanOffset,
+        checksum(data, frame.scanOffset),
+        frame.width,
+        frame.height,
+        frame.mcuHeight,
+        interval,
+        byteOffsets,
+        bitOffsets,
+        bitIndices,
+        predictors,
+        reader.bitIndex);
+  }
+
+  /** Store the index, e.g. in a sidecar file. */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(dataLength);
+    out.writeInt(scanOffset);
+    out.writeLong(checksum);
+    out.writeInt(width);
+    out.writeInt(height);
+    out.writeInt(mcuHeight);
+    out.writeInt(interval);
+    out.writeLong(totalBits);
+    out.writeInt(byteOffsets.length);
+    out.writeInt(byteOffsets.length > 0 ? predictors[0].length : 0);
+    for (int i = 0; i < byteOffsets.length; i++) {
+      out.writeInt(byteOffsets[i]);
+      out.writeByte(bitOffsets[i]);
+      out.writeLong(bitIndices[i]);
+      for (int pred : predictors[i]) {
+        out.writeInt(pred);
+      }
+    }
+  }
+
+  /**
+   * Load an index stored with {@link #write(DataOutput)}.
+   *
+   * @throws IOException if reading fails or the data is not an index
+   */
+  public static JpegIndex read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a JPEG index");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported JPEG index version: " + version);
+    }
+    long dataLength = in.readLong();
+    int scanOffset = in.readInt();
+    long checksum = in.readLong();
+    int width = in.readInt();
+    int height = in.readInt();
+    int mcuHeight = in.readInt();
+    int interval = in.readInt();
+    long totalBits = in.readLong();
+    int numCheckpoints = in.readInt();
+    int numComponents = in.readInt();
+    if (interval <= 0
+        || scanOffset <= 0
+        || scanOffset > dataLength
+        || mcuHeight <= 0
+        || numCheckpoints < 0
+        || numComponents < 0
+        || numComponents > 4) {
+      throw new IOException("Corrupt JPEG index");
+    }
+    int[] byteOffsets = new int[numCheckpoints];
+    int[] bitOffsets = new int[numCheckpoints];
+    long[] bitIndices = new long[numCheckpoints];
+    int[][] predictors = new int[numCheckpoints][numComponents];
+    for (int i = 0; i < numCheckpoints; i++) {
+      byteOffsets[i] = in.readInt();
+      bitOffsets[i] = in.readUnsignedByte();
+      bitIndices[i] = in.readLong();
+      for (int comp = 0; comp < numComponents; comp++) {
+        predictors[i][comp] = in.readInt();
+      }
+    }
+    return new JpegIndex(
+        dataLength,
+        scanOffset,
+        checksum,
+        width,
+        height,
+        mcuHeight,
+        interval,
+        byteOffsets,
+        bitOffsets,
+        bitIndices,
+        predictors,
+        totalBits);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Height of the MCU rows in pixels. */
+  public int getMcuHeight() {
+    return mcuHeight;
+  }
+
+  /** Number of MCU rows between checkpoints. */
+  public int getInterval() {
+    return interval;
+  }
+
+  public int getNumCheckpoints() {
+    return byteOffsets.length;
+  }
+
+  /**
+   * Whether the index was built for the JPEG in the buffer.
+   *
+   * <p>Besides the length, a checksum of the headers and of the start and the end of the
+   * entropy-coded data is compared. That catches re-encoded or edited images of the same length,
+   * but not changes in the middle of the entropy-coded data.
+   */
+  public boolean matches(ByteBuffer jpegData) {
+    return jpegData.remaining() == dataLength && checksum(jpegData.slice(), scanOffset) == checksum;
+  }
+
+  /** CRC32 of the headers up to the start of the scan and the first and last bytes of the scan. */
+  private static long checksum(ByteBuffer data, int scanOffset) {
+    CRC32 crc = new CRC32();
+    int limit = data.limit();
+    int headEnd = (int) Math.min((long) scanOffset + CHECKSUM_SCAN_BYTES, limit);
+    ByteBuffer part = data.duplicate();
+    ((Buffer) part).position(0);
+    ((Buffer) part).limit(headEnd);
+    crc.update(part);
+    part = data.duplicate();
+    ((Buffer) part).position(Math.max(headEnd, limit - CHECKSUM_SCAN_BYTES));
+    ((Buffer) part).limit(limit);
+    crc.update(part);
+    return crc.getValue();
+  }
+
+  /**
+   * Build a standalone JPEG for the MCU rows between two checkpoints.
+   *
+   * @param jpegData JPEG data the index was built for
+   * @param firstCheckpoint checkpoint to start at
+   * @param endCheckpoint checkpoint to end before, the JPEG extends to the bottom of the image if
+   *     this is the number of checkpoints
+   * @return the JPEG data, or {@code null} if the data is corrupt
+   */
+  ByteBuffer extractRows(ByteBuffer jpegData, int firstCheckpoint, int endCheckpoint) {
+    if (firstCheckpoint < 0
+        || endCheckpoint <= firstCheckpoint
+        || endCheckpoint > byteOffsets.length) {
+      throw new IllegalArgumentException(
+          String.format("Invalid checkpoint range %d to %d", firstCheckpoint, endCheckpoint));
+    }
+    ByteBuffer data = jpegData.slice();
+    Frame frame = Frame.parse(data);
+    if (frame == null
+        || frame.width != width
+        || frame.height != height
+        || frame.mcuHeight != mcuHeight) {
+      throw new IllegalArgumentException("Index does not match the JPEG data");
+    }
+    ByteBuffer band = extractRows(data, frame, firstCheckpoint, endCheckpoint, false);
+    if (band == null) {
+      // The DC table of the image lacks a code for one of the absolute values
+      band = extractRows(data, frame, firstCheckpoint, endCheckpoint, true);
+    }
+    return band;
+  }
+
+  /**
+   * Build a standalone JPEG, either by re-encoding the DC coefficients of the first MCU and copying
+   * the remaining bits, or by re-encoding the DC coefficients of all MCUs with a DC table that has
+   * codes for all values.
+   */
+  private ByteBuffer extractRows(
+      ByteBuffer data, Frame frame, int firstCheckpoint, int endCheckpoint, boolean fullDcTables) {
+    int firstRow = firstCheckpoint * interval;
+    int endRow = Math.min(endCheckpoint * interval, frame.mcuRows);
+    long endBit = endCheckpoint < byteOffsets.length ? bitIndices[endCheckpoint] : totalBits;
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] header = new byte[frame.scanOffset];
+    data.duplicate().get(header);
+    int bandHeight = Math.min(endRow * frame.mcuHeight, height) - firstRow * frame.mcuHeight;
+    header[frame.heightOffset] = (byte) (bandHeight >> 8);
+    header[frame.heightOffset + 1] = (byte) bandHeight;
+    Huffman[] dcTables = frame.dcTables;
+    if (fullDcTables) {
+      // Redefine the DC tables right before the scan, the later definition takes precedence
+      out.write(header, 0, frame.sosOffset);
+      boolean[] written = new boolean[4];
+      for (int id : frame.dcTableIds) {
+        if (written[id]) {
+          continue;
+        }
+        written[id] = true;
+        out.write(0xFF);
+        out.write(0xC4);
+        out.write(0);
+        out.write(2 + 17 + FULL_DC_SYMBOLS.length);
+        out.write(id);
+        for (int l = 1; l <= 16; l++) {
+          out.write(FULL_DC_COUNTS[l]);
+        }
+        for (int symbol : FULL_DC_SYMBOLS) {
+          out.write(symbol);
+        }
+      }
+      out.write(header, frame.sosOffset, header.length - frame.sosOffset);
+      dcTables = new Huffman[frame.numComponents];
+      Arrays.fill(dcTables, new Huffman(FULL_DC_COUNTS, FULL_DC_SYMBOLS));
+    } else {
+      out.write(header, 0, header.length);
+    }
+
+    BitReader reader =
+        new BitReader(
+            data,
+            byteOffsets[firstCheckpoint],
+            bitOffsets[firstCheckpoint],
+            bitIndices[firstCheckpoint]);
+    BitWriter writer = new BitWriter(out);
+    // The decoder starts with predictors of 0, so the first DC of every component is made absolute
+    int[] preds = predictors[firstCheckpoint];
+    int numMcus = fullDcTables ? (endRow - firstRow) * frame.mcusPerRow : 1;
+    for (int mcu = 0; mcu < numMcus; mcu++) {
+      for (int comp = 0; comp < frame.numComponents; comp++) {
+        for (int block = 0; block < frame.blocksPerMcu[comp]; block++) {
+          int diff = reader.decodeDc(frame.dcTables[comp]);
+          if (diff == Integer.MIN_VALUE) {
+            return null;
+          }
+          int value = mcu == 0 && block == 0 ? preds[comp] + diff : diff;
+          int category = 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+          Huffman dcTable = dcTables[comp];
+          if (category > 15 || dcTable.lengths[category] == 0) {
+            return null;
+          }
+          writer.write(dcTable.codes[category], dcTable.lengths[category]);
+          if (category > 0) {
+            writer.write(value < 0 ? value + (1 << category) - 1 : value, category);
+          }
+          if (!reader.skipAc(frame.acTables[comp], writer)) {
+            return null;
+          }
+        }
+      }
+    }
+    for (long remaining = endBit - reader.bitIndex; remaining > 0; ) {
+      int n = (int) Math.min(16, remaining);
+      writer.write(reader.readBits(n), n);
+      remaining -= n;
+    }
+    writer.flush();
+    out.write(0xFF);
+    out.write(0xD9);
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  /** The parts of the JPEG headers needed to walk the entropy-coded data. */
+  private static class Frame {
+    int heightOffset;
+    int sosOffset;
+    int scanOffset;
+    int width;
+    int height;
+    int numComponents;
+    int mcuHeight;
+    int mcusPerRow;
+    int mcuRows;
+    // Indexed by the position of the component in the scan
+    int[] blocksPerMcu;
+    int[] dcTableIds;
+    Huffman[] dcTables;
+    Huffman[] acTables;
+
+    static Frame parse(ByteBuffer data) {
+      int limit = data.limit();
+      if (limit < 4 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != 0xD8) {
+        return null;
+      }
+      Frame frame = new Frame();
+      Huffman[] dcDefs = new Huffman[4];
+      Huffman[] acDefs = new Huffman[4];
+      int[] compIds = null;
+      int[] hFactors = null;
+      int[] vFactors = null;
+      int pos = 2;
+      while (true) {
+        if (pos + 4 > limit || (data.get(pos) & 0xFF) != 0xFF) {
+          return null;
+        }
+        int marker = data.get(pos + 1) & 0xFF;
+        if (marker == 0xFF) {
+          pos++;
+          continue;
+        }
+        int length = getShort(data, pos + 2);
+        int end = pos + 2 + length;
+        if (length < 2 || end > limit) {
+          return null;
+        }
+        if (marker >= 0xC0
+            && marker <= 0xCF
+            && marker != 0xC4
+            && marker != 0xC8
+            && marker != 0xCC) {
+          if ((marker != 0xC0 && marker != 0xC1) || length < 8 || (data.get(pos + 4) & 0xFF) != 8) {
+            return null;
+          }
+          frame.heightOffset = pos + 5;
+          frame.height = getShort(data, pos + 5);
+          frame.width = getShort(data, pos + 7);
+          int n = data.get(pos + 9) & 0xFF;
+          if (n == 0 || length < 8 + n * 3) {
+            return null;
+          }
+          compIds = new int[n];
+          hFactors = new int[n];
+          vFactors = new int[n];
+          for (int i = 0; i < n; i++) {
+            compIds[i] = data.get(pos + 10 + i * 3) & 0xFF;
+            int factors = data.get(pos + 11 + i * 3) & 0xFF;
+            hFactors[i] = Math.max(1, factors >> 4);
+            vFactors[i] = Math.max(1, factors & 0x0F);
+          }
+        } else if (marker == 0xC4) {
+          int p = pos + 4;
+          while (p < end) {
+            int tableClass = (data.get(p) & 0xFF) >> 4;
+            int tableId = data.get(p) & 0x0F;
+            if (tableId > 3 || p + 17 > end) {
+              return null;
+            }
+            int[] counts = new int[17];
+            int total = 0;
+            for (int l = 1; l <= 16; l++) {
+              counts[l] = data.get(p + l) & 0xFF;
+              total += counts[l];
+            }
+            if (total > 256 || p + 17 + total > end) {
+              return null;
+            }
+            int[] symbols = new int[total];
+            for (int i = 0; i < total; i++) {
+              symbols[i] = data.get(p + 17 + i) & 0xFF;
+            }
+            Huffman table = new Huffman(counts, symbols);
+            if (tableClass == 0) {
+              dcDefs[tableId] = table;
+            } else {
+              acDefs[tableId] = table;
+            }
+            p += 17 + total;
+          }
+        } else if (marker == 0xDD) {
+          if (length >= 4 && getShort(data, pos + 4) != 0) {
+            return null;
+          }
+        } else if (marker == 0xDA) {
+          if (compIds == null) {
+            return null;
+          }
+          int n = data.get(pos + 4) & 0xFF;
+          // Only single scans with all components, i.e. no progressive or non-interleaved images
+          if (n != compIds.length || length < 6 + n * 2) {
+            return null;
+          }
+          frame.numComponents = n;
+          frame.sosOffset = pos;
+          frame.blocksPerMcu = new int[n];
+          frame.dcTableIds = new int[n];
+          frame.dcTables = new Huffman[n];
+          frame.acTables = new Huffman[n];
+          int maxH = 1;
+          int maxV = 1;
+          for (int i = 0; i < hFactors.length; i++) {
+            maxH = Math.max(maxH, hFactors[i]);
+            maxV = Math.max(maxV, vFactors[i]);
+          }
+          for (int i = 0; i < n; i++) {
+            int compId = data.get(pos + 5 + i * 2) & 0xFF;
+            int tables = data.get(pos + 6 + i * 2) & 0xFF;
+            int frameIdx = -1;
+            for (int k = 0; k < compIds.length; k++) {
+              if (compIds[k] == compId) {
+                frameIdx = k;
+              }
+            }
+            if (frameIdx < 0 || (tables >> 4) > 3 || (tables & 0x0F) > 3) {
+              return null;
+            }
+            frame.dcTables[i] = dcDefs[tables >> 4];
+            frame.dcTableIds[i] = tables >> 4;
+            frame.acTables[i] = acDefs[tables & 0x0F];
+            if (frame.dcTables[i] == null || frame.acTables[i] == null) {
+              return null;
+            }
+            frame.blocksPerMcu[i] = n == 1 ? 1 : hFactors[frameIdx] * vFactors[frameIdx];
+          }
+          int sel = pos + 5 + n * 2;
+          if ((data.get(sel) & 0xFF) != 0
+              || (data.get(sel + 1) & 0xFF) != 63
+              || (data.get(sel + 2) & 0xFF) != 0) {
+            return null;
+          }
+          // Scans of a single component consist of single blocks, regardless of sampling factors
+          int mcuWidth = n == 1 ? 8 : maxH * 8;
+          frame.mcuHeight = n == 1 ? 8 : maxV * 8;
+          frame.mcusPerRow = (frame.width + mcuWidth - 1) / mcuWidth;
+          frame.mcuRows = (frame.height + frame.mcuHeight - 1) / frame.mcuHeight;
+          frame.scanOffset = end;
+          return frame.width > 0 && frame.height > 0 ? frame : null;
+        } else if (marker == 0xD9) {
+          return null;
+        }
+        pos = end;
+      }
+    }
+
+    private static int getShort(ByteBuffer data, int pos) {
+      return ((data.get(pos) & 0xFF) << 8) | (data.get(pos + 1) & 0xFF);
+    }
+  }
+
+  /** Huffman table with a lookup table for short codes and the codes for re-encoding. */
+  private static class Huffman {
+    private static final int LOOKAHEAD = 9;
+
+    final int[] lookup = new int[1 << LOOKAHEAD];
+    final int[] minCode = new int[17];
+    final int[] maxCode = new int[17];
+    final int[] valPtr = new int[17];
+    final int[] symbols;
+    final int[] codes = new int[256];
+    final int[] lengths = new int[256];
+
+    Huffman(int[] counts, int[] symbols) {
+      this.symbols = symbols;
+      int code = 0;
+      int k = 0;
+      for (int l = 1; l <= 16; l++) {
+        valPtr[l] = k;
+        minCode[l] = code;
+        for (int i = 0; i < counts[l]; i++) {
+          int symbol = symbols[k];
+          codes[symbol] = code;
+          lengths[symbol] = l;
+          if (l <= LOOKAHEAD) {
+            int shift = LOOKAHEAD - l;
+            for (int suffix = 0; suffix < (1 << shift); suffix++) {
+              lookup[(code << shift) | suffix] = (l << 8) | symbol;
+            }
+          }
+          code++;
+          k++;
+        }
+        maxCode[l] = counts[l] > 0 ? code - 1 : -1;
+        code <<= 1;
+      }
+    }
+  }
+
+  /** Reads bits from entropy-coded data, removing stuffed zero bytes. */
+  private static class BitReader {
+    private final ByteBuffer data;
+    private final int[] recentOffsets = new int[16];
+    private int pos;
+    private long acc;
+    private int accBits;
+    private int paddingBits;
+    private int loaded;
+    long bitIndex;
+    // Code of the last decoded symbol, for copying it verbatim
+    int lastCode;
+    int lastLength;
+
+    BitReader(ByteBuffer data, int byteOffset, int bitOffset, long bitIndex) {
+      this.data = data;
+      this.pos = byteOffset;
+      fill(bitOffset + 1);
+      accBits -= bitOffset;
+      this.bitIndex = bitIndex;
+    }
+
+    private void fill(int bits) {
+      while (accBits < bits && accBits <= 56) {
+        int b = 0;
+        int offset = -1;
+        if (pos < data.limit()) {
+          int value = data.get(pos) & 0xFF;
+          if (value != 0xFF) {
+            b = value;
+            offset = pos++;
+          } else if (pos + 1 < data.limit() && data.get(pos + 1) == 0) {
+            b = 0xFF;
+            offset = pos;
+            pos += 2;
+          }
+        }
+        if (offset < 0) {
+          // Reached a marker, libjpeg pads the data with zeros as well
+          paddingBits += 8;
+        }
+        acc = (acc << 8) | b;
+        accBits += 8;
+        recentOffsets[loaded++ & 15] = offset;
+      }
+    }
+
+    /** Byte offset and bit offset in that byte of the next bit, null if beyond the data. */
+    int[] getPosition() {
+      fill(1);
+      int bytes = (accBits + 7) / 8;
+      int offset = recentOffsets[(loaded - bytes) & 15];
+      if (offset < 0) {
+        return null;
+      }
+      return new int[] {offset, bytes * 8 - accBits};
+    }
+
+    /** Whether more bits were read than the data contains. */
+    boolean consumedPadding() {
+      return paddingBits > accBits;
+    }
+
+    int peek(int n) {
+      fill(n);
+      return (int) (acc >>> (accBits - n)) & ((1 << n) - 1);
+    }
+
+    void skip(int n) {
+      accBits -= n;
+      bitIndex += n;
+    }
+
+    int readBits(int n) {
+      int value = peek(n);
+      skip(n);
+      return value;
+    }
+
+    int decode(Huffman table) {
+      int entry = table.lookup[peek(Huffman.LOOKAHEAD)];
+      if (entry != 0) {
+        lastLength = entry >> 8;
+        lastCode = peek(lastLength);
+        skip(lastLength);
+        return entry & 0xFF;
+      }
+      for (int l = Huffman.LOOKAHEAD + 1; l <= 16; l++) {
+        int code = peek(l);
+        if (code <= table.maxCode[l]) {
+          lastLength = l;
+          lastCode = code;
+          skip(l);
+          return table.symbols[table.valPtr[l] + code - table.minCode[l]];
+        }
+      }
+      return -1;
+    }
+
+    /** Decode a DC difference, {@link Integer#MIN_VALUE} for invalid data. */
+    int decodeDc(Huffman table) {
+      int category = decode(table);
+      if (category < 0 || category > 15) {
+        return Integer.MIN_VALUE;
+      }
+      if (category == 0) {
+        return 0;
+      }
+      int bits = readBits(category);
+      return bits < (1 << (category - 1)) ? bits - (1 << category) + 1 : bits;
+    }
+
+    /** Skip the AC coefficients of a block, copying their codes if a writer is given. */
+    boolean skipAc(Huffman table, BitWriter copy) {
+      for (int k = 1; k < 64; k++) {
+        int symbol = decode(table);
+        if (symbol < 0) {
+          return false;
+        }
+        if (copy != null) {
+          copy.write(lastCode, lastLength);
+        }
+        int run = symbol >> 4;
+        int size = symbol & 0x0F;
+        if (size == 0) {
+          if (run != 15) {
+            break;
+          }
+          k += 15;
+        } else {
+          k += run;
+          int bits = readBits(size);
+          if (copy != null) {
+            copy.write(bits, size);
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Writes bits as entropy-coded data, stuffing zero bytes after 0xFF. */
+  private static class BitWriter {
+    private final ByteArrayOutputStream out;
+    private long acc;
+    private int accBits;
+
+    BitWriter(ByteArrayOutputStream out) {
+      this.out = out;
+    }
+
+    void write(int value, int n) {
+      acc = (acc << n) | (value & ((1L << n) - 1));
+      accBits += n;
+      while (accBits >= 8) {
+        int b = (int) (acc >>> (accBits - 8)) & 0xFF;
+        out.write(b);
+        if (b == 0xFF) {
+          out.write(0);
+        }
+        accBits -= 8;
+      }
+      acc &= (1L << accBits) - 1;
+    }
+
+    /** Pad the last byte with one bits. */
+    void flush() {
+      if (accBits > 0) {
+        int n = 8 - accBits;
+        write((1 << n) - 1, n);
+      }
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package de.digitalcollections.turbojpeg;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Positions of the restart markers in the entropy-coded data of a sequential JPEG.
+ *
+ * <p>The decoder state is reset at every restart marker, so a range of restart intervals can be
+ * decoded on its own. {@link #extractBand(int, int)} builds a standalone JPEG for a range of MCU
+ * rows from the original headers (with an adjusted frame height) and the intervals covering the
+ * rows, renumbering the restart markers so libjpeg does not try to resynchronize.
+ */
+class RestartIndex {
+
+  private static final int M_SOF0 = 0xC0;
+  private static final int M_SOF1 = 0xC1;
+  private static final int M_SOI = 0xD8;
+  private static final int M_EOI = 0xD9;
+  private static final int M_SOS = 0xDA;
+  private static final int M_DRI = 0xDD;
+
+  private final ByteBuffer data;
+  private final int heightOffset;
+  private final int scanOffset;
+  private final int width;
+  private final int height;
+  private final int mcuHeight;
+  private final int mcusPerRow;
+  private final int restartInterval;
+  private final int[] segmentStarts;
+  private final int[] segmentEnds;
+
+  private RestartIndex(
+      ByteBuffer data,
+      int heightOffset,
+      int scanOffset,
+      int width,
+      int height,
+      int mcuHeight,
+      int mcusPerRow,
+      int restartInterval,
+      int[] segmentStarts,
+      int[] segmentEnds) {
+    this.data = data;
+    this.heightOffset = heightOffset;
+    this.scanOffset = scanOffset;
+    this.width = width;
+    this.height = height;
+    this.mcuHeight = mcuHeight;
+    this.mcusPerRow = mcusPerRow;
+    this.restartInterval = restartInterval;
+    this.segmentStarts = segmentStarts;
+    this.segmentEnds = segmentEnds;
+  }
+
+  /**
+   * Index the restart markers of a JPEG.
+   *
+   * @param jpegData JPEG data from the buffer's position up to its limit
+   * @return the index, or {@code null} if the image has no restart markers or cannot be split
+   *     (progressive or multi-scan images, unexpected number of restart intervals)
+   */
+  static RestartIndex build(ByteBuffer jpegData) {
+    ByteBuffer data = jpegData.slice();
+    int limit = data.limit();
+    if (limit < 4 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != M_SOI) {
+      return null;
+    }
+    int pos = 2;
+    int heightOffset = -1;
+    int width = 0;
+    int height = 0;
+    int numComponents = 0;
+    int maxH = 1;
+    int maxV = 1;
+    int restartInterval = 0;
+    while (true) {
+      if (pos + 4 > limit || (data.get(pos) & 0xFF) != 0xFF) {
+        return null;
+      }
+      int marker = data.get(pos + 1) & 0xFF;
+      if (marker == 0xFF) {
+        pos++;
+        continue;
+      }
+      int length = ((data.get(pos + 2) & 0xFF) << 8) | (data.get(pos + 3) & 0xFF);
+      int segmentEnd = pos + 2 + length;
+      if (length < 2 || segmentEnd > limit) {
+        return null;
+      }
+      if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+        // Only baseline and extended sequential Huffman coding have a single, splittable scan
+        if ((marker != M_SOF0 && marker != M_SOF1) || length < 8) {
+          return null;
+        }
+        heightOffset = pos + 5;
+        height = ((data.get(pos + 5) & 0xFF) << 8) | (data.get(pos + 6) & 0xFF);
+        width = ((data.get(pos + 7) & 0xFF) << 8) | (data.get(pos + 8) & 0xFF);
+        numComponents = data.get(pos + 9) & 0xFF;
+        if (length < 8 + numComponents * 3) {
+          return null;
+        }
+        for (int i = 0; i < numComponents; i++) {
+          int factors = data.get(pos + 11 + i * 3) & 0xFF;
+          maxH = Math.max(maxH, factors >> 4);
+          maxV = Math.max(maxV, factors & 0x0F);
+        }
+      } else if (marker == M_DRI && length >= 4) {
+        restartInterval = ((data.get(pos + 4) & 0xFF) << 8) | (data.get(pos + 5) & 0xFF);
+      } else if (marker == M_SOS) {
+        // Non-interleaved scans code the components one after the other
+        if (length < 3 || (data.get(pos + 4) & 0xFF) != numComponents) {
+          return null;
+        }
+        pos = segmentEnd;
+        break;
+      } else if (marker == M_EOI) {
+        return null;
+      }
+      pos = segmentEnd;
+    }
+    if (heightOffset < 0 || restartInterval == 0 || width == 0 || height == 0) {
+      return null;
+    }
+
+    // Scans of a single component consist of single blocks, regardless of the sampling factors
+    int mcuWidth = numComponents == 1 ? 8 : maxH * 8;
+    int mcuHeight = numComponents == 1 ? 8 : maxV * 8;
+    int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+    long totalMcus = (long) mcusPerRow * ((height + mcuHeight - 1) / mcuHeight);
+    long numSegments = (totalMcus + restartInterval - 1) / restartInterval;
+    if (numSegments > Integer.MAX_VALUE / 2) {
+      return null;
+    }
+    int[] starts = new int[(int) numSegments];
+    int[] ends = new int[(int) numSegments];
+    int segment = 0;
+    int scanOffset = pos;
+    starts[0] = pos;
+    while (pos + 1 < limit) {
+      if ((data.get(pos) & 0xFF) != 0xFF) {
+        pos++;
+        continue;
+      }
+      int marker = data.get(pos + 1) & 0xFF;
+      if (marker == 0x00 || marker == 0xFF) {
+        // Stuffed zero byte or fill byte
+        pos += marker == 0x00 ? 2 : 1;
+        continue;
+      }
+      if (marker >= 0xD0 && marker <= 0xD7) {
+        ends[segment] = pos;
+        segment++;
+        if (segment >= numSegments) {
+          return null;
+        }
+        starts[segment] = pos + 2;
+        pos += 2;
+        continue;
+      }
+      if (marker != M_EOI) {
+        // Another scan or a DNL marker follows
+        return null;
+      }
+      break;
+    }
+    if (segment != numSegments - 1 || pos + 1 >= limit) {
+      return null;
+    }
+    ends[segment] = pos;
+    return new RestartIndex(
+        data,
+        heightOffset,
+        scanOffset,
+        width,
+        height,
+        mcuHeight,
+        mcusPerRow,
+        restartInterval,
+        starts,
+        ends);
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  int getMcuHeight() {
+    return mcuHeight;
+  }
+
+  /** Total number of MCU rows. */
+  int getMcuRows() {
+    return (height + mcuHeight - 1) / mcuHeight;
+  }
+
+  /** Number of MCU rows bands have to be aligned to, so they start at a restart marker. */
+  int getRowAlignment() {
+    return restartInterval / gcd(restartInterval, mcusPerRow);
+  }
+
+  /**
+   * Build a standalone JPEG for a range of MCU rows.
+   *
+   * @param firstRow first MCU row, must be a multiple of {@link #getRowAlignment()}
+   * @param numRows number of MCU rows, must be a multiple of {@link #getRowAlignment()} unless the
+   *     band extends to the bottom of the image
+   * @return the JPEG data of the band
+   */
+  ByteBuffer extractBand(int firstRow, int numRows) {
+    int lastRow = Math.min(firstRow + numRows, getMcuRows());
+    long firstMcu = (long) firstRow * mcusPerRow;
+    long endMcu = (long) lastRow * mcusPerRow;
+    if (firstRow < 0
+        || lastRow <= firstRow
+        || firstMcu % restartInterval != 0
+        || (lastRow != getMcuRows() && endMcu % restartInterval != 0)) {
+      throw new IllegalArgumentException(
+          String.format("MCU rows %d to %d are not aligned to restart markers", firstRow, lastRow));
+    }
+    int firstSegment = (int) (firstMcu / restartInterval);
+    int endSegment = (int) ((endMcu + restartInterval - 1) / restartInterval);
+    int entropyStart = segmentStarts[firstSegment];
+    int entropyEnd = segmentEnds[endSegment - 1];
+
+    byte[] band = new byte[scanOffset + (entropyEnd - entropyStart) + 2];
+    ByteBuffer header = data.duplicate();
+    header.get(band, 0, scanOffset);
+    int bandHeight = Math.min(lastRow * mcuHeight, height) - firstRow * mcuHeight;
+    band[heightOffset] = (byte) (bandHeight >> 8);
+    band[heightOffset + 1] = (byte) bandHeight;
+    ByteBuffer entropy = data.duplicate();
+    ((Buffer) entropy).position(entropyStart);
+    entropy.get(band, scanOffset, entropyEnd - entropyStart);
+    for (int segment = firstSegment; segment < endSegment - 1; segment++) {
+      int markerPos = scanOffset + (segmentEnds[segment] - entropyStart) + 1;
+      band[markerPos] = (byte) (0xD0 + ((segment - firstSegment) % 8));
+    }
+    band[band.length - 2] = (byte) 0xFF;
+    band[band.length - 1] = (byte) M_EOI;
+    return ByteBuffer.wrap(band);
+  }
+
+  private static int gcd(int a, int b) {
+    return b == 0 ? a : gcd(b, a % b);
+  }
+}
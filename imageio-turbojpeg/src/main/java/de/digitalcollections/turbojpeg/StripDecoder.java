@@ -0,0 +1,148 @@
+package de.digitalcollections.turbojpeg;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes a JPEG image in horizontal strips from top to bottom, see {@link
+ * TurboJpeg#decodeStrips(ByteBuffer, Info, Dimension, int, int)}.
+ *
+ * <p>Every strip is decoded on its own, resuming the entropy decoding where the previous strips
+ * left off: sequential JPEGs with restart markers are split at the markers (see {@link
+ * TurboJpeg#decodeParallel(ByteBuffer, Info, Dimension, BufferedImage, int,
+ * java.util.concurrent.ForkJoinPool)}), for those without a {@link JpegIndex} with a checkpoint at
+ * every MCU row is built on the first call. Passing the same destination to every call of {@link
+ * #next(BufferedImage)} keeps the memory usage at a single strip, regardless of the image size.
+ * Strip heights that are a multiple of the (scaled) MCU height avoid decoding rows twice. With
+ * fancy upsampling of vertically subsampled chroma (4:2:0, 4:4:0), the first and last row of a
+ * strip may differ slightly from a decode of the whole image.
+ *
+ * <p>Other JPEGs (e.g. progressive or arithmetic coded ones) are decoded with a cropping region on
+ * libturbojpeg &gt;= 3.0, which skips the IDCT for the rows above the strip but still has to
+ * entropy decode them. Older versions and lossless JPEGs do not support partial decoding, there the
+ * whole image is decoded on the first call and handed out strip by strip.
+ */
+public class StripDecoder {
+
+  private final TurboJpeg lib;
+  private final ByteBuffer jpegData;
+  private final Info info;
+  private final Dimension size;
+  private final int stripHeight;
+  private final int flags;
+  private int y;
+  private BufferedImage fullImage;
+  private boolean indexed;
+  private RestartIndex restartIndex;
+  private JpegIndex jpegIndex;
+
+  StripDecoder(
+      TurboJpeg lib, ByteBuffer jpegData, Info info, Dimension size, int stripHeight, int flags) {
+    if (stripHeight <= 0) {
+      throw new IllegalArgumentException("Strip height must be positive");
+    }
+    this.lib = lib;
+    this.jpegData = jpegData;
+    this.info = info;
+    this.size = size;
+    this.stripHeight = stripHeight;
+    this.flags = flags;
+  }
+
+  /** Dimensions of the decoded image. */
+  public Dimension getSize() {
+    return new Dimension(size);
+  }
+
+  public int getStripHeight() {
+    return stripHeight;
+  }
+
+  /** Row of the decoded image the next strip starts at. */
+  public int getY() {
+    return y;
+  }
+
+  public boolean hasNext() {
+    return y < size.height;
+  }
+
+  /**
+   * Decode the next strip into a new image.
+   *
+   * @return the strip, the last one may be lower than the strip height
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage next() throws TurboJpegException {
+    return next(null);
+  }
+
+  /**
+   * Decode the next strip into an existing image.
+   *
+   * @param destination image of at least the image width and the strip height to decode into, a new
+   *     image is created if null
+   * @return the strip, i.e. the destination if the strip fills it, otherwise a view on its upper
+   *     part
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage next(BufferedImage destination) throws TurboJpegException {
+    if (!hasNext()) {
+      throw new NoSuchElementException("All strips have been decoded");
+    }
+    Rectangle region = new Rectangle(0, y, size.width, Math.min(stripHeight, size.height - y));
+    if (!indexed) {
+      buildIndex();
+    }
+    BufferedImage strip;
+    if (restartIndex != null) {
+      strip = lib.decode(restartIndex, info, size, region, destination, flags);
+    } else if (jpegIndex != null) {
+      strip =
+          lib.decode(jpegData.duplicate(), info, jpegIndex, size, region, destination, null, flags);
+    } else if (lib.isPartialDecodeSupported() && !info.isLossless()) {
+      strip = lib.decode(jpegData.duplicate(), info, size, region, destination, null, flags);
+    } else {
+      if (fullImage == null) {
+        fullImage = lib.decode(jpegData.duplicate(), info, size, null, null, flags);
+      }
+      strip = fullImage.getSubimage(region.x, region.y, region.width, region.height);
+      if (destination != null) {
+        destination.getRaster().setRect(0, 0, strip.getRaster());
+        strip = destination;
+      }
+    }
+    y += region.height;
+    if (!hasNext()) {
+      fullImage = null;
+      restartIndex = null;
+      jpegIndex = null;
+    }
+    if (strip.getWidth() != region.width || strip.getHeight() != region.height) {
+      strip = strip.getSubimage(0, 0, region.width, region.height);
+    }
+    return strip;
+  }
+
+  /** Index the entropy-coded data once, so every strip can be decoded from the rows above it. */
+  private void buildIndex() {
+    indexed = true;
+    if (info.getPrecision() != 8 || info.isLossless()) {
+      return;
+    }
+    RestartIndex restarts = RestartIndex.build(jpegData);
+    if (restarts != null) {
+      // Restart intervals spanning most of the image would not save anything
+      if (restarts.getMcuRows() > restarts.getRowAlignment()
+          && restarts.getWidth() == info.getWidth()
+          && restarts.getHeight() == info.getHeight()) {
+        restartIndex = restarts;
+      }
+      return;
+    }
+    jpegIndex = JpegIndex.build(jpegData, 1);
+  }
+}
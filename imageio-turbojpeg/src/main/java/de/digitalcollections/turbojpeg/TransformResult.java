@@ -0,0 +1,90 @@
+package de.digitalcollections.turbojpeg;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import jnr.ffi.Pointer;
+
+/**
+ * JPEGs produced by a single call to {@link TurboJpeg#transform(ByteBuffer, Info, List, int)}.
+ *
+ * <p>The JPEG data stays in the buffers allocated by libturbojpeg, the {@link ByteBuffer}s returned
+ * by {@link #get(int)} are direct views on them that can be written to a channel without copying.
+ * The buffers are invalid after the result has been closed, use {@link #copy(int)} to keep the data
+ * around.
+ */
+public class TransformResult implements AutoCloseable {
+
+  private final List<Pointer> pointers;
+  private final List<ByteBuffer> buffers;
+  private final Consumer<Pointer> free;
+  private boolean closed;
+
+  TransformResult(List<Pointer> pointers, List<ByteBuffer> buffers, Consumer<Pointer> free) {
+    this.pointers = pointers;
+    this.buffers = Collections.unmodifiableList(buffers);
+    this.free = free;
+  }
+
+  /** Number of transformed JPEGs, in the order of the requested regions. */
+  public int size() {
+    return buffers.size();
+  }
+
+  /**
+   * Get the data of a transformed JPEG.
+   *
+   * @param idx index of the region the JPEG was transformed from
+   * @return direct buffer with the JPEG data, only valid until the result is closed
+   */
+  public ByteBuffer get(int idx) {
+    checkOpen();
+    return buffers.get(idx).duplicate();
+  }
+
+  /**
+   * Copy the data of a transformed JPEG to the heap.
+   *
+   * @param idx index of the region the JPEG was transformed from
+   * @return heap buffer with the JPEG data, remains valid after the result is closed
+   */
+  public ByteBuffer copy(int idx) {
+    ByteBuffer src = get(idx);
+    ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+    copy.put(src);
+    ((Buffer) copy).rewind();
+    return copy;
+  }
+
+  /** Get the data of all transformed JPEGs, see {@link #get(int)}. */
+  public List<ByteBuffer> getAll() {
+    List<ByteBuffer> all = new ArrayList<>(buffers.size());
+    for (int i = 0; i < buffers.size(); i++) {
+      all.add(get(i));
+    }
+    return all;
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Transform result has already been closed");
+    }
+  }
+
+  /** Free the native buffers holding the JPEG data. */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Pointer ptr : pointers) {
+      if (ptr != null && ptr.address() != 0) {
+        free.accept(ptr);
+      }
+    }
+  }
+}
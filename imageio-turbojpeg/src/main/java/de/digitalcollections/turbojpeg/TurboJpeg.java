@@ -1,29 +1,55 @@
 package de.digitalcollections.turbojpeg;
 
+import com.kenai.jffi.MemoryIO;
 import de.digitalcollections.turbojpeg.lib.enums.*;
 import de.digitalcollections.turbojpeg.lib.libturbojpeg;
+import de.digitalcollections.turbojpeg.lib.libturbojpeg3;
+import de.digitalcollections.turbojpeg.lib.structs.tjregion;
 import de.digitalcollections.turbojpeg.lib.structs.tjscalingfactor;
 import de.digitalcollections.turbojpeg.lib.structs.tjtransform;
 import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
-import java.awt.image.DataBufferShort;
 import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import jnr.ffi.LibraryLoader;
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
 import jnr.ffi.Pointer;
 import jnr.ffi.Runtime;
 import jnr.ffi.Struct;
+import jnr.ffi.TypeAlias;
 import jnr.ffi.byref.IntByReference;
 import jnr.ffi.byref.NativeLongByReference;
+import jnr.ffi.byref.NumberByReference;
 import jnr.ffi.byref.PointerByReference;
+import jnr.ffi.mapper.FunctionMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,14 +57,159 @@ import org.slf4j.LoggerFactory;
 public class TurboJpeg {
 
   private static final int INITIAL_PTR_VALUE = 31337;
+  private static final int DECOMPRESS_FLAGS =
+      TJFLAG.TJFLAG_FASTDCT | TJFLAG.TJFLAG_FASTUPSAMPLE | TJFLAG.TJFLAG_STOPONWARNING;
+  private static final int COMPRESS_FLAGS =
+      TJFLAG.TJFLAG_FASTDCT | TJFLAG.TJFLAG_ACCURATEDCT | TJFLAG.TJFLAG_PROGRESSIVE;
+
+  /** Number of bands per thread {@link #decodeParallel} splits images into, for load balancing. */
+  static final int BANDS_PER_THREAD = 4;
+
   private static final Logger LOG = LoggerFactory.getLogger(TurboJpeg.class);
 
   public libturbojpeg lib;
+
+  /**
+   * Bindings for the TurboJPEG 3 API, null if the installed libturbojpeg is older than 3.0. If
+   * available, it is used for all operations instead of the legacy API.
+   */
+  public libturbojpeg3 lib3;
+
   public Runtime runtime;
+  private final HandlePool handles;
+  private final tjscalingfactor[] scalingFactors;
 
   public TurboJpeg() {
+    this(HandlePool.DEFAULT_MAX_IDLE);
+  }
+
+  /**
+   * Load the library.
+   *
+   * @param maxIdleHandles Maximum number of idle native handles to retain per kind (compress,
+   *     decompress, transform) for reuse, 0 disables pooling
+   */
+  public TurboJpeg(int maxIdleHandles) {
     lib = LibraryLoader.create(libturbojpeg.class).load("turbojpeg");
     runtime = Runtime.getRuntime(lib);
+    lib3 = loadTurboJpeg3();
+    handles =
+        new HandlePool(
+            this::initHandle,
+            this::destroyHandle,
+            maxIdleHandles,
+            HandlePool.DEFAULT_IDLE_TIMEOUT_MS);
+    scalingFactors = loadScalingFactors();
+  }
+
+  private libturbojpeg3 loadTurboJpeg3() {
+    libturbojpeg3 lib3 =
+        LibraryLoader.create(libturbojpeg3.class)
+            .mapper(
+                (FunctionMapper)
+                    (name, context) ->
+                        name.equals("tj3SetCroppingRegionByReference")
+                            ? "tj3SetCroppingRegion"
+                            : name)
+            .load("turbojpeg");
+    try {
+      Pointer handle = lib3.tj3Init(TJINIT.TJINIT_DECOMPRESS);
+      if (handle == null || handle.address() == 0) {
+        return null;
+      }
+      lib3.tj3Destroy(handle);
+      return lib3;
+    } catch (UnsatisfiedLinkError e) {
+      LOG.debug("libturbojpeg < 3.0, TurboJPEG 3 API is not available");
+      return null;
+    }
+  }
+
+  /**
+   * Check if regions of an image can be decoded without transforming the image first, requires
+   * libturbojpeg &gt;= 3.0.
+   */
+  public boolean isPartialDecodeSupported() {
+    return lib3 != null;
+  }
+
+  /**
+   * Check if the TurboJPEG 3 API is used, which is required for 12 and 16 bit and lossless JPEGs.
+   */
+  public boolean isTurboJpeg3() {
+    return lib3 != null;
+  }
+
+  private Pointer initHandle(HandlePool.Kind kind) {
+    if (lib3 != null) {
+      switch (kind) {
+        case COMPRESS:
+          return lib3.tj3Init(TJINIT.TJINIT_COMPRESS);
+        case DECOMPRESS:
+          return lib3.tj3Init(TJINIT.TJINIT_DECOMPRESS);
+        case TRANSFORM:
+          return lib3.tj3Init(TJINIT.TJINIT_TRANSFORM);
+        default:
+          throw new IllegalArgumentException("Unknown handle kind: " + kind);
+      }
+    }
+    switch (kind) {
+      case COMPRESS:
+        return lib.tjInitCompress();
+      case DECOMPRESS:
+        return lib.tjInitDecompress();
+      case TRANSFORM:
+        return lib.tjInitTransform();
+      default:
+        throw new IllegalArgumentException("Unknown handle kind: " + kind);
+    }
+  }
+
+  private void destroyHandle(Pointer handle) {
+    if (lib3 != null) {
+      lib3.tj3Destroy(handle);
+    } else {
+      lib.tjDestroy(handle);
+    }
+  }
+
+  /**
+   * Get the message of the last error, with the TurboJPEG 3 API it is specific to the handle and
+   * thus safe to use concurrently.
+   */
+  private String getErrorStr(Pointer handle) {
+    return lib3 != null ? lib3.tj3GetErrorStr(handle) : lib.tjGetErrorStr();
+  }
+
+  private TJERR getErrorCode(Pointer handle) {
+    return TJERR.fromInt(lib3 != null ? lib3.tj3GetErrorCode(handle) : lib.tjGetErrorCode(handle));
+  }
+
+  private void free(Pointer buffer) {
+    if (lib3 != null) {
+      lib3.tj3Free(buffer);
+    } else {
+      lib.tjFree(buffer);
+    }
+  }
+
+  /** Pool of native handles used by this instance, can be used to tune its limits. */
+  public HandlePool getHandlePool() {
+    return handles;
+  }
+
+  private tjscalingfactor[] loadScalingFactors() {
+    IntByReference numRef = new IntByReference();
+    Pointer factorPtr = lib.tjGetScalingFactors(numRef);
+    final Integer numOfFactors = numRef.getValue();
+    tjscalingfactor[] factors = new tjscalingfactor[numOfFactors];
+    for (int i = 0; i < numOfFactors; i++) {
+      tjscalingfactor f = new tjscalingfactor(runtime);
+      factorPtr = factorPtr.slice(Struct.size(f));
+      f.useMemory(factorPtr);
+      factors[i] = f;
+    }
+    return factors;
   }
 
   /**
@@ -50,12 +221,37 @@ public class TurboJpeg {
    *     fails
    */
   public Info getInfo(byte[] jpegData) throws TurboJpegException {
+    return getInfo(ByteBuffer.wrap(jpegData));
+  }
+
+  /**
+   * Return information about the JPEG image in the input buffer
+   *
+   * <p>The JPEG data is read from the buffer's position up to its limit. Direct buffers are handed
+   * to the library as-is, without copying them.
+   *
+   * @param jpegData jpeg image data
+   * @return information about the jpeg image
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if decompressing header with library
+   *     fails
+   */
+  public Info getInfo(ByteBuffer jpegData) throws TurboJpegException {
     Pointer codec = null;
     try {
-      codec = lib.tjInitDecompress();
-
-      ByteBuffer infoBuf = ByteBuffer.allocate(4 * 4).order(runtime.byteOrder());
-      Pointer buf = Pointer.wrap(runtime, infoBuf);
+      codec = handles.acquire(HandlePool.Kind.DECOMPRESS);
+      if (lib3 != null) {
+        if (lib3.tj3DecompressHeader(codec, jpegData, jpegData.remaining()) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        return new Info(
+            lib3.tj3Get(codec, TJPARAM.TJPARAM_JPEGWIDTH),
+            lib3.tj3Get(codec, TJPARAM.TJPARAM_JPEGHEIGHT),
+            lib3.tj3Get(codec, TJPARAM.TJPARAM_SUBSAMP),
+            lib3.tj3Get(codec, TJPARAM.TJPARAM_COLORSPACE),
+            lib3.tj3Get(codec, TJPARAM.TJPARAM_PRECISION),
+            lib3.tj3Get(codec, TJPARAM.TJPARAM_LOSSLESS) == 1,
+            scalingFactors);
+      }
 
       IntByReference width = new IntByReference(INITIAL_PTR_VALUE);
       IntByReference height = new IntByReference(INITIAL_PTR_VALUE);
@@ -63,15 +259,9 @@ public class TurboJpeg {
       IntByReference jpegColorspace = new IntByReference(INITIAL_PTR_VALUE);
       int rv =
           lib.tjDecompressHeader3(
-              codec,
-              ByteBuffer.wrap(jpegData),
-              jpegData.length,
-              width,
-              height,
-              jpegSubsamp,
-              jpegColorspace);
+              codec, jpegData, jpegData.remaining(), width, height, jpegSubsamp, jpegColorspace);
       if (rv != 0) {
-        throw new TurboJpegException(lib.tjGetErrorStr());
+        throw new TurboJpegException(getErrorStr(codec));
       }
 
       if (width.getValue() == INITIAL_PTR_VALUE
@@ -81,29 +271,33 @@ public class TurboJpeg {
         return null;
       }
 
-      IntByReference numRef = new IntByReference();
-      Pointer factorPtr = lib.tjGetScalingFactors(numRef);
-      final Integer numOfFactors = numRef.getValue();
-      tjscalingfactor[] factors = new tjscalingfactor[numOfFactors];
-      for (int i = 0; i < numOfFactors; i++) {
-        tjscalingfactor f = new tjscalingfactor(runtime);
-        factorPtr = factorPtr.slice(Struct.size(f));
-        f.useMemory(factorPtr);
-        factors[i] = f;
-      }
       return new Info(
           width.getValue(),
           height.getValue(),
           jpegSubsamp.getValue(),
           jpegColorspace.getValue(),
-          factors);
+          scalingFactors);
     } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
-      }
+      handles.release(HandlePool.Kind.DECOMPRESS, codec);
     }
   }
 
+  /**
+   * Return information about a JPEG image from its header scanned in Java, without calling into the
+   * library.
+   *
+   * @param header JPEG header, e.g. from {@link JpegHeader#read(java.io.DataInput)}
+   * @return information about the jpeg image
+   */
+  public Info getInfo(JpegHeader header) {
+    return new Info(
+        header.getWidth(),
+        header.getHeight(),
+        header.getSubsampling().intValue(),
+        header.getColorspace().intValue(),
+        scalingFactors);
+  }
+
   /**
    * Decode the JPEG image in the input buffer into a BufferedImage.
    *
@@ -116,9 +310,85 @@ public class TurboJpeg {
    */
   public BufferedImage decode(byte[] jpegData, Info info, Dimension size)
       throws TurboJpegException {
+    return decode(ByteBuffer.wrap(jpegData), info, size);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into a BufferedImage.
+   *
+   * <p>The JPEG data is read from the buffer's position up to its limit. Direct buffers are handed
+   * to the library as-is, without copying them.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @return The decoded image
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decode(ByteBuffer jpegData, Info info, Dimension size)
+      throws TurboJpegException {
+    return decode(jpegData, info, size, null, null);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into an existing BufferedImage.
+   *
+   * <p>If the decoded image spans whole rows of the destination, the library writes directly into
+   * its data buffer. Otherwise, e.g. for a tile of a larger canvas, the image is decoded into a
+   * buffer of its own size and its rows are copied into the destination, which leaves the pixels
+   * next to it untouched for concurrent decodes. The destination must use an interleaved byte or
+   * packed int raster with a layout libturbojpeg can produce, e.g. {@link
+   * BufferedImage#TYPE_3BYTE_BGR}, {@link BufferedImage#TYPE_4BYTE_ABGR}, {@link
+   * BufferedImage#TYPE_BYTE_GRAY}, {@link BufferedImage#TYPE_INT_RGB}, {@link
+   * BufferedImage#TYPE_INT_BGR} or {@link BufferedImage#TYPE_INT_ARGB}, alpha channels are set to
+   * opaque. Color conversion (e.g. from a color JPEG to a grayscale destination) is done by the
+   * library.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param destination Image to decode into, a new image is created if null
+   * @param offset Position in the destination to write the upper left corner of the decoded image
+   *     to, defaults to (0, 0)
+   * @return The decoded image, i.e. the destination if one was passed
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decode(
+      ByteBuffer jpegData, Info info, Dimension size, BufferedImage destination, Point offset)
+      throws TurboJpegException {
+    return decode(jpegData, info, size, destination, offset, 0);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into an existing BufferedImage, trading accuracy for
+   * speed if requested.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param destination Image to decode into, a new image is created if null
+   * @param offset Position in the destination to write the upper left corner of the decoded image
+   *     to, defaults to (0, 0)
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT}, {@link TJFLAG#TJFLAG_FASTUPSAMPLE}
+   *     and {@link TJFLAG#TJFLAG_STOPONWARNING}
+   * @return The decoded image, i.e. the destination if one was passed
+   * @throws TurboJpegException if decompression with library fails
+   * @see #decode(ByteBuffer, Info, Dimension, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      BufferedImage destination,
+      Point offset,
+      int flags)
+      throws TurboJpegException {
     Pointer codec = null;
     try {
-      codec = lib.tjInitDecompress();
+      codec = handles.acquire(HandlePool.Kind.DECOMPRESS);
       int width = info.getWidth();
       int height = info.getHeight();
       if (size != null) {
@@ -130,31 +400,51 @@ public class TurboJpeg {
           height = size.height;
         }
       }
-      boolean isGray = info.getSubsampling() == TJSAMP.TJSAMP_GRAY;
-      int imgType;
-      if (isGray) {
-        imgType = BufferedImage.TYPE_BYTE_GRAY;
+      boolean isGray = isGray(info);
+      BufferedImage img = destination;
+      if (img == null) {
+        img = createImage(info, width, height);
+        offset = null;
+      }
+      if (offset == null) {
+        offset = new Point(0, 0);
+      }
+      checkDestination(img.getRaster(), offset, width, height, info.getPrecision());
+      WritableRaster raster = img.getRaster();
+      Buffer outBuf;
+      if (spansWholeRows(raster, width, height)) {
+        outBuf = wrapRaster(raster, offset.x, offset.y, width, height);
       } else {
-        imgType = BufferedImage.TYPE_3BYTE_BGR;
+        // Decode with the destination's layout, so the rows can be copied over without conversion
+        raster = raster.createCompatibleWritableRaster(width, height);
+        outBuf = wrapRaster(raster);
+      }
+      TJPF pixelFormat = getPixelFormat(raster);
+      int pitch = getPitch(raster);
+      int rv;
+      if (lib3 != null) {
+        tjscalingfactor factor = getScalingFactor(info, new Dimension(width, height));
+        if (lib3.tj3SetScalingFactor(codec, packInts(factor.num.get(), factor.denom.get())) != 0
+            || setDecompressFlags(codec, flags) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        rv = decompress(codec, jpegData, outBuf, pitch, pixelFormat, info.getPrecision());
+      } else {
+        rv =
+            lib.tjDecompress2(
+                codec,
+                jpegData,
+                jpegData.remaining(),
+                outBuf,
+                width,
+                pitch,
+                height,
+                pixelFormat,
+                flags & DECOMPRESS_FLAGS);
       }
-      BufferedImage img = new BufferedImage(width, height, imgType);
-      // Wrap the underlying data buffer of the image with a ByteBuffer, so we can pass it over the
-      // ABI
-      ByteBuffer outBuf = asByteBuffer(img.getRaster().getDataBuffer());
-      int rv =
-          lib.tjDecompress2(
-              codec,
-              ByteBuffer.wrap(jpegData),
-              jpegData.length,
-              outBuf,
-              width,
-              isGray ? width : width * 3,
-              height,
-              isGray ? TJPF.TJPF_GRAY : TJPF.TJPF_BGR,
-              0);
       if (rv != 0) {
-        TJERR errorCode = TJERR.fromInt(lib.tjGetErrorCode(codec));
-        String errorMessage = lib.tjGetErrorStr();
+        TJERR errorCode = getErrorCode(codec);
+        String errorMessage = getErrorStr(codec);
         if (errorCode == TJERR.TJERR_FATAL) {
           LOG.error(
               "Could not decompress JPEG (dimensions: {}x{}, gray: {})", width, height, isGray);
@@ -167,231 +457,1522 @@ public class TurboJpeg {
             isGray,
             errorMessage);
       }
+      if (raster != img.getRaster()) {
+        img.getRaster().setDataElements(offset.x, offset.y, raster);
+      }
       return img;
     } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
+      if (codec != null && lib3 != null) {
+        lib3.tj3SetScalingFactor(codec, packInts(1, 1));
       }
+      handles.release(HandlePool.Kind.DECOMPRESS, codec);
     }
   }
 
+  /** Map the decompression flags of the legacy API to the parameters of a TurboJPEG 3 handle. */
+  private int setDecompressFlags(Pointer codec, int flags) {
+    boolean failed =
+        lib3.tj3Set(codec, TJPARAM.TJPARAM_FASTDCT, (flags & TJFLAG.TJFLAG_FASTDCT) != 0 ? 1 : 0)
+                != 0
+            || lib3.tj3Set(
+                    codec,
+                    TJPARAM.TJPARAM_FASTUPSAMPLE,
+                    (flags & TJFLAG.TJFLAG_FASTUPSAMPLE) != 0 ? 1 : 0)
+                != 0
+            || lib3.tj3Set(
+                    codec,
+                    TJPARAM.TJPARAM_STOPONWARNING,
+                    (flags & TJFLAG.TJFLAG_STOPONWARNING) != 0 ? 1 : 0)
+                != 0;
+    return failed ? -1 : 0;
+  }
+
   /**
-   * Encode an image to JPEG
-   *
-   * @param img image as rectangle of pixels
-   * @param quality compression quality
-   * @return jpeg image
-   * @throws de.digitalcollections.turbojpeg.TurboJpegException if compression with library fails
+   * Decompress with the TurboJPEG 3 function matching the data precision of the image, the
+   * destination buffer has to consist of bytes for 8 bit images and of shorts otherwise.
    */
-  public ByteBuffer encode(Raster img, int quality) throws TurboJpegException {
-    Pointer codec = null;
-    PointerByReference bufPtrRef = null;
-    try {
-      TJPF pixelFmt;
-      switch (img.getNumBands()) {
-        case 4:
-          pixelFmt = TJPF.TJPF_BGRX; // 4BYTE_BGRA
-          break;
-        case 3:
-          pixelFmt = TJPF.TJPF_BGR; // 3BYTE_BGR
-          break;
-        case 1:
-          pixelFmt = TJPF.TJPF_GRAY; // 1BYTE_GRAY
-          break;
-        default:
-          throw new IllegalArgumentException("Illegal sample format");
-      }
-      // TODO: Make sampling format configurable
-      TJSAMP sampling = pixelFmt == TJPF.TJPF_GRAY ? TJSAMP.TJSAMP_GRAY : TJSAMP.TJSAMP_420;
-      codec = lib.tjInitCompress();
+  private int decompress(
+      Pointer codec,
+      ByteBuffer jpegData,
+      Buffer outBuf,
+      int pitch,
+      TJPF pixelFormat,
+      int precision) {
+    if (precision <= 8) {
+      return lib3.tj3Decompress8(codec, jpegData, jpegData.remaining(), outBuf, pitch, pixelFormat);
+    } else if (precision <= 12) {
+      return lib3.tj3Decompress12(
+          codec, jpegData, jpegData.remaining(), outBuf, pitch, pixelFormat);
+    } else {
+      return lib3.tj3Decompress16(
+          codec, jpegData, jpegData.remaining(), outBuf, pitch, pixelFormat);
+    }
+  }
 
-      // Allocate JPEG target buffer
-      int bufSize = (int) lib.tjBufSize(img.getWidth(), img.getHeight(), sampling);
-      Pointer bufPtr = lib.tjAlloc(bufSize);
-      bufPtrRef = new PointerByReference(bufPtr);
-      NativeLongByReference lenPtr = new NativeLongByReference(bufSize);
+  private static boolean isGray(Info info) {
+    return info.getSubsampling() == TJSAMP.TJSAMP_GRAY || info.getColorspace() == TJCS.TJCS_GRAY;
+  }
 
-      // Wrap source image data buffer with ByteBuffer to pass it over the ABI
-      ByteBuffer inBuf;
-      if (img.getNumBands() == 1 && img.getSampleModel().getSampleSize(0) == 1) {
-        // For binary images, we need to convert our (0, 1) binary values into (0, 255) greyscale
-        // values
-        int[] buf = new int[img.getWidth() * img.getHeight()];
-        img.getPixels(0, 0, img.getWidth(), img.getHeight(), buf);
-        byte[] byteBuf = new byte[buf.length];
-        for (int i = 0; i < buf.length; i++) {
-          byteBuf[i] = (byte) (buf[i] == 0 ? 0x00 : 0xFF);
-        }
-        inBuf = ByteBuffer.wrap(byteBuf).order(runtime.byteOrder());
-      } else {
-        inBuf = asByteBuffer(img.getDataBuffer());
-      }
-      int rv =
-          lib.tjCompress2(
-              codec,
-              inBuf,
-              img.getWidth(),
-              0,
-              img.getHeight(),
-              pixelFmt,
-              bufPtrRef,
-              lenPtr,
-              sampling,
-              quality,
-              0);
-      if (rv != 0) {
-        LOG.error(
-            "Could not compress image (dimensions: {}x{}, format: {}, sampling: {}, quality: {}",
-            img.getWidth(),
-            img.getHeight(),
-            pixelFmt,
-            sampling,
-            quality);
-        throw new TurboJpegException(lib.tjGetErrorStr());
-      }
-      ByteBuffer outBuf =
-          ByteBuffer.allocate(lenPtr.getValue().intValue()).order(runtime.byteOrder());
-      bufPtrRef.getValue().get(0, outBuf.array(), 0, lenPtr.getValue().intValue());
-      ((Buffer) outBuf).rewind();
-      return outBuf;
-    } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
-      }
-      if (bufPtrRef != null
-          && bufPtrRef.getValue() != null
-          && bufPtrRef.getValue().address() != 0) {
-        lib.tjFree(bufPtrRef.getValue());
-      }
+  /**
+   * Create an image the JPEG can be decoded into.
+   *
+   * <p>8 bit images are decoded into {@link BufferedImage#TYPE_3BYTE_BGR} or {@link
+   * BufferedImage#TYPE_BYTE_GRAY} images, images with a higher precision into images with an
+   * interleaved {@code ushort} raster whose color model has the precision of the JPEG.
+   *
+   * @param info Information about the JPEG image
+   * @param width Width of the image
+   * @param height Height of the image
+   * @return a new image
+   */
+  public BufferedImage createImage(Info info, int width, int height) {
+    boolean isGray = isGray(info);
+    int precision = info.getPrecision();
+    if (precision <= 8) {
+      return new BufferedImage(
+          width, height, isGray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+    }
+    if (isGray && precision == 16) {
+      return new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
     }
+    int[] bits = new int[isGray ? 1 : 3];
+    Arrays.fill(bits, precision);
+    ColorModel colorModel =
+        new ComponentColorModel(
+            ColorSpace.getInstance(isGray ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB),
+            bits,
+            false,
+            false,
+            Transparency.OPAQUE,
+            DataBuffer.TYPE_USHORT);
+    return new BufferedImage(
+        colorModel, colorModel.createCompatibleWritableRaster(width, height), false, null);
   }
 
   /**
-   * Transform a JPEG image without decoding it fully
+   * Decode a region of the JPEG image in the input buffer.
    *
-   * @param jpegData JPEG input buffer
-   * @param info Information about the JPEG (from {@link #getInfo(byte[])}
-   * @param region Source region to crop out of JPEG
-   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
-   * @return The transformed JPEG data
-   * @throws TurboJpegException if image transformation fails
+   * <p>Only the MCU rows and columns intersecting the region are decoded, which requires
+   * libturbojpeg &gt;= 3.0 (see {@link #isPartialDecodeSupported()}). Since libturbojpeg can only
+   * start decoding at MCU column boundaries, a few extra columns may be decoded to the left of the
+   * region, these are cropped away on the Java side. If the left edge of the region is aligned to
+   * the (scaled) MCU width, the pixels are written into the destination directly. Lossless JPEGs
+   * cannot be decoded partially. JPEGs with chroma sampling factors that match none of the {@link
+   * TJSAMP} values have no known MCU size and are decoded fully, the region is then cropped.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param region Region to decode, relative to the target dimensions
+   * @param destination Image to decode into, a new image is created if null
+   * @param offset Position in the destination to write the upper left corner of the decoded region
+   *     to, defaults to (0, 0)
+   * @return The decoded region, i.e. the destination if one was passed
+   * @throws TurboJpegException if decompression with library fails
    */
-  public ByteBuffer transform(byte[] jpegData, Info info, Rectangle region, int rotation)
+  public BufferedImage decode(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      Rectangle region,
+      BufferedImage destination,
+      Point offset)
+      throws TurboJpegException {
+    return decode(jpegData, info, size, region, destination, offset, 0);
+  }
+
+  /**
+   * Decode a region of the JPEG image in the input buffer, trading accuracy for speed if requested.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param region Region to decode, relative to the target dimensions
+   * @param destination Image to decode into, a new image is created if null
+   * @param offset Position in the destination to write the upper left corner of the decoded region
+   *     to, defaults to (0, 0)
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT}, {@link TJFLAG#TJFLAG_FASTUPSAMPLE}
+   *     and {@link TJFLAG#TJFLAG_STOPONWARNING}
+   * @return The decoded region, i.e. the destination if one was passed
+   * @throws TurboJpegException if decompression with library fails
+   * @see #decode(ByteBuffer, Info, Dimension, Rectangle, BufferedImage, Point)
+   */
+  public BufferedImage decode(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      Rectangle region,
+      BufferedImage destination,
+      Point offset,
+      int flags)
       throws TurboJpegException {
+    if (region == null) {
+      return decode(jpegData, info, size, destination, offset, flags);
+    }
+    if (lib3 == null) {
+      throw new UnsupportedOperationException("Partial decoding requires libturbojpeg >= 3.0");
+    }
+    if (info.isLossless()) {
+      throw new UnsupportedOperationException("Lossless JPEGs cannot be decoded partially");
+    }
+    if (size == null) {
+      size = new Dimension(info.getWidth(), info.getHeight());
+    }
+    tjscalingfactor factor = getScalingFactor(info, size);
+    if (region.x < 0
+        || region.y < 0
+        || region.width <= 0
+        || region.height <= 0
+        || region.x + region.width > size.width
+        || region.y + region.height > size.height) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Selected region (%dx%d+%d+%d) exceeds the image boundaries (%dx%d).",
+              region.width, region.height, region.x, region.y, size.width, size.height));
+    }
+    if (info.getSubsampling() == TJSAMP.TJSAMP_UNKNOWN) {
+      // libturbojpeg does not set cropping regions for these
+      return cropFullDecode(jpegData, info, size, region, destination, offset, flags);
+    }
+    int num = factor.num.get();
+    int denom = factor.denom.get();
+    int mcuWidth = (info.getMCUSize().width * num + denom - 1) / denom;
+    int extraX = region.x % mcuWidth;
+    int cropX = region.x - extraX;
+    int cropWidth = region.width + extraX;
+
+    boolean isGray = isGray(info);
+    BufferedImage img = destination;
+    Point imgOffset = offset;
+    if (img == null) {
+      img = createImage(info, cropWidth, region.height);
+      imgOffset = null;
+    } else if (extraX != 0 || !spansWholeRows(destination.getRaster(), cropWidth, region.height)) {
+      // Decode with the destination's layout, so the pixels can be copied over without conversion
+      ColorModel colorModel = destination.getColorModel();
+      img =
+          new BufferedImage(
+              colorModel,
+              colorModel.createCompatibleWritableRaster(cropWidth, region.height),
+              colorModel.isAlphaPremultiplied(),
+              null);
+      imgOffset = null;
+    }
+    WritableRaster raster = img.getRaster();
+    if (imgOffset == null) {
+      imgOffset = new Point(0, 0);
+    }
+    checkDestination(raster, imgOffset, cropWidth, region.height, info.getPrecision());
+    Buffer outBuf = wrapRaster(raster, imgOffset.x, imgOffset.y, cropWidth, region.height);
+    TJPF pixelFormat = getPixelFormat(raster);
+    int pitch = getPitch(raster);
+
     Pointer codec = null;
-    PointerByReference bufPtrRef = null;
     try {
-      codec = lib.tjInitTransform();
-      tjtransform transform = new tjtransform(runtime);
-
-      int width = info.getWidth();
-      int height = info.getHeight();
-      boolean flipCoords = rotation == 90 || rotation == 270;
-      if (region != null) {
-        Dimension mcuSize = info.getMCUSize();
-        if (((region.x + region.width) != width && region.width % mcuSize.width != 0)
-            || ((region.y + region.height) != height && region.height % mcuSize.height != 0)) {
-          throw new IllegalArgumentException(
-              String.format(
-                  "Invalid cropping region %d×%d, width must be divisible by %d, height by %d",
-                  region.width, region.height, mcuSize.width, mcuSize.height));
-        }
-        transform.options.set(TJXOPT.TJXOPT_CROP | TJXOPT.TJXOPT_TRIM);
-        transform.r.x.set(region.x);
-        transform.r.y.set(region.y);
-        // If any cropping dimension equals the original dimension, libturbojpeg requires it to be
-        // set to 0
-        if ((region.x + region.width) >= (flipCoords ? info.getHeight() : info.getWidth())) {
-          transform.r.w.set(0);
-        } else {
-          transform.r.w.set(region.width);
-        }
-        if ((region.y + region.height) >= (flipCoords ? info.getWidth() : info.getHeight())) {
-          transform.r.h.set(0);
-        } else {
-          transform.r.h.set(region.height);
-        }
+      codec = handles.acquire(HandlePool.Kind.DECOMPRESS);
+      if (lib3.tj3DecompressHeader(codec, jpegData, jpegData.remaining()) != 0
+          || lib3.tj3SetScalingFactor(codec, packInts(num, denom)) != 0
+          || setCroppingRegion(codec, cropX, region.y, cropWidth, region.height) != 0
+          || setDecompressFlags(codec, flags) != 0) {
+        throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
       }
-      if (rotation != 0) {
-        TJXOP op;
-        switch (rotation) {
-          case 90:
-            op = TJXOP.TJXOP_ROT90;
-            break;
-          case 180:
-            op = TJXOP.TJXOP_ROT180;
-            break;
-          case 270:
-            op = TJXOP.TJXOP_ROT270;
-            break;
-          default:
-            throw new IllegalArgumentException("Invalid rotation, must be 90, 180 or 270");
-        }
-        transform.op.set(op.intValue());
-      }
-      Buffer inBuf = ByteBuffer.wrap(jpegData).order(runtime.byteOrder());
-      NativeLongByReference lenRef = new NativeLongByReference();
-      bufPtrRef = new PointerByReference();
-      int rv = lib.tjTransform(codec, inBuf, jpegData.length, 1, bufPtrRef, lenRef, transform, 0);
+      int rv = decompress(codec, jpegData, outBuf, pitch, pixelFormat, info.getPrecision());
       if (rv != 0) {
-        TJERR errorCode = TJERR.fromInt(lib.tjGetErrorCode(codec));
-        String errorMessage = lib.tjGetErrorStr();
+        TJERR errorCode = TJERR.fromInt(lib3.tj3GetErrorCode(codec));
+        String errorMessage = lib3.tj3GetErrorStr(codec);
         if (errorCode == TJERR.TJERR_FATAL) {
           LOG.error(
-              "Could not compress image (crop: {},{},{},{}, rotate: {})",
-              transform.r.x,
-              transform.r.y,
-              transform.r.w,
-              transform.r.h,
-              rotation);
+              "Could not decompress JPEG (region: {}, dimensions: {}x{}, gray: {})",
+              region,
+              size.width,
+              size.height,
+              isGray);
           throw new TurboJpegException(errorMessage);
         }
         LOG.warn(
-            "Could not compress image (crop: {},{},{},{}, rotate: {}, message: {})",
-            transform.r.x,
-            transform.r.y,
-            transform.r.w,
-            transform.r.h,
-            rotation,
+            "Could not decompress JPEG (region: {}, dimensions: {}x{}, gray: {}, message: {})",
+            region,
+            size.width,
+            size.height,
+            isGray,
             errorMessage);
       }
-      ByteBuffer outBuf =
-          ByteBuffer.allocate(lenRef.getValue().intValue()).order(runtime.byteOrder());
-      bufPtrRef.getValue().get(0, outBuf.array(), 0, lenRef.getValue().intValue());
-      ((Buffer) outBuf).rewind();
-      return outBuf;
     } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
-      }
-      if (bufPtrRef != null
-          && bufPtrRef.getValue() != null
-          && bufPtrRef.getValue().address() != 0) {
-        lib.tjFree(bufPtrRef.getValue());
+      if (codec != null) {
+        // Pooled handles must not keep the settings for the next user
+        setCroppingRegion(codec, 0, 0, 0, 0);
+        lib3.tj3SetScalingFactor(codec, packInts(1, 1));
       }
+      handles.release(HandlePool.Kind.DECOMPRESS, codec);
+    }
+
+    if (img == destination) {
+      return img;
+    }
+    if (extraX != 0) {
+      img = img.getSubimage(extraX, 0, region.width, region.height);
     }
+    if (destination != null) {
+      Point dstOffset = offset != null ? offset : new Point(0, 0);
+      checkDestination(
+          destination.getRaster(), dstOffset, region.width, region.height, info.getPrecision());
+      destination.getRaster().setDataElements(dstOffset.x, dstOffset.y, img.getRaster());
+      return destination;
+    }
+    return img;
   }
 
-  private ByteBuffer asByteBuffer(DataBuffer dataBuffer) {
-    ByteBuffer byteBuffer;
-    if (dataBuffer instanceof DataBufferByte) {
-      byte[] pixelData = ((DataBufferByte) dataBuffer).getData();
-      byteBuffer = ByteBuffer.wrap(pixelData).order(runtime.byteOrder());
-    } else if (dataBuffer instanceof DataBufferUShort) {
-      short[] pixelData = ((DataBufferUShort) dataBuffer).getData();
-      byteBuffer = ByteBuffer.allocate(pixelData.length * 2).order(runtime.byteOrder());
-      byteBuffer.asShortBuffer().put(ShortBuffer.wrap(pixelData));
-    } else if (dataBuffer instanceof DataBufferShort) {
-      short[] pixelData = ((DataBufferShort) dataBuffer).getData();
-      byteBuffer = ByteBuffer.allocate(pixelData.length * 2).order(runtime.byteOrder());
-      byteBuffer.asShortBuffer().put(ShortBuffer.wrap(pixelData));
-    } else if (dataBuffer instanceof DataBufferInt) {
-      int[] pixelData = ((DataBufferInt) dataBuffer).getData();
-      byteBuffer = ByteBuffer.allocate(pixelData.length * 4).order(runtime.byteOrder());
-      byteBuffer.asIntBuffer().put(IntBuffer.wrap(pixelData));
-    } else {
-      throw new IllegalArgumentException("Unsupported DataBuffer type: " + dataBuffer.getClass());
+  /**
+   * Decode the JPEG image in the input buffer in horizontal strips, see {@link StripDecoder}.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param stripHeight Number of rows per strip, relative to the target dimensions
+   * @return a decoder for the strips
+   */
+  public StripDecoder decodeStrips(
+      ByteBuffer jpegData, Info info, Dimension size, int stripHeight) {
+    return decodeStrips(jpegData, info, size, stripHeight, 0);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer in horizontal strips, trading accuracy for speed if
+   * requested.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param stripHeight Number of rows per strip, relative to the target dimensions
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT}, {@link TJFLAG#TJFLAG_FASTUPSAMPLE}
+   *     and {@link TJFLAG#TJFLAG_STOPONWARNING}
+   * @return a decoder for the strips
+   * @see #decodeStrips(ByteBuffer, Info, Dimension, int)
+   */
+  public StripDecoder decodeStrips(
+      ByteBuffer jpegData, Info info, Dimension size, int stripHeight, int flags) {
+    if (size == null) {
+      size = new Dimension(info.getWidth(), info.getHeight());
+    } else if (!info.getAvailableSizes().contains(size)) {
+      throw new IllegalArgumentException(
+          String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
+    }
+    return new StripDecoder(this, jpegData, info, size, stripHeight, flags);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer on the common {@link ForkJoinPool}.
+   *
+   * @see #decodeParallel(ByteBuffer, Info, Dimension, BufferedImage, int, ForkJoinPool)
+   */
+  public BufferedImage decodeParallel(ByteBuffer jpegData, Info info, Dimension size)
+      throws TurboJpegException {
+    return decodeParallel(jpegData, info, size, null, 0, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer in parallel, using its restart markers.
+   *
+   * <p>The entropy-coded data of sequential JPEGs with restart markers is split at the markers into
+   * bands of MCU rows, which are decoded concurrently into disjoint rows of the destination. JPEGs
+   * without restart markers, or whose markers do not line up with MCU rows often enough to form
+   * more than one band, are decoded serially with {@link #decode(ByteBuffer, Info, Dimension,
+   * BufferedImage, Point, int)}, as are progressive, lossless and high-precision JPEGs.
+   *
+   * <p>Every band is upsampled on its own, with fancy upsampling of vertically subsampled chroma
+   * (4:2:0, 4:4:0) the rows next to the band boundaries may thus differ slightly from a serial
+   * decode, use {@link TJFLAG#TJFLAG_FASTUPSAMPLE} if the results have to be identical.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param destination Image to decode into, a new image is created if null
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT}, {@link TJFLAG#TJFLAG_FASTUPSAMPLE}
+   *     and {@link TJFLAG#TJFLAG_STOPONWARNING}
+   * @param pool Pool to decode the bands on, the image is split into up to {@value
+   *     #BANDS_PER_THREAD} bands per thread of its parallelism, so threads that finish early can
+   *     pick up more work
+   * @return The decoded image, i.e. the destination if one was passed
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decodeParallel(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      BufferedImage destination,
+      int flags,
+      ForkJoinPool pool)
+      throws TurboJpegException {
+    if (size == null) {
+      size = new Dimension(info.getWidth(), info.getHeight());
+    }
+    RestartIndex index =
+        info.getPrecision() == 8 && !info.isLossless() && pool.getParallelism() > 1
+            ? RestartIndex.build(jpegData)
+            : null;
+    int alignment = index != null ? index.getRowAlignment() : 0;
+    int numGroups = index != null ? (index.getMcuRows() + alignment - 1) / alignment : 0;
+    int numBands = Math.min(numGroups, pool.getParallelism() * BANDS_PER_THREAD);
+    if (numBands <= 1
+        || index.getWidth() != info.getWidth()
+        || index.getHeight() != info.getHeight()) {
+      return decode(jpegData, info, size, destination, null, flags);
+    }
+    if (!info.getAvailableSizes().contains(size)) {
+      throw new IllegalArgumentException(
+          String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
+    }
+    BufferedImage img = destination;
+    if (img == null) {
+      img = createImage(info, size.width, size.height);
+    }
+    tjscalingfactor factor = getScalingFactor(info, size);
+    int num = factor.num.get();
+    int denom = factor.denom.get();
+
+    List<Callable<Void>> tasks = new ArrayList<>(numBands);
+    int groupsPerBand = (numGroups + numBands - 1) / numBands;
+    for (int group = 0; group < numGroups; group += groupsPerBand) {
+      int firstRow = group * alignment;
+      int numRows = groupsPerBand * alignment;
+      int y = firstRow * index.getMcuHeight();
+      int bandHeight = Math.min(y + numRows * index.getMcuHeight(), info.getHeight()) - y;
+      Info bandInfo =
+          new Info(
+              info.getWidth(),
+              bandHeight,
+              info.getSubsampling().intValue(),
+              info.getColorspace().intValue(),
+              scalingFactors);
+      Dimension bandSize = new Dimension(size.width, (bandHeight * num + denom - 1) / denom);
+      // MCU heights are multiples of 8, so the band offsets scale without rounding
+      Point offset = new Point(0, y * num / denom);
+      BufferedImage target = img;
+      tasks.add(
+          () -> {
+            ByteBuffer band = index.extractBand(firstRow, numRows);
+            decode(band, bandInfo, bandSize, target, offset, flags);
+            return null;
+          });
+    }
+    try {
+      for (Future<Void> result : pool.invokeAll(tasks)) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TurboJpegException("Interrupted while decoding");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TurboJpegException) {
+        throw (TurboJpegException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new TurboJpegException(cause.toString());
+    }
+    return img;
+  }
+
+  /**
+   * Decode a region of the JPEG image in the input buffer, starting at the nearest checkpoint of a
+   * {@link JpegIndex} instead of at the top of the image.
+   *
+   * <p>Only the MCU rows from the checkpoint above the region down to the checkpoint below it are
+   * decoded, so the cost of reading a region no longer depends on its distance from the top of the
+   * image. With libturbojpeg &gt;= 3.0, the columns outside of the region are skipped as well. If
+   * the index cannot be used for the data, the region is decoded with {@link #decode(ByteBuffer,
+   * Info, Dimension, Rectangle, BufferedImage, Point, int)}.
+   *
+   * <p>With fancy upsampling of vertically subsampled chroma (4:2:0, 4:4:0), the first row of a
+   * checkpoint may differ slightly from a decode of the whole image.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param index Index built for the JPEG data
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param region Region to decode, relative to the target dimensions
+   * @param destination Image to decode into, a new image is created if null
+   * @param offset Position in the destination to write the upper left corner of the decoded region
+   *     to, defaults to (0, 0)
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT}, {@link TJFLAG#TJFLAG_FASTUPSAMPLE}
+   *     and {@link TJFLAG#TJFLAG_STOPONWARNING}
+   * @return The decoded region, i.e. the destination if one was passed
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decode(
+      ByteBuffer jpegData,
+      Info info,
+      JpegIndex index,
+      Dimension size,
+      Rectangle region,
+      BufferedImage destination,
+      Point offset,
+      int flags)
+      throws TurboJpegException {
+    if (!index.matches(jpegData)
+        || index.getWidth() != info.getWidth()
+        || index.getHeight() != info.getHeight()) {
+      throw new IllegalArgumentException("Index does not match the JPEG data");
+    }
+    if (size == null) {
+      size = new Dimension(info.getWidth(), info.getHeight());
+    } else if (!info.getAvailableSizes().contains(size)) {
+      throw new IllegalArgumentException(
+          String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
+    }
+    if (region == null) {
+      region = new Rectangle(size);
+    }
+    tjscalingfactor factor = getScalingFactor(info, size);
+    int num = factor.num.get();
+    int denom = factor.denom.get();
+    // Rows of the unscaled image covered by the region
+    int top = region.y * denom / num;
+    int bottom = Math.min(((region.y + region.height) * denom + num - 1) / num, info.getHeight());
+    int rowsPerCheckpoint = index.getInterval() * index.getMcuHeight();
+    int firstCheckpoint = top / rowsPerCheckpoint;
+    int endCheckpoint =
+        Math.min((bottom + rowsPerCheckpoint - 1) / rowsPerCheckpoint, index.getNumCheckpoints());
+    ByteBuffer band = index.extractRows(jpegData, firstCheckpoint, endCheckpoint);
+    if (band == null) {
+      return decodeRegion(jpegData, info, size, region, destination, offset, flags);
+    }
+    int bandY = firstCheckpoint * rowsPerCheckpoint;
+    int bandHeight = Math.min(endCheckpoint * rowsPerCheckpoint, info.getHeight()) - bandY;
+    Info bandInfo =
+        new Info(
+            info.getWidth(),
+            bandHeight,
+            info.getSubsampling().intValue(),
+            info.getColorspace().intValue(),
+            scalingFactors);
+    Dimension bandSize = new Dimension(size.width, (bandHeight * num + denom - 1) / denom);
+    // Checkpoints are at multiples of the MCU height, so their offsets scale without rounding
+    Rectangle bandRegion = new Rectangle(region);
+    bandRegion.translate(0, -bandY * num / denom);
+    return decodeRegion(band, bandInfo, bandSize, bandRegion, destination, offset, flags);
+  }
+
+  /**
+   * Decode a region of the JPEG image an index of restart markers was built for, starting at the
+   * restart interval above it instead of at the top of the image.
+   */
+  BufferedImage decode(
+      RestartIndex index,
+      Info info,
+      Dimension size,
+      Rectangle region,
+      BufferedImage destination,
+      int flags)
+      throws TurboJpegException {
+    tjscalingfactor factor = getScalingFactor(info, size);
+    int num = factor.num.get();
+    int denom = factor.denom.get();
+    int top = region.y * denom / num;
+    int bottom = Math.min(((region.y + region.height) * denom + num - 1) / num, info.getHeight());
+    int rowsPerGroup = index.getRowAlignment() * index.getMcuHeight();
+    int firstRow = top / rowsPerGroup * index.getRowAlignment();
+    int endRow =
+        Math.min(
+            (bottom + rowsPerGroup - 1) / rowsPerGroup * index.getRowAlignment(),
+            index.getMcuRows());
+    ByteBuffer band = index.extractBand(firstRow, endRow - firstRow);
+    int bandY = firstRow * index.getMcuHeight();
+    int bandHeight = Math.min(endRow * index.getMcuHeight(), info.getHeight()) - bandY;
+    Info bandInfo =
+        new Info(
+            info.getWidth(),
+            bandHeight,
+            info.getSubsampling().intValue(),
+            info.getColorspace().intValue(),
+            scalingFactors);
+    Dimension bandSize = new Dimension(size.width, (bandHeight * num + denom - 1) / denom);
+    Rectangle bandRegion = new Rectangle(region);
+    bandRegion.translate(0, -bandY * num / denom);
+    return decodeRegion(band, bandInfo, bandSize, bandRegion, destination, null, flags);
+  }
+
+  /** Decode a region partially if possible, otherwise crop it from the full image. */
+  private BufferedImage decodeRegion(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      Rectangle region,
+      BufferedImage destination,
+      Point offset,
+      int flags)
+      throws TurboJpegException {
+    if (isPartialDecodeSupported()) {
+      return decode(jpegData, info, size, region, destination, offset, flags);
+    }
+    return cropFullDecode(jpegData, info, size, region, destination, offset, flags);
+  }
+
+  /** Decode the full image and crop a region from it. */
+  private BufferedImage cropFullDecode(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      Rectangle region,
+      BufferedImage destination,
+      Point offset,
+      int flags)
+      throws TurboJpegException {
+    BufferedImage img =
+        decode(jpegData, info, size, null, null, flags)
+            .getSubimage(region.x, region.y, region.width, region.height);
+    if (destination == null) {
+      return img;
+    }
+    Point dstOffset = offset != null ? offset : new Point(0, 0);
+    destination.getRaster().setRect(dstOffset.x, dstOffset.y, img.getRaster());
+    return destination;
+  }
+
+  private tjscalingfactor getScalingFactor(Info info, Dimension size) {
+    for (tjscalingfactor f : scalingFactors) {
+      int num = f.num.get();
+      int denom = f.denom.get();
+      if (denom > 0
+          && (info.getWidth() * num + denom - 1) / denom == size.width
+          && (info.getHeight() * num + denom - 1) / denom == size.height) {
+        return f;
+      }
+    }
+    throw new IllegalArgumentException(
+        String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
+  }
+
+  private int setCroppingRegion(Pointer codec, int x, int y, int width, int height) {
+    if (Platform.getNativePlatform().getOS() == Platform.OS.WINDOWS) {
+      tjregion croppingRegion = new tjregion(runtime);
+      croppingRegion.x.set(x);
+      croppingRegion.y.set(y);
+      croppingRegion.w.set(width);
+      croppingRegion.h.set(height);
+      return lib3.tj3SetCroppingRegionByReference(codec, croppingRegion);
+    }
+    return lib3.tj3SetCroppingRegion(codec, packInts(x, y), packInts(width, height));
+  }
+
+  /** Pack two consecutive 32 bit struct fields into the 64 bit value they occupy in memory. */
+  private long packInts(int first, int second) {
+    if (runtime.byteOrder() == ByteOrder.LITTLE_ENDIAN) {
+      return (first & 0xFFFFFFFFL) | ((long) second << 32);
+    } else {
+      return ((long) first << 32) | (second & 0xFFFFFFFFL);
+    }
+  }
+
+  /**
+   * Check that a raster can be decoded into by the library and that an image of the given size fits
+   * into it at the offset.
+   */
+  private void checkDestination(
+      WritableRaster raster, Point offset, int width, int height, int precision) {
+    if (getPixelFormat(raster) == null) {
+      throw new IllegalArgumentException(
+          "Unsupported destination raster layout, must be interleaved bytes or shorts or packed"
+              + " ints");
+    }
+    boolean needsShorts = precision > 8;
+    if (needsShorts != raster.getDataBuffer() instanceof DataBufferUShort) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Destination raster must use %s samples for a JPEG with %d bits per sample",
+              needsShorts ? "ushort" : "8 bit", precision));
+    }
+    if (needsShorts && lib3 == null) {
+      throw new IllegalArgumentException(
+          "Decoding JPEGs with more than 8 bits per sample requires libturbojpeg >= 3.0");
+    }
+    if (offset.x < 0
+        || offset.y < 0
+        || offset.x + width > raster.getWidth()
+        || offset.y + height > raster.getHeight()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Decoded image (%dx%d) does not fit into destination (%dx%d) at offset (%d,%d)",
+              width, height, raster.getWidth(), raster.getHeight(), offset.x, offset.y));
+    }
+  }
+
+  /**
+   * Whether an area of the raster can be decoded into in place, i.e. it is a single row or spans
+   * whole rows of the data buffer. Otherwise the area has to be decoded into a raster of its own
+   * size and copied over.
+   *
+   * <p>Heap buffers are copied to native memory and back around the call, so wrapping an area of
+   * partial rows would copy everything between its first and its last pixel, i.e. whole rows of a
+   * large canvas for a small tile, and write stale copies of the pixels left and right of the area
+   * back over concurrent decodes into them.
+   */
+  private static boolean spansWholeRows(Raster raster, int width, int height) {
+    return height == 1 || width * getPixelStride(raster) == getScanlineStride(raster);
+  }
+
+  /**
+   * Wrap the whole underlying data buffer of a raster, see {@link #wrapRaster(Raster, int, int,
+   * int, int)}.
+   */
+  private Buffer wrapRaster(Raster raster) {
+    return wrapRaster(
+        raster, raster.getMinX(), raster.getMinY(), raster.getWidth(), raster.getHeight());
+  }
+
+  /**
+   * Wrap the underlying data buffer of a raster with a ByteBuffer, ShortBuffer or IntBuffer
+   * positioned at the given pixel, without copying it.
+   *
+   * <p>The buffer ends with the last pixel of the given area, so that only the area is copied to
+   * native memory and back around the call, as long as it spans whole rows, see {@link
+   * #spansWholeRows(Raster, int, int)}.
+   */
+  private Buffer wrapRaster(Raster raster, int x, int y, int width, int height) {
+    DataBuffer dataBuffer = raster.getDataBuffer();
+    int scanlineStride = getScanlineStride(raster);
+    int pixelStride = getPixelStride(raster);
+    int bufOffset =
+        dataBuffer.getOffset()
+            + (y - raster.getSampleModelTranslateY()) * scanlineStride
+            + (x - raster.getSampleModelTranslateX()) * pixelStride;
+    int span = (height - 1) * scanlineStride + width * pixelStride;
+    if (dataBuffer instanceof DataBufferUShort) {
+      short[] pixelData = ((DataBufferUShort) dataBuffer).getData();
+      return ShortBuffer.wrap(pixelData, bufOffset, Math.min(span, pixelData.length - bufOffset));
+    } else if (dataBuffer instanceof DataBufferInt) {
+      int[] pixelData = ((DataBufferInt) dataBuffer).getData();
+      return IntBuffer.wrap(pixelData, bufOffset, Math.min(span, pixelData.length - bufOffset));
+    }
+    byte[] pixelData = ((DataBufferByte) dataBuffer).getData();
+    return ByteBuffer.wrap(pixelData, bufOffset, Math.min(span, pixelData.length - bufOffset))
+        .order(runtime.byteOrder());
+  }
+
+  private static int getScanlineStride(Raster raster) {
+    SampleModel sm = raster.getSampleModel();
+    if (sm instanceof SinglePixelPackedSampleModel) {
+      return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+    }
+    return ((ComponentSampleModel) sm).getScanlineStride();
+  }
+
+  private static int getPixelStride(Raster raster) {
+    SampleModel sm = raster.getSampleModel();
+    if (sm instanceof SinglePixelPackedSampleModel) {
+      return 1;
+    }
+    return ((ComponentSampleModel) sm).getPixelStride();
+  }
+
+  /**
+   * Determine the pitch libturbojpeg expects for a raster, in bytes for 8 bit pixel formats and in
+   * samples for the 12 and 16 bit functions of the TurboJPEG 3 API.
+   */
+  private static int getPitch(Raster raster) {
+    int stride = getScanlineStride(raster);
+    return raster.getDataBuffer() instanceof DataBufferInt ? stride * 4 : stride;
+  }
+
+  /**
+   * Determine the libturbojpeg pixel format that matches the memory layout of a raster.
+   *
+   * @return the pixel format or null if the layout is not supported by libturbojpeg
+   */
+  private static TJPF getPixelFormat(Raster raster) {
+    if (raster.getDataBuffer() instanceof DataBufferInt
+        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+      return getPackedPixelFormat(
+          ((SinglePixelPackedSampleModel) raster.getSampleModel()).getBitMasks());
+    }
+    if (!(raster.getDataBuffer() instanceof DataBufferByte
+            || raster.getDataBuffer() instanceof DataBufferUShort)
+        || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+      return null;
+    }
+    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+    int[] bandOffsets = sm.getBandOffsets();
+    switch (sm.getPixelStride()) {
+      case 1:
+        return bandOffsets.length == 1 && bandOffsets[0] == 0 ? TJPF.TJPF_GRAY : null;
+      case 3:
+        if (Arrays.equals(bandOffsets, new int[] {2, 1, 0})) {
+          return TJPF.TJPF_BGR;
+        } else if (Arrays.equals(bandOffsets, new int[] {0, 1, 2})) {
+          return TJPF.TJPF_RGB;
+        }
+        return null;
+      case 4:
+        if (Arrays.equals(bandOffsets, new int[] {3, 2, 1, 0})) {
+          return TJPF.TJPF_AGBR;
+        } else if (Arrays.equals(bandOffsets, new int[] {0, 1, 2, 3})) {
+          return TJPF.TJPF_RGBA;
+        } else if (Arrays.equals(bandOffsets, new int[] {2, 1, 0, 3})) {
+          return TJPF.TJPF_BGRA;
+        } else if (Arrays.equals(bandOffsets, new int[] {1, 2, 3, 0})) {
+          return TJPF.TJPF_ARGB;
+        }
+        return null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Determine the pixel format of packed 32 bit pixels, whose byte order in memory depends on the
+   * platform's endianness.
+   */
+  private static TJPF getPackedPixelFormat(int[] masks) {
+    boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    if (masks.length == 3 && masks[0] == 0xFF0000 && masks[1] == 0xFF00 && masks[2] == 0xFF) {
+      // TYPE_INT_RGB
+      return littleEndian ? TJPF.TJPF_BGRX : TJPF.TJPF_XRGB;
+    } else if (masks.length == 4
+        && masks[0] == 0xFF0000
+        && masks[1] == 0xFF00
+        && masks[2] == 0xFF
+        && masks[3] == 0xFF000000) {
+      // TYPE_INT_ARGB(_PRE)
+      return littleEndian ? TJPF.TJPF_BGRA : TJPF.TJPF_ARGB;
+    } else if (masks.length == 3
+        && masks[0] == 0xFF
+        && masks[1] == 0xFF00
+        && masks[2] == 0xFF0000) {
+      // TYPE_INT_BGR
+      return littleEndian ? TJPF.TJPF_RGBX : TJPF.TJPF_XBGR;
+    }
+    return null;
+  }
+
+  /**
+   * Encode an image to JPEG
+   *
+   * <p>With libturbojpeg &gt;= 3.0, rasters with {@code ushort} samples are encoded with their
+   * precision: up to 12 bits per sample as lossy 12 bit JPEGs, above that as lossless 16 bit JPEGs.
+   *
+   * @param img image as rectangle of pixels
+   * @param quality compression quality
+   * @return jpeg image
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if compression with library fails
+   */
+  public ByteBuffer encode(Raster img, int quality) throws TurboJpegException {
+    EncodeOptions options = new EncodeOptions();
+    // libjpeg clamps the quality, keep accepting the same range
+    options.setQuality(Math.max(1, Math.min(100, quality)));
+    return encode(img, options);
+  }
+
+  /**
+   * Encode an image to JPEG
+   *
+   * <p>Rasters whose memory layout corresponds to a libturbojpeg pixel format (e.g. those of {@link
+   * BufferedImage#TYPE_3BYTE_BGR}, {@link BufferedImage#TYPE_4BYTE_ABGR}, {@link
+   * BufferedImage#TYPE_BYTE_GRAY}, {@link BufferedImage#TYPE_INT_RGB}, {@link
+   * BufferedImage#TYPE_INT_BGR} or {@link BufferedImage#TYPE_INT_ARGB}) are handed to the library
+   * without copying them, all others are converted to interleaved bytes first.
+   *
+   * @param img image as rectangle of pixels
+   * @param options compression settings
+   * @return jpeg image
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if compression with library fails
+   * @see #encode(Raster, int)
+   */
+  public ByteBuffer encode(Raster img, EncodeOptions options) throws TurboJpegException {
+    if (lib3 == null && options.requiresTurboJpeg3()) {
+      throw new UnsupportedOperationException(
+          "Optimized Huffman tables, arithmetic coding and restart markers require libturbojpeg"
+              + " >= 3.0");
+    }
+    int quality = options.getQuality();
+    int flags = options.getFlags();
+    Pointer codec = null;
+    PointerByReference bufPtrRef = null;
+    try {
+      if (img.getNumBands() == 1 && img.getSampleModel().getSampleSize(0) == 1) {
+        img = binaryToGray(img);
+      }
+      int precision =
+          img.getDataBuffer() instanceof DataBufferUShort
+              ? img.getSampleModel().getSampleSize(0)
+              : 8;
+      TJPF pixelFmt = getPixelFormat(img);
+      if (precision > 8) {
+        if (lib3 == null) {
+          throw new IllegalArgumentException(
+              "Encoding images with more than 8 bits per sample requires libturbojpeg >= 3.0");
+        }
+        if (pixelFmt == null) {
+          throw new IllegalArgumentException("Illegal sample format");
+        }
+      } else if (pixelFmt == null || img.getDataBuffer() instanceof DataBufferUShort) {
+        img = toInterleavedBytes(img);
+        pixelFmt = getPixelFormat(img);
+      }
+      boolean lossless = precision > 12;
+      TJSAMP sampling = getSubsampling(pixelFmt, options.getSubsampling(), lossless);
+      Buffer inBuf = wrapRaster(img);
+      int pitch = getPitch(img);
+      codec = handles.acquire(HandlePool.Kind.COMPRESS);
+      if (lib3 != null) {
+        if (lib3.tj3Set(codec, TJPARAM.TJPARAM_QUALITY, quality) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_SUBSAMP, sampling.intValue()) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_LOSSLESS, lossless ? 1 : 0) != 0
+            || setCompressOptions(codec, options) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        bufPtrRef = new PointerByReference();
+        NumberByReference lenRef = new NumberByReference(TypeAlias.size_t, 0);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int rv;
+        if (precision <= 8) {
+          rv = lib3.tj3Compress8(codec, inBuf, width, pitch, height, pixelFmt, bufPtrRef, lenRef);
+        } else if (!lossless) {
+          rv = lib3.tj3Compress12(codec, inBuf, width, pitch, height, pixelFmt, bufPtrRef, lenRef);
+        } else {
+          rv = lib3.tj3Compress16(codec, inBuf, width, pitch, height, pixelFmt, bufPtrRef, lenRef);
+        }
+        if (rv != 0) {
+          LOG.error(
+              "Could not compress image (dimensions: {}x{}, format: {}, sampling: {}, quality: {},"
+                  + " precision: {}",
+              img.getWidth(),
+              img.getHeight(),
+              pixelFmt,
+              sampling,
+              quality,
+              precision);
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        return copyToHeap(bufPtrRef.getValue(), lenRef.intValue());
+      }
+
+      // Allocate JPEG target buffer
+      int bufSize = (int) lib.tjBufSize(img.getWidth(), img.getHeight(), sampling);
+      Pointer bufPtr = lib.tjAlloc(bufSize);
+      bufPtrRef = new PointerByReference(bufPtr);
+      NativeLongByReference lenPtr = new NativeLongByReference(bufSize);
+
+      int rv =
+          lib.tjCompress2(
+              codec,
+              inBuf,
+              img.getWidth(),
+              pitch,
+              img.getHeight(),
+              pixelFmt,
+              bufPtrRef,
+              lenPtr,
+              sampling,
+              quality,
+              flags & COMPRESS_FLAGS);
+      if (rv != 0) {
+        LOG.error(
+            "Could not compress image (dimensions: {}x{}, format: {}, sampling: {}, quality: {}",
+            img.getWidth(),
+            img.getHeight(),
+            pixelFmt,
+            sampling,
+            quality);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      return copyToHeap(bufPtrRef.getValue(), lenPtr.getValue().intValue());
+    } finally {
+      handles.release(HandlePool.Kind.COMPRESS, codec);
+      if (bufPtrRef != null
+          && bufPtrRef.getValue() != null
+          && bufPtrRef.getValue().address() != 0) {
+        free(bufPtrRef.getValue());
+      }
+    }
+  }
+
+  /**
+   * Determine the chroma subsampling to encode with: grayscale input is always encoded as grayscale
+   * JPEG, lossless JPEGs default to 4:4:4 since they do not support subsampling.
+   */
+  private static TJSAMP getSubsampling(TJPF pixelFmt, TJSAMP requested, boolean lossless) {
+    if (pixelFmt == TJPF.TJPF_GRAY) {
+      return TJSAMP.TJSAMP_GRAY;
+    } else if (requested != null) {
+      return requested;
+    }
+    return lossless ? TJSAMP.TJSAMP_444 : TJSAMP.TJSAMP_420;
+  }
+
+  /**
+   * Apply the compression settings to a TurboJPEG 3 handle, all of them are set every time so
+   * pooled handles do not keep the settings of a previous user.
+   */
+  private int setCompressOptions(Pointer codec, EncodeOptions options) {
+    int flags = options.getFlags();
+    boolean failed =
+        lib3.tj3Set(codec, TJPARAM.TJPARAM_FASTDCT, (flags & TJFLAG.TJFLAG_FASTDCT) != 0 ? 1 : 0)
+                != 0
+            || lib3.tj3Set(
+                    codec,
+                    TJPARAM.TJPARAM_PROGRESSIVE,
+                    (flags & TJFLAG.TJFLAG_PROGRESSIVE) != 0 ? 1 : 0)
+                != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_OPTIMIZE, options.isOptimize() ? 1 : 0) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_ARITHMETIC, options.isArithmetic() ? 1 : 0) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_RESTARTROWS, 0) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_RESTARTBLOCKS, options.getRestartInterval()) != 0;
+    return failed ? -1 : 0;
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into its YCbCr planes, skipping the color conversion.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @return The decoded planes
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public YuvImage decodeToYuv(byte[] jpegData, Info info, Dimension size)
+      throws TurboJpegException {
+    return decodeToYuv(ByteBuffer.wrap(jpegData), info, size, 0);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into its YCbCr planes, skipping the color conversion.
+   *
+   * <p>The planes have the chroma subsampling of the JPEG, so they can be re-encoded with {@link
+   * #encode(YuvImage, EncodeOptions)} without converting to RGB and back. Only lossy 8 bit JPEGs
+   * with a standard subsampling can be decoded to YUV.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param flags Bitwise OR of {@link TJFLAG#TJFLAG_FASTDCT} and {@link
+   *     TJFLAG#TJFLAG_STOPONWARNING}
+   * @return The decoded planes
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public YuvImage decodeToYuv(ByteBuffer jpegData, Info info, Dimension size, int flags)
+      throws TurboJpegException {
+    if (info.getPrecision() != 8
+        || info.isLossless()
+        || info.getSubsampling() == TJSAMP.TJSAMP_UNKNOWN) {
+      throw new UnsupportedOperationException(
+          "Only lossy 8 bit JPEGs with a known subsampling can be decoded to YUV");
+    }
+    if (size == null) {
+      size = new Dimension(info.getWidth(), info.getHeight());
+    } else if (!info.getAvailableSizes().contains(size)) {
+      throw new IllegalArgumentException(
+          String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
+    }
+    YuvImage yuv = YuvImage.allocate(size.width, size.height, info.getSubsampling());
+    Pointer planes = getPlanePointers(yuv);
+    Pointer strides = getStrides(yuv);
+    Pointer codec = null;
+    try {
+      codec = handles.acquire(HandlePool.Kind.DECOMPRESS);
+      int rv;
+      if (lib3 != null) {
+        tjscalingfactor factor = getScalingFactor(info, size);
+        if (lib3.tj3SetScalingFactor(codec, packInts(factor.num.get(), factor.denom.get())) != 0
+            || setDecompressFlags(codec, flags) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        rv = lib3.tj3DecompressToYUVPlanes8(codec, jpegData, jpegData.remaining(), planes, strides);
+      } else {
+        rv =
+            lib.tjDecompressToYUVPlanes(
+                codec,
+                jpegData,
+                jpegData.remaining(),
+                planes,
+                size.width,
+                strides,
+                size.height,
+                flags & DECOMPRESS_FLAGS);
+      }
+      if (rv != 0) {
+        TJERR errorCode = getErrorCode(codec);
+        String errorMessage = getErrorStr(codec);
+        if (errorCode == TJERR.TJERR_FATAL) {
+          LOG.error(
+              "Could not decompress JPEG to YUV (dimensions: {}x{}, sampling: {})",
+              size.width,
+              size.height,
+              info.getSubsampling());
+          throw new TurboJpegException(errorMessage);
+        }
+        LOG.warn(
+            "Could not decompress JPEG to YUV (dimensions: {}x{}, sampling: {}, message: {})",
+            size.width,
+            size.height,
+            info.getSubsampling(),
+            errorMessage);
+      }
+      return yuv;
+    } finally {
+      if (codec != null && lib3 != null) {
+        lib3.tj3SetScalingFactor(codec, packInts(1, 1));
+      }
+      handles.release(HandlePool.Kind.DECOMPRESS, codec);
+    }
+  }
+
+  /**
+   * Convert YCbCr planes to an RGB or grayscale image.
+   *
+   * @param yuv the planes to convert
+   * @return a {@link BufferedImage#TYPE_3BYTE_BGR} or {@link BufferedImage#TYPE_BYTE_GRAY} image
+   * @throws TurboJpegException if the conversion with library fails
+   */
+  public BufferedImage decode(YuvImage yuv) throws TurboJpegException {
+    boolean isGray = yuv.getSubsampling() == TJSAMP.TJSAMP_GRAY;
+    BufferedImage img =
+        new BufferedImage(
+            yuv.getWidth(),
+            yuv.getHeight(),
+            isGray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+    WritableRaster raster = img.getRaster();
+    Buffer outBuf = wrapRaster(raster);
+    TJPF pixelFormat = getPixelFormat(raster);
+    int pitch = getPitch(raster);
+    Pointer planes = getPlanePointers(yuv);
+    Pointer strides = getStrides(yuv);
+    Pointer codec = null;
+    try {
+      codec = handles.acquire(HandlePool.Kind.DECOMPRESS);
+      int rv;
+      if (lib3 != null) {
+        if (lib3.tj3Set(codec, TJPARAM.TJPARAM_SUBSAMP, yuv.getSubsampling().intValue()) != 0
+            || setDecompressFlags(codec, 0) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        rv =
+            lib3.tj3DecodeYUVPlanes8(
+                codec,
+                planes,
+                strides,
+                outBuf,
+                yuv.getWidth(),
+                pitch,
+                yuv.getHeight(),
+                pixelFormat);
+      } else {
+        rv =
+            lib.tjDecodeYUVPlanes(
+                codec,
+                planes,
+                strides,
+                yuv.getSubsampling(),
+                outBuf,
+                yuv.getWidth(),
+                pitch,
+                yuv.getHeight(),
+                pixelFormat,
+                0);
+      }
+      if (rv != 0) {
+        LOG.error(
+            "Could not decode YUV image (dimensions: {}x{}, sampling: {})",
+            yuv.getWidth(),
+            yuv.getHeight(),
+            yuv.getSubsampling());
+        throw new TurboJpegException(getErrorStr(codec));
+      }
+      return img;
+    } finally {
+      handles.release(HandlePool.Kind.DECOMPRESS, codec);
+    }
+  }
+
+  /**
+   * Convert an image to YCbCr planes.
+   *
+   * @param img image as rectangle of pixels
+   * @param subsampling chroma subsampling of the planes, grayscale images are always converted to a
+   *     single luminance plane
+   * @return the converted planes
+   * @throws TurboJpegException if the conversion with library fails
+   */
+  public YuvImage encodeToYuv(Raster img, TJSAMP subsampling) throws TurboJpegException {
+    if (img.getNumBands() == 1 && img.getSampleModel().getSampleSize(0) == 1) {
+      img = binaryToGray(img);
+    }
+    TJPF pixelFmt = getPixelFormat(img);
+    if (pixelFmt == null || img.getDataBuffer() instanceof DataBufferUShort) {
+      img = toInterleavedBytes(img);
+      pixelFmt = getPixelFormat(img);
+    }
+    TJSAMP sampling = getSubsampling(pixelFmt, subsampling, false);
+    YuvImage yuv = YuvImage.allocate(img.getWidth(), img.getHeight(), sampling);
+    Buffer inBuf = wrapRaster(img);
+    int pitch = getPitch(img);
+    Pointer planes = getPlanePointers(yuv);
+    Pointer strides = getStrides(yuv);
+    Pointer codec = null;
+    try {
+      codec = handles.acquire(HandlePool.Kind.COMPRESS);
+      int rv;
+      if (lib3 != null) {
+        // The handle is pooled, a previous lossless encode would make the conversion fail
+        if (lib3.tj3Set(codec, TJPARAM.TJPARAM_SUBSAMP, sampling.intValue()) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_LOSSLESS, 0) != 0
+            || setCompressOptions(codec, new EncodeOptions()) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        rv =
+            lib3.tj3EncodeYUVPlanes8(
+                codec, inBuf, img.getWidth(), pitch, img.getHeight(), pixelFmt, planes, strides);
+      } else {
+        rv =
+            lib.tjEncodeYUVPlanes(
+                codec,
+                inBuf,
+                img.getWidth(),
+                pitch,
+                img.getHeight(),
+                pixelFmt,
+                planes,
+                strides,
+                sampling,
+                0);
+      }
+      if (rv != 0) {
+        LOG.error(
+            "Could not encode YUV image (dimensions: {}x{}, format: {}, sampling: {})",
+            img.getWidth(),
+            img.getHeight(),
+            pixelFmt,
+            sampling);
+        throw new TurboJpegException(getErrorStr(codec));
+      }
+      return yuv;
+    } finally {
+      handles.release(HandlePool.Kind.COMPRESS, codec);
+    }
+  }
+
+  /**
+   * Encode YCbCr planes to JPEG, skipping the color conversion.
+   *
+   * <p>The JPEG has the chroma subsampling of the planes, the subsampling of the options is
+   * ignored.
+   *
+   * @param yuv the planes to compress
+   * @param options compression settings
+   * @return jpeg image
+   * @throws TurboJpegException if compression with library fails
+   */
+  public ByteBuffer encode(YuvImage yuv, EncodeOptions options) throws TurboJpegException {
+    if (lib3 == null && options.requiresTurboJpeg3()) {
+      throw new UnsupportedOperationException(
+          "Optimized Huffman tables, arithmetic coding and restart markers require libturbojpeg"
+              + " >= 3.0");
+    }
+    Pointer planes = getPlanePointers(yuv);
+    Pointer strides = getStrides(yuv);
+    Pointer codec = null;
+    PointerByReference bufPtrRef = new PointerByReference();
+    try {
+      codec = handles.acquire(HandlePool.Kind.COMPRESS);
+      int rv;
+      int length;
+      if (lib3 != null) {
+        if (lib3.tj3Set(codec, TJPARAM.TJPARAM_QUALITY, options.getQuality()) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_SUBSAMP, yuv.getSubsampling().intValue()) != 0
+            || lib3.tj3Set(codec, TJPARAM.TJPARAM_LOSSLESS, 0) != 0
+            || setCompressOptions(codec, options) != 0) {
+          throw new TurboJpegException(lib3.tj3GetErrorStr(codec));
+        }
+        NumberByReference lenRef = new NumberByReference(TypeAlias.size_t, 0);
+        rv =
+            lib3.tj3CompressFromYUVPlanes8(
+                codec, planes, yuv.getWidth(), strides, yuv.getHeight(), bufPtrRef, lenRef);
+        length = lenRef.intValue();
+      } else {
+        NativeLongByReference lenRef = new NativeLongByReference(0);
+        rv =
+            lib.tjCompressFromYUVPlanes(
+                codec,
+                planes,
+                yuv.getWidth(),
+                strides,
+                yuv.getHeight(),
+                yuv.getSubsampling(),
+                bufPtrRef,
+                lenRef,
+                options.getQuality(),
+                options.getFlags() & COMPRESS_FLAGS);
+        length = lenRef.getValue().intValue();
+      }
+      if (rv != 0) {
+        LOG.error(
+            "Could not compress YUV image (dimensions: {}x{}, sampling: {}, quality: {})",
+            yuv.getWidth(),
+            yuv.getHeight(),
+            yuv.getSubsampling(),
+            options.getQuality());
+        throw new TurboJpegException(getErrorStr(codec));
+      }
+      return copyToHeap(bufPtrRef.getValue(), length);
+    } finally {
+      handles.release(HandlePool.Kind.COMPRESS, codec);
+      if (bufPtrRef.getValue() != null && bufPtrRef.getValue().address() != 0) {
+        free(bufPtrRef.getValue());
+      }
+    }
+  }
+
+  /** Build the {@code unsigned char **} array with the addresses of the planes. */
+  private Pointer getPlanePointers(YuvImage yuv) {
+    Pointer planes =
+        Memory.allocateDirect(runtime, yuv.getNumPlanes() * runtime.addressSize(), true);
+    for (int i = 0; i < yuv.getNumPlanes(); i++) {
+      ByteBuffer plane = yuv.getPlane(i);
+      long address = MemoryIO.getInstance().getDirectBufferAddress(plane) + plane.position();
+      planes.putAddress((long) i * runtime.addressSize(), address);
+    }
+    return planes;
+  }
+
+  /** Build the {@code int *} array with the strides of the planes. */
+  private Pointer getStrides(YuvImage yuv) {
+    Pointer strides = Memory.allocateDirect(runtime, yuv.getNumPlanes() * 4, true);
+    for (int i = 0; i < yuv.getNumPlanes(); i++) {
+      strides.putInt(i * 4L, yuv.getStride(i));
+    }
+    return strides;
+  }
+
+  /** Convert our (0, 1) binary values into (0, 255) greyscale values */
+  private static Raster binaryToGray(Raster img) {
+    int[] buf = new int[img.getWidth() * img.getHeight()];
+    img.getPixels(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight(), buf);
+    byte[] byteBuf = new byte[buf.length];
+    for (int i = 0; i < buf.length; i++) {
+      byteBuf[i] = (byte) (buf[i] == 0 ? 0x00 : 0xFF);
+    }
+    return Raster.createInterleavedRaster(
+        new DataBufferByte(byteBuf, byteBuf.length),
+        img.getWidth(),
+        img.getHeight(),
+        img.getWidth(),
+        1,
+        new int[] {0},
+        null);
+  }
+
+  /**
+   * Copy a raster whose layout libturbojpeg cannot handle directly into an interleaved RGB or gray
+   * byte raster, alpha and other extra bands are dropped.
+   */
+  private static Raster toInterleavedBytes(Raster img) {
+    int[] bands = img.getNumBands() >= 3 ? new int[] {0, 1, 2} : new int[] {0};
+    WritableRaster converted =
+        Raster.createInterleavedRaster(
+            DataBuffer.TYPE_BYTE, img.getWidth(), img.getHeight(), bands.length, null);
+    converted.setRect(
+        img.createChild(
+            img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight(), 0, 0, bands));
+    return converted;
+  }
+
+  private ByteBuffer copyToHeap(Pointer bufPtr, int length) {
+    ByteBuffer outBuf = ByteBuffer.allocate(length).order(runtime.byteOrder());
+    bufPtr.get(0, outBuf.array(), 0, length);
+    ((Buffer) outBuf).rewind();
+    return outBuf;
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully
+   *
+   * @param jpegData JPEG input buffer
+   * @param info Information about the JPEG (from {@link #getInfo(byte[])}
+   * @param region Source region to crop out of JPEG
+   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
+   * @return The transformed JPEG data
+   * @throws TurboJpegException if image transformation fails
+   */
+  public ByteBuffer transform(byte[] jpegData, Info info, Rectangle region, int rotation)
+      throws TurboJpegException {
+    return transform(ByteBuffer.wrap(jpegData), info, region, rotation);
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully
+   *
+   * <p>The JPEG data is read from the buffer's position up to its limit. Direct buffers are handed
+   * to the library as-is, without copying them.
+   *
+   * @param jpegData JPEG input buffer
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param region Source region to crop out of JPEG
+   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
+   * @return The transformed JPEG data
+   * @throws TurboJpegException if image transformation fails
+   */
+  public ByteBuffer transform(ByteBuffer jpegData, Info info, Rectangle region, int rotation)
+      throws TurboJpegException {
+    try (TransformResult result =
+        transform(jpegData, info, Collections.singletonList(region), rotation)) {
+      return result.copy(0);
+    }
+  }
+
+  /**
+   * Transform a JPEG image into several JPEGs without decoding it fully
+   *
+   * @param jpegData JPEG input buffer
+   * @param info Information about the JPEG (from {@link #getInfo(byte[])}
+   * @param regions Source regions to crop out of JPEG, a null entry transforms the whole image
+   * @param rotation Degrees to rotate the JPEGs, must be 90, 180 or 270
+   * @return The transformed JPEGs in the order of the regions, must be closed after use
+   * @throws TurboJpegException if image transformation fails
+   */
+  public TransformResult transform(
+      byte[] jpegData, Info info, List<Rectangle> regions, int rotation) throws TurboJpegException {
+    return transform(ByteBuffer.wrap(jpegData), info, regions, rotation);
+  }
+
+  /**
+   * Transform a JPEG image into several JPEGs without decoding it fully
+   *
+   * <p>All regions are cropped in a single call to the library, so the JPEG data only has to be
+   * parsed once. The resulting JPEGs are not copied to the heap, see {@link TransformResult}.
+   *
+   * @param jpegData JPEG input buffer
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param regions Source regions to crop out of JPEG, a null entry transforms the whole image
+   * @param rotation Degrees to rotate the JPEGs, must be 90, 180 or 270
+   * @return The transformed JPEGs in the order of the regions, must be closed after use
+   * @throws TurboJpegException if image transformation fails
+   */
+  public TransformResult transform(
+      ByteBuffer jpegData, Info info, List<Rectangle> regions, int rotation)
+      throws TurboJpegException {
+    if (regions.isEmpty()) {
+      throw new IllegalArgumentException("At least one region must be given");
+    }
+    int n = regions.size();
+    int structSize = Struct.size(new tjtransform(runtime));
+    Pointer transforms = Memory.allocateDirect(runtime, n * structSize, true);
+    for (int i = 0; i < n; i++) {
+      tjtransform transform = new tjtransform(runtime);
+      transform.useMemory(transforms.slice((long) i * structSize, structSize));
+      fillTransform(transform, info, regions.get(i), rotation);
+    }
+    // The size arrays are `unsigned long *` in the legacy and `size_t *` in the TurboJPEG 3 API
+    int sizeWidth = lib3 != null ? runtime.addressSize() : runtime.longSize();
+    Pointer dstBufs = Memory.allocateDirect(runtime, n * runtime.addressSize(), true);
+    Pointer dstSizes = Memory.allocateDirect(runtime, n * sizeWidth, true);
+
+    Pointer codec = null;
+    List<Pointer> pointers = new ArrayList<>(n);
+    boolean success = false;
+    try {
+      codec = handles.acquire(HandlePool.Kind.TRANSFORM);
+      int rv;
+      if (lib3 != null) {
+        rv =
+            lib3.tj3Transform(
+                codec, jpegData, jpegData.remaining(), n, dstBufs, dstSizes, transforms);
+      } else {
+        rv =
+            lib.tjTransform(
+                codec, jpegData, jpegData.remaining(), n, dstBufs, dstSizes, transforms, 0);
+      }
+      // Collect the buffers first, so they are freed even if the transformation failed midway
+      for (int i = 0; i < n; i++) {
+        pointers.add(dstBufs.getPointer((long) i * runtime.addressSize()));
+      }
+      if (rv != 0) {
+        TJERR errorCode = getErrorCode(codec);
+        String errorMessage = getErrorStr(codec);
+        if (errorCode == TJERR.TJERR_FATAL) {
+          LOG.error("Could not transform image (regions: {}, rotate: {})", regions, rotation);
+          throw new TurboJpegException(errorMessage);
+        }
+        LOG.warn(
+            "Could not transform image (regions: {}, rotate: {}, message: {})",
+            regions,
+            rotation,
+            errorMessage);
+      }
+      List<ByteBuffer> buffers = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        long offset = (long) i * sizeWidth;
+        long length = lib3 != null ? dstSizes.getAddress(offset) : dstSizes.getNativeLong(offset);
+        buffers.add(
+            MemoryIO.getInstance().newDirectByteBuffer(pointers.get(i).address(), (int) length));
+      }
+      success = true;
+      return new TransformResult(pointers, buffers, this::free);
+    } finally {
+      handles.release(HandlePool.Kind.TRANSFORM, codec);
+      if (!success) {
+        for (Pointer ptr : pointers) {
+          if (ptr != null && ptr.address() != 0) {
+            free(ptr);
+          }
+        }
+      }
+    }
+  }
+
+  private void fillTransform(tjtransform transform, Info info, Rectangle region, int rotation) {
+    boolean flipCoords = rotation == 90 || rotation == 270;
+    if (region != null) {
+      int width = info.getWidth();
+      int height = info.getHeight();
+      Dimension mcuSize = info.getMCUSize();
+      if (((region.x + region.width) != width && region.width % mcuSize.width != 0)
+          || ((region.y + region.height) != height && region.height % mcuSize.height != 0)) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid cropping region %d×%d, width must be divisible by %d, height by %d",
+                region.width, region.height, mcuSize.width, mcuSize.height));
+      }
+      transform.options.set(TJXOPT.TJXOPT_CROP | TJXOPT.TJXOPT_TRIM);
+      transform.r.x.set(region.x);
+      transform.r.y.set(region.y);
+      // If any cropping dimension equals the original dimension, libturbojpeg requires it to be
+      // set to 0
+      if ((region.x + region.width) >= (flipCoords ? info.getHeight() : info.getWidth())) {
+        transform.r.w.set(0);
+      } else {
+        transform.r.w.set(region.width);
+      }
+      if ((region.y + region.height) >= (flipCoords ? info.getWidth() : info.getHeight())) {
+        transform.r.h.set(0);
+      } else {
+        transform.r.h.set(region.height);
+      }
+    }
+    if (rotation != 0) {
+      TJXOP op;
+      switch (rotation) {
+        case 90:
+          op = TJXOP.TJXOP_ROT90;
+          break;
+        case 180:
+          op = TJXOP.TJXOP_ROT180;
+          break;
+        case 270:
+          op = TJXOP.TJXOP_ROT270;
+          break;
+        default:
+          throw new IllegalArgumentException("Invalid rotation, must be 90, 180 or 270");
+      }
+      transform.op.set(op.intValue());
     }
-    return byteBuffer;
   }
 }
@@ -0,0 +1,131 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.nio.ByteBuffer;
+
+/**
+ * Planar YCbCr image, i.e. the representation JPEG data is stored in before color conversion.
+ *
+ * <p>Consists of a single luminance plane for grayscale images, otherwise of a Y, a Cb and a Cr
+ * plane, the chrominance planes being smaller than the luminance plane according to the chroma
+ * subsampling. The planes have to be direct buffers, since their addresses are handed to the
+ * library.
+ */
+public class YuvImage {
+
+  private final int width;
+  private final int height;
+  private final TJSAMP subsampling;
+  private final ByteBuffer[] planes;
+  private final int[] strides;
+
+  /**
+   * Create a YUV image from existing planes.
+   *
+   * @param width width of the image in pixels
+   * @param height height of the image in pixels
+   * @param subsampling chroma subsampling of the planes
+   * @param planes direct buffers with the Y (and Cb and Cr) planes, starting at their position
+   * @param strides number of bytes per line of each plane
+   */
+  public YuvImage(int width, int height, TJSAMP subsampling, ByteBuffer[] planes, int[] strides) {
+    if (subsampling == null || subsampling == TJSAMP.TJSAMP_UNKNOWN) {
+      throw new IllegalArgumentException("Illegal subsampling: " + subsampling);
+    }
+    int numPlanes = subsampling == TJSAMP.TJSAMP_GRAY ? 1 : 3;
+    if (planes.length != numPlanes || strides.length != numPlanes) {
+      throw new IllegalArgumentException(
+          String.format("Images with %s subsampling need %d planes", subsampling, numPlanes));
+    }
+    for (int i = 0; i < numPlanes; i++) {
+      if (!planes[i].isDirect()) {
+        throw new IllegalArgumentException("Planes must be direct buffers");
+      }
+      int planeWidth = getPlaneWidth(i, width, subsampling);
+      int planeHeight = getPlaneHeight(i, height, subsampling);
+      if (strides[i] < planeWidth
+          || planes[i].remaining() < (long) strides[i] * (planeHeight - 1) + planeWidth) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Plane %d is too small for %d×%d pixels with a stride of %d",
+                i, planeWidth, planeHeight, strides[i]));
+      }
+    }
+    this.width = width;
+    this.height = height;
+    this.subsampling = subsampling;
+    this.planes = planes.clone();
+    this.strides = strides.clone();
+  }
+
+  /** Allocate a YUV image with unpadded planes. */
+  public static YuvImage allocate(int width, int height, TJSAMP subsampling) {
+    int numPlanes = subsampling == TJSAMP.TJSAMP_GRAY ? 1 : 3;
+    ByteBuffer[] planes = new ByteBuffer[numPlanes];
+    int[] strides = new int[numPlanes];
+    for (int i = 0; i < numPlanes; i++) {
+      strides[i] = getPlaneWidth(i, width, subsampling);
+      planes[i] = ByteBuffer.allocateDirect(strides[i] * getPlaneHeight(i, height, subsampling));
+    }
+    return new YuvImage(width, height, subsampling, planes, strides);
+  }
+
+  /**
+   * Get the width of a plane, the same as {@code tjPlaneWidth}.
+   *
+   * @param component 0 for Y, 1 for Cb and 2 for Cr
+   * @param width width of the image in pixels
+   * @param subsampling chroma subsampling of the image
+   */
+  public static int getPlaneWidth(int component, int width, TJSAMP subsampling) {
+    return getPlaneSize(component, width, Info.getMCUSize(subsampling).width);
+  }
+
+  /**
+   * Get the height of a plane, the same as {@code tjPlaneHeight}.
+   *
+   * @param component 0 for Y, 1 for Cb and 2 for Cr
+   * @param height height of the image in pixels
+   * @param subsampling chroma subsampling of the image
+   */
+  public static int getPlaneHeight(int component, int height, TJSAMP subsampling) {
+    return getPlaneSize(component, height, Info.getMCUSize(subsampling).height);
+  }
+
+  private static int getPlaneSize(int component, int size, int mcuSize) {
+    // The luminance plane is padded to a multiple of the chrominance sampling factor
+    int factor = mcuSize / 8;
+    int padded = (size + factor - 1) / factor * factor;
+    return component == 0 ? padded : padded / factor;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public Dimension getSize() {
+    return new Dimension(width, height);
+  }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  public int getNumPlanes() {
+    return planes.length;
+  }
+
+  /** Get a plane, the returned buffer shares its content with the image. */
+  public ByteBuffer getPlane(int component) {
+    return planes[component].duplicate();
+  }
+
+  public int getStride(int component) {
+    return strides[component];
+  }
+}
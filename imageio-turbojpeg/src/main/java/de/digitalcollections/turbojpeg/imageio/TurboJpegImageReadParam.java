@@ -1,16 +1,29 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.JpegIndex;
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
 import javax.imageio.plugins.jpeg.JPEGImageReadParam;
 
 /**
  * Parameters for reading JPEG images.
  *
- * <p>Currently the only extra setting apart from the default ImageIO ones is setting the rotation
- * degree.
+ * <p>Apart from the default ImageIO settings, the rotation degree can be set and decoding can be
+ * sped up at the expense of accuracy, e.g. for thumbnails and previews.
+ *
+ * <p>Source render sizes are supported, see {@link TurboJpegImageReader#read(int,
+ * javax.imageio.ImageReadParam)} for how they and source subsampling are read.
  */
 public class TurboJpegImageReadParam extends JPEGImageReadParam {
 
   private int rotationDegree;
+  private boolean fastDct;
+  private boolean fastUpsample;
+  private boolean stopOnWarning;
+  private JpegIndex index;
+
+  public TurboJpegImageReadParam() {
+    this.canSetSourceRenderSize = true;
+  }
 
   public int getRotationDegree() {
     return rotationDegree;
@@ -23,4 +36,66 @@ public class TurboJpegImageReadParam extends JPEGImageReadParam {
     }
     throw new IllegalArgumentException("Illegal rotation, must be 90, 180 or 270");
   }
+
+  public boolean isFastDct() {
+    return fastDct;
+  }
+
+  /** Use the fastest inverse DCT algorithm available, which is less accurate. */
+  public void setFastDct(boolean fastDct) {
+    this.fastDct = fastDct;
+  }
+
+  public boolean isFastUpsample() {
+    return fastUpsample;
+  }
+
+  /**
+   * Use the fastest chrominance upsampling algorithm available, which replicates pixels instead of
+   * interpolating them.
+   */
+  public void setFastUpsample(boolean fastUpsample) {
+    this.fastUpsample = fastUpsample;
+  }
+
+  public boolean isStopOnWarning() {
+    return stopOnWarning;
+  }
+
+  /**
+   * Fail on warnings (e.g. for truncated or corrupt data) instead of decoding as far as possible.
+   */
+  public void setStopOnWarning(boolean stopOnWarning) {
+    this.stopOnWarning = stopOnWarning;
+  }
+
+  public JpegIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Set an index for the image to read, so that unrotated regions can be decoded starting at the
+   * nearest checkpoint instead of at the top of the image.
+   *
+   * @param index index built with {@link JpegIndex#build(java.nio.ByteBuffer)} for the image data,
+   *     or null to decode without one
+   */
+  public void setIndex(JpegIndex index) {
+    this.index = index;
+  }
+
+  /** Combine the settings into the flags passed to libturbojpeg. */
+  int getFlags() {
+    int flags = 0;
+    if (fastDct) {
+      flags |= TJFLAG.TJFLAG_FASTDCT;
+    }
+    if (fastUpsample) {
+      flags |= TJFLAG.TJFLAG_FASTUPSAMPLE;
+    }
+    if (stopOnWarning) {
+      flags |= TJFLAG.TJFLAG_STOPONWARNING;
+    }
+    return flags;
+  }
 }
@@ -1,19 +1,33 @@
 package de.digitalcollections.turbojpeg.imageio;
 
 import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_BGR;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 
 import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.JpegHeader;
+import de.digitalcollections.turbojpeg.JpegIndex;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
 import de.digitalcollections.turbojpeg.lib.enums.TJCS;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.stream.Stream;
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
@@ -27,6 +41,9 @@ public class TurboJpegImageReader extends ImageReader {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TurboJpegImageReader.class);
 
+  private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+  private static final int READ_CHUNK_SIZE = 64 * 1024;
+
   private final TurboJpeg lib;
   private ByteBuffer jpegData;
   private Info info;
@@ -39,13 +56,29 @@ public class TurboJpegImageReader extends ImageReader {
   @Override
   public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
     super.setInput(input, seekForwardOnly, ignoreMetadata);
+    jpegData = null;
+    info = null;
     if (input == null) {
       return;
     }
-    if (input instanceof ImageInputStream) {
+    if (input instanceof ImageInputStream || input instanceof File || input instanceof Path) {
       try {
-        jpegData = bufferFromStream((ImageInputStream) input);
-        info = lib.getInfo(jpegData.array());
+        if (input instanceof ImageInputStream) {
+          // Only scan the header for now, the image data is read once it is needed
+          ImageInputStream stream = (ImageInputStream) input;
+          JpegHeader header;
+          stream.mark();
+          try {
+            header = JpegHeader.read(stream);
+          } finally {
+            stream.reset();
+          }
+          if (header != null) {
+            info = lib.getInfo(header);
+            return;
+          }
+        }
+        info = lib.getInfo(getJpegData());
       } catch (IOException e) {
         LOGGER.error(e.getMessage());
         throw new IllegalArgumentException("Failed to read input.");
@@ -67,14 +100,66 @@ public class TurboJpegImageReader extends ImageReader {
     }
   }
 
+  /** Read the JPEG data from the input, if that has not already happened. */
+  private ByteBuffer getJpegData() throws IOException {
+    if (jpegData == null) {
+      if (input instanceof ImageInputStream) {
+        ImageInputStream stream = (ImageInputStream) input;
+        stream.mark();
+        try {
+          jpegData = bufferFromStream(stream);
+        } finally {
+          stream.reset();
+        }
+      } else {
+        jpegData = bufferFromFile(input instanceof File ? ((File) input).toPath() : (Path) input);
+      }
+    }
+    return jpegData;
+  }
+
+  /**
+   * Read the remainder of the stream into a direct buffer that can be handed to libturbojpeg
+   * without further copies.
+   *
+   * <p>If the stream knows its length (e.g. {@link javax.imageio.stream.FileImageInputStream}), the
+   * buffer is allocated once with the exact size, otherwise it grows as data is read.
+   */
   static ByteBuffer bufferFromStream(ImageInputStream stream) throws IOException {
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    final byte[] buf = new byte[8192];
+    long length = stream.length();
+    long remaining = length < 0 ? -1 : length - stream.getStreamPosition();
+    if (remaining > Integer.MAX_VALUE) {
+      throw new IOException("JPEG data too large: " + remaining + " bytes");
+    }
+    ByteBuffer buf =
+        ByteBuffer.allocateDirect(remaining < 0 ? INITIAL_BUFFER_SIZE : (int) remaining);
+    final byte[] chunk = new byte[READ_CHUNK_SIZE];
     int n;
-    while (0 < (n = stream.read(buf))) {
-      bos.write(buf, 0, n);
+    while (0 < (n = stream.read(chunk))) {
+      if (buf.remaining() < n) {
+        ByteBuffer grown =
+            ByteBuffer.allocateDirect(Math.max(buf.capacity() * 2, buf.position() + n));
+        ((Buffer) buf).flip();
+        grown.put(buf);
+        buf = grown;
+      }
+      buf.put(chunk, 0, n);
+    }
+    ((Buffer) buf).flip();
+    return buf;
+  }
+
+  /**
+   * Map a JPEG file into memory, the mapping is passed to libturbojpeg directly and the data is
+   * never copied onto the Java heap.
+   */
+  static ByteBuffer bufferFromFile(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("JPEG data too large: " + channel.size() + " bytes");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
     }
-    return ByteBuffer.wrap(bos.toByteArray());
   }
 
   @Override
@@ -107,14 +192,61 @@ public class TurboJpegImageReader extends ImageReader {
     return info.getAvailableSizes().get(imageIndex).height;
   }
 
+  /**
+   * The first type is the one images are decoded into by default. libturbojpeg can write into all
+   * of the other types directly as well, select them with {@link
+   * ImageReadParam#setDestinationType(ImageTypeSpecifier)} to avoid converting the decoded image.
+   */
   @Override
   public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) {
+    if (info.getPrecision() > 8) {
+      return Stream.of(ImageTypeSpecifier.createFromRenderedImage(lib.createImage(info, 1, 1)))
+          .iterator();
+    }
+    boolean isGray = info.getColorspace() == TJCS.TJCS_GRAY;
     return Stream.of(
-            ImageTypeSpecifier.createFromBufferedImageType(
-                info.getColorspace() == TJCS.TJCS_GRAY ? TYPE_BYTE_GRAY : TYPE_3BYTE_BGR))
+            isGray ? TYPE_BYTE_GRAY : TYPE_3BYTE_BGR,
+            isGray ? TYPE_3BYTE_BGR : TYPE_BYTE_GRAY,
+            TYPE_INT_RGB,
+            TYPE_INT_BGR,
+            TYPE_INT_ARGB,
+            TYPE_4BYTE_ABGR)
+        .map(ImageTypeSpecifier::createFromBufferedImageType)
         .iterator();
   }
 
+  /**
+   * Create an image of the destination type requested in the parameters.
+   *
+   * @return the image, or null if no destination type was requested
+   * @throws IIOException if the requested type is not among the {@link #getImageTypes(int)}
+   */
+  private BufferedImage createDestination(
+      int imageIndex, ImageReadParam param, int width, int height) throws IIOException {
+    ImageTypeSpecifier type = param != null ? param.getDestinationType() : null;
+    if (type == null) {
+      return null;
+    }
+    Iterator<ImageTypeSpecifier> types = getImageTypes(imageIndex);
+    while (types.hasNext()) {
+      if (types.next().equals(type)) {
+        return type.createBufferedImage(width, height);
+      }
+    }
+    throw new IIOException("Destination type from ImageReadParam is not supported");
+  }
+
+  /** Create an image with the same color and sample model as the given image. */
+  private static BufferedImage createCompatibleImage(
+      BufferedImage template, int width, int height) {
+    ColorModel colorModel = template.getColorModel();
+    return new BufferedImage(
+        colorModel,
+        colorModel.createCompatibleWritableRaster(width, height),
+        colorModel.isAlphaPremultiplied(),
+        null);
+  }
+
   /**
    * Calculate the closest value to a given minimum. This function should be used when defining min
    * sizes of region height or width, because Math.min is not sufficient in rare cases, when the
@@ -286,20 +418,85 @@ public class TurboJpegImageReader extends ImageReader {
         Math.min((int) Math.ceil(scaleFactor * sourceRegion.height), nativeHeight - sourceRegion.y);
   }
 
+  /**
+   * Read the image in the given resolution.
+   *
+   * <p>If the parameters specify a destination image, the image is decoded into it at the
+   * destination offset instead of allocating a new image. This happens without any intermediate
+   * copy as long as the requested region is aligned to the MCU grid and the destination's raster
+   * layout is supported by libturbojpeg (see {@link TurboJpeg#decode(ByteBuffer, Info, Dimension,
+   * BufferedImage, Point)}). Likewise, if the parameters specify one of the {@link
+   * #getImageTypes(int)} as destination type, libturbojpeg decodes into an image of that type.
+   *
+   * <p>With libturbojpeg &gt;= 3.0, unrotated region reads only decode the MCUs covering the
+   * region. Otherwise, and for rotated reads, the image is losslessly transformed (cropped and
+   * rotated) first and then decoded.
+   *
+   * <p>If the parameters specify a source render size or a source subsampling, the image is decoded
+   * at the smallest of the available sizes that is at least as large as the requested output,
+   * libturbojpeg then skips most of the IDCT work. The remainder is made up by resampling the
+   * raster samples. It is below two unless the output is smaller than the smallest size, larger
+   * factors are first reduced by averaging blocks of samples, the rest by bilinear interpolation.
+   * Source subsampling thus averages pixels rather than picking every n-th one like ImageIO's own
+   * readers.
+   */
   @Override
   public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
     checkIndex(imageIndex);
-    ByteBuffer data = jpegData;
+    if (param != null
+        && (param.getSourceRenderSize() != null
+            || param.getSourceXSubsampling() > 1
+            || param.getSourceYSubsampling() > 1)) {
+      return readScaled(imageIndex, param);
+    }
+    ByteBuffer data = getJpegData();
     try {
       int rotation = 0;
+      int flags = 0;
+      JpegIndex index = null;
       Rectangle region = null;
       Rectangle extraCrop = null;
       if (param instanceof TurboJpegImageReadParam) {
         rotation = ((TurboJpegImageReadParam) param).getRotationDegree();
+        flags = ((TurboJpegImageReadParam) param).getFlags();
+        index = ((TurboJpegImageReadParam) param).getIndex();
+      }
+      if (info.isLossless()) {
+        return readLossless(data, imageIndex, param, rotation, flags);
       }
       if (param != null && param.getSourceRegion() != null) {
         region = param.getSourceRegion();
         if (!isRegionFullImage(imageIndex, region)) {
+          if (rotation == 0
+              && (lib.isPartialDecodeSupported() || index != null)
+              && new Rectangle(getDimension(imageIndex)).contains(region)) {
+            // Decode only the MCUs covering the region, no need to transform the image first
+            BufferedImage destination = param.getDestination();
+            Point destinationOffset = param.getDestinationOffset();
+            if (destination == null) {
+              destination = createDestination(imageIndex, param, region.width, region.height);
+              destinationOffset = null;
+            }
+            if (index != null) {
+              return lib.decode(
+                  data,
+                  info,
+                  index,
+                  getDimension(imageIndex),
+                  region,
+                  destination,
+                  destinationOffset,
+                  flags);
+            }
+            return lib.decode(
+                data,
+                info,
+                getDimension(imageIndex),
+                region,
+                destination,
+                destinationOffset,
+                flags);
+          }
           scaleRegion(imageIndex, region);
           // adjustments need native image size → imageIndex == 0
           extraCrop = adjustRegion(info.getMCUSize(), region, rotation, getDimension(0));
@@ -329,22 +526,238 @@ public class TurboJpegImageReader extends ImageReader {
         }
       }
       if (region != null || rotation != 0) {
-        data = lib.transform(data.array(), info, region, rotation);
+        data = lib.transform(data, info, region, rotation);
       }
-      Info transformedInfo = lib.getInfo(data.array());
-      BufferedImage img =
-          lib.decode(
-              data.array(), transformedInfo, transformedInfo.getAvailableSizes().get(imageIndex));
+      Info transformedInfo = lib.getInfo(data);
+      Dimension size = transformedInfo.getAvailableSizes().get(imageIndex);
+      BufferedImage destination = param != null ? param.getDestination() : null;
+      Point destinationOffset = param != null ? param.getDestinationOffset() : null;
+      if (destination != null && extraCrop == null) {
+        // Let libturbojpeg write straight into the caller's raster
+        return lib.decode(data, transformedInfo, size, destination, destinationOffset, flags);
+      }
+      BufferedImage target =
+          destination != null
+              ? createCompatibleImage(destination, size.width, size.height)
+              : createDestination(imageIndex, param, size.width, size.height);
+      BufferedImage img = lib.decode(data, transformedInfo, size, target, null, flags);
       if (extraCrop != null) {
         adjustExtraCrop(imageIndex, transformedInfo, extraCrop);
         img = img.getSubimage(extraCrop.x, extraCrop.y, extraCrop.width, extraCrop.height);
       }
+      if (destination != null) {
+        // The decoded region is larger than the requested one, so we have to copy
+        Raster src =
+            img.getRaster().createTranslatedChild(destinationOffset.x, destinationOffset.y);
+        destination.getRaster().setRect(src);
+        return destination;
+      }
       return img;
     } catch (TurboJpegException e) {
       throw new IOException(e);
     }
   }
 
+  /** Read with a source render size or subsampling, see {@link #read(int, ImageReadParam)}. */
+  private BufferedImage readScaled(int imageIndex, ImageReadParam param) throws IOException {
+    TurboJpegImageReadParam scaledParam = new TurboJpegImageReadParam();
+    int rotation = 0;
+    if (param instanceof TurboJpegImageReadParam) {
+      TurboJpegImageReadParam turboParam = (TurboJpegImageReadParam) param;
+      rotation = turboParam.getRotationDegree();
+      if (rotation != 0) {
+        scaledParam.setRotationDegree(rotation);
+      }
+      scaledParam.setFastDct(turboParam.isFastDct());
+      scaledParam.setFastUpsample(turboParam.isFastUpsample());
+      scaledParam.setStopOnWarning(turboParam.isStopOnWarning());
+      scaledParam.setIndex(turboParam.getIndex());
+    }
+    scaledParam.setDestinationType(param.getDestinationType());
+    boolean swapDimensions = rotation == 90 || rotation == 270;
+    Dimension renderSize = param.getSourceRenderSize();
+    if (renderSize == null) {
+      renderSize = getRotatedDimension(imageIndex, swapDimensions);
+    }
+
+    Rectangle region = new Rectangle(renderSize);
+    if (param.getSourceRegion() != null) {
+      region = region.intersection(param.getSourceRegion());
+    }
+    region.x += param.getSubsamplingXOffset();
+    region.width -= param.getSubsamplingXOffset();
+    region.y += param.getSubsamplingYOffset();
+    region.height -= param.getSubsamplingYOffset();
+    if (region.isEmpty()) {
+      throw new IllegalArgumentException("Source region does not intersect the image");
+    }
+    int width = (region.width + param.getSourceXSubsampling() - 1) / param.getSourceXSubsampling();
+    int height =
+        (region.height + param.getSourceYSubsampling() - 1) / param.getSourceYSubsampling();
+
+    // Sizes are sorted from largest to smallest, stop at the first one that is too small
+    int scaledIndex = 0;
+    Rectangle scaledRegion =
+        scaleRectangle(region, renderSize, getRotatedDimension(0, swapDimensions));
+    for (int i = 1; i < getNumImages(false); i++) {
+      Rectangle candidate =
+          scaleRectangle(region, renderSize, getRotatedDimension(i, swapDimensions));
+      if (candidate.width < width || candidate.height < height) {
+        break;
+      }
+      scaledIndex = i;
+      scaledRegion = candidate;
+    }
+    if (!scaledRegion.equals(new Rectangle(getRotatedDimension(scaledIndex, swapDimensions)))) {
+      scaledParam.setSourceRegion(scaledRegion);
+    }
+    BufferedImage img = read(scaledIndex, scaledParam);
+    if (img.getWidth() != width || img.getHeight() != height) {
+      img = scale(img, width, height);
+    }
+    BufferedImage destination = param.getDestination();
+    if (destination != null) {
+      Point destinationOffset = param.getDestinationOffset();
+      Raster src = img.getRaster().createTranslatedChild(destinationOffset.x, destinationOffset.y);
+      destination.getRaster().setRect(src);
+      return destination;
+    }
+    return img;
+  }
+
+  private Dimension getRotatedDimension(int imageIndex, boolean swapDimensions) {
+    Dimension size = getDimension(imageIndex);
+    return swapDimensions ? new Dimension(size.height, size.width) : size;
+  }
+
+  /** Map a rectangle relative to an image of size {@code from} to an image of size {@code to}. */
+  private static Rectangle scaleRectangle(Rectangle rectangle, Dimension from, Dimension to) {
+    int x0 = (int) ((long) rectangle.x * to.width / from.width);
+    int y0 = (int) ((long) rectangle.y * to.height / from.height);
+    int x1 =
+        (int)
+            Math.min(
+                ((long) (rectangle.x + rectangle.width) * to.width + from.width - 1) / from.width,
+                to.width);
+    int y1 =
+        (int)
+            Math.min(
+                ((long) (rectangle.y + rectangle.height) * to.height + from.height - 1)
+                    / from.height,
+                to.height);
+    return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+  }
+
+  /**
+   * Scale an image without color conversion. While the factor is two or more, the raster samples
+   * are averaged in blocks of two, the remaining factor is made up by bilinear interpolation.
+   */
+  private static BufferedImage scale(BufferedImage image, int width, int height) {
+    Raster src = image.getRaster();
+    while (src.getWidth() >= 2 * width || src.getHeight() >= 2 * height) {
+      src = halve(src, src.getWidth() >= 2 * width, src.getHeight() >= 2 * height);
+    }
+    WritableRaster dst = src.createCompatibleWritableRaster(width, height);
+    int srcWidth = src.getWidth();
+    int srcHeight = src.getHeight();
+    int bands = src.getNumBands();
+    int[] left = new int[width];
+    int[] right = new int[width];
+    float[] weights = new float[width];
+    for (int x = 0; x < width; x++) {
+      float pos = Math.max(0, Math.min((x + 0.5f) * srcWidth / width - 0.5f, srcWidth - 1));
+      left[x] = (int) pos;
+      right[x] = Math.min(left[x] + 1, srcWidth - 1);
+      weights[x] = pos - left[x];
+    }
+    int[] upper = new int[srcWidth * bands];
+    int[] lower = new int[srcWidth * bands];
+    int[] row = new int[width * bands];
+    for (int y = 0; y < height; y++) {
+      float pos = Math.max(0, Math.min((y + 0.5f) * srcHeight / height - 0.5f, srcHeight - 1));
+      int top = (int) pos;
+      float weight = pos - top;
+      src.getPixels(src.getMinX(), src.getMinY() + top, srcWidth, 1, upper);
+      src.getPixels(
+          src.getMinX(), src.getMinY() + Math.min(top + 1, srcHeight - 1), srcWidth, 1, lower);
+      for (int x = 0; x < width; x++) {
+        int l = left[x] * bands;
+        int r = right[x] * bands;
+        for (int b = 0; b < bands; b++) {
+          float first = upper[l + b] + (upper[r + b] - upper[l + b]) * weights[x];
+          float second = lower[l + b] + (lower[r + b] - lower[l + b]) * weights[x];
+          row[x * bands + b] = Math.round(first + (second - first) * weight);
+        }
+      }
+      dst.setPixels(0, y, width, 1, row);
+    }
+    return new BufferedImage(
+        image.getColorModel(), dst, image.getColorModel().isAlphaPremultiplied(), null);
+  }
+
+  /** Halve the width and/or the height of a raster by averaging pairs of samples. */
+  private static WritableRaster halve(Raster src, boolean halveWidth, boolean halveHeight) {
+    int xStep = halveWidth ? 2 : 1;
+    int yStep = halveHeight ? 2 : 1;
+    int width = src.getWidth() / xStep;
+    int height = src.getHeight() / yStep;
+    int bands = src.getNumBands();
+    WritableRaster dst = src.createCompatibleWritableRaster(width, height);
+    int[] upper = new int[src.getWidth() * bands];
+    int[] lower = new int[src.getWidth() * bands];
+    int[] row = new int[width * bands];
+    for (int y = 0; y < height; y++) {
+      src.getPixels(src.getMinX(), src.getMinY() + y * yStep, src.getWidth(), 1, upper);
+      src.getPixels(src.getMinX(), src.getMinY() + y * yStep + yStep - 1, src.getWidth(), 1, lower);
+      for (int x = 0; x < width; x++) {
+        // Without halving in one direction both samples of a pair are the same
+        int l = x * xStep * bands;
+        int r = (x * xStep + xStep - 1) * bands;
+        for (int b = 0; b < bands; b++) {
+          row[x * bands + b] = (upper[l + b] + upper[r + b] + lower[l + b] + lower[r + b] + 2) / 4;
+        }
+      }
+      dst.setPixels(0, y, width, 1, row);
+    }
+    return dst;
+  }
+
+  /**
+   * Lossless JPEGs can neither be transformed nor decoded partially, so regions are cropped from
+   * the fully decoded image.
+   */
+  private BufferedImage readLossless(
+      ByteBuffer data, int imageIndex, ImageReadParam param, int rotation, int flags)
+      throws TurboJpegException, IIOException {
+    if (rotation != 0) {
+      throw new IllegalArgumentException("Lossless JPEGs cannot be rotated");
+    }
+    Rectangle region = param != null ? param.getSourceRegion() : null;
+    BufferedImage destination = param != null ? param.getDestination() : null;
+    Point destinationOffset = param != null ? param.getDestinationOffset() : null;
+    Dimension size = getDimension(imageIndex);
+    if (region == null || isRegionFullImage(imageIndex, region)) {
+      if (destination == null) {
+        destination = createDestination(imageIndex, param, size.width, size.height);
+        destinationOffset = null;
+      }
+      return lib.decode(data, info, size, destination, destinationOffset, flags);
+    }
+    BufferedImage target =
+        destination != null
+            ? createCompatibleImage(destination, size.width, size.height)
+            : createDestination(imageIndex, param, size.width, size.height);
+    BufferedImage img =
+        lib.decode(data, info, size, target, null, flags)
+            .getSubimage(region.x, region.y, region.width, region.height);
+    if (destination != null) {
+      Raster src = img.getRaster().createTranslatedChild(destinationOffset.x, destinationOffset.y);
+      destination.getRaster().setRect(src);
+      return destination;
+    }
+    return img;
+  }
+
   private boolean isRegionFullImage(int imageIndex, Rectangle region) {
     int nativeWidth = getWidth(imageIndex);
     int nativeHeight = getHeight(imageIndex);
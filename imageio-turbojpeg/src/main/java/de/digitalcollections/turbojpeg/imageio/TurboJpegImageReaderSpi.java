@@ -1,10 +1,14 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.HandlePool;
 import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.JpegHeader;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
 import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.stream.Stream;
@@ -34,6 +38,7 @@ public class TurboJpegImageReaderSpi extends ImageReaderSpi {
   };
 
   private TurboJpeg lib;
+  private int maxIdleHandles = HandlePool.DEFAULT_MAX_IDLE;
 
   /** Construct the SPI. Boilerplate. */
   public TurboJpegImageReaderSpi() {
@@ -44,7 +49,7 @@ public class TurboJpegImageReaderSpi extends ImageReaderSpi {
         suffixes,
         MIMETypes,
         readerClassName,
-        new Class[] {ImageInputStream.class},
+        new Class[] {ImageInputStream.class, File.class, Path.class},
         writerSpiNames,
         false,
         null,
@@ -58,10 +63,34 @@ public class TurboJpegImageReaderSpi extends ImageReaderSpi {
         null);
   }
 
+  public int getMaxIdleHandles() {
+    return maxIdleHandles;
+  }
+
+  /**
+   * Set the maximum number of idle native TurboJPEG handles that are kept for reuse by the decoding
+   * plugin.
+   *
+   * <p>Since the provider is instantiated by the {@link javax.imageio.spi.IIORegistry}, obtain it
+   * via {@code
+   * IIORegistry.getDefaultInstance().getServiceProviderByClass(TurboJpegImageReaderSpi.class)}.
+   *
+   * @param maxIdleHandles maximum number of idle handles per handle kind, 0 disables pooling
+   */
+  public void setMaxIdleHandles(int maxIdleHandles) {
+    if (maxIdleHandles < 0) {
+      throw new IllegalArgumentException("Maximum number of idle handles must not be negative");
+    }
+    this.maxIdleHandles = maxIdleHandles;
+    if (this.lib != null) {
+      this.lib.getHandlePool().setMaxIdle(maxIdleHandles);
+    }
+  }
+
   private void loadLibrary() throws IOException {
     if (this.lib == null) {
       try {
-        this.lib = new TurboJpeg();
+        this.lib = new TurboJpeg(maxIdleHandles);
       } catch (UnsatisfiedLinkError e) {
         LOGGER.warn("Could not load libturbojpeg, plugin will be disabled");
         throw new IOException(e);
@@ -93,36 +122,56 @@ public class TurboJpegImageReaderSpi extends ImageReaderSpi {
   @Override
   public boolean canDecodeInput(Object input) throws IOException {
     loadLibrary();
-    if (!(input instanceof ImageInputStream)) {
-      input = ImageIO.createImageInputStream(input);
+    if (input instanceof ImageInputStream) {
+      return canDecode((ImageInputStream) input);
     }
-    if (input == null) {
-      return false;
+    if (input instanceof Path) {
+      input = ((Path) input).toFile();
     }
-    ImageInputStream stream = (ImageInputStream) input;
+    // A stream opened for a file keeps its descriptor until it is garbage collected if not closed
+    try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+      return stream != null && canDecode(stream);
+    }
+  }
+
+  private boolean canDecode(ImageInputStream stream) throws IOException {
     byte[] b = new byte[2];
+    stream.mark();
     try {
-      stream.mark();
       stream.readFully(b);
     } catch (IOException e) {
       return false;
+    } finally {
+      stream.reset();
     }
     if (!Arrays.equals(b, HEADER_MAGIC)) {
       return false;
     }
 
-    stream.reset();
+    // Scanning the marker segments is enough for the vast majority of images, only if that fails
+    // we let libturbojpeg decide, which requires reading the complete stream.
+    TJCS colorspace;
+    stream.mark();
     try {
-      Info info = this.lib.getInfo(TurboJpegImageReader.bufferFromStream(stream).array());
-      stream.reset();
-      if (info == null || info.getColorspace() == TJCS.TJCS_CMYK) {
-        return false;
+      JpegHeader header = JpegHeader.read(stream);
+      if (header != null) {
+        colorspace = header.getColorspace();
+      } else {
+        stream.reset();
+        stream.mark();
+        Info info = this.lib.getInfo(TurboJpegImageReader.bufferFromStream(stream));
+        if (info == null) {
+          return false;
+        }
+        colorspace = info.getColorspace();
       }
     } catch (TurboJpegException e) {
       LOGGER.error("Could not read JPEG info", e);
       return false;
+    } finally {
+      stream.reset();
     }
-    return true;
+    return colorspace != TJCS.TJCS_CMYK;
   }
 
   @Override
@@ -1,10 +1,27 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.EncodeOptions;
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
 import java.util.Locale;
+import javax.imageio.ImageWriteParam;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 
+/**
+ * Parameters for writing JPEG images.
+ *
+ * <p>Progressive encoding is enabled with {@link #setProgressiveMode(int)} set to {@link
+ * #MODE_DEFAULT}, optimized Huffman tables with {@link #setOptimizeHuffmanTables(boolean)}.
+ * Optimized Huffman tables, arithmetic coding and restart markers require libturbojpeg &gt;= 3.0.
+ */
 public class TurboJpegImageWriteParam extends JPEGImageWriteParam {
 
+  private TJSAMP subsampling;
+  private boolean fastDct;
+  private boolean accurateDct;
+  private boolean arithmetic;
+  private int restartInterval;
+
   public TurboJpegImageWriteParam(Locale locale) {
     super(locale);
   }
@@ -18,4 +35,90 @@ public class TurboJpegImageWriteParam extends JPEGImageWriteParam {
   public boolean isCompressionLossless() {
     return false;
   }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  /**
+   * Set the chroma subsampling (4:4:4, 4:2:2, 4:2:0, 4:4:0, 4:1:1 or gray), defaults to 4:2:0 for
+   * color images.
+   *
+   * @param subsampling the subsampling, or null for the default
+   */
+  public void setSubsampling(TJSAMP subsampling) {
+    if (subsampling == TJSAMP.TJSAMP_UNKNOWN) {
+      throw new IllegalArgumentException("Illegal subsampling: " + subsampling);
+    }
+    this.subsampling = subsampling;
+  }
+
+  public boolean isFastDct() {
+    return fastDct;
+  }
+
+  /** Use the fastest forward DCT algorithm available, which is less accurate. */
+  public void setFastDct(boolean fastDct) {
+    this.fastDct = fastDct;
+    if (fastDct) {
+      this.accurateDct = false;
+    }
+  }
+
+  public boolean isAccurateDct() {
+    return accurateDct;
+  }
+
+  /** Use the most accurate forward DCT algorithm available, even if it is slower. */
+  public void setAccurateDct(boolean accurateDct) {
+    this.accurateDct = accurateDct;
+    if (accurateDct) {
+      this.fastDct = false;
+    }
+  }
+
+  public boolean isArithmetic() {
+    return arithmetic;
+  }
+
+  /** Use arithmetic instead of Huffman entropy coding, which many decoders do not support. */
+  public void setArithmetic(boolean arithmetic) {
+    this.arithmetic = arithmetic;
+  }
+
+  public int getRestartInterval() {
+    return restartInterval;
+  }
+
+  /** Set the number of MCU blocks between restart markers, 0 (the default) disables them. */
+  public void setRestartInterval(int restartInterval) {
+    if (restartInterval < 0 || restartInterval > 65535) {
+      throw new IllegalArgumentException("Illegal restart interval, must be between 0 and 65535");
+    }
+    this.restartInterval = restartInterval;
+  }
+
+  /** Translate the settings into options for the encoder. */
+  EncodeOptions toEncodeOptions() {
+    EncodeOptions options = new EncodeOptions();
+    if (getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
+      options.setQuality(Math.max(1, Math.min(100, (int) (getCompressionQuality() * 100))));
+    }
+    int flags = 0;
+    if (fastDct) {
+      flags |= TJFLAG.TJFLAG_FASTDCT;
+    }
+    if (accurateDct) {
+      flags |= TJFLAG.TJFLAG_ACCURATEDCT;
+    }
+    if (getProgressiveMode() == ImageWriteParam.MODE_DEFAULT) {
+      flags |= TJFLAG.TJFLAG_PROGRESSIVE;
+    }
+    options.setFlags(flags);
+    options.setSubsampling(subsampling);
+    options.setOptimize(getOptimizeHuffmanTables());
+    options.setArithmetic(arithmetic);
+    options.setRestartInterval(restartInterval);
+    return options;
+  }
 }
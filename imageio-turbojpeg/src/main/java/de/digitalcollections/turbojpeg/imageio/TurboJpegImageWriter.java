@@ -1,5 +1,6 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.EncodeOptions;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
 import java.awt.Rectangle;
@@ -78,12 +79,17 @@ public class TurboJpegImageWriter extends ImageWriter {
       sourceRegion = sourceRegion.intersection(param.getSourceRegion());
     }
     Raster raster = img.getData(sourceRegion);
-    int quality = 85;
-    if (param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
-      quality = (int) (param.getCompressionQuality() * 100);
+    EncodeOptions options;
+    if (param instanceof TurboJpegImageWriteParam) {
+      options = ((TurboJpegImageWriteParam) param).toEncodeOptions();
+    } else {
+      options = new EncodeOptions();
+      if (param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
+        options.setQuality(Math.max(1, Math.min(100, (int) (param.getCompressionQuality() * 100))));
+      }
     }
     try {
-      stream.write(lib.encode(raster, quality).array());
+      stream.write(lib.encode(raster, options).array());
     } catch (TurboJpegException e) {
       throw new IOException(e);
     }
@@ -1,10 +1,8 @@
 package de.digitalcollections.turbojpeg.imageio;
 
-import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
-import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
-import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
-
+import de.digitalcollections.turbojpeg.HandlePool;
 import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
 import java.io.IOException;
 import java.util.Locale;
 import java.util.stream.Stream;
@@ -34,6 +32,7 @@ public class TurboJpegImageWriterSpi extends ImageWriterSpi {
   private static final Class<?>[] outputTypes = {ImageOutputStream.class};
 
   private TurboJpeg lib;
+  private int maxIdleHandles = HandlePool.DEFAULT_MAX_IDLE;
 
   /** Construct the SPI. Boilerplate. */
   public TurboJpegImageWriterSpi() {
@@ -58,10 +57,34 @@ public class TurboJpegImageWriterSpi extends ImageWriterSpi {
         null);
   }
 
+  public int getMaxIdleHandles() {
+    return maxIdleHandles;
+  }
+
+  /**
+   * Set the maximum number of idle native TurboJPEG handles that are kept for reuse by the encoding
+   * plugin.
+   *
+   * <p>Since the provider is instantiated by the {@link javax.imageio.spi.IIORegistry}, obtain it
+   * via {@code
+   * IIORegistry.getDefaultInstance().getServiceProviderByClass(TurboJpegImageWriterSpi.class)}.
+   *
+   * @param maxIdleHandles maximum number of idle handles per handle kind, 0 disables pooling
+   */
+  public void setMaxIdleHandles(int maxIdleHandles) {
+    if (maxIdleHandles < 0) {
+      throw new IllegalArgumentException("Maximum number of idle handles must not be negative");
+    }
+    this.maxIdleHandles = maxIdleHandles;
+    if (this.lib != null) {
+      this.lib.getHandlePool().setMaxIdle(maxIdleHandles);
+    }
+  }
+
   private void loadLibrary() throws IOException {
     if (this.lib == null) {
       try {
-        this.lib = new TurboJpeg();
+        this.lib = new TurboJpeg(maxIdleHandles);
       } catch (UnsatisfiedLinkError e) {
         LOGGER.warn("Could not load libturbojpeg, plugin will be disabled");
         throw new IOException(e);
@@ -92,12 +115,13 @@ public class TurboJpegImageWriterSpi extends ImageWriterSpi {
 
   @Override
   public boolean canEncodeImage(ImageTypeSpecifier type) {
-    // TODO: Support all image types, if necessary convert before encoding
-    int bufferedImageType = type.getBufferedImageType();
-    return (type.getNumBands() == 3 || type.getNumBands() == 1)
-        && (bufferedImageType == TYPE_3BYTE_BGR
-            || bufferedImageType == TYPE_4BYTE_ABGR
-            || bufferedImageType == TYPE_BYTE_GRAY);
+    // Only types whose raster memory can be passed to libturbojpeg as-is, alpha is dropped
+    try {
+      TJPF.fromImageType(type.getBufferedImageType());
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
   }
 
   @Override
@@ -0,0 +1,13 @@
+package de.digitalcollections.turbojpeg.lib.enums;
+
+/** Flags for the legacy TurboJPEG API, superseded by {@link TJPARAM} in libturbojpeg &gt;= 3.0. */
+public class TJFLAG {
+  public static final int TJFLAG_BOTTOMUP = 2;
+  public static final int TJFLAG_FASTUPSAMPLE = 256;
+  public static final int TJFLAG_NOREALLOC = 1024;
+  public static final int TJFLAG_FASTDCT = 2048;
+  public static final int TJFLAG_ACCURATEDCT = 4096;
+  public static final int TJFLAG_STOPONWARNING = 8192;
+  public static final int TJFLAG_PROGRESSIVE = 16384;
+  public static final int TJFLAG_LIMITSCANS = 32768;
+}
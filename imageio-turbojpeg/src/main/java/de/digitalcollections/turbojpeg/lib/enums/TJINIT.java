@@ -0,0 +1,28 @@
+package de.digitalcollections.turbojpeg.lib.enums;
+
+import java.util.Arrays;
+import jnr.ffi.util.EnumMapper.IntegerEnum;
+
+public enum TJINIT implements IntegerEnum {
+  TJINIT_COMPRESS(0),
+  TJINIT_DECOMPRESS(1),
+  TJINIT_TRANSFORM(2);
+
+  private final int val;
+
+  TJINIT(int val) {
+    this.val = val;
+  }
+
+  @Override
+  public int intValue() {
+    return val;
+  }
+
+  public static TJINIT fromInt(int val) {
+    return Arrays.stream(TJINIT.values())
+        .filter(v -> v.val == val)
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Unknown TJINIT: " + val));
+  }
+}
@@ -0,0 +1,51 @@
+package de.digitalcollections.turbojpeg.lib.enums;
+
+import java.util.Arrays;
+import jnr.ffi.util.EnumMapper.IntegerEnum;
+
+/** Parameters of a TurboJPEG 3 handle, see {@code tj3Set} and {@code tj3Get}. */
+public enum TJPARAM implements IntegerEnum {
+  TJPARAM_STOPONWARNING(0),
+  TJPARAM_BOTTOMUP(1),
+  TJPARAM_NOREALLOC(2),
+  TJPARAM_QUALITY(3),
+  TJPARAM_SUBSAMP(4),
+  TJPARAM_JPEGWIDTH(5),
+  TJPARAM_JPEGHEIGHT(6),
+  TJPARAM_PRECISION(7),
+  TJPARAM_COLORSPACE(8),
+  TJPARAM_FASTUPSAMPLE(9),
+  TJPARAM_FASTDCT(10),
+  TJPARAM_OPTIMIZE(11),
+  TJPARAM_PROGRESSIVE(12),
+  TJPARAM_SCANLIMIT(13),
+  TJPARAM_ARITHMETIC(14),
+  TJPARAM_LOSSLESS(15),
+  TJPARAM_LOSSLESSPSV(16),
+  TJPARAM_LOSSLESSPT(17),
+  TJPARAM_RESTARTBLOCKS(18),
+  TJPARAM_RESTARTROWS(19),
+  TJPARAM_XDENSITY(20),
+  TJPARAM_YDENSITY(21),
+  TJPARAM_DENSITYUNITS(22),
+  TJPARAM_MAXMEMORY(23),
+  TJPARAM_MAXPIXELS(24);
+
+  private final int val;
+
+  TJPARAM(int val) {
+    this.val = val;
+  }
+
+  @Override
+  public int intValue() {
+    return val;
+  }
+
+  public static TJPARAM fromInt(int val) {
+    return Arrays.stream(TJPARAM.values())
+        .filter(v -> v.val == val)
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Unknown TJPARAM: " + val));
+  }
+}
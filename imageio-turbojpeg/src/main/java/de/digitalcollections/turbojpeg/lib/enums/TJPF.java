@@ -4,7 +4,12 @@ import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
 import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
 import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR_PRE;
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_BGR;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import jnr.ffi.util.EnumMapper.IntegerEnum;
 
@@ -24,8 +29,20 @@ public enum TJPF implements IntegerEnum {
 
   private final int val;
 
+  /**
+   * Get the pixel format matching the memory layout of a {@link java.awt.image.BufferedImage} type,
+   * for the {@code TYPE_INT_*} types this depends on the platform's endianness.
+   */
   public static TJPF fromImageType(int imageType) {
+    boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
     switch (imageType) {
+      case TYPE_INT_RGB:
+        return littleEndian ? TJPF_BGRX : TJPF_XRGB;
+      case TYPE_INT_BGR:
+        return littleEndian ? TJPF_RGBX : TJPF_XBGR;
+      case TYPE_INT_ARGB:
+      case TYPE_INT_ARGB_PRE:
+        return littleEndian ? TJPF_BGRA : TJPF_ARGB;
       case TYPE_3BYTE_BGR:
         return TJPF_BGR;
       case TYPE_4BYTE_ABGR:
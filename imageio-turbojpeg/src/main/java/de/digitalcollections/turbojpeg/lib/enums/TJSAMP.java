@@ -4,12 +4,16 @@ import java.util.Arrays;
 import jnr.ffi.util.EnumMapper.IntegerEnum;
 
 public enum TJSAMP implements IntegerEnum {
+  /** Returned by libturbojpeg &gt;= 3.0 for lossless JPEGs and non-standard sampling factors. */
+  TJSAMP_UNKNOWN(-1),
   TJSAMP_444(0),
   TJSAMP_422(1),
   TJSAMP_420(2),
   TJSAMP_GRAY(3),
   TJSAMP_440(4),
-  TJSAMP_411(5);
+  TJSAMP_411(5),
+  /** Only supported by libturbojpeg &gt;= 3.0. */
+  TJSAMP_441(6);
 
   private final int val;
 
@@ -2,10 +2,8 @@ package de.digitalcollections.turbojpeg.lib;
 
 import de.digitalcollections.turbojpeg.lib.enums.TJPF;
 import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
-import de.digitalcollections.turbojpeg.lib.structs.tjtransform;
 import java.nio.Buffer;
 import jnr.ffi.Pointer;
-import jnr.ffi.annotations.Direct;
 import jnr.ffi.annotations.In;
 import jnr.ffi.annotations.Out;
 import jnr.ffi.byref.IntByReference;
@@ -31,7 +29,7 @@ public interface libturbojpeg {
       Pointer handle,
       @In Buffer jpegBuf,
       @u_int32_t long jpegSize,
-      @Out Buffer dstBuf,
+      @In @Out Buffer dstBuf,
       int width,
       int pitch,
       int height,
@@ -40,7 +38,7 @@ public interface libturbojpeg {
 
   int tjDecompressHeader3(
       Pointer handle,
-      Buffer jpegBuf,
+      @In Buffer jpegBuf,
       @u_int32_t long jpegSize,
       @Out @In IntByReference width,
       @Out @In IntByReference height,
@@ -49,12 +47,58 @@ public interface libturbojpeg {
 
   int tjTransform(
       Pointer handle,
-      Buffer jpegBuf,
+      @In Buffer jpegBuf,
       @u_int32_t long jpegSize,
       int n,
-      PointerByReference outBuf,
-      NativeLongByReference dstSizes,
-      @Direct tjtransform transform,
+      Pointer dstBufs,
+      Pointer dstSizes,
+      Pointer transforms,
+      int flags);
+
+  int tjDecompressToYUVPlanes(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @u_int32_t long jpegSize,
+      Pointer dstPlanes,
+      int width,
+      Pointer strides,
+      int height,
+      int flags);
+
+  int tjCompressFromYUVPlanes(
+      Pointer handle,
+      Pointer srcPlanes,
+      int width,
+      Pointer strides,
+      int height,
+      TJSAMP subsamp,
+      PointerByReference jpegBuf,
+      NativeLongByReference jpegSize,
+      int jpegQual,
+      int flags);
+
+  int tjEncodeYUVPlanes(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      Pointer dstPlanes,
+      Pointer strides,
+      TJSAMP subsamp,
+      int flags);
+
+  int tjDecodeYUVPlanes(
+      Pointer handle,
+      Pointer srcPlanes,
+      Pointer strides,
+      TJSAMP subsamp,
+      @In @Out Buffer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
       int flags);
 
   int tjDestroy(Pointer handle);
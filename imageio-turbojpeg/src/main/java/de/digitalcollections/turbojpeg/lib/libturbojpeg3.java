@@ -0,0 +1,180 @@
+package de.digitalcollections.turbojpeg.lib;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJINIT;
+import de.digitalcollections.turbojpeg.lib.enums.TJPARAM;
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import de.digitalcollections.turbojpeg.lib.structs.tjregion;
+import java.nio.Buffer;
+import jnr.ffi.Pointer;
+import jnr.ffi.annotations.Direct;
+import jnr.ffi.annotations.In;
+import jnr.ffi.annotations.Out;
+import jnr.ffi.byref.IntByReference;
+import jnr.ffi.byref.NumberByReference;
+import jnr.ffi.byref.PointerByReference;
+import jnr.ffi.types.size_t;
+
+/**
+ * Bindings for the TurboJPEG 3 API, available in libturbojpeg &gt;= 3.0.
+ *
+ * <p>Handles created by the legacy {@code tjInit*} functions can be used with these functions as
+ * well, since libturbojpeg 3 implements the legacy API on top of the new one.
+ *
+ * <p>JNR-FFI cannot pass structs by value, so the {@code tjscalingfactor} and {@code tjregion}
+ * arguments are passed as their memory representation packed into 64 bit integers, which is how the
+ * System V (x86_64) and AArch64 calling conventions pass small structs. On Windows (x64), structs
+ * larger than 8 bytes are passed by reference, use {@link #tj3SetCroppingRegionByReference(Pointer,
+ * tjregion)} there.
+ *
+ * <p>The {@code size_t *} output arguments have to be passed as {@link NumberByReference} with the
+ * {@link jnr.ffi.TypeAlias#size_t} alias, the 12 and 16 bit variants of the (de)compression
+ * functions expect {@code short} buffers and their pitch in samples instead of bytes.
+ *
+ * <p>{@link #tj3Transform} takes raw pointers to its output arrays and to an array of {@code
+ * tjtransform} structs, so that several transforms can be run in a single call. The YUV functions
+ * take a pointer to an array of plane pointers and one to an array of {@code int} strides.
+ */
+public interface libturbojpeg3 {
+  Pointer tj3Init(TJINIT initType);
+
+  void tj3Destroy(Pointer handle);
+
+  String tj3GetErrorStr(Pointer handle);
+
+  int tj3GetErrorCode(Pointer handle);
+
+  int tj3Set(Pointer handle, TJPARAM param, int value);
+
+  /**
+   * @return the value of the parameter, or -1 if it is unknown or not applicable to the handle
+   */
+  int tj3Get(Pointer handle, TJPARAM param);
+
+  Pointer tj3Alloc(@size_t long bytes);
+
+  void tj3Free(Pointer buffer);
+
+  @size_t
+  long tj3JPEGBufSize(int width, int height, TJSAMP jpegSubsamp);
+
+  Pointer tj3GetScalingFactors(@Out IntByReference numScalingFactors);
+
+  int tj3Compress8(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      PointerByReference jpegBuf,
+      NumberByReference jpegSize);
+
+  int tj3Compress12(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      PointerByReference jpegBuf,
+      NumberByReference jpegSize);
+
+  int tj3Compress16(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      PointerByReference jpegBuf,
+      NumberByReference jpegSize);
+
+  int tj3DecompressHeader(Pointer handle, @In Buffer jpegBuf, @size_t long jpegSize);
+
+  /**
+   * @param scalingFactor {@code tjscalingfactor} struct, {@code num} and {@code denom} packed into
+   *     a single 64 bit value
+   */
+  int tj3SetScalingFactor(Pointer handle, long scalingFactor);
+
+  /**
+   * @param xy {@code x} and {@code y} fields of the {@code tjregion} struct, packed into a 64 bit
+   *     value
+   * @param wh {@code w} and {@code h} fields of the {@code tjregion} struct, packed into a 64 bit
+   *     value
+   */
+  int tj3SetCroppingRegion(Pointer handle, long xy, long wh);
+
+  /** Variant of {@link #tj3SetCroppingRegion(Pointer, long, long)} for the Windows x64 ABI. */
+  int tj3SetCroppingRegionByReference(Pointer handle, @In @Direct tjregion croppingRegion);
+
+  int tj3Decompress8(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      @In @Out Buffer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+
+  int tj3Decompress12(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      @In @Out Buffer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+
+  int tj3Decompress16(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      @In @Out Buffer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+
+  int tj3DecompressToYUVPlanes8(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      Pointer dstPlanes,
+      Pointer strides);
+
+  int tj3CompressFromYUVPlanes8(
+      Pointer handle,
+      Pointer srcPlanes,
+      int width,
+      Pointer strides,
+      int height,
+      PointerByReference jpegBuf,
+      NumberByReference jpegSize);
+
+  int tj3EncodeYUVPlanes8(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      Pointer dstPlanes,
+      Pointer strides);
+
+  int tj3DecodeYUVPlanes8(
+      Pointer handle,
+      Pointer srcPlanes,
+      Pointer strides,
+      @In @Out Buffer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat);
+
+  int tj3Transform(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      int n,
+      Pointer dstBufs,
+      Pointer dstSizes,
+      Pointer transforms);
+}
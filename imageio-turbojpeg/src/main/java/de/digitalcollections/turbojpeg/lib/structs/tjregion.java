@@ -9,7 +9,7 @@ public class tjregion extends Struct {
   public Signed32 w = new Signed32();
   public Signed32 h = new Signed32();
 
-  protected tjregion(Runtime runtime) {
+  public tjregion(Runtime runtime) {
     super(runtime);
   }
 }
@@ -0,0 +1,63 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class JpegIndexBandTest {
+
+  private final TurboJpeg turboJpeg = new TurboJpeg();
+
+  private static int countMarkers(ByteBuffer data, int marker) {
+    int count = 0;
+    for (int i = 0; i + 1 < data.limit(); i++) {
+      if ((data.get(i) & 0xFF) == 0xFF && (data.get(i + 1) & 0xFF) == marker) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testExtractRowsWithFullDcTables() throws Exception {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    // Every MCU row is a little brighter than the one above, so the DC differences are small while
+    // the absolute DC values grow large. An optimized DC table only has codes for the former.
+    BufferedImage img = new BufferedImage(64, 512, BufferedImage.TYPE_BYTE_GRAY);
+    for (int y = 0; y < img.getHeight(); y++) {
+      for (int x = 0; x < img.getWidth(); x++) {
+        img.getRaster().setSample(x, y, 0, 128 + (y / 8) * 2);
+      }
+    }
+    EncodeOptions options = new EncodeOptions();
+    options.setQuality(100);
+    options.setOptimize(true);
+    ByteBuffer data = turboJpeg.encode(img.getRaster(), options);
+    Info info = turboJpeg.getInfo(data);
+    BufferedImage full =
+        turboJpeg.decode(data, info, new Dimension(info.getWidth(), info.getHeight()));
+
+    JpegIndex index = JpegIndex.build(data, 2);
+    assertThat(index).isNotNull();
+    assertThat(index.getNumCheckpoints()).isEqualTo(32);
+    // The predictor at checkpoint 4 (MCU row 8) is 7 * 16, the table has no code for its category
+    ByteBuffer band = index.extractRows(data, 4, 6);
+    assertThat(band).isNotNull();
+    assertThat(countMarkers(band, 0xC4)).isEqualTo(countMarkers(data, 0xC4) + 1);
+
+    Info bandInfo = turboJpeg.getInfo(band);
+    assertThat(bandInfo.getHeight()).isEqualTo(32);
+    BufferedImage decoded =
+        turboJpeg.decode(band, bandInfo, new Dimension(bandInfo.getWidth(), bandInfo.getHeight()));
+    for (int y = 0; y < decoded.getHeight(); y++) {
+      for (int x = 0; x < decoded.getWidth(); x++) {
+        assertThat(decoded.getRaster().getSample(x, y, 0))
+            .isEqualTo(full.getRaster().getSample(x, y + 64, 0));
+      }
+    }
+  }
+}
@@ -55,6 +55,39 @@ class BufferedImageAssert extends AbstractAssert<BufferedImageAssert, BufferedIm
     return this;
   }
 
+  /**
+   * Check that the image differs from the other one, but only slightly, e.g. when decoded with a
+   * faster but less accurate method.
+   *
+   * @param minPsnr lower bound for the peak signal-to-noise ratio of the RGB samples, in dB
+   */
+  public BufferedImageAssert differsSlightlyFrom(BufferedImage other, double minPsnr) {
+    isNotNull();
+    assertEquals(other.getWidth(), actual.getWidth());
+    assertEquals(other.getHeight(), actual.getHeight());
+    double squaredError = 0;
+    for (int y = 0; y < other.getHeight(); y++) {
+      for (int x = 0; x < other.getWidth(); x++) {
+        int expectedPixel = other.getRGB(x, y);
+        int actualPixel = actual.getRGB(x, y);
+        for (int shift = 0; shift < 24; shift += 8) {
+          int diff = ((expectedPixel >> shift) & 0xFF) - ((actualPixel >> shift) & 0xFF);
+          squaredError += diff * diff;
+        }
+      }
+    }
+    if (squaredError == 0) {
+      failWithMessage("Expected image to differ, but all pixels are equal");
+    }
+    double mse = squaredError / (3.0 * other.getWidth() * other.getHeight());
+    double psnr = 10 * Math.log10(255 * 255 / mse);
+    if (psnr < minPsnr) {
+      failWithMessage(
+          "Expected a PSNR of at least %.1f dB, got %.1f dB.%s", minPsnr, psnr, writeDebugImage());
+    }
+    return this;
+  }
+
   public BufferedImageAssert isEqualTo(BufferedImage other) {
     int width = other.getWidth();
     assertEquals(width, actual.getWidth());
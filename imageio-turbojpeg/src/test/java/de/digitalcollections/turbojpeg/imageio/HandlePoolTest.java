@@ -0,0 +1,94 @@
+package de.digitalcollections.turbojpeg.imageio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.turbojpeg.HandlePool;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import java.util.ArrayList;
+import java.util.List;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HandlePoolTest {
+
+  private List<Pointer> created;
+  private List<Pointer> destroyed;
+
+  @BeforeEach
+  void setUp() {
+    created = new ArrayList<>();
+    destroyed = new ArrayList<>();
+  }
+
+  private HandlePool createPool(int maxIdle, long idleTimeoutMs) {
+    return new HandlePool(
+        kind -> {
+          Pointer handle = Runtime.getSystemRuntime().getMemoryManager().allocateDirect(8);
+          created.add(handle);
+          return handle;
+        },
+        destroyed::add,
+        maxIdle,
+        idleTimeoutMs);
+  }
+
+  @Test
+  void reusesReleasedHandles() throws TurboJpegException {
+    HandlePool pool = createPool(2, 60_000);
+    Pointer first = pool.acquire(HandlePool.Kind.DECOMPRESS);
+    pool.release(HandlePool.Kind.DECOMPRESS, first);
+    Pointer second = pool.acquire(HandlePool.Kind.DECOMPRESS);
+    assertThat(second).isSameAs(first);
+    assertThat(created).hasSize(1);
+    assertThat(destroyed).isEmpty();
+  }
+
+  @Test
+  void doesNotMixKinds() throws TurboJpegException {
+    HandlePool pool = createPool(2, 60_000);
+    Pointer decompress = pool.acquire(HandlePool.Kind.DECOMPRESS);
+    pool.release(HandlePool.Kind.DECOMPRESS, decompress);
+    Pointer compress = pool.acquire(HandlePool.Kind.COMPRESS);
+    assertThat(compress).isNotSameAs(decompress);
+    assertThat(pool.getIdleCount(HandlePool.Kind.DECOMPRESS)).isEqualTo(1);
+  }
+
+  @Test
+  void destroysSurplusHandles() throws TurboJpegException {
+    HandlePool pool = createPool(1, 60_000);
+    Pointer first = pool.acquire(HandlePool.Kind.TRANSFORM);
+    Pointer second = pool.acquire(HandlePool.Kind.TRANSFORM);
+    pool.release(HandlePool.Kind.TRANSFORM, first);
+    pool.release(HandlePool.Kind.TRANSFORM, second);
+    assertThat(pool.getIdleCount(HandlePool.Kind.TRANSFORM)).isEqualTo(1);
+    assertThat(destroyed).containsExactly(second);
+
+    pool.setMaxIdle(0);
+    assertThat(pool.getIdleCount(HandlePool.Kind.TRANSFORM)).isZero();
+    assertThat(destroyed).containsExactly(second, first);
+  }
+
+  @Test
+  void evictsIdleHandles() throws Exception {
+    HandlePool pool = createPool(4, 60_000);
+    Pointer handle = pool.acquire(HandlePool.Kind.DECOMPRESS);
+    pool.release(HandlePool.Kind.DECOMPRESS, handle);
+    Thread.sleep(5);
+    pool.setIdleTimeoutMs(1);
+    assertThat(pool.getIdleCount(HandlePool.Kind.DECOMPRESS)).isZero();
+    assertThat(destroyed).containsExactly(handle);
+  }
+
+  @Test
+  void closeDestroysIdleHandles() throws TurboJpegException {
+    HandlePool pool = createPool(4, 60_000);
+    Pointer inUse = pool.acquire(HandlePool.Kind.COMPRESS);
+    Pointer idle = pool.acquire(HandlePool.Kind.COMPRESS);
+    pool.release(HandlePool.Kind.COMPRESS, idle);
+    pool.close();
+    assertThat(destroyed).containsExactly(idle);
+    assertThat(destroyed).doesNotContain(inUse);
+  }
+}
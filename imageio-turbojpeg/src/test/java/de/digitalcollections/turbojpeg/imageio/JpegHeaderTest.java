@@ -0,0 +1,103 @@
+package de.digitalcollections.turbojpeg.imageio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.turbojpeg.JpegHeader;
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.jupiter.api.Test;
+
+class JpegHeaderTest {
+
+  private JpegHeader readFixture(String fixtureFile) throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource(fixtureFile).getFile());
+    try (ImageInputStream is = ImageIO.createImageInputStream(inFile)) {
+      return JpegHeader.read(is);
+    }
+  }
+
+  private JpegHeader readBytes(int... data) throws IOException {
+    byte[] bytes = new byte[data.length];
+    for (int i = 0; i < data.length; i++) {
+      bytes[i] = (byte) data[i];
+    }
+    return JpegHeader.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  @Test
+  public void testRgb() throws IOException {
+    JpegHeader header = readFixture("rgb.jpg");
+    assertThat(header.getWidth()).isEqualTo(512);
+    assertThat(header.getHeight()).isEqualTo(512);
+    assertThat(header.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_444);
+    assertThat(header.getColorspace()).isEqualTo(TJCS.TJCS_YCbCr);
+  }
+
+  @Test
+  public void testSubsampling() throws IOException {
+    assertThat(readFixture("subsampling_411.jpg").getSubsampling()).isEqualTo(TJSAMP.TJSAMP_411);
+    assertThat(readFixture("thumbnail.jpg").getSubsampling()).isEqualTo(TJSAMP.TJSAMP_420);
+  }
+
+  @Test
+  public void testProgressive() throws IOException {
+    JpegHeader header = readFixture("prime_shaped.jpg");
+    assertThat(header.getWidth()).isEqualTo(521);
+    assertThat(header.getHeight()).isEqualTo(509);
+  }
+
+  @Test
+  public void testGrayscale() throws IOException {
+    JpegHeader header = readFixture("grayscale.jpg");
+    assertThat(header.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_GRAY);
+    assertThat(header.getColorspace()).isEqualTo(TJCS.TJCS_GRAY);
+  }
+
+  @Test
+  public void testCmyk() throws IOException {
+    assertThat(readFixture("cmyk.jpg").getColorspace()).isEqualTo(TJCS.TJCS_CMYK);
+  }
+
+  @Test
+  public void testRgbComponentIds() throws IOException {
+    JpegHeader header =
+        readBytes(
+            0xFF, 0xD8, // SOI
+            0xFF, 0xC0, 0x00, 0x11, 0x08, 0x00, 0x10, 0x00, 0x20, 0x03, // SOF0, 32x16
+            'R', 0x11, 0x00, 'G', 0x11, 0x00, 'B', 0x11, 0x00, 0xFF, 0xDA); // SOS
+    assertThat(header.getWidth()).isEqualTo(32);
+    assertThat(header.getHeight()).isEqualTo(16);
+    assertThat(header.getColorspace()).isEqualTo(TJCS.TJCS_RGB);
+  }
+
+  @Test
+  public void testLosslessIsLeftToLibrary() throws IOException {
+    JpegHeader header =
+        readBytes(
+            0xFF, 0xD8, // SOI
+            0xFF, 0xC3, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x20, 0x01, 0x01, 0x11, 0x00, // SOF3
+            0xFF, 0xDA); // SOS
+    assertThat(header).isNull();
+  }
+
+  @Test
+  public void testInvalidData() throws IOException {
+    assertThat(readBytes(0x89, 'P', 'N', 'G')).isNull();
+    // Truncated before the frame header
+    assertThat(readBytes(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10, 'J', 'F')).isNull();
+  }
+
+  @Test
+  public void testHeaderSizeLimit() throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource("rgb.jpg").getFile());
+    try (ImageInputStream is = ImageIO.createImageInputStream(inFile)) {
+      assertThat(JpegHeader.read(is, 4)).isNull();
+    }
+  }
+}
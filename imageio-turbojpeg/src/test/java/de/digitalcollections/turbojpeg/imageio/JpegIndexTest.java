@@ -0,0 +1,73 @@
+package de.digitalcollections.turbojpeg.imageio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.turbojpeg.JpegIndex;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.junit.jupiter.api.Test;
+
+class JpegIndexTest {
+
+  private ByteBuffer readFixture(String fixtureFile) throws IOException, URISyntaxException {
+    return ByteBuffer.wrap(
+        Files.readAllBytes(Paths.get(ClassLoader.getSystemResource(fixtureFile).toURI())));
+  }
+
+  @Test
+  public void testBuild() throws Exception {
+    ByteBuffer data = readFixture("rgb.jpg");
+    JpegIndex index = JpegIndex.build(data, 4);
+    assertThat(index).isNotNull();
+    assertThat(index.getWidth()).isEqualTo(512);
+    assertThat(index.getHeight()).isEqualTo(512);
+    assertThat(index.getMcuHeight()).isEqualTo(8);
+    assertThat(index.getNumCheckpoints()).isEqualTo(16);
+    assertThat(index.matches(data)).isTrue();
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    ByteBuffer data = readFixture("subsampling_411.jpg");
+    JpegIndex index = JpegIndex.build(data);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    index.write(new DataOutputStream(bos));
+    JpegIndex read =
+        JpegIndex.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    assertThat(read.getWidth()).isEqualTo(index.getWidth());
+    assertThat(read.getHeight()).isEqualTo(index.getHeight());
+    assertThat(read.getInterval()).isEqualTo(JpegIndex.DEFAULT_INTERVAL);
+    assertThat(read.getNumCheckpoints()).isEqualTo(index.getNumCheckpoints());
+    assertThat(read.matches(data)).isTrue();
+  }
+
+  @Test
+  public void testDoesNotMatchOtherDataOfTheSameLength() throws Exception {
+    ByteBuffer data = readFixture("rgb.jpg");
+    JpegIndex index = JpegIndex.build(data);
+    byte[] changed = data.array().clone();
+    // Last byte of entropy-coded data before the EOI marker
+    changed[changed.length - 3] ^= 0x01;
+    assertThat(index.matches(ByteBuffer.wrap(changed))).isFalse();
+    // Inside the headers
+    changed = data.array().clone();
+    changed[30] ^= 0x01;
+    assertThat(index.matches(ByteBuffer.wrap(changed))).isFalse();
+    assertThat(index.matches(ByteBuffer.wrap(data.array().clone()))).isTrue();
+  }
+
+  @Test
+  public void testUnsupported() throws Exception {
+    // Progressive
+    assertThat(JpegIndex.build(readFixture("crop_aligned.jpg"))).isNull();
+    // Truncated
+    assertThat(JpegIndex.build(readFixture("bsb10505468_01132.jpg"))).isNull();
+  }
+}
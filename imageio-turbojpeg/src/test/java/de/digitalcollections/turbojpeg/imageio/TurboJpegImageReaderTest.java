@@ -3,21 +3,32 @@ package de.digitalcollections.turbojpeg.imageio;
 import static de.digitalcollections.turbojpeg.imageio.CustomAssertions.assertThat;
 import static de.digitalcollections.turbojpeg.imageio.TurboJpegImageReader.bufferFromStream;
 import static de.digitalcollections.turbojpeg.lib.enums.TJSAMP.TJSAMP_411;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import de.digitalcollections.turbojpeg.EncodeOptions;
 import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.JpegIndex;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.stream.ImageInputStream;
 import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.Test;
@@ -37,6 +48,28 @@ class TurboJpegImageReaderTest {
     assertThat(getReaderIter.get()).hasAtLeastOneElementOfType(TurboJpegImageReader.class);
   }
 
+  @Test
+  public void testProbingFilesDoesNotLeakDescriptors() throws IOException {
+    Path fds = Paths.get("/proc/self/fd");
+    assumeTrue(Files.isDirectory(fds));
+    TurboJpegImageReaderSpi spi = new TurboJpegImageReaderSpi();
+    File jpeg = new File(ClassLoader.getSystemResource("rgb.jpg").getFile());
+    File png = new File(ClassLoader.getSystemResource("grayscale_control.png").getFile());
+    long before = countEntries(fds);
+    for (int i = 0; i < 100; i++) {
+      assertThat(spi.canDecodeInput(jpeg)).isTrue();
+      assertThat(spi.canDecodeInput(jpeg.toPath())).isTrue();
+      assertThat(spi.canDecodeInput(png)).isFalse();
+    }
+    assertThat(countEntries(fds)).isLessThan(before + 10);
+  }
+
+  private static long countEntries(Path dir) throws IOException {
+    try (Stream<Path> entries = Files.list(dir)) {
+      return entries.count();
+    }
+  }
+
   private TurboJpegImageReader getReader(String fixtureFile) throws IOException {
     File inFile = new File(ClassLoader.getSystemResource(fixtureFile).getFile());
     ImageInputStream is = ImageIO.createImageInputStream(inFile);
@@ -53,6 +86,147 @@ class TurboJpegImageReaderTest {
     assertThat(img).hasDimensions(512, 512);
   }
 
+  @Test
+  public void testReadFromFile() throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource("rgb.jpg").getFile());
+    ImageReader reader = getReader("rgb.jpg");
+    reader.setInput(inFile);
+    BufferedImage img = reader.read(0, null);
+    assertThat(img).hasDimensions(512, 512);
+    reader.setInput(inFile.toPath());
+    img = reader.read(2, null);
+    assertThat(img).hasDimensions(384, 384);
+  }
+
+  @Test
+  public void testBufferFromStreamIsDirect() throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource("rgb.jpg").getFile());
+    ByteBuffer buf = bufferFromStream(ImageIO.createImageInputStream(inFile));
+    assertThat(buf.isDirect()).isTrue();
+    assertThat((long) buf.remaining()).isEqualTo(inFile.length());
+  }
+
+  @Test
+  public void testReadIntoDestination() throws IOException {
+    BufferedImage reference = getReader("rgb.jpg").read(2, null);
+    BufferedImage canvas = new BufferedImage(500, 500, BufferedImage.TYPE_3BYTE_BGR);
+    fill(canvas, 0xFF123456);
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(canvas);
+    param.setDestinationOffset(new Point(50, 70));
+    BufferedImage img = reader.read(2, param);
+    assertThat(img).isSameAs(canvas);
+    assertOutsideUnchanged(canvas, new Rectangle(50, 70, 384, 384), 0xFF123456);
+    for (int y = 0; y < 384; y += 31) {
+      for (int x = 0; x < 384; x += 31) {
+        assertThat(canvas.getRGB(x + 50, y + 70)).isEqualTo(reference.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void testReadRegionIntoDestination() throws IOException {
+    BufferedImage reference = getReader("rgb.jpg").read(0, null);
+    BufferedImage canvas = new BufferedImage(300, 300, BufferedImage.TYPE_3BYTE_BGR);
+    fill(canvas, 0xFF123456);
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(64, 96, 128, 100));
+    param.setDestination(canvas);
+    param.setDestinationOffset(new Point(20, 30));
+    reader.read(0, param);
+    assertOutsideUnchanged(canvas, new Rectangle(20, 30, 128, 100), 0xFF123456);
+    for (int y = 0; y < 100; y += 9) {
+      for (int x = 0; x < 128; x += 9) {
+        assertThat(canvas.getRGB(x + 20, y + 30)).isEqualTo(reference.getRGB(x + 64, y + 96));
+      }
+    }
+  }
+
+  private static void fill(BufferedImage img, int rgb) {
+    for (int y = 0; y < img.getHeight(); y++) {
+      for (int x = 0; x < img.getWidth(); x++) {
+        img.setRGB(x, y, rgb);
+      }
+    }
+  }
+
+  private static void assertOutsideUnchanged(BufferedImage img, Rectangle region, int rgb) {
+    for (int y = 0; y < img.getHeight(); y++) {
+      for (int x = 0; x < img.getWidth(); x++) {
+        if (!region.contains(x, y)) {
+          assertThat(img.getRGB(x, y)).as("pixel (%d,%d)", x, y).isEqualTo(rgb);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadIntoDestinationType() throws IOException {
+    BufferedImage reference = getReader("rgb.jpg").read(0, null);
+    for (int type :
+        new int[] {
+          BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR
+        }) {
+      ImageReader reader = getReader("rgb.jpg");
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setDestinationType(ImageTypeSpecifier.createFromBufferedImageType(type));
+      BufferedImage img = reader.read(0, param);
+      assertThat(img.getType()).isEqualTo(type);
+      for (int y = 0; y < 512; y += 37) {
+        for (int x = 0; x < 512; x += 37) {
+          assertThat(img.getRGB(x, y)).isEqualTo(reference.getRGB(x, y));
+        }
+      }
+    }
+  }
+
+  /** A detailed image with 4:2:0 chroma subsampling, which is upsampled when decoding. */
+  private static byte[] encodeSubsampled() throws TurboJpegException {
+    BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+    for (int y = 0; y < img.getHeight(); y++) {
+      for (int x = 0; x < img.getWidth(); x++) {
+        img.setRGB(x, y, (x * 7) << 16 | (y * 3) << 8 | (x ^ y) & 0xFF);
+      }
+    }
+    EncodeOptions options = new EncodeOptions();
+    options.setSubsampling(TJSAMP.TJSAMP_420);
+    options.setQuality(90);
+    ByteBuffer data = new TurboJpeg().encode(img.getRaster(), options);
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return bytes;
+  }
+
+  private static ImageReader getReader(byte[] jpegData) throws IOException {
+    ImageInputStream is = ImageIO.createImageInputStream(new ByteArrayInputStream(jpegData));
+    ImageReader reader = ImageIO.getImageReaders(is).next();
+    assertThat(reader).isInstanceOf(TurboJpegImageReader.class);
+    reader.setInput(is);
+    return reader;
+  }
+
+  @Test
+  public void testReadFastDct() throws IOException, TurboJpegException {
+    byte[] jpegData = encodeSubsampled();
+    BufferedImage reference = getReader(jpegData).read(0, null);
+    ImageReader reader = getReader(jpegData);
+    TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+    param.setFastDct(true);
+    assertThat(reader.read(0, param)).differsSlightlyFrom(reference, 35);
+  }
+
+  @Test
+  public void testReadFastUpsample() throws IOException, TurboJpegException {
+    byte[] jpegData = encodeSubsampled();
+    BufferedImage reference = getReader(jpegData).read(0, null);
+    ImageReader reader = getReader(jpegData);
+    TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+    param.setFastUpsample(true);
+    assertThat(reader.read(0, param)).differsSlightlyFrom(reference, 30);
+  }
+
   @Test
   public void testReadScaled() throws IOException {
     BufferedImage img = getReader("rgb.jpg").read(2, null);
@@ -68,6 +242,22 @@ class TurboJpegImageReaderTest {
     assertThat(img).hasDimensions(96, 96).hasNoPixelsOfColor(-1 /* white */);
   }
 
+  @Test
+  public void testReadRegionMatchesFullDecode() throws IOException {
+    BufferedImage full = getReader("rgb.jpg").read(1, null);
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    Rectangle region = new Rectangle(13, 21, 101, 77);
+    param.setSourceRegion(region);
+    BufferedImage img = reader.read(1, param);
+    assertThat(img).hasDimensions(101, 77);
+    for (int y = 0; y < region.height; y++) {
+      for (int x = 0; x < region.width; x++) {
+        assertThat(img.getRGB(x, y)).isEqualTo(full.getRGB(region.x + x, region.y + y));
+      }
+    }
+  }
+
   @Test
   public void testReadRegionUnaligned() throws IOException {
     ImageReader reader = getReader("crop_unaligned.jpg");
@@ -382,7 +572,7 @@ class TurboJpegImageReaderTest {
         bufferFromStream(
             ImageIO.createImageInputStream(
                 new File(ClassLoader.getSystemResource(fixtureFile).getFile())));
-    Info info = turboJpeg.getInfo(jpegData.array());
+    Info info = turboJpeg.getInfo(jpegData);
     assertThat(info.getSubsampling()).isEqualTo(TJSAMP_411);
 
     TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
@@ -434,4 +624,93 @@ class TurboJpegImageReaderTest {
     assertThat(image.getHeight()).isEqualTo(350);
     assertThat(image.getWidth()).isEqualTo(250);
   }
+
+  @Test
+  public void testReadRegionWithIndex() throws Exception {
+    ByteBuffer data =
+        ByteBuffer.wrap(
+            Files.readAllBytes(
+                new File(ClassLoader.getSystemResource("rgb.jpg").getFile()).toPath()));
+    JpegIndex index = JpegIndex.build(data, 2);
+    ImageReader reader = getReader("rgb.jpg");
+    TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(40, 300, 100, 120));
+    BufferedImage expected = reader.read(0, param);
+
+    param.setIndex(index);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(100, 120);
+    assertThat(img).isEqualTo(expected);
+  }
+
+  @Test
+  public void testReadSubsampledUsesScalingFactor() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    int quarterIndex = 0;
+    while (reader.getWidth(quarterIndex) != 128) {
+      quarterIndex++;
+    }
+    BufferedImage expected = reader.read(quarterIndex, null);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceSubsampling(4, 4, 0, 0);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(128, 128);
+    assertThat(img).isEqualTo(expected);
+  }
+
+  @Test
+  public void testReadRegionWithUnknownSubsampling() throws IOException {
+    BufferedImage full = getReader("unknown_sampling.jpg").read(0, null);
+    ImageReader reader = getReader("unknown_sampling.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(21, 13, 40, 30));
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(40, 30);
+    assertThat(img).isEqualTo(full.getSubimage(21, 13, 40, 30));
+  }
+
+  @Test
+  public void testReadSubsampledBelowSmallestSize() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    BufferedImage smallest = reader.read(reader.getNumImages(false) - 1, null);
+    assertThat(smallest).hasDimensions(64, 64);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceSubsampling(32, 32, 0, 0);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(16, 16);
+    // A single bilinear pass would only look at 2x2 of every 4x4 pixels of the smallest size
+    assertBlockAverages(smallest, img, 4);
+  }
+
+  /** Every sample of the scaled image has to be the average of a block of the source. */
+  private static void assertBlockAverages(BufferedImage source, BufferedImage scaled, int factor) {
+    for (int y = 0; y < scaled.getHeight(); y++) {
+      for (int x = 0; x < scaled.getWidth(); x++) {
+        for (int b = 0; b < scaled.getRaster().getNumBands(); b++) {
+          int sum = 0;
+          for (int dy = 0; dy < factor; dy++) {
+            for (int dx = 0; dx < factor; dx++) {
+              sum += source.getRaster().getSample(x * factor + dx, y * factor + dy, b);
+            }
+          }
+          assertThat(scaled.getRaster().getSample(x, y, b))
+              .as("sample %d of (%d,%d)", b, x, y)
+              .isCloseTo(Math.round((float) sum / (factor * factor)), within(1));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadRenderSize() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    assertThat(param.canSetSourceRenderSize()).isTrue();
+    param.setSourceRenderSize(new Dimension(300, 200));
+    assertThat(reader.read(0, param)).hasDimensions(300, 200);
+
+    param.setSourceRegion(new Rectangle(100, 50, 150, 100));
+    param.setSourceSubsampling(2, 3, 0, 0);
+    assertThat(reader.read(0, param)).hasDimensions(75, 34);
+  }
 }
@@ -4,6 +4,9 @@ import static de.digitalcollections.turbojpeg.imageio.CustomAssertions.assertTha
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Streams;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -12,6 +15,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
@@ -51,6 +55,106 @@ class TurboJpegImageWriterTest {
     assertThat(os.toByteArray()).isNotEmpty();
   }
 
+  @Test
+  public void testEncodeProgressive() throws IOException {
+    ImageWriter writer =
+        Streams.stream(ImageIO.getImageWritersByFormatName("jpeg"))
+            .filter(TurboJpegImageWriter.class::isInstance)
+            .findFirst()
+            .orElseThrow(RuntimeException::new);
+    TurboJpegImageWriteParam param = (TurboJpegImageWriteParam) writer.getDefaultWriteParam();
+    param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    param.setFastDct(true);
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("crop_aligned.jpg"));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    BufferedImage jpegImg = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+    assertThat(jpegImg.getWidth()).isEqualTo(in.getWidth());
+    assertThat(jpegImg.getHeight()).isEqualTo(in.getHeight());
+  }
+
+  private static byte[] encode(ImageWriter writer, BufferedImage img, ImageWriteParam param)
+      throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(img, null, null), param);
+    }
+    return os.toByteArray();
+  }
+
+  @Test
+  public void testEncodeFastDct() throws IOException {
+    ImageWriter writer =
+        Streams.stream(ImageIO.getImageWritersByFormatName("jpeg"))
+            .filter(TurboJpegImageWriter.class::isInstance)
+            .findFirst()
+            .orElseThrow(RuntimeException::new);
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("crop_aligned.jpg"));
+    TurboJpegImageWriteParam param = (TurboJpegImageWriteParam) writer.getDefaultWriteParam();
+    byte[] accurate = encode(writer, in, param);
+    param.setFastDct(true);
+    byte[] fast = encode(writer, in, param);
+    // The same writer encodes the same image differently only if the flag reaches the encoder
+    assertThat(fast).isNotEqualTo(accurate);
+    BufferedImage accurateImg = ImageIO.read(new ByteArrayInputStream(accurate));
+    BufferedImage fastImg = ImageIO.read(new ByteArrayInputStream(fast));
+    assertThat(fastImg).differsSlightlyFrom(accurateImg, 35);
+  }
+
+  @Test
+  public void testCanEncodeIntTypes() {
+    TurboJpegImageWriterSpi spi = new TurboJpegImageWriterSpi();
+    for (int type :
+        new int[] {
+          BufferedImage.TYPE_INT_RGB,
+          BufferedImage.TYPE_INT_BGR,
+          BufferedImage.TYPE_INT_ARGB,
+          BufferedImage.TYPE_4BYTE_ABGR,
+          BufferedImage.TYPE_3BYTE_BGR,
+          BufferedImage.TYPE_BYTE_GRAY
+        }) {
+      assertThat(spi.canEncodeImage(ImageTypeSpecifier.createFromBufferedImageType(type))).isTrue();
+    }
+    assertThat(
+            spi.canEncodeImage(
+                ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_USHORT_565_RGB)))
+        .isFalse();
+  }
+
+  @Test
+  public void testEncodeIntRgbWithSubsampling() throws IOException {
+    ImageWriter writer =
+        Streams.stream(ImageIO.getImageWritersByFormatName("jpeg"))
+            .filter(TurboJpegImageWriter.class::isInstance)
+            .findFirst()
+            .orElseThrow(RuntimeException::new);
+    TurboJpegImageWriteParam param = (TurboJpegImageWriteParam) writer.getDefaultWriteParam();
+    param.setSubsampling(TJSAMP.TJSAMP_444);
+    BufferedImage in = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = in.createGraphics();
+    g.setColor(Color.RED);
+    g.fillRect(0, 0, 32, 64);
+    g.setColor(Color.BLUE);
+    g.fillRect(32, 0, 32, 64);
+    g.dispose();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    BufferedImage jpegImg = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+    Color left = new Color(jpegImg.getRGB(8, 8));
+    Color right = new Color(jpegImg.getRGB(56, 8));
+    assertThat(left.getRed()).isGreaterThan(200);
+    assertThat(left.getBlue()).isLessThan(50);
+    assertThat(right.getBlue()).isGreaterThan(200);
+    assertThat(right.getRed()).isLessThan(50);
+  }
+
   @Test
   public void testEncodeBinary() throws Exception {
     ImageWriter writer =
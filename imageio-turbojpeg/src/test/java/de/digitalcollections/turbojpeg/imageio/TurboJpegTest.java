@@ -1,12 +1,35 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import de.digitalcollections.turbojpeg.EncodeOptions;
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.JpegIndex;
+import de.digitalcollections.turbojpeg.StripDecoder;
+import de.digitalcollections.turbojpeg.TransformResult;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
+import de.digitalcollections.turbojpeg.YuvImage;
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -36,4 +59,283 @@ class TurboJpegTest {
 
     turboJpeg.encode(bufferedImage.getRaster(), 100);
   }
+
+  @Test
+  void losslessRoundTripWith16BitSamples() throws TurboJpegException {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    BufferedImage bufferedImage = new BufferedImage(64, 48, BufferedImage.TYPE_USHORT_GRAY);
+    for (int y = 0; y < 48; y++) {
+      for (int x = 0; x < 64; x++) {
+        bufferedImage.getRaster().setSample(x, y, 0, x * 1000 + y);
+      }
+    }
+
+    ByteBuffer jpegData = turboJpeg.encode(bufferedImage.getRaster(), 100);
+    Info info = turboJpeg.getInfo(jpegData);
+    assertThat(info.isLossless()).isTrue();
+    assertThat(info.getPrecision()).isEqualTo(16);
+    assertThat(info.getAvailableSizes()).hasSize(1);
+
+    BufferedImage decoded = turboJpeg.decode(jpegData, info, info.getAvailableSizes().get(0));
+    assertTrue(decoded.getRaster().getDataBuffer() instanceof DataBufferUShort);
+    assertThat(((DataBufferUShort) decoded.getRaster().getDataBuffer()).getData())
+        .isEqualTo(((DataBufferUShort) bufferedImage.getRaster().getDataBuffer()).getData());
+  }
+
+  @Test
+  void transformMultipleRegions() throws Exception {
+    byte[] jpegData =
+        Files.readAllBytes(Paths.get(ClassLoader.getSystemResource("crop_aligned.jpg").toURI()));
+    Info info = turboJpeg.getInfo(jpegData);
+    List<Rectangle> regions =
+        Arrays.asList(new Rectangle(0, 0, 64, 64), new Rectangle(64, 32, 128, 64), null);
+
+    try (TransformResult result = turboJpeg.transform(jpegData, info, regions, 0)) {
+      assertThat(result.size()).isEqualTo(3);
+      for (int i = 0; i < regions.size(); i++) {
+        ByteBuffer transformed = result.get(i);
+        assertThat(transformed.isDirect()).isTrue();
+        Info transformedInfo = turboJpeg.getInfo(result.copy(i));
+        Rectangle region = regions.get(i);
+        assertThat(transformedInfo.getWidth())
+            .isEqualTo(region != null ? region.width : info.getWidth());
+        assertThat(transformedInfo.getHeight())
+            .isEqualTo(region != null ? region.height : info.getHeight());
+      }
+    }
+  }
+
+  @Test
+  void yuvPlaneSizes() {
+    YuvImage yuv = YuvImage.allocate(35, 17, TJSAMP.TJSAMP_420);
+    assertThat(yuv.getNumPlanes()).isEqualTo(3);
+    assertThat(yuv.getStride(0)).isEqualTo(36);
+    assertThat(yuv.getPlane(0).capacity()).isEqualTo(36 * 18);
+    assertThat(yuv.getStride(1)).isEqualTo(18);
+    assertThat(yuv.getPlane(2).capacity()).isEqualTo(18 * 9);
+    assertThat(YuvImage.allocate(35, 17, TJSAMP.TJSAMP_GRAY).getNumPlanes()).isEqualTo(1);
+  }
+
+  @Test
+  void yuvRoundTrip() throws Exception {
+    byte[] jpegData =
+        Files.readAllBytes(Paths.get(ClassLoader.getSystemResource("crop_aligned.jpg").toURI()));
+    Info info = turboJpeg.getInfo(jpegData);
+    Dimension size = info.getAvailableSizes().get(1);
+
+    YuvImage yuv = turboJpeg.decodeToYuv(jpegData, info, size);
+    assertThat(yuv.getSize()).isEqualTo(size);
+    assertThat(yuv.getSubsampling()).isEqualTo(info.getSubsampling());
+
+    ByteBuffer encoded = turboJpeg.encode(yuv, new EncodeOptions());
+    Info encodedInfo = turboJpeg.getInfo(encoded);
+    assertThat(encodedInfo.getWidth()).isEqualTo(size.width);
+    assertThat(encodedInfo.getHeight()).isEqualTo(size.height);
+    assertThat(encodedInfo.getSubsampling()).isEqualTo(info.getSubsampling());
+
+    BufferedImage rgb = turboJpeg.decode(yuv);
+    YuvImage converted = turboJpeg.encodeToYuv(rgb.getRaster(), info.getSubsampling());
+    assertThat(converted.getSize()).isEqualTo(size);
+    assertThat(converted.getStride(0)).isEqualTo(yuv.getStride(0));
+  }
+
+  @Test
+  void encodeToYuvAfterLosslessEncode() throws Exception {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    // Leaves lossless mode enabled on the pooled compression handle
+    BufferedImage deep = new BufferedImage(64, 48, BufferedImage.TYPE_USHORT_GRAY);
+    assertThat(turboJpeg.getInfo(turboJpeg.encode(deep.getRaster(), 100)).isLossless()).isTrue();
+
+    BufferedImage rgb = new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR);
+    rgb.getRaster().setPixel(10, 10, new int[] {255, 128, 0});
+    YuvImage yuv = turboJpeg.encodeToYuv(rgb.getRaster(), TJSAMP.TJSAMP_444);
+    assertThat(yuv.getNumPlanes()).isEqualTo(3);
+    // Only the rounding of the color conversion may change the pixel
+    int[] decoded = turboJpeg.decode(yuv).getRaster().getPixel(10, 10, (int[]) null);
+    assertThat(decoded[0]).isCloseTo(255, within(2));
+    assertThat(decoded[1]).isCloseTo(128, within(2));
+    assertThat(decoded[2]).isCloseTo(0, within(2));
+  }
+
+  @Test
+  void decodeInStrips() throws Exception {
+    byte[] jpegData =
+        Files.readAllBytes(Paths.get(ClassLoader.getSystemResource("crop_aligned.jpg").toURI()));
+    Info info = turboJpeg.getInfo(jpegData);
+    Dimension size = new Dimension(info.getWidth(), info.getHeight());
+    BufferedImage full =
+        turboJpeg.decode(
+            ByteBuffer.wrap(jpegData), info, size, null, null, TJFLAG.TJFLAG_FASTUPSAMPLE);
+
+    StripDecoder strips =
+        turboJpeg.decodeStrips(
+            ByteBuffer.wrap(jpegData), info, size, 48, TJFLAG.TJFLAG_FASTUPSAMPLE);
+    BufferedImage destination = turboJpeg.createImage(info, size.width, 48);
+    int y = 0;
+    while (strips.hasNext()) {
+      assertThat(strips.getY()).isEqualTo(y);
+      BufferedImage strip = strips.next(destination);
+      assertThat(strip.getWidth()).isEqualTo(size.width);
+      assertThat(strip.getHeight()).isEqualTo(Math.min(48, size.height - y));
+      CustomAssertions.assertThat(strip)
+          .isEqualTo(full.getSubimage(0, y, size.width, strip.getHeight()));
+      y += strip.getHeight();
+    }
+    assertThat(y).isEqualTo(size.height);
+  }
+
+  private static BufferedImage createTestImage(int width, int height) {
+    BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        img.setRGB(x, y, (x * 7) << 16 | (y * 3) << 8 | (x ^ y) & 0xFF);
+      }
+    }
+    return img;
+  }
+
+  private void assertStripsMatchFullDecode(ByteBuffer jpegData, int stripHeight)
+      throws TurboJpegException {
+    Info info = turboJpeg.getInfo(jpegData);
+    Dimension size = new Dimension(info.getWidth(), info.getHeight());
+    BufferedImage full = turboJpeg.decode(jpegData, info, size);
+    StripDecoder strips = turboJpeg.decodeStrips(jpegData, info, size, stripHeight);
+    BufferedImage destination =
+        new BufferedImage(size.width, stripHeight, BufferedImage.TYPE_3BYTE_BGR);
+    while (strips.hasNext()) {
+      int y = strips.getY();
+      BufferedImage strip = strips.next(destination);
+      CustomAssertions.assertThat(strip)
+          .isEqualTo(full.getSubimage(0, y, size.width, strip.getHeight()));
+    }
+  }
+
+  @Test
+  void decodeStripsFromIndexCheckpoints() throws TurboJpegException {
+    EncodeOptions options = new EncodeOptions();
+    // No vertical chroma subsampling, so strips match the full decode exactly
+    options.setSubsampling(TJSAMP.TJSAMP_422);
+    ByteBuffer jpegData = turboJpeg.encode(createTestImage(300, 500).getRaster(), options);
+    assertThat(JpegIndex.build(jpegData)).isNotNull();
+    // Not aligned to MCU rows, so strips start and end in the middle of checkpoints
+    assertStripsMatchFullDecode(jpegData, 37);
+  }
+
+  @Test
+  void decodeStripsFromRestartMarkers() throws TurboJpegException {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    EncodeOptions options = new EncodeOptions();
+    options.setSubsampling(TJSAMP.TJSAMP_444);
+    // A restart interval every two MCU rows
+    options.setRestartInterval(76);
+    ByteBuffer jpegData = turboJpeg.encode(createTestImage(300, 500).getRaster(), options);
+    assertThat(JpegIndex.build(jpegData)).isNull();
+    assertStripsMatchFullDecode(jpegData, 37);
+  }
+
+  @Test
+  void decodeRegionWithUnknownSubsampling() throws Exception {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    // Luma is sampled 2x2, Cb 2x1 and Cr 1x2, which matches none of the TJSAMP values
+    ByteBuffer jpegData =
+        ByteBuffer.wrap(
+            Files.readAllBytes(
+                Paths.get(ClassLoader.getSystemResource("unknown_sampling.jpg").toURI())));
+    Info info = turboJpeg.getInfo(jpegData);
+    assertThat(info.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_UNKNOWN);
+    Dimension size = new Dimension(info.getWidth(), info.getHeight());
+    BufferedImage full = turboJpeg.decode(jpegData, info, size);
+    Rectangle region = new Rectangle(21, 13, 40, 30);
+    BufferedImage img = turboJpeg.decode(jpegData, info, size, region, null, null);
+    CustomAssertions.assertThat(img)
+        .isEqualTo(full.getSubimage(region.x, region.y, region.width, region.height));
+  }
+
+  @Test
+  void decodeAdjacentTilesConcurrently() throws Exception {
+    ByteBuffer jpegData =
+        turboJpeg.encode(createTestImage(128, 64).getRaster(), new EncodeOptions());
+    Info info = turboJpeg.getInfo(jpegData);
+    BufferedImage tile = turboJpeg.decode(jpegData, info, null);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      // Tiles next to each other in the same rows must not overwrite each other's pixels
+      for (int i = 0; i < 10; i++) {
+        BufferedImage canvas = new BufferedImage(128 * 4, 64, BufferedImage.TYPE_3BYTE_BGR);
+        List<Future<BufferedImage>> decodes = new ArrayList<>();
+        for (int x = 0; x < canvas.getWidth(); x += 128) {
+          Point offset = new Point(x, 0);
+          decodes.add(
+              pool.submit(
+                  () -> turboJpeg.decode(jpegData.duplicate(), info, null, canvas, offset)));
+        }
+        for (Future<BufferedImage> decode : decodes) {
+          assertThat(decode.get()).isSameAs(canvas);
+        }
+        for (int x = 0; x < canvas.getWidth(); x += 128) {
+          CustomAssertions.assertThat(canvas.getSubimage(x, 0, 128, 64)).isEqualTo(tile);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void decodeParallelWithRestartMarkers() throws TurboJpegException {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    BufferedImage bufferedImage = new BufferedImage(400, 300, BufferedImage.TYPE_3BYTE_BGR);
+    for (int y = 0; y < 300; y++) {
+      for (int x = 0; x < 400; x++) {
+        bufferedImage.setRGB(x, y, (x * 7) << 16 | (y * 3) << 8 | (x ^ y) & 0xFF);
+      }
+    }
+    EncodeOptions options = new EncodeOptions();
+    options.setSubsampling(TJSAMP.TJSAMP_444);
+    // One restart interval per MCU row
+    options.setRestartInterval(50);
+    ByteBuffer jpegData = turboJpeg.encode(bufferedImage.getRaster(), options);
+    Info info = turboJpeg.getInfo(jpegData);
+
+    BufferedImage serial = turboJpeg.decode(jpegData, info, null);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BufferedImage parallel = turboJpeg.decodeParallel(jpegData, info, null, null, 0, pool);
+      CustomAssertions.assertThat(parallel).isEqualTo(serial);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void decodeParallelWithMoreBandsThanThreads() throws TurboJpegException {
+    assumeTrue(turboJpeg.isTurboJpeg3());
+    BufferedImage bufferedImage = new BufferedImage(2000, 1600, BufferedImage.TYPE_3BYTE_BGR);
+    for (int y = 0; y < bufferedImage.getHeight(); y++) {
+      for (int x = 0; x < bufferedImage.getWidth(); x++) {
+        bufferedImage.setRGB(x, y, (x * 7) << 16 | (y * 3) << 8 | (x ^ y) & 0xFF);
+      }
+    }
+    EncodeOptions options = new EncodeOptions();
+    options.setSubsampling(TJSAMP.TJSAMP_444);
+    // One restart interval per MCU row, i.e. 200 rows that can be grouped into bands freely
+    options.setRestartInterval(250);
+    ByteBuffer jpegData = turboJpeg.encode(bufferedImage.getRaster(), options);
+    Info info = turboJpeg.getInfo(jpegData);
+
+    BufferedImage serial = turboJpeg.decode(jpegData, info, null);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      // Bands finishing in any order must not touch the rows of the others
+      for (int i = 0; i < 5; i++) {
+        BufferedImage parallel = turboJpeg.decodeParallel(jpegData, info, null, null, 0, pool);
+        for (int y = 0; y < serial.getHeight(); y += 8) {
+          CustomAssertions.assertThat(parallel.getSubimage(0, y, serial.getWidth(), 8))
+              .isEqualTo(serial.getSubimage(0, y, serial.getWidth(), 8));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
 }